@@ -17,6 +17,8 @@
 package com.ning.metrics.collector.binder.config;
 
 import com.googlecode.jsendnsca.encryption.Encryption;
+import com.ning.metrics.collector.processing.db.MetricsBufferInsertMode;
+import com.ning.metrics.collector.util.EventQueueType;
 import com.ning.metrics.serialization.writer.CompressionCodec;
 import org.skife.config.Config;
 import org.skife.config.Default;
@@ -65,6 +67,12 @@ public interface CollectorConfig
     @Default("10000")
     int getActiveMQBufferLength();
 
+    // Implementation of the internal buffer for passing events of a specific type to activemq: LINKED or RING_BUFFER
+    @Config({"collector.activemq.${category}.bufferType",
+             "collector.activemq.bufferType"})
+    @Default("LINKED")
+    EventQueueType getActiveMQBufferType();
+
     // Number of senders constructed for specific category; usually one
     // is fine for low/medium volume; higher for high-volume ones (2 - 4)
     @Config({"collector.activemq.${category}.numSendersPerCategory",
@@ -99,6 +107,17 @@ public interface CollectorConfig
     @Default("200000")
     int getMaxQueueSize();
 
+    /**
+     * Implementation of the local queues buffering events before they are written to the disk spool: LINKED or RING_BUFFER.
+     * There is one queue per disk spool path. A RING_BUFFER queue allocates its slots in chunks as its backlog grows,
+     * about 12 bytes per slot, so an idle queue costs next to nothing whatever collector.max-event-queue-size is.
+     *
+     * @return the queue implementation
+     */
+    @Config("collector.event-queue-type")
+    @Default("LINKED")
+    EventQueueType getEventQueueType();
+
     @Config("collector.event-routes.persistent")
     @Default("true")
     boolean isHdfsWriterEnabled();
@@ -107,6 +126,65 @@ public interface CollectorConfig
     @Default("5")
     int getRateWindowSizeMinutes();
 
+    //------------------- Admission control -------------------//
+
+    /**
+     * If true, the HTTP and Scribe endpoints reject requests (503 and TRY_LATER) when the collector is falling behind,
+     * so that senders back off instead of having their events dropped
+     *
+     * @return whether admission control is enabled
+     */
+    @Config("collector.admission.enabled")
+    @Default("false")
+    boolean isAdmissionControlEnabled();
+
+    /**
+     * Number of events in memory (all spool queues combined) above which requests are rejected
+     *
+     * @return the queue depth high watermark
+     */
+    @Config("collector.admission.queue-high-watermark")
+    @Default("1000000")
+    int getAdmissionQueueHighWatermark();
+
+    /**
+     * Number of events in memory (all spool queues combined) below which requests are accepted again
+     *
+     * @return the queue depth low watermark
+     */
+    @Config("collector.admission.queue-low-watermark")
+    @Default("500000")
+    int getAdmissionQueueLowWatermark();
+
+    /**
+     * How full (in percent of collector.max-event-queue-size) the spool queue of an event's path can get
+     * before requests sending events to that path are rejected, whatever the total queue depth
+     *
+     * @return the per-path queue high watermark, in percent
+     */
+    @Config("collector.admission.queue-full-percent")
+    @Default("90")
+    int getAdmissionQueueFullPercent();
+
+    /**
+     * Average time to write an event to the disk spool above which requests are rejected,
+     * as long as the queue depth is above the low watermark
+     *
+     * @return the write latency high watermark
+     */
+    @Config("collector.admission.write-latency-high-watermark")
+    @Default("10ms")
+    TimeSpan getAdmissionWriteLatencyHighWatermark();
+
+    /**
+     * Delay senders are asked to wait before retrying (Retry-After header)
+     *
+     * @return the retry delay
+     */
+    @Config("collector.admission.retry-after")
+    @Default("30s")
+    TimeSpan getAdmissionRetryAfter();
+
     //------------------- Spooling -------------------//
 
     /**
@@ -156,6 +234,36 @@ public interface CollectorConfig
     @Default("50")
     int getSyncBatchSize();
 
+    /**
+     * Maximum number of events dequeued at once from a local queue and handed to the disk spool writer.
+     * The default (1) writes events one at a time, as soon as they are enqueued.
+     *
+     * @return the maximum number of events written per dequeue
+     */
+    @Config("collector.diskspool.dequeue-batch-size")
+    @Default("1")
+    int getDequeueBatchSize();
+
+    /**
+     * Maximum time to wait for a batch of events to fill up before writing it to the disk spool.
+     * This trades a little bit of latency for less per-event overhead, and is ignored if the batch size is 1.
+     *
+     * @return the maximum time to wait for a batch to fill up
+     */
+    @Config("collector.diskspool.dequeue-batch-max-wait")
+    @Default("0ms")
+    TimeSpan getDequeueBatchMaxWait();
+
+    /**
+     * Number of threads writing events from the local queues to the disk spool. These threads are shared
+     * by all queues (one per output path). If 0, the number of available processors is used.
+     *
+     * @return the size of the dequeuer thread pool
+     */
+    @Config("collector.diskspool.dequeue-threads")
+    @Default("0")
+    int getDequeueThreadCount();
+
     /**
      * Maximum number of events in the file being written (_tmp directory).
      * <p/>
@@ -421,11 +529,52 @@ public interface CollectorConfig
     /**
      * Total number of threads that can run in parallel.
      * Typically it would be 5 times the number of processor classes.
+     * Threads are split evenly across the processors, each processor working on its own backlog of files.
      * */
     @Config("collector.spoolWriter.fileprocessor.threads.count")
     @Default("10")
     int getFileProcessorThreadCount();
 
+    /**
+     * Maximum time for a spool processor to process a file, before the attempt is interrupted and considered failed.
+     * 0 to disable.
+     */
+    @Config("collector.spoolWriter.processor.timeout")
+    @Default("30m")
+    TimeSpan getSpoolProcessorTimeout();
+
+    /**
+     * Number of times a spool processor is retried on a file, after a failure or a timeout.
+     * Other processors are not retried. The file is quarantined if the retries fail too.
+     */
+    @Config("collector.spoolWriter.processor.retries")
+    @Default("2")
+    int getSpoolProcessorMaxRetries();
+
+    /**
+     * Delay before retrying a spool processor on a file
+     */
+    @Config("collector.spoolWriter.processor.retry-delay")
+    @Default("10s")
+    TimeSpan getSpoolProcessorRetryDelay();
+
+    /**
+     * Number of files a spool processor can have waiting for or being processed. Once a processor is that far behind,
+     * flushing new files blocks until it catches up (events then accumulate in the spool queues).
+     */
+    @Config("collector.spoolWriter.processor.max-files-in-flight")
+    @Default("20")
+    int getSpoolProcessorMaxFilesInFlight();
+
+    /**
+     * Number of files which can be read by the spool processors sharing decoded events (e.g. the counter and feed
+     * processors) at the same time. Decoded events are kept in memory until all these processors are done with a file:
+     * once the limit is reached, flushing new files blocks until one is released.
+     */
+    @Config("collector.spoolWriter.processor.max-decoded-files")
+    @Default("8")
+    int getSpoolProcessorMaxDecodedFiles();
+
     /**
      * Shutdown wait time for the executor to let the existing threads finish the processing.
      * */
@@ -433,6 +582,21 @@ public interface CollectorConfig
     @Default("5s")
     TimeSpan getSpoolWriterExecutorShutdownTime();
 
+    /**
+     * Whether files left below by a previous run should be sent to the spool processors on startup.
+     * Recovery happens in the background, at a lower priority, while the collector accepts new events.
+     */
+    @Config("collector.spoolWriter.recovery.startup.enabled")
+    @Default("true")
+    boolean isStartupRecoveryEnabled();
+
+    /**
+     * Number of left below files sent to the spool processors in parallel during recovery.
+     */
+    @Config("collector.spoolWriter.recovery.threads.count")
+    @Default("2")
+    int getRecoveryThreadCount();
+
     /**
      * @return Comma (,) seperated class names for processing the event of the
      * given type.  This parameter is meant as an overload
@@ -533,11 +697,81 @@ public interface CollectorConfig
     @Default("1000")
     long getMaxCounterEventFlushCacheCount();
 
+    @Description("The number of threads writing counter events to the metrics buffer, each namespace always being written by the same one. Each writer holds a database connection while writing, keep it below collector.spoolWriter.jdbc.maxActive")
+    @Config("collector.spoolWriter.counterEvent.buffer.writers")
+    @Default("4")
+    int getCounterEventBufferWriterCount();
+
+    @Description("The maximum number of batches of counter events waiting for each metrics buffer writer, flushing the counter cache blocks beyond it")
+    @Config("collector.spoolWriter.counterEvent.buffer.writer.queue.limit")
+    @Default("2")
+    int getCounterEventBufferWriterQueueLimit();
+
+    @Description("How counter events are inserted into the metrics buffer: BATCH for a JDBC batch of single row inserts, MULTI_ROW for multi-row inserts of up to collector.spoolWriter.counterEvent.buffer.insert.chunk.bytes each")
+    @Config("collector.spoolWriter.counterEvent.buffer.insert.mode")
+    @Default("BATCH")
+    MetricsBufferInsertMode getCounterEventBufferInsertMode();
+
+    @Description("The approximate maximum size in bytes of the values of a multi-row insert into the metrics buffer, keep it well below the max_allowed_packet of the database")
+    @Config("collector.spoolWriter.counterEvent.buffer.insert.chunk.bytes")
+    @Default("524288")
+    int getCounterEventBufferInsertChunkBytes();
+
+    @Description("How often counter events pre-aggregated by namespace, day and unique id are handed to the counter cache")
+    @Config("collector.spoolWriter.counterEvent.aggregation.flush.time")
+    @Default("30s")
+    TimeSpan getCounterEventAggregationFlushTime();
+
+    @Description("The number of pre-aggregated counter events (one per namespace, day and unique id) which triggers a flush before the timer")
+    @Config("collector.spoolWriter.counterEvent.aggregation.flush.limit")
+    @Default("10000")
+    int getMaxCounterEventAggregationCount();
+
     @Description("The maximum allowed number of counter events to be fetched in bulk while performing roll up operation")
     @Config("collector.spoolWriter.counterEvent.db.fetch.limit")
     @Default("1000")
     int getMaxCounterEventFetchCount();
 
+    @Description("Whether the roll up processor rolls up the buffered counter events one day (or one partition of a day) at a time, saving each day as soon as it is done, instead of holding the whole namespace in memory")
+    @Config("collector.spoolWriter.counterEvent.rollup.partitioned")
+    @Default("true")
+    boolean isCounterRollUpPartitioned();
+
+    @Description("The maximum number of buffered counter events rolled up in memory at once by the partitioned roll up. Days with more events are split in partitions by hash of unique id")
+    @Config("collector.spoolWriter.counterEvent.rollup.partition.limit")
+    @Default("250000")
+    int getMaxCounterRollUpPartitionSize();
+
+    @Description("Whether roll ups append their counts to metrics_daily_delta, merged into metrics_daily by compaction, instead of reading, merging and rewriting the stored daily distributions. Existing databases need the metrics_daily_delta table of db/mysql/collector_counter_events_upgrade.sql first, which readers and compaction use whatever this is set to")
+    @Config("collector.spoolWriter.counterEvent.rollup.incremental")
+    @Default("true")
+    boolean isCounterRollUpIncremental();
+
+    @Description("Cron Trigger for the compaction of the rolled up counter deltas")
+    @Config("collector.spoolWriter.counterEvent.rollup.compaction.cron")
+    @Default("0 15/30 * * * ?")
+    String getCounterRollUpCompactionCronExpression();
+
+    @Description("The number of deltas of a daily rolled up counter which gets it compacted by the compaction job")
+    @Config("collector.spoolWriter.counterEvent.rollup.compaction.delta.limit")
+    @Default("16")
+    int getMaxCounterRollUpDeltaCount();
+
+    @Description("How long the deltas of a daily rolled up counter can wait before the compaction job compacts them, whatever their number")
+    @Config("collector.spoolWriter.counterEvent.rollup.compaction.delay")
+    @Default("6h")
+    TimeSpan getCounterRollUpCompactionDelay();
+
+    @Description("The number of top unique ids of each day merged into the approximate top distribution entries of a date range, at least the requested distribution limit")
+    @Config("collector.spoolWriter.counterEvent.rollup.topEntries.sketch.size")
+    @Default("128")
+    int getCounterTopEntriesSketchSize();
+
+    @Description("The number of namespaces rolled up concurrently. Each roll up holds up to 3 database connections, one of them for its MySQL lock: this is capped so that the roll ups and the metrics buffer writers fit in collector.spoolWriter.jdbc.maxActive")
+    @Config("collector.spoolWriter.counterEvent.rollup.threads")
+    @Default("4")
+    int getCounterRollUpThreadCount();
+
     @Description("Cron Trigger for roll up processor execution")
     @Config("collector.spoolWriter.counterEvent.rollup.process.cron")
     @Default("0 0/30 * * * ?")
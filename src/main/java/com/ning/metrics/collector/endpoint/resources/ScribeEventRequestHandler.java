@@ -16,6 +16,7 @@
 
 package com.ning.metrics.collector.endpoint.resources;
 
+import com.ning.metrics.collector.processing.AdmissionController;
 import com.ning.metrics.serialization.event.Event;
 import com.ning.metrics.serialization.event.StringToThriftEnvelopeEvent;
 import com.ning.metrics.serialization.event.ThriftEnvelopeEvent;
@@ -56,11 +57,20 @@ class ScribeEventRequestHandler implements Iface
     private final Map<String, Long> counters = new HashMap<String, Long>();
 
     private final ScribeEventHandler eventHandler;
+    // Null if admission control is not wired (tests)
+    private final AdmissionController admissionController;
 
     @Inject
-    public ScribeEventRequestHandler(final ScribeEventHandler eventHandler)
+    public ScribeEventRequestHandler(final ScribeEventHandler eventHandler, final AdmissionController admissionController)
     {
         this.eventHandler = eventHandler;
+        this.admissionController = admissionController;
+    }
+
+    //@VisibleForTesting
+    ScribeEventRequestHandler(final ScribeEventHandler eventHandler)
+    {
+        this(eventHandler, null);
     }
 
     /**
@@ -73,7 +83,15 @@ class ScribeEventRequestHandler implements Iface
     @Timed(name = "SCRIBE_API")
     public ResultCode Log(final List<LogEntry> logEntries)
     {
+        // If the collector is falling behind, have Scribe buffer the messages and retry later
+        if (admissionController != null && !admissionController.isAdmitting()) {
+            admissionController.registerRequestRejected();
+            return ResultCode.TRY_LATER;
+        }
+
         boolean success = false;
+        // Whether events of this batch made it to the spool queues already (Scribe would send them again on TRY_LATER)
+        boolean accepted = false;
 
         for (final LogEntry entry : logEntries) {
             if (entry.getCategory() == null) {
@@ -103,7 +121,16 @@ class ScribeEventRequestHandler implements Iface
                 success = true;
                 for (final Event event : events) {
                     if (event != null) {
-                        if (!eventHandler.processEvent(event)) {
+                        // Also back off if the queue of the event's own path is nearly full
+                        if (!accepted && admissionController != null && !admissionController.isAdmitting(event)) {
+                            admissionController.registerRequestRejected();
+                            return ResultCode.TRY_LATER;
+                        }
+
+                        if (eventHandler.processEvent(event)) {
+                            accepted = true;
+                        }
+                        else {
                             success = false;
                         }
                     }
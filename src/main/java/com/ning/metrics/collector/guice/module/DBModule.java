@@ -16,7 +16,9 @@
 package com.ning.metrics.collector.guice.module;
 
 import com.ning.metrics.collector.guice.providers.CollectorDBIProvider;
+import com.ning.metrics.collector.processing.counter.CounterRollUpScheduler;
 import com.ning.metrics.collector.processing.counter.RollUpCounterProcessor;
+import com.ning.metrics.collector.processing.db.AggregatingCounterCacheProcessor;
 import com.ning.metrics.collector.processing.db.CounterEventCacheProcessor;
 import com.ning.metrics.collector.processing.db.CounterEventSpoolProcessor;
 import com.ning.metrics.collector.processing.db.CounterStorage;
@@ -28,6 +30,7 @@ import com.ning.metrics.collector.processing.db.FeedEventSpoolProcessor;
 import com.ning.metrics.collector.processing.db.DatabaseFeedEventStorage;
 import com.ning.metrics.collector.processing.db.FeedStorage;
 import com.ning.metrics.collector.processing.db.InMemoryCounterCacheProcessor;
+import com.ning.metrics.collector.processing.db.MetricsBufferWriter;
 import com.ning.metrics.collector.processing.db.InMemorySubscriptionCache;
 import com.ning.metrics.collector.processing.db.SubscriptionCache;
 import com.ning.metrics.collector.processing.db.SubscriptionStorage;
@@ -71,7 +74,14 @@ public class DBModule implements Module
         builder.export(CounterEventSpoolProcessor.class).as("com.ning.metrics.collector:name=CounterEventSpoolProcessor");
         
         binder.bind(CounterStorage.class).to(DatabaseCounterStorage.class).asEagerSingleton();
-        binder.bind(CounterEventCacheProcessor.class).to(InMemoryCounterCacheProcessor.class).asEagerSingleton();
+        binder.bind(MetricsBufferWriter.class).asEagerSingleton();
+        builder.export(MetricsBufferWriter.class).as("com.ning.metrics.collector:name=MetricsBufferWriter");
+        binder.bind(InMemoryCounterCacheProcessor.class).asEagerSingleton();
+        binder.bind(CounterEventCacheProcessor.class).to(AggregatingCounterCacheProcessor.class).asEagerSingleton();
+
+        binder.bind(RollUpCounterProcessor.class).asEagerSingleton();
+        binder.bind(CounterRollUpScheduler.class).asEagerSingleton();
+        builder.export(CounterRollUpScheduler.class).as("com.ning.metrics.collector:name=CounterRollUpScheduler");
         
     }
 
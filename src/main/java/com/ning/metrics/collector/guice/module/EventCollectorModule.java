@@ -16,6 +16,7 @@
 
 package com.ning.metrics.collector.guice.module;
 
+import com.ning.metrics.collector.processing.AdmissionController;
 import com.ning.metrics.collector.processing.EventCollector;
 import com.ning.metrics.collector.processing.EventSpoolDispatcher;
 import com.ning.metrics.collector.processing.WriterStats;
@@ -41,5 +42,8 @@ public class EventCollectorModule implements Module
 
         binder.bind(EventCollector.class).asEagerSingleton();
         builder.export(EventCollector.class).as("com.ning.metrics.collector:name=EventCollector");
+
+        binder.bind(AdmissionController.class).asEagerSingleton();
+        builder.export(AdmissionController.class).as("com.ning.metrics.collector:name=AdmissionController");
     }
 }
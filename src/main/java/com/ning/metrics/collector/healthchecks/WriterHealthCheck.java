@@ -20,6 +20,7 @@ import com.ning.metrics.collector.binder.config.CollectorConfig;
 import com.ning.metrics.collector.processing.EventSpoolDispatcher;
 import com.ning.metrics.collector.processing.LocalQueueAndWriter;
 import com.ning.metrics.collector.processing.PersistentWriterFactory;
+import com.ning.metrics.collector.processing.SpoolQueueKey;
 import com.ning.metrics.collector.processing.WriterStats;
 import com.ning.metrics.collector.processing.hadoop.HadoopWriterFactory;
 
@@ -55,8 +56,8 @@ public class WriterHealthCheck extends HealthCheck
 
             builder.append("local files: {");
             int i = 1;
-            final Set<String> paths = processor.getQueuesPerPath().keySet();
-            for (final String queue : paths) {
+            final Set<SpoolQueueKey> paths = processor.getQueuesPerPath().keySet();
+            for (final SpoolQueueKey queue : paths) {
                 final LocalQueueAndWriter worker = processor.getQueuesPerPath().get(queue);
                 builder.append(String.format("%s: %d", queue, worker.size()));
                 if (worker.size() == config.getMaxQueueSize()) {
@@ -20,6 +20,7 @@ import com.ning.metrics.collector.binder.config.CollectorConfig;
 import com.ning.metrics.collector.endpoint.ParsedRequest;
 import com.ning.metrics.collector.endpoint.extractors.DeserializationType;
 import com.ning.metrics.collector.endpoint.extractors.EventDeserializerFactory;
+import com.ning.metrics.collector.processing.AdmissionController;
 import com.ning.metrics.serialization.event.Event;
 import com.ning.metrics.serialization.event.EventDeserializer;
 
@@ -48,12 +49,15 @@ public class EventDeserializerRequestHandler
 
     final EventFilterRequestHandler filterRequestHandler;
     final EventDeserializerFactory eventDeserializerFactory;
+    // Null if admission control is not wired (tests)
+    private final AdmissionController admissionController;
 
     private final CacheControl cacheControl;
 
     // We keep two meters (success and failure) for each DeserializationType
     private final Map<MetricName, Meter> metrics = new HashMap<MetricName, Meter>();
     private final Meter rejectedMeter;
+    private final Meter overloadedMeter;
     private final Meter badRequestMeter;
 
     private volatile boolean collectionEnabled;
@@ -61,21 +65,33 @@ public class EventDeserializerRequestHandler
     @Inject
     public EventDeserializerRequestHandler(final CollectorConfig config,
                                            final EventFilterRequestHandler filterRequestHandler,
-                                           final EventDeserializerFactory deserializerFactory)
+                                           final EventDeserializerFactory deserializerFactory,
+                                           final AdmissionController admissionController)
     {
-        this(config.isEventEndpointEnabled(), filterRequestHandler, deserializerFactory);
+        this(config.isEventEndpointEnabled(), filterRequestHandler, deserializerFactory, admissionController);
     }
 
     //@VisibleForTesting
     public EventDeserializerRequestHandler(final boolean isCollectionEnabled,
                                            final EventFilterRequestHandler filterRequestHandler,
                                            final EventDeserializerFactory deserializerFactory)
+    {
+        this(isCollectionEnabled, filterRequestHandler, deserializerFactory, null);
+    }
+
+    //@VisibleForTesting
+    public EventDeserializerRequestHandler(final boolean isCollectionEnabled,
+                                           final EventFilterRequestHandler filterRequestHandler,
+                                           final EventDeserializerFactory deserializerFactory,
+                                           final AdmissionController admissionController)
     {
         this.collectionEnabled = isCollectionEnabled;
         this.filterRequestHandler = filterRequestHandler;
         this.eventDeserializerFactory = deserializerFactory;
+        this.admissionController = admissionController;
 
         rejectedMeter = Metrics.newMeter(new MetricName(METRICS_GROUP, "DeserializationStats", "Rejected"), "events", TimeUnit.SECONDS);
+        overloadedMeter = Metrics.newMeter(new MetricName(METRICS_GROUP, "DeserializationStats", "Overloaded"), "events", TimeUnit.SECONDS);
         badRequestMeter = Metrics.newMeter(new MetricName(METRICS_GROUP, "DeserializationStats", "BadRequest"), "events", TimeUnit.SECONDS);
 
         // Exposes stats per Event type
@@ -105,6 +121,11 @@ public class EventDeserializerRequestHandler
                            .build();
         }
 
+        // If the collector is falling behind, ask the sender to back off rather than dropping its events
+        if (admissionController != null && !admissionController.isAdmitting()) {
+            return handleOverload(parsedRequest);
+        }
+
         // First, create a deserializer from the request
         final EventDeserializer extractor;
         try {
@@ -127,6 +148,12 @@ public class EventDeserializerRequestHandler
                 }
                 log.debug(String.format("Processing event %s", event));
 
+                // Same if the queue of the event's own path is nearly full. Once events of the request have been
+                // accepted, a retry would duplicate them: the remaining ones are only dropped if their queue is full
+                if (successes == 0 && admissionController != null && !admissionController.isAdmitting(event)) {
+                    return handleOverload(parsedRequest);
+                }
+
                 final DeserializationType deserializationType = parsedRequest.getContentType();
                 if (filterRequestHandler.processEvent(event, parsedRequest)) {
                     metrics.get(getSuccessMetricsKey(deserializationType)).mark();
@@ -162,6 +189,18 @@ public class EventDeserializerRequestHandler
         }
     }
 
+    private Response handleOverload(final ParsedRequest parsedRequest)
+    {
+        log.debug("Collector overloaded, rejecting request: {}", parsedRequest);
+        admissionController.registerRequestRejected();
+        overloadedMeter.mark();
+        return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                       .header("Retry-After", String.valueOf(admissionController.getRetryAfterSeconds()))
+                       .header("Warning", "199 Collector overloaded")
+                       .cacheControl(cacheControl)
+                       .build();
+    }
+
     public Response handleDeserializationFailure(final ParsedRequest parsedRequest, final int successes, final int failures, final Exception e)
     {
         log.warn(String.format("Exception while extracting or processing an event. [%s] %s", parsedRequest.toString(), e.toString()));
@@ -209,6 +248,12 @@ public class EventDeserializerRequestHandler
         return rejectedMeter;
     }
 
+    //@VisibleForTesting
+    Meter getOverloadedMeter()
+    {
+        return overloadedMeter;
+    }
+
     //@VisibleForTesting
     Meter getBadRequestMeter()
     {
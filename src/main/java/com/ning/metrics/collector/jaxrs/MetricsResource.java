@@ -151,6 +151,13 @@ public class MetricsResource
     }
 
 
+    /**
+     * Aggregate the daily counters of the date range into a single one.  With
+     * approximate=y the unique counts are estimated from daily HyperLogLog
+     * sketches rather than by merging every daily distribution: about 1.6%
+     * standard error, 3.2% for 95% of the estimates.  Requests for composite
+     * counters, which need the distributions anyway, are counted exactly
+     */
     @GET
     @Produces(MediaType.APPLICATION_JSON)
     @Path("/aggregate/{namespace}")
@@ -162,7 +169,8 @@ public class MetricsResource
             @QueryParam("includeDistribution") String includeDistribution,
             @QueryParam("counterType") List<String> counterTypes,
             @DefaultValue("") @QueryParam("uniqueIds") String uniqueIds,
-            @QueryParam("distributionLimit") Integer distributionLimit) {
+            @QueryParam("distributionLimit") Integer distributionLimit,
+            @QueryParam("approximate") String approximate) {
 
         if(Strings.isNullOrEmpty(namespace)) {
             return ImmutableList.of();
@@ -216,6 +224,7 @@ public class MetricsResource
                 Optional.fromNullable(compositeCounterSet),
                 "y".equalsIgnoreCase(aggregateByMonth),
                 true,
+                "y".equalsIgnoreCase(approximate),
                 !"y".equalsIgnoreCase(includeDistribution),
                 parseUniqueIdSet(uniqueIds),
                 Optional.fromNullable(distributionLimit));
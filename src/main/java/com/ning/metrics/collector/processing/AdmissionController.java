@@ -0,0 +1,162 @@
+/*
+ * Copyright 2010-2013 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.collector.processing;
+
+import com.ning.arecibo.jmx.Monitored;
+import com.ning.arecibo.jmx.MonitoringType;
+import com.ning.metrics.collector.binder.config.CollectorConfig;
+import com.ning.metrics.serialization.event.Event;
+
+import com.google.inject.Inject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.weakref.jmx.Managed;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides whether the endpoints should accept new requests, based on how far behind the disk spool is.
+ * <p/>
+ * Requests are rejected when the number of events in memory (all spool queues combined) crosses the high watermark,
+ * or when writing to the disk spool gets slow while events are piling up (queue depth above the low watermark).
+ * They are accepted again once the queue depth falls back below the low watermark.
+ * The decision is re-evaluated at most every 100 milliseconds, as computing the queue depth requires walking all queues.
+ * <p/>
+ * As each path has its own bounded queue, a single hot path can fill up (and drop events) long before the total depth
+ * gets anywhere near the high watermark: events bound to a path whose queue is nearly full are rejected as well.
+ */
+public class AdmissionController
+{
+    private static final Logger log = LoggerFactory.getLogger(AdmissionController.class);
+    private static final long REFRESH_INTERVAL_MILLIS = 100L;
+
+    private final EventCollector collector;
+    private final WriterStats stats;
+    private final int queueHighWatermark;
+    private final int queueLowWatermark;
+    private final int pathQueueHighWatermark;
+    private final long writeLatencyHighWatermarkNanos;
+    private final int retryAfterSeconds;
+    private final AtomicLong rejectedRequests = new AtomicLong(0);
+
+    private volatile boolean enabled;
+    private volatile boolean admitting = true;
+    private volatile long lastRefreshMillis = 0;
+
+    @Inject
+    public AdmissionController(final CollectorConfig config, final EventCollector collector, final WriterStats stats)
+    {
+        this.collector = collector;
+        this.stats = stats;
+        this.enabled = config.isAdmissionControlEnabled();
+        this.queueHighWatermark = config.getAdmissionQueueHighWatermark();
+        this.queueLowWatermark = Math.min(config.getAdmissionQueueLowWatermark(), queueHighWatermark);
+        this.pathQueueHighWatermark = Math.max(1, (int) ((long) config.getMaxQueueSize() * config.getAdmissionQueueFullPercent() / 100));
+        this.writeLatencyHighWatermarkNanos = TimeUnit.MILLISECONDS.toNanos(config.getAdmissionWriteLatencyHighWatermark().getMillis());
+        this.retryAfterSeconds = (int) Math.max(1, TimeUnit.MILLISECONDS.toSeconds(config.getAdmissionRetryAfter().getMillis()));
+    }
+
+    /**
+     * @return true if the collector can take more events, false if senders should retry later
+     */
+    public boolean isAdmitting()
+    {
+        if (!enabled) {
+            return true;
+        }
+
+        final long now = System.currentTimeMillis();
+        if (now - lastRefreshMillis >= REFRESH_INTERVAL_MILLIS) {
+            // Racy, but at worst a few threads refresh at the same time
+            lastRefreshMillis = now;
+            refresh();
+        }
+
+        return admitting;
+    }
+
+    /**
+     * @param event event about to be collected
+     * @return true if the collector can take the event, false if its path is falling behind and senders should retry later
+     */
+    public boolean isAdmitting(final Event event)
+    {
+        if (!enabled) {
+            return true;
+        }
+
+        return isAdmitting() && collector.getQueueSize(event) < pathQueueHighWatermark;
+    }
+
+    public void registerRequestRejected()
+    {
+        rejectedRequests.incrementAndGet();
+    }
+
+    /**
+     * @return delay, in seconds, senders should wait before retrying a rejected request
+     */
+    public int getRetryAfterSeconds()
+    {
+        return retryAfterSeconds;
+    }
+
+    private synchronized void refresh()
+    {
+        final int queueDepth = collector.getQueueSizes();
+        final long writeLatencyNanos = stats.getWriteLatencyNanos();
+
+        if (admitting) {
+            if (queueDepth >= queueHighWatermark || (queueDepth >= queueLowWatermark && writeLatencyNanos >= writeLatencyHighWatermarkNanos)) {
+                log.warn(String.format("Collector falling behind (%d events in memory, %d us per write), rejecting requests", queueDepth, TimeUnit.NANOSECONDS.toMicros(writeLatencyNanos)));
+                admitting = false;
+            }
+        }
+        else if (queueDepth < queueLowWatermark) {
+            log.info(String.format("Collector caught up (%d events in memory), accepting requests again", queueDepth));
+            admitting = true;
+        }
+    }
+
+    @Monitored(description = "Whether the collector is accepting requests", monitoringType = {MonitoringType.VALUE})
+    public boolean getAdmitting()
+    {
+        return !enabled || admitting;
+    }
+
+    @Monitored(description = "Number of requests rejected because the collector was falling behind", monitoringType = {MonitoringType.VALUE, MonitoringType.RATE})
+    public long getRejectedRequests()
+    {
+        return rejectedRequests.get();
+    }
+
+    @Managed(description = "enable/disable admission control")
+    public void setEnabled(final boolean value)
+    {
+        enabled = value;
+        if (!value) {
+            admitting = true;
+        }
+    }
+
+    @Managed(description = "admission control enabled?")
+    public boolean getEnabled()
+    {
+        return enabled;
+    }
+}
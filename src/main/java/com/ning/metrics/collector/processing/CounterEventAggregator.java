@@ -17,12 +17,15 @@ package com.ning.metrics.collector.processing;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import com.google.common.primitives.Ints;
 import com.ning.metrics.collector.processing.db.model.CounterEvent;
 import com.ning.metrics.collector.processing.db.model.CounterEventData;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicInteger;
 import org.joda.time.DateTime;
 
@@ -31,58 +34,19 @@ import org.joda.time.DateTime;
  * counter events of similar types into a single counter event. The goal here is
  * to alleviate the load on the database by reducing the number of individual
  * atomic increment calls.
+ * <p/>
+ * Counts are accumulated in epochs. Writers register with the current epoch
+ * for the duration of an add; a flush installs a fresh epoch, then waits (on a
+ * latch, not spinning) for the writers still registered with the old one
+ * before reading it. Within an epoch, every (namespace, day, unique id,
+ * counter) gets its own {@link StripedCounter} in a single flat map, so that
+ * many threads can increment the same hot counter without fighting over it.
  *
  * @author kguthrie
  */
 public class CounterEventAggregator {
 
-    private ConcurrentHashMap<AggregatedCounterKey, AggregatedCounter>[] aggregateMaps;
-    private int workingMap;
-    private AtomicInteger[] aggregateMapRefCounters;
-
-    public CounterEventAggregator() {
-        aggregateMaps = new ConcurrentHashMap[2];
-        aggregateMapRefCounters = new AtomicInteger[2];
-        workingMap = 0;
-
-        aggregateMaps[0] = new ConcurrentHashMap<AggregatedCounterKey, AggregatedCounter>();
-        aggregateMaps[1] = new ConcurrentHashMap<AggregatedCounterKey, AggregatedCounter>();
-        aggregateMapRefCounters[0] = new AtomicInteger(0);
-        aggregateMapRefCounters[1] = new AtomicInteger(0);
-    }
-
-    /**
-     * get the index for the current aggregation map, and handle all the
-     * reference counting and fringe-condition error checkin
-     *
-     * @return
-     */
-    private int getAggregateMap() {
-        int mapInUseAtStart = workingMap;
-
-        aggregateMapRefCounters[mapInUseAtStart].incrementAndGet();
-
-        // If the working map has not changed in this short period we are fine,
-        if (mapInUseAtStart == workingMap) {
-            return mapInUseAtStart;
-        }
-
-        // but potentially, the working map could have switched in these two
-        // lines, so if it has, we need to decrement and return a recursive call
-        releaseAggregateMap(mapInUseAtStart);
-
-        return getAggregateMap();
-    }
-
-    /**
-     * Release the reference on the given working map by decrementing its
-     * reference count
-     *
-     * @return
-     */
-    private void releaseAggregateMap(int mapInUse) {
-        aggregateMapRefCounters[mapInUse].decrementAndGet();
-    }
+    private volatile Epoch currentEpoch = new Epoch();
 
     /**
      * Add the given counter event to those to be aggregated
@@ -93,54 +57,73 @@ public class CounterEventAggregator {
 
         String counterGroup = event.getNamespace();
 
-        int mapToUse = getAggregateMap();
+        Epoch epoch = enterCurrentEpoch();
 
         try {
             for (CounterEventData counterEventData : event.getCounterEvents()) {
-                addEventCounterData(counterGroup, counterEventData, mapToUse);
+                addEventCounterData(counterGroup, counterEventData, epoch);
             }
         }
         finally {
-            releaseAggregateMap(mapToUse);
+            epoch.exit();
         }
     }
 
-    private void addEventCounterData(
-            String counterGroup, CounterEventData data, int mapToUse) {
+    /**
+     * Add the given counter event data of the given namespace to those to be
+     * aggregated
+     *
+     * @param counterGroup namespace of the counter event data
+     * @param counterEventData
+     */
+    public void addCounterEventData(String counterGroup,
+            CounterEventData counterEventData) {
 
-        DateTime eventDate = data.getCreatedTime();
-        String eventDateString = data.getFormattedDate();
-        String uniqueId = data.getUniqueIdentifier();
+        Epoch epoch = enterCurrentEpoch();
 
-        for (Map.Entry<String, Integer> entry : data.getCounters().entrySet()) {
-            String counter = entry.getKey();
-            int count = entry.getValue();
-            addEventCounter(counterGroup, counter,
-                    uniqueId, eventDateString, eventDate, count, mapToUse);
+        try {
+            addEventCounterData(counterGroup, counterEventData, epoch);
+        }
+        finally {
+            epoch.exit();
         }
-
     }
 
-    private void addEventCounter(String counterGroup, String counterName,
-            String uniqueId, String eventDateString,
-            DateTime eventDate, int count, int mapToUse) {
+    /**
+     * @return the number of aggregated counter events (one per namespace, day
+     * and unique id) waiting for the next flush
+     */
+    public int getAggregatedCount() {
+        return currentEpoch.getRowCount();
+    }
 
-        ConcurrentHashMap<AggregatedCounterKey, AggregatedCounter> mapInUse
-                = aggregateMaps[mapToUse];
+    /**
+     * Register with the current epoch. If a flush closes it in the meantime,
+     * the flush has already installed the next one, so a single retry is
+     * enough in practice.
+     *
+     * @return the epoch to add to, to be exited once done
+     */
+    private Epoch enterCurrentEpoch() {
+        while (true) {
+            Epoch epoch = currentEpoch;
+            if (epoch.enter()) {
+                return epoch;
+            }
+        }
+    }
 
-        AggregatedCounterKey counterKey = new AggregatedCounterKey(
-                counterGroup, eventDateString, eventDate,
-                uniqueId);
-        AggregatedCounter counter = new AggregatedCounter();
-        AggregatedCounter existingCounter;
+    private void addEventCounterData(
+            String counterGroup, CounterEventData data, Epoch epoch) {
 
+        AggregatedCounterKey rowKey = epoch.getRowKey(new AggregatedCounterKey(
+                counterGroup, data.getFormattedDate(), data.getCreatedTime(),
+                data.getUniqueIdentifier()));
 
-        if ((existingCounter
-                = mapInUse.putIfAbsent(counterKey, counter)) != null) {
-            counter = existingCounter;
+        for (int i = 0; i < data.getCounterCount(); i++) {
+            epoch.getCounter(rowKey, data.getCounterName(i))
+                    .add(data.getCounterValue(i));
         }
-
-        counter.addCount(counterName, count);
     }
 
     /**
@@ -150,57 +133,53 @@ public class CounterEventAggregator {
      */
     public synchronized Iterable<CounterEvent> flush() {
 
-        List<CounterEvent> result = Lists.newArrayList();
+        Epoch epochToFlush = currentEpoch;
 
-        int mapToFlush = workingMap;
+        // New adds go to the next epoch from now on
+        currentEpoch = new Epoch();
+        epochToFlush.closeAndAwaitWriters();
 
+        // Row keys are canonical within an epoch, so they can be grouped by
+        // identity
+        Map<AggregatedCounterKey, Map<String, Integer>> rows
+                = new IdentityHashMap<AggregatedCounterKey, Map<String, Integer>>();
 
-        // Switch which map is being used
-        workingMap = workingMap != 0 ? 0 : 1;
+        for (Map.Entry<CounterNameKey, StripedCounter> e
+                : epochToFlush.getCounters().entrySet()) {
+            AggregatedCounterKey rowKey = e.getKey().getRowKey();
 
-        //Wait for references to mapToFlush to
-        while (aggregateMapRefCounters[mapToFlush].get() > 0) {
-            //This shouldn't take long
-        }
+            Map<String, Integer> counts = rows.get(rowKey);
+            if (counts == null) {
+                counts = new HashMap<String, Integer>();
+                rows.put(rowKey, counts);
+            }
 
-        ConcurrentHashMap<AggregatedCounterKey, AggregatedCounter> flush
-                = aggregateMaps[mapToFlush];
+            counts.put(e.getKey().getCounterName(),
+                    Ints.saturatedCast(e.getValue().sum()));
+        }
 
-        //Copy the entryset from the flush map
-        // Iterate through the non-active map, and create counter event for each
-        // aggregated counter
-        for (Map.Entry<AggregatedCounterKey, AggregatedCounter> e
-                : flush.entrySet()) {
-            AggregatedCounterKey key = e.getKey();
-            AggregatedCounter val = e.getValue();
+        List<CounterEvent> result = Lists.newArrayListWithCapacity(rows.size());
 
-            result.add(convert(key, val));
+        for (Map.Entry<AggregatedCounterKey, Map<String, Integer>> e
+                : rows.entrySet()) {
+            result.add(convert(e.getKey(), e.getValue()));
         }
 
-        flush.clear();
-
         return ImmutableList.copyOf(result);
     }
 
     /**
-     * convert an aggregated counter's components into a count event
+     * convert an aggregated row's components into a count event
      *
      * @param key
-     * @param counter
+     * @param counts
      * @return
      */
     private CounterEvent convert(AggregatedCounterKey key,
-            AggregatedCounter counter) {
-
-        Map<String, Integer> simpleMap = new HashMap<String, Integer>();
-
-        for (Map.Entry<String, AtomicInteger> e
-                : counter.getCounts().entrySet()) {
-            simpleMap.put(e.getKey(), e.getValue().get());
-        }
+            Map<String, Integer> counts) {
 
         CounterEventData data = new CounterEventData(key.getUniqueId(),
-                key.getCounterDate(), simpleMap);
+                key.getCounterDate(), counts);
 
         List<CounterEventData> dataList = Lists.newLinkedList();
         dataList.add(data);
@@ -208,6 +187,117 @@ public class CounterEventAggregator {
         return new CounterEvent(key.getCounterGroup(), dataList);
     }
 
+    /**
+     * One generation of aggregated counts, together with the bookkeeping of the
+     * writers still adding to it
+     */
+    private static final class Epoch {
+
+        private final ConcurrentHashMap<AggregatedCounterKey, AggregatedCounterKey> rowKeys
+                = new ConcurrentHashMap<AggregatedCounterKey, AggregatedCounterKey>();
+        private final ConcurrentHashMap<CounterNameKey, StripedCounter> counters
+                = new ConcurrentHashMap<CounterNameKey, StripedCounter>();
+        private final AtomicInteger rowCount = new AtomicInteger(0);
+
+        private final AtomicInteger writers = new AtomicInteger(0);
+        private final CountDownLatch drained = new CountDownLatch(1);
+        private volatile boolean closed = false;
+
+        /**
+         * @return false if the epoch was closed by a flush, in which case the
+         * caller must not add to it
+         */
+        public boolean enter() {
+            writers.incrementAndGet();
+
+            // Either the flush sees this writer, or this writer sees the flush
+            if (closed) {
+                exit();
+                return false;
+            }
+
+            return true;
+        }
+
+        public void exit() {
+            if (writers.decrementAndGet() == 0 && closed) {
+                drained.countDown();
+            }
+        }
+
+        public void closeAndAwaitWriters() {
+            closed = true;
+
+            if (writers.get() == 0) {
+                drained.countDown();
+            }
+
+            boolean interrupted = false;
+
+            try {
+                while (true) {
+                    try {
+                        drained.await();
+                        return;
+                    }
+                    catch (InterruptedException e) {
+                        // Writers are about to exit, the counts must not be lost
+                        interrupted = true;
+                    }
+                }
+            }
+            finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        /**
+         * @return the canonical instance of the given row key in this epoch
+         */
+        public AggregatedCounterKey getRowKey(AggregatedCounterKey rowKey) {
+            AggregatedCounterKey existingRowKey = rowKeys.get(rowKey);
+
+            if (existingRowKey != null) {
+                return existingRowKey;
+            }
+
+            if ((existingRowKey = rowKeys.putIfAbsent(rowKey, rowKey)) != null) {
+                return existingRowKey;
+            }
+
+            rowCount.incrementAndGet();
+            return rowKey;
+        }
+
+        public StripedCounter getCounter(AggregatedCounterKey rowKey,
+                String counterName) {
+            CounterNameKey counterKey = new CounterNameKey(rowKey, counterName);
+            StripedCounter counter = counters.get(counterKey);
+
+            if (counter == null) {
+                counter = new StripedCounter();
+                StripedCounter existingCounter;
+
+                if ((existingCounter
+                        = counters.putIfAbsent(counterKey, counter)) != null) {
+                    counter = existingCounter;
+                }
+            }
+
+            return counter;
+        }
+
+        public Map<CounterNameKey, StripedCounter> getCounters() {
+            return counters;
+        }
+
+        public int getRowCount() {
+            return rowCount.get();
+        }
+    }
+
     /**
      * Class for containing the key information about an aggregated counter
      */
@@ -288,50 +378,59 @@ public class CounterEventAggregator {
     }
 
     /**
-     * Class containing the actual aggregated counts
+     * Flat key of a single aggregated counter: the (canonical) row key plus
+     * the counter name
      */
-    private static final class AggregatedCounter {
+    private static final class CounterNameKey {
 
-        private ConcurrentHashMap<String, AtomicInteger> counts;
-        private boolean initialized;
+        private final AggregatedCounterKey rowKey;
+        private final String counterName;
+        private final int hash;
 
-        public AggregatedCounter() {
-            this.counts = null;
-            this.initialized = false;
+        public CounterNameKey(AggregatedCounterKey rowKey, String counterName) {
+            this.rowKey = rowKey;
+            this.counterName = counterName;
+            this.hash = 97 * rowKey.hashCode() + (counterName != null ? counterName.hashCode() : 0);
         }
 
         /**
-         * @return the counts
+         * @return the rowKey
          */
-        public Map<String, AtomicInteger> getCounts() {
-            return counts;
+        public AggregatedCounterKey getRowKey() {
+            return rowKey;
         }
 
         /**
-         * Increment the given counter in this aggregate by the given increment
-         *
-         * @param counter
-         * @param increment
+         * @return the counterName
          */
-        public void addCount(String counter, int increment) {
+        public String getCounterName() {
+            return counterName;
+        }
 
-            if (!initialized) {
-                synchronized (this) {
-                    if (!initialized) {
-                        counts = new ConcurrentHashMap<String, AtomicInteger>();
-                        initialized = true;
-                    }
-                }
+        @Override
+        public boolean equals(Object obj) {
+            if (obj == null) {
+                return false;
             }
-
-            AtomicInteger count = new AtomicInteger(increment);
-
-            // if count for that key was already present, then increment its
-            // count by the given increment
-            if ((count = counts.putIfAbsent(counter, count)) != null) {
-                count.addAndGet(increment);
+            if (getClass() != obj.getClass()) {
+                return false;
+            }
+            final CounterNameKey other = (CounterNameKey) obj;
+            // Row keys are canonical within an epoch
+            if (this.rowKey != other.rowKey) {
+                return false;
+            }
+            if ((this.counterName == null) ? (other.counterName != null) : !this.counterName.equals(other.counterName)) {
+                return false;
             }
+            return true;
         }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
     }
 
 }
@@ -113,4 +113,13 @@ public class EventCollector
 
         return length;
     }
+
+    /**
+     * @param event event about to be collected
+     * @return number of events in memory in the spool queue of the event's path
+     */
+    public int getQueueSize(final Event event)
+    {
+        return spoolDispatcher.getQueueSize(event);
+    }
 }
@@ -16,6 +16,7 @@
 
 package com.ning.metrics.collector.processing;
 
+import com.google.common.util.concurrent.Striped;
 import com.google.inject.Inject;
 import com.mogwee.executors.FailsafeScheduledExecutor;
 
@@ -30,9 +31,11 @@ import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
 
 /**
  * Manager of writer queues
@@ -41,12 +44,17 @@ public class EventSpoolDispatcher
 {
     private final Logger log = LoggerFactory.getLogger(EventSpoolDispatcher.class);
     private static final long CUTOFF_TIME_OLD_DIRS = 3600000L; // 1 hour
+    private static final int NB_QUEUE_LOCK_STRIPES = 64;
 
     private final PersistentWriterFactory factory;
     private final WriterStats stats;
     private final CollectorConfig config;
-    private final Map<String, LocalQueueAndWriter> queuesPerPath = new ConcurrentHashMap<String, LocalQueueAndWriter>();
-    private final Object queueMapMonitor = new Object();
+    private final ConcurrentMap<SpoolQueueKey, LocalQueueAndWriter> queuesPerPath = new ConcurrentHashMap<SpoolQueueKey, LocalQueueAndWriter>();
+    // Guard creation and removal of queues, per key, to avoid conflicts between the reaper and offer()
+    private final Striped<Lock> queueLocks = Striped.lock(NB_QUEUE_LOCK_STRIPES);
+    private final SpoolQueueKeyCache queueKeyCache;
+    // Shared by all queues, so that the number of threads doesn't grow with the number of event types
+    private final ScheduledExecutorService dequeuerPool;
     private final AtomicBoolean isRunning = new AtomicBoolean(true);
 
     @Inject
@@ -55,6 +63,10 @@ public class EventSpoolDispatcher
         this.factory = factory;
         this.stats = stats;
         this.config = config;
+        this.queueKeyCache = new SpoolQueueKeyCache(config.getEventOutputDirectory());
+
+        final int dequeuerThreads = config.getDequeueThreadCount() > 0 ? config.getDequeueThreadCount() : Runtime.getRuntime().availableProcessors();
+        this.dequeuerPool = new FailsafeScheduledExecutor(dequeuerThreads, "HDFS-dequeuer");
 
         // Background committer (close the current open file and promote it to the final spool area for flush)
         final ScheduledExecutorService scheduledExecutor = new FailsafeScheduledExecutor(1, "WriterQueuesReaper");
@@ -64,21 +76,25 @@ public class EventSpoolDispatcher
             public void run()
             {
                 try {
-                    final Set<String> queuePaths = new HashSet<String>(queuesPerPath.keySet());
-                    for (final String queuePath : queuePaths) {
+                    final Set<SpoolQueueKey> queuePaths = new HashSet<SpoolQueueKey>(queuesPerPath.keySet());
+                    for (final SpoolQueueKey queuePath : queuePaths) {
                         final LocalQueueAndWriter queueAndWriter = queuesPerPath.get(queuePath);
-                        if (queueAndWriter.isEmpty()) {
+                        if (queueAndWriter != null && queueAndWriter.isEmpty()) {
                             boolean isRemoved = false;
-                            // synchronized to avoid conflicts when we get a queue to offer an event to
-                            synchronized (queueMapMonitor) {
+                            // locked to avoid conflicts when we create a queue to offer an event to
+                            final Lock lock = queueLocks.get(queuePath);
+                            lock.lock();
+                            try {
                                 if (queueAndWriter.isEmpty()) {
-                                    queuesPerPath.remove(queuePath);
-                                    isRemoved = true;
+                                    isRemoved = queuesPerPath.remove(queuePath, queueAndWriter);
                                 }
                             }
+                            finally {
+                                lock.unlock();
+                            }
                             if (isRemoved) {
-                                // Closing is expensive b/c we're destroying threads, so we don't want to do this
-                                // within the synchronized block
+                                // Closing is expensive b/c we're committing the underlying file, so we don't want to do this
+                                // within the locked block
                                 queueAndWriter.close();
                             }
                         }
@@ -107,6 +123,15 @@ public class EventSpoolDispatcher
         }
         queuesPerPath.clear();
 
+        dequeuerPool.shutdown();
+        try {
+            dequeuerPool.awaitTermination(5, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        dequeuerPool.shutdownNow();
+
         factory.close();
     }
 
@@ -126,18 +151,11 @@ public class EventSpoolDispatcher
         final SerializationType eventType = SerializationType.get(event);
 
         if (event != null && isRunning.get()) {
-            final String hdfsDir = event.getOutputDir(config.getEventOutputDirectory());
-            final String key = String.format("%s|%s", event.getOutputDir(config.getEventOutputDirectory()), eventType.getFileSuffix());
+            final SpoolQueueKey key = queueKeyCache.getKey(event, eventType);
             LocalQueueAndWriter queue = queuesPerPath.get(key);
 
             if (queue == null) {
-                synchronized (queueMapMonitor) {
-                    queue = queuesPerPath.get(key);
-                    if (queue == null) {
-                        queue = new LocalQueueAndWriter(config, hdfsDir, factory.createPersistentWriter(stats, eventType, event.getName(), hdfsDir), stats);
-                        queuesPerPath.put(key, queue);
-                    }
-                }
+                queue = createQueueIfAbsent(key, event.getName());
             }
 
             return queue.offer(event);
@@ -148,6 +166,48 @@ public class EventSpoolDispatcher
         }
     }
 
+    /**
+     * Number of events not yet committed in the queue the specified event would be dispatched to
+     *
+     * @param event Event to dispatch
+     * @return size of the target queue, 0 if it doesn't exist yet
+     */
+    public int getQueueSize(final Event event)
+    {
+        if (event == null) {
+            return 0;
+        }
+
+        final LocalQueueAndWriter queue = queuesPerPath.get(queueKeyCache.getKey(event, SerializationType.get(event)));
+        return queue == null ? 0 : queue.size();
+    }
+
+    /**
+     * Get the queue for the specified key, creating it if needed. Creating a queue is expensive (it creates a disk spool writer),
+     * so we make sure only one is created per key, without blocking offers to other queues.
+     *
+     * @param key       queue key
+     * @param eventName name of the event triggering the creation
+     * @return the queue associated with this key
+     */
+    private LocalQueueAndWriter createQueueIfAbsent(final SpoolQueueKey key, final String eventName)
+    {
+        final Lock lock = queueLocks.get(key);
+        lock.lock();
+        try {
+            LocalQueueAndWriter queue = queuesPerPath.get(key);
+            if (queue == null) {
+                final String hdfsDir = key.getOutputDir();
+                queue = new LocalQueueAndWriter(config, factory.createPersistentWriter(stats, key.getSerializationType(), eventName, hdfsDir), stats, dequeuerPool);
+                queuesPerPath.put(key, queue);
+            }
+            return queue;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * Number of events not yet committed (combined size of all queues)
      *
@@ -156,14 +216,14 @@ public class EventSpoolDispatcher
     public Map<String, Integer> getQueuesSizes()
     {
         final Map<String, Integer> map = new HashMap<String, Integer>();
-        for (final String path : queuesPerPath.keySet()) {
-            map.put(path, queuesPerPath.get(path).size());
+        for (final Map.Entry<SpoolQueueKey, LocalQueueAndWriter> entry : queuesPerPath.entrySet()) {
+            map.put(entry.getKey().toString(), entry.getValue().size());
         }
 
         return map;
     }
 
-    public Map<String, LocalQueueAndWriter> getQueuesPerPath()
+    public Map<SpoolQueueKey, LocalQueueAndWriter> getQueuesPerPath()
     {
         return queuesPerPath;
     }
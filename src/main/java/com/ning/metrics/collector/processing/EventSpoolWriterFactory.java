@@ -17,11 +17,14 @@ package com.ning.metrics.collector.processing;
 
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
 import com.google.inject.Inject;
 import com.mogwee.executors.FailsafeScheduledExecutor;
 import com.mogwee.executors.LoggingExecutor;
 import com.mogwee.executors.NamedThreadFactory;
 import com.ning.arecibo.jmx.Monitored;
+import com.ning.arecibo.jmx.MonitoringType;
 import com.ning.metrics.collector.binder.config.CollectorConfig;
 import com.ning.metrics.serialization.writer.CallbackHandler;
 import com.ning.metrics.serialization.writer.DiskSpoolEventWriter;
@@ -34,17 +37,23 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
-import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import org.apache.commons.io.FileUtils;
 import org.skife.config.ConfigurationObjectFactory;
 import org.skife.config.TimeSpan;
 import org.slf4j.Logger;
@@ -60,9 +69,22 @@ public class EventSpoolWriterFactory implements PersistentWriterFactory
     private final Map<String, Set<EventSpoolProcessor>> perEventSpoolProcessors;
     private long cutoffTime = 7200000L;
     private final TimeSpan executorShutdownTimeOut;
-    private final ExecutorService executorService;
+    // Spool processors are invoked asynchronously, each one on its own lane, so a slow one only delays itself
+    private final SpoolProcessorFanOut processorFanOut;
     private final ConfigurationObjectFactory configFactory;
 
+    // Left below files recovery: files are processed in parallel on low priority threads, to leave room for new events
+    private final long startupTime = System.currentTimeMillis();
+    private final ExecutorService recoveryExecutor;
+    private final SpoolProcessorFanOut recoveryProcessorFanOut;
+    // Only one recovery at a time (startup, JMX or shutdown)
+    private final Lock recoveryLock = new ReentrantLock();
+    private final AtomicBoolean startupRecoveryCancelled = new AtomicBoolean(false);
+    private final AtomicInteger recoveryPendingFiles = new AtomicInteger(0);
+    private final AtomicLong recoveredFiles = new AtomicLong(0);
+    private final AtomicLong recoveryFailedFiles = new AtomicLong(0);
+    private final AtomicLong recoverySkippedFiles = new AtomicLong(0);
+
     /**
      * convenience constructor (used for testing) that ensures that all events
      * use the default set of spool processors
@@ -93,7 +115,69 @@ public class EventSpoolWriterFactory implements PersistentWriterFactory
         this.configFactory = configFactory;
         this.flushEnabled = new AtomicBoolean(config.isFlushEnabled());
         this.executorShutdownTimeOut = config.getSpoolWriterExecutorShutdownTime();
-        executorService = new LoggingExecutor(0, config.getFileProcessorThreadCount() , 60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new NamedThreadFactory("EventSpool-Processor-Threads"),new ThreadPoolExecutor.CallerRunsPolicy());
+
+        // The thread count is for all processors, split it across their lanes
+        final Set<EventSpoolProcessor> allSpoolProcessors = new HashSet<EventSpoolProcessor>(defaultEventSpoolProcessorSet);
+        for (final Set<EventSpoolProcessor> eventSpoolProcessors : perEventSpoolProcessors.values()) {
+            allSpoolProcessors.addAll(eventSpoolProcessors);
+        }
+        final int threadsPerProcessor = Math.max(1, config.getFileProcessorThreadCount() / Math.max(1, allSpoolProcessors.size()));
+        final long processorTimeoutMillis = config.getSpoolProcessorTimeout().getMillis();
+        final long processorRetryDelayMillis = config.getSpoolProcessorRetryDelay().getMillis();
+        final int maxFilesPerProcessor = config.getSpoolProcessorMaxFilesInFlight();
+        final int maxDecodedFiles = config.getSpoolProcessorMaxDecodedFiles();
+        processorFanOut = new SpoolProcessorFanOut("EventSpool-Processor", new NamedThreadFactory("EventSpool-Processor-Threads"), threadsPerProcessor, maxFilesPerProcessor, maxDecodedFiles, processorTimeoutMillis, config.getSpoolProcessorMaxRetries(), processorRetryDelayMillis);
+
+        final int recoveryThreadCount = Math.max(1, config.getRecoveryThreadCount());
+        // The queue is bounded so that the recovery scan runs files itself, rather than queueing up all of them, when the threads fall behind
+        recoveryExecutor = new LoggingExecutor(recoveryThreadCount, recoveryThreadCount, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(recoveryThreadCount), lowPriorityThreadFactory("EventSpool-Recovery-Threads"), new ThreadPoolExecutor.CallerRunsPolicy());
+        recoveryProcessorFanOut = new SpoolProcessorFanOut("EventSpool-Recovery-Processor", lowPriorityThreadFactory("EventSpool-Recovery-Processor-Threads"), threadsPerProcessor, maxFilesPerProcessor, maxDecodedFiles, processorTimeoutMillis, config.getSpoolProcessorMaxRetries(), processorRetryDelayMillis);
+
+        if (config.isStartupRecoveryEnabled()) {
+            startRecovery();
+        }
+    }
+
+    private static ThreadFactory lowPriorityThreadFactory(final String name)
+    {
+        final ThreadFactory delegate = new NamedThreadFactory(name);
+        return new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(final Runnable runnable)
+            {
+                final Thread thread = delegate.newThread(runnable);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * Send the files left below by a previous run to the spool processors, in the background.
+     * All spool directories which haven't been touched since this factory was created are candidates: new writers
+     * always create new directories.
+     */
+    private void startRecovery()
+    {
+        final Thread recoveryThread = lowPriorityThreadFactory("EventSpool-Recovery").newThread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                final long cutoff = System.currentTimeMillis() - startupTime;
+                log.info(String.format("Recovering files left below %s by a previous run", config.getSpoolDirectoryName()));
+                try {
+                    recoverLeftBelowFiles(cutoff, startupRecoveryCancelled);
+                    log.info("Recovery of left below files completed");
+                }
+                catch (RuntimeException e) {
+                    log.warn("Recovery of left below files failed", e);
+                }
+            }
+        });
+        recoveryThread.setDaemon(true);
+        recoveryThread.start();
     }
 
     /**
@@ -171,20 +255,35 @@ public class EventSpoolWriterFactory implements PersistentWriterFactory
                 }
 
                 final String outputPath = spoolManager.toHadoopPath(flushCount);
+                // Increment flush count even on failure, in case the file was created on HDFS
+                flushCount++;
 
-                // If the processors are not able to process the file then handle error
-                if(!executeSpoolProcessors(spoolProcessors, spoolManager, file, outputPath))
+                // Don't block the flush thread: the file stays in the lock area until all processors are done with it
+                final SpoolFileManifest manifest = SpoolFileManifest.forFile(file);
+                Futures.addCallback(processorFanOut.process(spoolProcessors, spoolManager, file, outputPath, manifest), new FutureCallback<Boolean>()
                 {
-                    handler.onError(new RuntimeException("Execution Failed!"), file);
-                    // Increment flush count in case the file was created on HDFS
-                    flushCount++;
-                    return;
-                }
+                    @Override
+                    public void onSuccess(final Boolean success)
+                    {
+                        // If the processors are not able to process the file then handle error
+                        // The manifest is kept, so that only the failed processors see the file again
+                        if (!success) {
+                            handler.onError(new RuntimeException("Execution Failed!"), file);
+                            return;
+                        }
+
+                        log.debug(String.format("Calling Handler Success ... deleting the file %s!", file.getAbsolutePath()));
+                        handler.onSuccess(file);
+                        manifest.delete();
+                        stats.registerHdfsFlush();
+                    }
 
-                log.debug(String.format("Calling Handler Success ... deleting the file %s!", file.getAbsolutePath()));
-                handler.onSuccess(file);
-                stats.registerHdfsFlush();
-                flushCount++;
+                    @Override
+                    public void onFailure(final Throwable t)
+                    {
+                        handler.onError(t, file);
+                    }
+                });
             }
         }, spoolManager.getSpoolDirectoryPath(), config.isFlushEnabled(),
         getFlushTimeForEventInSeconds(replacementConfig),
@@ -212,116 +311,167 @@ public class EventSpoolWriterFactory implements PersistentWriterFactory
     public void processLeftBelowFiles() throws IOException
     {
         log.info(String.format("Processing files left below %s", config.getSpoolDirectoryName()));
-        // We are going to flush all files that are not being written (not in the _tmp directory) and then delete
-        // empty directories. We can't distinguish older directories vs ones currently in use except by timestamp.
-        // We record candidates first, delete the files, and then delete the empty directories among the candidates.
-        final Collection<File> potentialOldDirectories = LocalSpoolManager.findOldSpoolDirectories(config.getSpoolDirectoryName(), getCutoffTime());
-
-        final HashMap<String, Integer> flushesPerEvent = new HashMap<String, Integer>();
-        for (final File oldDirectory : potentialOldDirectories) {
-            log.info(String.format("Processing the directory %s",oldDirectory.getAbsolutePath()));
-            // Ignore _tmp, files may be corrupted (not closed properly)
-            for (final File file : LocalSpoolManager.findFilesInSpoolDirectory(oldDirectory)) {
-                log.info(String.format("Processing file %s in the directory the directory %s",file.getAbsolutePath(), oldDirectory.getAbsolutePath()));
+        recoverLeftBelowFiles(getCutoffTime(), new AtomicBoolean(false));
+    }
+
+    /**
+     * Send all files in spool directories older than the cutoff to the spool processors, a few files at a time.
+     * Only the processors which haven't completed a file yet, according to its manifest, are invoked. Files are
+     * deleted once all processors are done with them, failed ones are left for the next recovery.
+     *
+     * @param cutoff    minimum age of the spool directories to process, in milliseconds
+     * @param cancelled flag to stop the recovery early, files not yet processed are left for the next one
+     */
+    private void recoverLeftBelowFiles(final long cutoff, final AtomicBoolean cancelled)
+    {
+        recoveryLock.lock();
+        try {
+            // We are going to flush all files that are not being written (not in the _tmp directory) and then delete
+            // empty directories. We can't distinguish older directories vs ones currently in use except by timestamp.
+            // We record candidates first, delete the files, and then delete the empty directories among the candidates.
+            final Collection<File> potentialOldDirectories = LocalSpoolManager.findOldSpoolDirectories(config.getSpoolDirectoryName(), cutoff);
+
+            final HashMap<String, Integer> flushesPerEvent = new HashMap<String, Integer>();
+            final List<File> recoveredDirectories = new ArrayList<File>();
+            final List<Future<?>> recoveryFutures = new ArrayList<Future<?>>();
+            for (final File oldDirectory : potentialOldDirectories) {
+                log.info(String.format("Processing the directory %s", oldDirectory.getAbsolutePath()));
                 final LocalSpoolManager spoolManager;
                 try {
                     spoolManager = new LocalSpoolManager(config, oldDirectory);
                 }
                 catch (IllegalArgumentException e) {
-                    log.warn(String.format("Skipping invalid local directory: %s", file.getAbsolutePath()));
+                    log.warn(String.format("Skipping invalid local directory: %s", oldDirectory.getAbsolutePath()));
                     continue;
                 }
 
-                incrementFlushCount(flushesPerEvent, spoolManager.getEventName());
-                String outputPath = spoolManager.toHadoopPath(flushesPerEvent.get(spoolManager.getEventName()));
-
-                Set<EventSpoolProcessor> spoolProcessors
-                        = getSpoolProcessors(spoolManager.getEventName());
+                recoveredDirectories.add(oldDirectory);
+                final Set<EventSpoolProcessor> spoolProcessors = getSpoolProcessors(spoolManager.getEventName());
+
+                // Ignore _tmp, files may be corrupted (not closed properly)
+                for (final File file : LocalSpoolManager.findFilesInSpoolDirectory(oldDirectory)) {
+                    final SpoolFileManifest manifest = SpoolFileManifest.forFile(file);
+                    if (manifest.isCompleted(spoolProcessors)) {
+                        log.info(String.format("File %s was already processed by all spool processors, deleting it", file.getAbsolutePath()));
+                        recoverySkippedFiles.incrementAndGet();
+                        deleteLeftBelowFile(file, manifest);
+                        continue;
+                    }
 
-                // Execute the file in parallel using all spool processors. This was put in a separate condition as not all files will be processed.
-                if(!executeSpoolProcessors(spoolProcessors, spoolManager,file,outputPath))
-                {
-                    log.warn(String.format("Exception cleaning up left below file: %s. We might have DUPS!", file.toString()));
+                    incrementFlushCount(flushesPerEvent, spoolManager.getEventName());
+                    final String outputPath = spoolManager.toHadoopPath(flushesPerEvent.get(spoolManager.getEventName()));
+
+                    recoveryPendingFiles.incrementAndGet();
+                    recoveryFutures.add(recoveryExecutor.submit(new Runnable()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            try {
+                                if (!cancelled.get()) {
+                                    recoverFile(spoolManager, spoolProcessors, manifest, file, outputPath);
+                                }
+                            }
+                            finally {
+                                recoveryPendingFiles.decrementAndGet();
+                            }
+                        }
+                    }));
                 }
+            }
 
-                // Make sure the file is deleted.
-                if (!file.delete()) {
-                    log.warn(String.format("Exception cleaning up left below file: %s. We might have DUPS!", file.toString()));
+            waitForRecovery(recoveryFutures);
+
+            // Manifests left behind by a crash are only needed until all files in their directory are gone
+            for (final File recoveredDirectory : recoveredDirectories) {
+                if (LocalSpoolManager.findFilesInSpoolDirectory(recoveredDirectory).isEmpty()) {
+                    FileUtils.deleteQuietly(SpoolFileManifest.getManifestDirectory(recoveredDirectory));
                 }
             }
+
+            LocalSpoolManager.cleanupOldSpoolDirectories(potentialOldDirectories);
+        }
+        finally {
+            recoveryLock.unlock();
         }
+    }
+
+    private void recoverFile(final LocalSpoolManager spoolManager, final Set<EventSpoolProcessor> spoolProcessors, final SpoolFileManifest manifest, final File file, final String outputPath)
+    {
+        log.info(String.format("Processing file %s", file.getAbsolutePath()));
 
-        LocalSpoolManager.cleanupOldSpoolDirectories(potentialOldDirectories);
+        // Execute the file in parallel using all spool processors. This was put in a separate condition as not all files will be processed.
+        if (executeSpoolProcessors(recoveryProcessorFanOut, spoolProcessors, spoolManager, file, outputPath, manifest)) {
+            recoveredFiles.incrementAndGet();
+            deleteLeftBelowFile(file, manifest);
+        }
+        else {
+            // The manifest records the processors which succeeded, only the other ones will see the file again
+            recoveryFailedFiles.incrementAndGet();
+            log.warn(String.format("Unable to process left below file: %s, it will be retried during the next recovery", file.toString()));
+        }
+    }
+
+    private void deleteLeftBelowFile(final File file, final SpoolFileManifest manifest)
+    {
+        // Make sure the file is deleted.
+        if (!file.delete()) {
+            log.warn(String.format("Exception cleaning up left below file: %s. We might have DUPS!", file.toString()));
+            return;
+        }
+        manifest.delete();
+    }
+
+    private void waitForRecovery(final List<Future<?>> recoveryFutures)
+    {
+        for (final Future<?> future : recoveryFutures) {
+            try {
+                future.get();
+            }
+            catch (InterruptedException e) {
+                log.warn("Interrupted while waiting for left below files to be processed");
+                Thread.currentThread().interrupt();
+                return;
+            }
+            catch (ExecutionException e) {
+                log.error("ExecutionException while processing left below files", e);
+            }
+        }
     }
 
     /*
-     * Execute the processors in parallel for the given file and event
+     * Execute the processors in parallel for the given file and event, and wait for all of them
      * */
     private boolean executeSpoolProcessors(
-            Set<EventSpoolProcessor> spoolProcessors,
+            final SpoolProcessorFanOut fanOut,
+            final Set<EventSpoolProcessor> spoolProcessors,
             final LocalSpoolManager spoolManager,
             final File file,
-            final String outputPath) {
-        List<Future<Boolean>> callerFutureList = new ArrayList<Future<Boolean>>();
-        boolean executionResult = true;
-        log.info("Starting Spool Process");
-        for(final EventSpoolProcessor eventSpoolProcessor : spoolProcessors)
-        {
-            log.info("Submitting task for "+eventSpoolProcessor.getProcessorName());
-            callerFutureList.add(executorService.submit(new Callable<Boolean>() {
-
-                @Override
-                public Boolean call() throws Exception
-                {
-                    try {
-                        log.info(String.format("Processing Event %s via spooler %s at path %s ",spoolManager.getEventName(),eventSpoolProcessor.getProcessorName(),outputPath));
-
-                        eventSpoolProcessor.processEventFile(spoolManager.getEventName(), spoolManager.getSerializationType(), file, outputPath);
-
-                        log.info(String.format("Completed Processing Event  %s via spooler %s",spoolManager.getEventName(),eventSpoolProcessor.getProcessorName()));
-                    }
-                    catch (IOException e) {
-                        log.error("Exception occurred while processing event "+spoolManager.getEventName()+" for spooler "+eventSpoolProcessor.getProcessorName(),e);
-                        return false;
-                    }
-                    return true;
-                }
-
-            }));
-
-        }
-
-        log.debug("Spool Process Completed, now waiting for the parallel task to complete.");
-
-
-
+            final String outputPath,
+            final SpoolFileManifest manifest) {
         try {
-            for(Future<Boolean> future : callerFutureList)
-            {
-                // Making sure that all tasks have been executed
-                log.debug("Execution Result is "+future.get());
-                if(!future.get())
-                {
-                    executionResult = false;
-                }
-            }
+            final boolean executionResult = fanOut.process(spoolProcessors, spoolManager, file, outputPath, manifest).get();
+            log.debug("Parallel Spool Execution Completed with result as "+executionResult);
+            return executionResult;
         }
         catch (InterruptedException e) {
             log.error("InterruptedException while checking the result of the apoolers",e);
-            executionResult = false;
+            Thread.currentThread().interrupt();
+            return false;
         }
         catch (ExecutionException e) {
             log.error("ExecutionException while checking the result of the apoolers",e);
-            executionResult = false;
+            return false;
         }
-        log.debug("Parallel Spool Execution Completed with result as "+executionResult);
-        return executionResult;
     }
 
     @Override
     public void close()
     {
         try{
+            // Stop the startup recovery, if still running: what's left is processed below
+            startupRecoveryCancelled.set(true);
+
             log.info("Processing old files and quarantine directories");
             try {
                 processLeftBelowFiles();
@@ -362,15 +512,9 @@ public class EventSpoolWriterFactory implements PersistentWriterFactory
         }
         finally{
             log.info("Shutting Down Executor Service");
-            executorService.shutdown();
-
-            try {
-                executorService.awaitTermination(executorShutdownTimeOut.getPeriod(), executorShutdownTimeOut.getUnit());
-            }
-            catch (InterruptedException ex) {
-                Thread.currentThread().interrupt();
-            }
-            executorService.shutdownNow();
+            recoveryExecutor.shutdownNow();
+            processorFanOut.shutdown(executorShutdownTimeOut.getPeriod(), executorShutdownTimeOut.getUnit());
+            recoveryProcessorFanOut.shutdown(executorShutdownTimeOut.getPeriod(), executorShutdownTimeOut.getUnit());
         }
     }
 
@@ -425,6 +569,54 @@ public class EventSpoolWriterFactory implements PersistentWriterFactory
         flushEnabled.set(false);
     }
 
+    @Monitored(description = "Number of left below files waiting to be recovered")
+    public int getRecoveryPendingFiles()
+    {
+        return recoveryPendingFiles.get();
+    }
+
+    @Monitored(description = "Number of left below files sent to Spool Processors", monitoringType = {MonitoringType.VALUE, MonitoringType.RATE})
+    public long getRecoveredFiles()
+    {
+        return recoveredFiles.get();
+    }
+
+    @Monitored(description = "Number of left below files which could not be sent to all Spool Processors, to be retried", monitoringType = {MonitoringType.VALUE, MonitoringType.RATE})
+    public long getRecoveryFailedFiles()
+    {
+        return recoveryFailedFiles.get();
+    }
+
+    @Monitored(description = "Number of left below files skipped as already sent to all Spool Processors", monitoringType = {MonitoringType.VALUE, MonitoringType.RATE})
+    public long getRecoverySkippedFiles()
+    {
+        return recoverySkippedFiles.get();
+    }
+
+    @Monitored(description = "Number of spool processor attempts which timed out", monitoringType = {MonitoringType.VALUE, MonitoringType.RATE})
+    public long getSpoolProcessorTimeouts()
+    {
+        return processorFanOut.getTimedOutAttempts() + recoveryProcessorFanOut.getTimedOutAttempts();
+    }
+
+    @Monitored(description = "Number of spool processor attempts which were retried", monitoringType = {MonitoringType.VALUE, MonitoringType.RATE})
+    public long getSpoolProcessorRetries()
+    {
+        return processorFanOut.getRetriedAttempts() + recoveryProcessorFanOut.getRetriedAttempts();
+    }
+
+    @Monitored(description = "Number of spool processor invocations skipped as the processor already completed the file", monitoringType = {MonitoringType.VALUE, MonitoringType.RATE})
+    public long getSpoolProcessorSkips()
+    {
+        return processorFanOut.getSkippedAttempts() + recoveryProcessorFanOut.getSkippedAttempts();
+    }
+
+    @Managed(description = "Number of files waiting for or being processed, per spool processor")
+    public Map<String, Integer> getSpoolProcessorBacklogs()
+    {
+        return processorFanOut.getBacklogs();
+    }
+
     @Monitored(description = "Number of local files not yet pushed to Spool Processors")
     public int nbLocalFiles()
     {
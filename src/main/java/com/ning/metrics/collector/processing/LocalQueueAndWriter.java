@@ -16,7 +16,6 @@
 
 package com.ning.metrics.collector.processing;
 
-import com.mogwee.executors.FailsafeScheduledExecutor;
 import com.ning.metrics.collector.binder.config.CollectorConfig;
 import com.ning.metrics.serialization.event.Event;
 import com.ning.metrics.serialization.writer.EventWriter;
@@ -26,44 +25,91 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Writer manager for a specific queue
+ * <p/>
+ * The queue doesn't have a dedicated dequeuer thread: when events are enqueued, a drain task is scheduled on the shared
+ * dequeuer pool, after the batch max wait unless a batch is already full. A delayed drain is not brought forward,
+ * instead a full batch gets one more, immediate, drain task: at most two drain tasks per queue are scheduled at any
+ * time, and they drain under the same lock, which preserves the ordering of events for a given path.
  */
 public class LocalQueueAndWriter
 {
+    // Maximum number of events written by a drain task before yielding the thread to other queues
+    private static final int MAX_EVENTS_PER_DRAIN = 1024;
+    private static final long CLOSE_TIMEOUT_MILLIS = 5000L;
+
     private final Logger log = LoggerFactory.getLogger(LocalQueueAndWriter.class);
 
     private final BlockingQueue<Event> queue;
     private final EventWriter eventWriter;
-    private final ExecutorService executor;
     private final WriterStats stats;
+    private final ScheduledExecutorService dequeuerPool;
+    private final LocalQueueWorker worker;
+    private final int batchSize;
+    private final long maxBatchWaitMillis;
+    private final AtomicBoolean delayedDrainScheduled = new AtomicBoolean(false);
+    private final AtomicBoolean immediateDrainScheduled = new AtomicBoolean(false);
+    private final Lock drainLock = new ReentrantLock();
+    private final Runnable delayedDrainTask = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            drain(delayedDrainScheduled);
+        }
+    };
+    private final Runnable immediateDrainTask = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            drain(immediateDrainScheduled);
+        }
+    };
+    private volatile boolean closed = false;
 
-    public LocalQueueAndWriter(final CollectorConfig config, final String path, final EventWriter eventWriter, final WriterStats stats)
+    public LocalQueueAndWriter(final CollectorConfig config, final EventWriter eventWriter, final WriterStats stats, final ScheduledExecutorService dequeuerPool)
     {
-        this.queue = new LinkedBlockingQueue<Event>(config.getMaxQueueSize());
+        this.queue = config.getEventQueueType().createQueue(config.getMaxQueueSize());
         this.eventWriter = eventWriter;
         this.stats = stats;
-
-        // Underlying dequeuer (writer)
-        this.executor = new FailsafeScheduledExecutor(1, path + "-HDFS-dequeuer");
-        executor.submit(new LocalQueueWorker(queue, eventWriter, stats));
+        this.dequeuerPool = dequeuerPool;
+        this.batchSize = Math.max(1, config.getDequeueBatchSize());
+        this.maxBatchWaitMillis = batchSize > 1 ? config.getDequeueBatchMaxWait().getMillis() : 0;
+        this.worker = new LocalQueueWorker(queue, eventWriter, stats, batchSize);
     }
 
     public void close()
     {
-        // Stop the dequeuer
-        executor.shutdown();
+        // Stop the dequeuer and write what's left, for a few seconds at most
+        closed = true;
         try {
-            executor.awaitTermination(5, TimeUnit.SECONDS);
+            if (drainLock.tryLock(CLOSE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                try {
+                    final long deadline = System.currentTimeMillis() + CLOSE_TIMEOUT_MILLIS;
+                    while (System.currentTimeMillis() < deadline && worker.drain(MAX_EVENTS_PER_DRAIN) > 0) {
+                        // Keep draining
+                    }
+                }
+                finally {
+                    drainLock.unlock();
+                }
+            }
+            else {
+                log.warn("Timed out waiting for the dequeuer to finish writing events");
+            }
         }
         catch (InterruptedException ex) {
             Thread.currentThread().interrupt();
         }
-        executor.shutdownNow();
 
         try {
             // The flush is async - the eventWriter will clean itself up on close() by trying to flush events.
@@ -91,6 +137,7 @@ public class LocalQueueAndWriter
     {
         if (queue.offer(event)) {
             stats.registerEventEnqueued();
+            requestDrain();
             return true;
         }
         else {
@@ -99,6 +146,48 @@ public class LocalQueueAndWriter
         }
     }
 
+    private void requestDrain()
+    {
+        if (queue.size() >= batchSize || maxBatchWaitMillis == 0) {
+            scheduleDrain(immediateDrainScheduled, immediateDrainTask, 0);
+        }
+        else {
+            scheduleDrain(delayedDrainScheduled, delayedDrainTask, maxBatchWaitMillis);
+        }
+    }
+
+    private void scheduleDrain(final AtomicBoolean scheduled, final Runnable task, final long delayMillis)
+    {
+        if (!closed && scheduled.compareAndSet(false, true)) {
+            try {
+                dequeuerPool.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+            }
+            catch (RejectedExecutionException e) {
+                // Shutting down
+                scheduled.set(false);
+            }
+        }
+    }
+
+    private void drain(final AtomicBoolean scheduled)
+    {
+        drainLock.lock();
+        try {
+            if (!closed) {
+                worker.drain(MAX_EVENTS_PER_DRAIN);
+            }
+        }
+        finally {
+            drainLock.unlock();
+            scheduled.set(false);
+
+            // Events may have been enqueued after we were done, while we were still flagged as scheduled
+            if (!queue.isEmpty()) {
+                requestDrain();
+            }
+        }
+    }
+
     public boolean isEmpty()
     {
         return queue.size() == 0;
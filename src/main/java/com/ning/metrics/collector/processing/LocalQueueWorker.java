@@ -22,44 +22,78 @@ import com.ning.metrics.serialization.writer.EventWriter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
 
 /**
- * Worker that constantly dequeues events from its underlying queue and writes them to disk
+ * Worker that dequeues events from its underlying queue and writes them to disk, in batches of up to batchSize events.
+ * <p/>
+ * The worker doesn't own a thread: it is invoked by the dequeuer pool whenever its queue has events to write.
+ * It is not thread safe, callers need to make sure only one thread drains a given queue at a time.
  */
-class LocalQueueWorker implements Runnable
+class LocalQueueWorker
 {
     private static final Logger logger = LoggerFactory.getLogger(LocalQueueWorker.class);
 
     private final BlockingQueue<Event> eventQueue;
     private final EventWriter processor;
     private final WriterStats stats;
+    private final int batchSize;
+    private final List<Event> batch;
 
-    public LocalQueueWorker(final BlockingQueue<Event> msgQueue, final EventWriter eventWriter, final WriterStats stats)
+    public LocalQueueWorker(final BlockingQueue<Event> msgQueue, final EventWriter eventWriter, final WriterStats stats, final int batchSize)
     {
         this.eventQueue = msgQueue;
         this.processor = eventWriter;
         this.stats = stats;
+        this.batchSize = Math.max(1, batchSize);
+        this.batch = new ArrayList<Event>(this.batchSize);
     }
 
     /**
-     * Dequeue an event from its underlying queue, blocking if necessary
+     * Dequeue events from the underlying queue, without blocking
+     *
+     * @param maxEvents maximum number of events to dequeue
+     * @return number of events dequeued
      */
-    public void run()
+    public int drain(final int maxEvents)
     {
-        while (true) {
-            try {
-                final Event event = eventQueue.take();
-                processor.write(event);
-                stats.registerEventWritten();
+        int dequeued = 0;
+        while (dequeued < maxEvents) {
+            eventQueue.drainTo(batch, Math.min(batchSize, maxEvents - dequeued));
+            if (batch.isEmpty()) {
+                break;
             }
-            catch (InterruptedException ex) {
-                Thread.currentThread().interrupt();
-                return;
+
+            dequeued += batch.size();
+            writeBatch();
+        }
+
+        return dequeued;
+    }
+
+    private void writeBatch()
+    {
+        final long startTime = System.nanoTime();
+        int written = 0;
+        try {
+            for (final Event event : batch) {
+                try {
+                    processor.write(event);
+                    written++;
+                }
+                catch (Exception ex) {
+                    logger.error("Got error while trying to send an event to disk", ex);
+                    stats.registerEventWritingErrored();
+                }
             }
-            catch (Exception ex) {
-                logger.error("Got error while trying to send an event to disk", ex);
-                stats.registerEventWritingErrored();
+        }
+        finally {
+            batch.clear();
+            if (written > 0) {
+                stats.registerEventsWritten(written);
+                stats.registerWriteLatency((System.nanoTime() - startTime) / written);
             }
         }
     }
@@ -22,6 +22,7 @@ import com.ning.metrics.serialization.event.GranularityPathMapper;
 import org.apache.axis.utils.StringUtils;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.filefilter.FileFilterUtils;
+import org.apache.commons.io.filefilter.NameFileFilter;
 import org.apache.commons.lang.RandomStringUtils;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
@@ -81,7 +82,8 @@ public class LocalSpoolManager
             log.warn("Asked to find files in spool directory but [" + spoolDirectory + "] is not a directory!");
             return Collections.emptyList();
         }
-        return FileUtils.listFiles(spoolDirectory, FileFilterUtils.trueFileFilter(), FileFilterUtils.notFileFilter(FileFilterUtils.nameFileFilter("_tmp")));
+        // Ignore _tmp (files being written) and _manifest (not event files)
+        return FileUtils.listFiles(spoolDirectory, FileFilterUtils.trueFileFilter(), FileFilterUtils.notFileFilter(new NameFileFilter(new String[]{"_tmp", SpoolFileManifest.MANIFEST_DIRECTORY})));
     }
 
     public static void cleanupOldSpoolDirectories(final Iterable<File> oldSpoolDirectories)
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2010-2013 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.collector.processing;
+
+import com.ning.metrics.collector.util.ByteBufferInputStream;
+import com.ning.metrics.serialization.event.Event;
+import com.ning.metrics.serialization.event.EventDeserializer;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableList;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A spool file, shared by all the spool processors handling it.
+ * <p/>
+ * The file is memory-mapped the first time it is read, and all readers share the mapping: the file is read from disk
+ * once, however many processors read it.
+ * <p/>
+ * Similarly, events are deserialized once (getEvents()), and typed views over the event payloads (getEventData())
+ * are built once per event name and type, then shared. Processors must treat them as read-only. All of them stay in
+ * memory until close() is called, once the last processor reading them is done.
+ */
+public class SpoolFile
+{
+    private final File file;
+    private final String eventName;
+    private final SerializationType serializationType;
+
+    private ByteBuffer mapping = null;
+    private List<Event> events = null;
+    private final Map<String, List<?>> eventDataViews = new HashMap<String, List<?>>();
+
+    public SpoolFile(final File file, final String eventName, final SerializationType serializationType)
+    {
+        this.file = file;
+        this.eventName = eventName;
+        this.serializationType = serializationType;
+    }
+
+    public File getFile()
+    {
+        return file;
+    }
+
+    public String getEventName()
+    {
+        return eventName;
+    }
+
+    public SerializationType getSerializationType()
+    {
+        return serializationType;
+    }
+
+    /**
+     * @return a new stream over the content of the file, backed by the shared mapping
+     * @throws IOException if the file can't be mapped
+     */
+    public InputStream openStream() throws IOException
+    {
+        final ByteBuffer buffer = getMapping();
+        if (buffer == null) {
+            // Too big to be mapped at once
+            return new FileInputStream(file);
+        }
+        return new ByteBufferInputStream(buffer);
+    }
+
+    /**
+     * @return a new deserializer over the content of the file
+     * @throws IOException if the file can't be read
+     */
+    public EventDeserializer openDeserializer() throws IOException
+    {
+        return serializationType.getDeSerializer(openStream());
+    }
+
+    /**
+     * @return all events in the file, deserialized on the first call
+     * @throws IOException if the file can't be read
+     */
+    public synchronized List<Event> getEvents() throws IOException
+    {
+        if (events == null) {
+            final ImmutableList.Builder<Event> builder = ImmutableList.builder();
+            final EventDeserializer eventDeserializer = openDeserializer();
+            while (eventDeserializer.hasNextEvent()) {
+                builder.add(eventDeserializer.getNextEvent());
+            }
+            events = builder.build();
+        }
+        return events;
+    }
+
+    /**
+     * Payloads of the events with the given name (case insensitive), parsed as JSON into the given type.
+     * The view is built on the first call for this name and type; later calls return it as is, whatever the mapper.
+     *
+     * @param name   event name
+     * @param type   class of the payload
+     * @param mapper mapper to parse the payloads
+     * @param <T>    type of the payload
+     * @return the payloads, in the order of the events in the file
+     * @throws IOException if the file can't be read or a payload can't be parsed
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized <T> List<T> getEventData(final String name, final Class<T> type, final ObjectMapper mapper) throws IOException
+    {
+        final String viewKey = name.toLowerCase() + "|" + type.getName();
+        List<T> view = (List<T>) eventDataViews.get(viewKey);
+        if (view == null) {
+            final ImmutableList.Builder<T> builder = ImmutableList.builder();
+            for (final Event event : getEvents()) {
+                if (name.equalsIgnoreCase(event.getName())) {
+                    builder.add(mapper.readValue(event.getData().toString(), type));
+                }
+            }
+            view = builder.build();
+            eventDataViews.put(viewKey, view);
+        }
+        return view;
+    }
+
+    /**
+     * Drop the references to the mapping and to the decoded events, so that they can be garbage collected.
+     * There is no explicit unmap: the file stays mapped until the mapping (and every stream opened over it) is collected.
+     */
+    public synchronized void close()
+    {
+        mapping = null;
+        events = null;
+        eventDataViews.clear();
+    }
+
+    private synchronized ByteBuffer getMapping() throws IOException
+    {
+        if (mapping == null) {
+            final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+            try {
+                final FileChannel channel = randomAccessFile.getChannel();
+                if (channel.size() > Integer.MAX_VALUE) {
+                    return null;
+                }
+
+                // The mapping stays valid once the channel is closed
+                final MappedByteBuffer mappedBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                mapping = mappedBuffer.asReadOnlyBuffer();
+            }
+            finally {
+                randomAccessFile.close();
+            }
+        }
+
+        // Each reader gets its own position
+        return mapping.duplicate();
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2010-2013 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.collector.processing;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Durable record of the spool processors which are done with a spool file.
+ * <p/>
+ * When a processor fails, the file is quarantined and sent again later (retry, left below files). Thanks to the
+ * manifest, only the processors which didn't complete it the first time see it again, which avoids duplicate
+ * HDFS copies and database rows.
+ * <p/>
+ * Manifests live in the _manifest directory of the spool directory, one per spool file (same name, one processor name
+ * per line), since spool files move between the spool directory, _lock and _quarantine.
+ */
+class SpoolFileManifest
+{
+    private static final Logger log = LoggerFactory.getLogger(SpoolFileManifest.class);
+
+    static final String MANIFEST_DIRECTORY = "_manifest";
+
+    private final File manifestFile;
+    private final Set<String> completedProcessors = new HashSet<String>();
+
+    /**
+     * @param file spool file, either in a spool directory or in one of its _lock, _quarantine directories
+     * @return the manifest for this file
+     */
+    public static SpoolFileManifest forFile(final File file)
+    {
+        File spoolDirectory = file.getAbsoluteFile().getParentFile();
+        if (spoolDirectory.getName().startsWith("_")) {
+            spoolDirectory = spoolDirectory.getParentFile();
+        }
+        return new SpoolFileManifest(new File(getManifestDirectory(spoolDirectory), file.getName()));
+    }
+
+    public static File getManifestDirectory(final File spoolDirectory)
+    {
+        return new File(spoolDirectory, MANIFEST_DIRECTORY);
+    }
+
+    private SpoolFileManifest(final File manifestFile)
+    {
+        this.manifestFile = manifestFile;
+
+        if (manifestFile.isFile()) {
+            try {
+                for (final String line : Files.readLines(manifestFile, Charsets.UTF_8)) {
+                    if (line.length() > 0) {
+                        completedProcessors.add(line);
+                    }
+                }
+            }
+            catch (IOException e) {
+                log.warn(String.format("Unable to read manifest %s, all processors will process the file again", manifestFile), e);
+            }
+        }
+    }
+
+    public synchronized boolean isCompleted(final EventSpoolProcessor spoolProcessor)
+    {
+        return completedProcessors.contains(spoolProcessor.getProcessorName());
+    }
+
+    /**
+     * @param spoolProcessors processors for the file
+     * @return true if all of them are done with it
+     */
+    public synchronized boolean isCompleted(final Set<EventSpoolProcessor> spoolProcessors)
+    {
+        for (final EventSpoolProcessor spoolProcessor : spoolProcessors) {
+            if (!completedProcessors.contains(spoolProcessor.getProcessorName())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public synchronized void markCompleted(final EventSpoolProcessor spoolProcessor) throws IOException
+    {
+        Files.createParentDirs(manifestFile);
+        Files.append(spoolProcessor.getProcessorName() + "\n", manifestFile, Charsets.UTF_8);
+        completedProcessors.add(spoolProcessor.getProcessorName());
+    }
+
+    /**
+     * Forget about the file, once it's been deleted
+     */
+    public synchronized void delete()
+    {
+        if (manifestFile.exists() && !manifestFile.delete()) {
+            log.warn(String.format("Unable to delete manifest %s", manifestFile));
+        }
+        completedProcessors.clear();
+    }
+}
@@ -0,0 +1,30 @@
+/*
+ * Copyright 2010-2013 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.collector.processing;
+
+import java.io.IOException;
+
+/**
+ * Spool processor reading the events of the files it processes.
+ * <p/>
+ * Instead of opening the file itself, it is handed the SpoolFile shared with the other processors of the same file,
+ * so that the file is read once.
+ */
+public interface SpoolFileProcessor extends EventSpoolProcessor
+{
+    public void processSpoolFile(final SpoolFile spoolFile, final String outputPath) throws IOException;
+}
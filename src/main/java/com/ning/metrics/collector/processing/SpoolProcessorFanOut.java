@@ -0,0 +1,432 @@
+/*
+ * Copyright 2010-2013 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.collector.processing;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends spool files to the spool processors, without blocking the caller.
+ * <p/>
+ * Each processor has its own lane (thread pool), so that a slow processor only delays its own backlog.
+ * A lane takes a bounded number of files at a time: once a processor has that many files waiting for or being
+ * processed, submitting a new file blocks until one of them is done, pushing back on the flush.
+ * An attempt taking longer than the timeout is interrupted, and failed attempts are retried on the processor lane
+ * after a delay. A timed out attempt is only retried once the processor gave control back, so that two attempts of
+ * a processor never work on the same file at the same time (a processor ignoring interrupts keeps its lane thread
+ * until it is done). The future returned for a file completes once every processor is done with it: true if all of
+ * them succeeded, false otherwise.
+ * <p/>
+ * Processors which already completed the file, according to its manifest, are skipped. Each processor records its
+ * success in the manifest, so that it won't see the file again if another one fails.
+ * <p/>
+ * Processors reading the events of the file (SpoolFileProcessor) share a single SpoolFile, released as soon as the last
+ * of them is done, whatever the other processors. As the events of a SpoolFile are decoded in memory, the number of
+ * files submitted to SpoolFileProcessors is bounded as well: submitting another one blocks until a SpoolFile is released.
+ */
+class SpoolProcessorFanOut
+{
+    private static final Logger log = LoggerFactory.getLogger(SpoolProcessorFanOut.class);
+
+    private final String name;
+    private final ThreadFactory threadFactory;
+    private final int threadsPerProcessor;
+    private final int maxFilesPerProcessor;
+    // One permit per file being read by SpoolFileProcessors
+    private final Semaphore decodedFilePermits;
+    private final long timeoutMillis;
+    private final int maxRetries;
+    private final long retryDelayMillis;
+    private final ConcurrentMap<EventSpoolProcessor, ScheduledExecutorService> lanes = new ConcurrentHashMap<EventSpoolProcessor, ScheduledExecutorService>();
+    // One permit per file a processor is working on, or will work on (including retries)
+    private final ConcurrentMap<EventSpoolProcessor, Semaphore> lanePermits = new ConcurrentHashMap<EventSpoolProcessor, Semaphore>();
+    private final ScheduledExecutorService timeoutScheduler;
+    private final AtomicLong timedOutAttempts = new AtomicLong(0);
+    private final AtomicLong retriedAttempts = new AtomicLong(0);
+    private final AtomicLong skippedAttempts = new AtomicLong(0);
+
+    /**
+     * @param name                name of this fan-out, for logging
+     * @param threadFactory       factory for the lanes threads
+     * @param threadsPerProcessor number of files a processor can work on in parallel
+     * @param maxFilesPerProcessor number of files a processor can be given before submitting more blocks
+     * @param maxDecodedFiles     number of files SpoolFileProcessors can be given before submitting more blocks
+     * @param timeoutMillis       maximum time for a processor to process a file, 0 for no timeout
+     * @param maxRetries          number of retries after a processor failed on a file
+     * @param retryDelayMillis    delay before retrying
+     */
+    public SpoolProcessorFanOut(final String name, final ThreadFactory threadFactory, final int threadsPerProcessor, final int maxFilesPerProcessor, final int maxDecodedFiles, final long timeoutMillis, final int maxRetries, final long retryDelayMillis)
+    {
+        this.name = name;
+        this.threadFactory = threadFactory;
+        this.threadsPerProcessor = Math.max(1, threadsPerProcessor);
+        this.maxFilesPerProcessor = Math.max(this.threadsPerProcessor, maxFilesPerProcessor);
+        this.decodedFilePermits = new Semaphore(Math.max(1, maxDecodedFiles));
+        this.timeoutMillis = timeoutMillis;
+        this.maxRetries = Math.max(0, maxRetries);
+        this.retryDelayMillis = retryDelayMillis;
+        this.timeoutScheduler = Executors.newSingleThreadScheduledExecutor(threadFactory);
+    }
+
+    /**
+     * Submit a file to a set of spool processors. Blocks while one of the processors already has its maximum number
+     * of files, or while the maximum number of files are being read by SpoolFileProcessors.
+     *
+     * @param spoolProcessors processors to send the file to
+     * @param spoolManager    spool manager for the file
+     * @param file            spool file
+     * @param outputPath      output path for the file
+     * @param manifest        manifest for the file
+     * @return future completed once all processors are done with the file, set to true if all succeeded
+     */
+    public ListenableFuture<Boolean> process(final Set<EventSpoolProcessor> spoolProcessors, final LocalSpoolManager spoolManager, final File file, final String outputPath, final SpoolFileManifest manifest)
+    {
+        final List<EventSpoolProcessor> pendingProcessors = new ArrayList<EventSpoolProcessor>(spoolProcessors.size());
+        for (final EventSpoolProcessor spoolProcessor : spoolProcessors) {
+            if (manifest.isCompleted(spoolProcessor)) {
+                log.info(String.format("Skipping spooler %s for file %s, already processed", spoolProcessor.getProcessorName(), file));
+                skippedAttempts.incrementAndGet();
+            }
+            else {
+                pendingProcessors.add(spoolProcessor);
+            }
+        }
+
+        final SettableFuture<Boolean> result = SettableFuture.create();
+        if (pendingProcessors.isEmpty()) {
+            result.set(true);
+            return result;
+        }
+
+        int nbSpoolFileReaders = 0;
+        for (final EventSpoolProcessor spoolProcessor : pendingProcessors) {
+            if (spoolProcessor instanceof SpoolFileProcessor) {
+                nbSpoolFileReaders++;
+            }
+        }
+
+        final List<Semaphore> acquiredPermits = new ArrayList<Semaphore>(pendingProcessors.size() + 1);
+        try {
+            if (nbSpoolFileReaders > 0) {
+                if (!decodedFilePermits.tryAcquire()) {
+                    log.info(String.format("Too many files being read by spool processors, waiting before submitting file %s", file));
+                    decodedFilePermits.acquire();
+                }
+                acquiredPermits.add(decodedFilePermits);
+            }
+
+            for (final EventSpoolProcessor spoolProcessor : pendingProcessors) {
+                final Semaphore permits = getLanePermits(spoolProcessor);
+                if (!permits.tryAcquire()) {
+                    log.info(String.format("Spool processor %s has %d files in flight, waiting before submitting file %s", spoolProcessor.getProcessorName(), maxFilesPerProcessor, file));
+                    permits.acquire();
+                }
+                acquiredPermits.add(permits);
+            }
+        }
+        catch (InterruptedException e) {
+            log.warn(String.format("Interrupted while waiting to submit file %s to the spool processors", file));
+            Thread.currentThread().interrupt();
+            for (final Semaphore permits : acquiredPermits) {
+                permits.release();
+            }
+            result.set(false);
+            return result;
+        }
+
+        final SpoolFile spoolFile = new SpoolFile(file, spoolManager.getEventName(), spoolManager.getSerializationType());
+        final FileProgress progress = new FileProgress(pendingProcessors.size(), nbSpoolFileReaders, result, manifest, spoolFile);
+        for (final EventSpoolProcessor spoolProcessor : pendingProcessors) {
+            new Attempt(spoolProcessor, spoolManager, file, outputPath, progress, 0).submit(0);
+        }
+
+        return result;
+    }
+
+    /**
+     * @return number of files waiting for or being processed, per processor
+     */
+    public Map<String, Integer> getBacklogs()
+    {
+        final Map<String, Integer> backlogs = new HashMap<String, Integer>();
+        for (final Map.Entry<EventSpoolProcessor, ScheduledExecutorService> lane : lanes.entrySet()) {
+            if (lane.getValue() instanceof ThreadPoolExecutor) {
+                final ThreadPoolExecutor executor = (ThreadPoolExecutor) lane.getValue();
+                backlogs.put(lane.getKey().getProcessorName(), executor.getQueue().size() + executor.getActiveCount());
+            }
+        }
+        return backlogs;
+    }
+
+    public long getTimedOutAttempts()
+    {
+        return timedOutAttempts.get();
+    }
+
+    public long getRetriedAttempts()
+    {
+        return retriedAttempts.get();
+    }
+
+    public long getSkippedAttempts()
+    {
+        return skippedAttempts.get();
+    }
+
+    public void shutdown(final long timeout, final TimeUnit unit)
+    {
+        final List<ScheduledExecutorService> executors = new ArrayList<ScheduledExecutorService>(lanes.values());
+        for (final ScheduledExecutorService executor : executors) {
+            executor.shutdown();
+        }
+
+        try {
+            final long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+            for (final ScheduledExecutorService executor : executors) {
+                executor.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        for (final ScheduledExecutorService executor : executors) {
+            executor.shutdownNow();
+        }
+        timeoutScheduler.shutdownNow();
+    }
+
+    private ScheduledExecutorService getLane(final EventSpoolProcessor spoolProcessor)
+    {
+        ScheduledExecutorService lane = lanes.get(spoolProcessor);
+        if (lane == null) {
+            final ScheduledExecutorService newLane = Executors.newScheduledThreadPool(threadsPerProcessor, threadFactory);
+            lane = lanes.putIfAbsent(spoolProcessor, newLane);
+            if (lane == null) {
+                log.info(String.format("Created %s lane for spool processor %s", name, spoolProcessor.getProcessorName()));
+                lane = newLane;
+            }
+            else {
+                newLane.shutdown();
+            }
+        }
+        return lane;
+    }
+
+    private Semaphore getLanePermits(final EventSpoolProcessor spoolProcessor)
+    {
+        Semaphore permits = lanePermits.get(spoolProcessor);
+        if (permits == null) {
+            final Semaphore newPermits = new Semaphore(maxFilesPerProcessor);
+            permits = lanePermits.putIfAbsent(spoolProcessor, newPermits);
+            if (permits == null) {
+                permits = newPermits;
+            }
+        }
+        return permits;
+    }
+
+    /**
+     * Tracks how many processors are still working on a file
+     */
+    private class FileProgress
+    {
+        private final AtomicInteger remaining;
+        private final AtomicInteger remainingSpoolFileReaders;
+        private final AtomicBoolean failed = new AtomicBoolean(false);
+        private final SettableFuture<Boolean> result;
+        private final SpoolFileManifest manifest;
+        private final SpoolFile spoolFile;
+
+        private FileProgress(final int nbProcessors, final int nbSpoolFileReaders, final SettableFuture<Boolean> result, final SpoolFileManifest manifest, final SpoolFile spoolFile)
+        {
+            this.remaining = new AtomicInteger(nbProcessors);
+            this.remainingSpoolFileReaders = new AtomicInteger(nbSpoolFileReaders);
+            this.result = result;
+            this.manifest = manifest;
+            this.spoolFile = spoolFile;
+        }
+
+        private void processorDone(final EventSpoolProcessor spoolProcessor, final boolean success)
+        {
+            getLanePermits(spoolProcessor).release();
+
+            // Free the decoded events as soon as the processors reading them are done, not when the slowest processor is
+            if (spoolProcessor instanceof SpoolFileProcessor && remainingSpoolFileReaders.decrementAndGet() == 0) {
+                spoolFile.close();
+                decodedFilePermits.release();
+            }
+
+            if (success) {
+                try {
+                    manifest.markCompleted(spoolProcessor);
+                }
+                catch (IOException e) {
+                    log.warn(String.format("Unable to record completion of spooler %s in the manifest", spoolProcessor.getProcessorName()), e);
+                }
+            }
+            else {
+                failed.set(true);
+            }
+            if (remaining.decrementAndGet() == 0) {
+                result.set(!failed.get());
+            }
+        }
+    }
+
+    /**
+     * One attempt of a processor on a file. The timeout only interrupts it: the outcome is decided once the processor
+     * returns.
+     */
+    private class Attempt implements Runnable
+    {
+        private final EventSpoolProcessor spoolProcessor;
+        private final LocalSpoolManager spoolManager;
+        private final File file;
+        private final String outputPath;
+        private final FileProgress progress;
+        private final int retry;
+        private final AtomicBoolean finished = new AtomicBoolean(false);
+        private volatile Future<?> future;
+
+        private Attempt(final EventSpoolProcessor spoolProcessor, final LocalSpoolManager spoolManager, final File file, final String outputPath, final FileProgress progress, final int retry)
+        {
+            this.spoolProcessor = spoolProcessor;
+            this.spoolManager = spoolManager;
+            this.file = file;
+            this.outputPath = outputPath;
+            this.progress = progress;
+            this.retry = retry;
+        }
+
+        private void submit(final long delayMillis)
+        {
+            try {
+                future = getLane(spoolProcessor).schedule(this, delayMillis, TimeUnit.MILLISECONDS);
+            }
+            catch (RejectedExecutionException e) {
+                log.warn(String.format("Unable to submit file %s to spool processor %s, shutting down?", file, spoolProcessor.getProcessorName()));
+                progress.processorDone(spoolProcessor, false);
+            }
+        }
+
+        @Override
+        public void run()
+        {
+            final Future<?> timeout = scheduleTimeout();
+
+            boolean success = false;
+            try {
+                log.info(String.format("Processing Event %s via spooler %s at path %s ", spoolManager.getEventName(), spoolProcessor.getProcessorName(), outputPath));
+
+                if (spoolProcessor instanceof SpoolFileProcessor) {
+                    ((SpoolFileProcessor) spoolProcessor).processSpoolFile(progress.spoolFile, outputPath);
+                }
+                else {
+                    spoolProcessor.processEventFile(spoolManager.getEventName(), spoolManager.getSerializationType(), file, outputPath);
+                }
+                success = true;
+
+                log.info(String.format("Completed Processing Event  %s via spooler %s", spoolManager.getEventName(), spoolProcessor.getProcessorName()));
+            }
+            catch (Exception e) {
+                log.error("Exception occurred while processing event " + spoolManager.getEventName() + " for spooler " + spoolProcessor.getProcessorName(), e);
+            }
+
+            if (!finished.compareAndSet(false, true)) {
+                // The processor was interrupted, but is only done now: it is safe to try again (or to move on if it completed regardless)
+                log.info(String.format("Spool processor %s returned after timing out on event %s at path %s, success: %s", spoolProcessor.getProcessorName(), spoolManager.getEventName(), outputPath, success));
+            }
+            else if (timeout != null) {
+                timeout.cancel(false);
+            }
+
+            if (success) {
+                progress.processorDone(spoolProcessor, true);
+            }
+            else {
+                failed();
+            }
+        }
+
+        private Future<?> scheduleTimeout()
+        {
+            if (timeoutMillis <= 0) {
+                return null;
+            }
+
+            try {
+                return timeoutScheduler.schedule(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        if (finished.compareAndSet(false, true)) {
+                            log.warn(String.format("Spool processor %s timed out processing event %s at path %s", spoolProcessor.getProcessorName(), spoolManager.getEventName(), outputPath));
+                            timedOutAttempts.incrementAndGet();
+
+                            // Only interrupts the attempt, which is retried once the processor returns
+                            final Future<?> attempt = future;
+                            if (attempt != null) {
+                                attempt.cancel(true);
+                            }
+                        }
+                    }
+                }, timeoutMillis, TimeUnit.MILLISECONDS);
+            }
+            catch (RejectedExecutionException e) {
+                // Shutting down, the attempt will run without timeout
+                return null;
+            }
+        }
+
+        private void failed()
+        {
+            if (retry < maxRetries) {
+                log.info(String.format("Retrying event %s via spooler %s in %d ms", spoolManager.getEventName(), spoolProcessor.getProcessorName(), retryDelayMillis));
+                retriedAttempts.incrementAndGet();
+                new Attempt(spoolProcessor, spoolManager, file, outputPath, progress, retry + 1).submit(retryDelayMillis);
+            }
+            else {
+                progress.processorDone(spoolProcessor, false);
+            }
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2010-2013 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.collector.processing;
+
+/**
+ * Key of a local writer queue: events sharing the same output directory and serialization type
+ * end up in the same queue. The hash code is computed once so that lookups in the queue map are cheap.
+ * <p/>
+ * The string representation, {@code outputDir|fileSuffix}, is the one exposed via JMX and the healthchecks.
+ */
+public final class SpoolQueueKey
+{
+    private final String outputDir;
+    private final SerializationType serializationType;
+    private final int hashCode;
+
+    public SpoolQueueKey(final String outputDir, final SerializationType serializationType)
+    {
+        this.outputDir = outputDir;
+        this.serializationType = serializationType;
+        this.hashCode = 31 * outputDir.hashCode() + serializationType.ordinal();
+    }
+
+    public String getOutputDir()
+    {
+        return outputDir;
+    }
+
+    public SerializationType getSerializationType()
+    {
+        return serializationType;
+    }
+
+    @Override
+    public boolean equals(final Object o)
+    {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+
+        final SpoolQueueKey that = (SpoolQueueKey) o;
+        return hashCode == that.hashCode && serializationType == that.serializationType && outputDir.equals(that.outputDir);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return hashCode;
+    }
+
+    @Override
+    public String toString()
+    {
+        return outputDir + "|" + serializationType.getFileSuffix();
+    }
+}
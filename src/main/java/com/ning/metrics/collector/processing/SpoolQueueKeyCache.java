@@ -0,0 +1,109 @@
+/*
+ * Copyright 2010-2013 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.collector.processing;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.ning.metrics.serialization.event.Event;
+import com.ning.metrics.serialization.event.Granularity;
+
+import org.joda.time.DateTime;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Resolves the writer queue key of an event, caching the output directory resolution.
+ * <p/>
+ * For Smile and Thrift envelope events, the output directory only depends on the event name, its granularity and
+ * its timestamp. The finest granularity is a minute, so all events of a given type received during the same minute
+ * share the same key: we remember the last key computed per (event name, granularity, serialization type) and reuse it
+ * as long as events keep falling in the same minute. Other event implementations are free to compute their output
+ * directory the way they want and are never cached.
+ * <p/>
+ * Event names come from the clients, so only the most recently used {@link #MAX_EVENT_NAMES} of them are kept.
+ */
+class SpoolQueueKeyCache
+{
+    private static final long MILLIS_PER_MINUTE = 60000L;
+    static final int MAX_EVENT_NAMES = 10000;
+
+    private static final int NB_SERIALIZATION_TYPES = SerializationType.values().length;
+    private static final int NB_SLOTS = Granularity.values().length * NB_SERIALIZATION_TYPES;
+
+    private final String outputDirectoryPrefix;
+    private final Cache<String, AtomicReferenceArray<CachedKey>> keysPerEventName = CacheBuilder.newBuilder()
+                                                                                          .maximumSize(MAX_EVENT_NAMES)
+                                                                                          .build();
+
+    public SpoolQueueKeyCache(final String outputDirectoryPrefix)
+    {
+        this.outputDirectoryPrefix = outputDirectoryPrefix;
+    }
+
+    public SpoolQueueKey getKey(final Event event, final SerializationType serializationType)
+    {
+        final String eventName = event.getName();
+        final Granularity granularity = event.getGranularity();
+        final DateTime eventDateTime = event.getEventDateTime();
+        if (serializationType == SerializationType.DEFAULT || eventName == null || granularity == null || eventDateTime == null) {
+            return new SpoolQueueKey(event.getOutputDir(outputDirectoryPrefix), serializationType);
+        }
+
+        AtomicReferenceArray<CachedKey> slots = keysPerEventName.getIfPresent(eventName);
+        if (slots == null) {
+            final AtomicReferenceArray<CachedKey> newSlots = new AtomicReferenceArray<CachedKey>(NB_SLOTS);
+            slots = keysPerEventName.asMap().putIfAbsent(eventName, newSlots);
+            if (slots == null) {
+                slots = newSlots;
+            }
+        }
+
+        final int slot = granularity.ordinal() * NB_SERIALIZATION_TYPES + serializationType.ordinal();
+        final long minute = eventDateTime.getMillis() / MILLIS_PER_MINUTE;
+        final CachedKey cachedKey = slots.get(slot);
+        if (cachedKey != null && cachedKey.minute == minute) {
+            return cachedKey.key;
+        }
+
+        // Cache miss (first event of this type, or a new minute): last writer wins, the key is immutable anyway
+        final SpoolQueueKey key = new SpoolQueueKey(event.getOutputDir(outputDirectoryPrefix), serializationType);
+        slots.set(slot, new CachedKey(minute, key));
+        return key;
+    }
+
+    /**
+     * Unit test hook
+     *
+     * @return number of event types cached
+     */
+    int size()
+    {
+        return (int) keysPerEventName.size();
+    }
+
+    private static final class CachedKey
+    {
+        private final long minute;
+        private final SpoolQueueKey key;
+
+        private CachedKey(final long minute, final SpoolQueueKey key)
+        {
+            this.minute = minute;
+            this.key = key;
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ning.metrics.collector.processing;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A counter in the spirit of Java 8's LongAdder: increments go to a single
+ * base value until threads start to collide on it, then they are spread over
+ * cache-line padded cells which are only summed up when the counter is read.
+ * The cells start at two and double each time threads keep colliding on
+ * them, up to one per CPU or so: uncontended counters stay as cheap as an
+ * AtomicLong, and mildly contended ones only pay for a few cells.
+ */
+final class StripedCounter {
+
+    private static final int NCPU = Runtime.getRuntime().availableProcessors();
+    private static final int MAX_CELLS = 64;
+    private static final int MAX_CELL_COUNT = maxCellCount();
+
+    private static final ThreadLocal<int[]> threadProbe = new ThreadLocal<int[]>() {
+        private final Random seeds = new Random();
+
+        @Override
+        protected int[] initialValue() {
+            synchronized (seeds) {
+                // The probe must not be 0, xorshift would stay stuck on it
+                return new int[]{seeds.nextInt() | 1};
+            }
+        }
+    };
+
+    private final AtomicLong base = new AtomicLong(0);
+    // Cells are never replaced, only added: a grown array shares the cells of the previous one
+    private volatile Cell[] cells = null;
+
+    /**
+     * Add the given increment to the counter
+     *
+     * @param increment
+     */
+    public void add(long increment) {
+        Cell[] cellsInUse = cells;
+
+        if (cellsInUse == null) {
+            long value = base.get();
+            if (base.compareAndSet(value, value + increment)) {
+                return;
+            }
+            // Some other thread got there first: stop hammering the base
+            cellsInUse = grow(null);
+        }
+
+        int[] probe = threadProbe.get();
+        boolean collided = false;
+
+        while (true) {
+            Cell cell = cellsInUse[probe[0] & (cellsInUse.length - 1)];
+            long value = cell.get();
+            if (cell.compareAndSet(value, value + increment)) {
+                return;
+            }
+
+            if (collided && cellsInUse.length < MAX_CELL_COUNT) {
+                // Still colliding after moving to another cell: more cells
+                cellsInUse = grow(cellsInUse);
+                collided = false;
+            }
+            else {
+                collided = true;
+                cellsInUse = cells;
+            }
+            // Move this thread to another cell
+            probe[0] = nextProbe(probe[0]);
+        }
+    }
+
+    /**
+     * @return the sum of all increments. Not an atomic snapshot if increments
+     * are made concurrently.
+     */
+    public long sum() {
+        long sum = base.get();
+        Cell[] cellsInUse = cells;
+
+        if (cellsInUse != null) {
+            for (Cell cell : cellsInUse) {
+                sum += cell.get();
+            }
+        }
+
+        return sum;
+    }
+
+    /**
+     * Unit test hook
+     *
+     * @return number of cells in use, 0 if the counter never was contended
+     */
+    int getCellCount() {
+        Cell[] cellsInUse = cells;
+        return cellsInUse == null ? 0 : cellsInUse.length;
+    }
+
+    /**
+     * Double the number of cells, unless another thread already grew them
+     *
+     * @param current cells the caller collided on, null for none yet
+     * @return cells in use
+     */
+    private synchronized Cell[] grow(Cell[] current) {
+        if (cells == current && (current == null || current.length < MAX_CELL_COUNT)) {
+            int length = current == null ? 2 : current.length * 2;
+            Cell[] newCells = new Cell[length];
+            int first = 0;
+
+            if (current != null) {
+                System.arraycopy(current, 0, newCells, 0, current.length);
+                first = current.length;
+            }
+            for (int i = first; i < length; i++) {
+                newCells[i] = new Cell();
+            }
+
+            cells = newCells;
+        }
+        return cells;
+    }
+
+    private static int maxCellCount() {
+        int cellCount = 2;
+        while (cellCount < NCPU && cellCount < MAX_CELLS) {
+            cellCount <<= 1;
+        }
+        return cellCount;
+    }
+
+    private static int nextProbe(int probe) {
+        probe ^= probe << 13;
+        probe ^= probe >>> 17;
+        probe ^= probe << 5;
+        return probe;
+    }
+
+    /**
+     * Padded so that two cells never share a cache line (7 longs after the
+     * value, plus the object header before it)
+     */
+    @SuppressWarnings("unused")
+    private static final class Cell extends AtomicLong {
+        private long p1, p2, p3, p4, p5, p6, p7;
+    }
+}
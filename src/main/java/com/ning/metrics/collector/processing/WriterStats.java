@@ -35,6 +35,7 @@ package com.ning.metrics.collector.processing;
 import com.ning.arecibo.jmx.Monitored;
 import com.ning.arecibo.jmx.MonitoringType;
 
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
@@ -50,6 +51,8 @@ public class WriterStats
     private final AtomicLong writtenEvents = new AtomicLong(0);
     private final AtomicLong erroredEvents = new AtomicLong(0);
     private final AtomicLong hdfsFlushes = new AtomicLong(0);
+    // Exponentially weighted moving average of the time to write one event to the disk spool
+    private final AtomicLong writeLatencyNanos = new AtomicLong(0);
 
     public void registerEventIgnored()
     {
@@ -71,11 +74,27 @@ public class WriterStats
         writtenEvents.incrementAndGet();
     }
 
+    public void registerEventsWritten(final int count)
+    {
+        writtenEvents.addAndGet(count);
+    }
+
     public void registerEventWritingErrored()
     {
         erroredEvents.incrementAndGet();
     }
 
+    public void registerWriteLatency(final long nanosPerEvent)
+    {
+        while (true) {
+            final long average = writeLatencyNanos.get();
+            final long newAverage = average == 0 ? nanosPerEvent : average + (nanosPerEvent - average) / 8;
+            if (writeLatencyNanos.compareAndSet(average, newAverage)) {
+                return;
+            }
+        }
+    }
+
     public void registerHdfsFlush()
     {
         hdfsFlushes.incrementAndGet();
@@ -111,6 +130,17 @@ public class WriterStats
         return erroredEvents.get();
     }
 
+    @Monitored(description = "Average time to write an event to the disk spool, in microseconds", monitoringType = {MonitoringType.VALUE})
+    public long getWriteLatencyMicros()
+    {
+        return TimeUnit.NANOSECONDS.toMicros(writeLatencyNanos.get());
+    }
+
+    public long getWriteLatencyNanos()
+    {
+        return writeLatencyNanos.get();
+    }
+
     @Monitored(description = "Number of files written to Hadoop", monitoringType = {MonitoringType.VALUE, MonitoringType.RATE})
     public long getHdfsFlushes()
     {
@@ -128,5 +158,6 @@ public class WriterStats
         writtenEvents.set(0);
         erroredEvents.set(0);
         hdfsFlushes.set(0);
+        writeLatencyNanos.set(0);
     }
 }
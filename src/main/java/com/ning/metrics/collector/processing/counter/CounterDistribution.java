@@ -22,16 +22,18 @@ import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonSerializer;
 import com.fasterxml.jackson.databind.SerializerProvider;
 import com.fasterxml.jackson.databind.annotation.JsonSerialize;
-import com.google.common.collect.Maps;
+import com.ning.metrics.collector.util.StringIntHashMap;
 import java.io.IOException;
 import java.util.Collection;
-import java.util.Comparator;
 import java.util.Map;
 import java.util.Set;
 
 /**
  * Container for the unique identifier counts aka distribution for a rolled-up
- * counter.  This class will
+ * counter.  This class will iterate over the unique ids by decreasing count,
+ * then by unique id.  Counts are kept in a primitive map rather than boxed
+ * entries in sorted trees, which matters for namespaces with millions of unique
+ * ids per day.
  * @author kguthrie
  */
 @JsonIgnoreProperties(ignoreUnknown = true)
@@ -70,72 +72,16 @@ public class CounterDistribution implements Map<String, Integer> {
 
     }
 
-    /**
-     * Class that wraps a distribution entry.  Instances of this class will
-     * contain the uniqueId and count for the distribution
-     */
-    public static class Entry implements Map.Entry<String, Integer>{
-        private final String uniqueId;
-        private int count;
-
-        public Entry(String uniqueId, int count) {
-            this.uniqueId = uniqueId;
-            this.count = count;
-        }
-
-        @Override
-        public String getKey() {
-            return uniqueId;
-        }
-
-        @Override
-        public Integer getValue() {
-            return count;
-        }
-
-        @Override
-        public Integer setValue(Integer value) {
-            int oldVal = count;
-            count = value;
-            return oldVal;
-        }
-
-        /**
-         * increment the count for the given entry
-         * @param inc
-         * @return the old value
-         */
-        public int increment(int inc) {
-            int oldVal = count;
-            count += inc;
-            return oldVal;
-        }
-
-    }
-
-    private final PresortedMap<Entry, Entry> presortedMap;
-    private Map<Entry, Entry> postSortedMap;
-    private Map<String, Entry> entryLocator;
+    // uniqueId -> count, kept in distribution order (count desc, then
+    // uniqueId) whenever sorted is true
+    private final StringIntHashMap counts;
+    private boolean sorted;
     private Integer serializationLimit;
 
     public CounterDistribution() {
         serializationLimit = null;
-        entryLocator = null;
-        presortedMap = new PresortedMap<Entry, Entry>(new Comparator<Entry>() {
-
-            @Override
-            public int compare(Entry o1, Entry o2) {
-                int result = o2.getValue() - o1.getValue();
-
-                if (result == 0) {
-                    result = o1.getKey().compareTo(o2.getKey());
-                }
-
-                return result;
-            }
-        });
-
-        postSortedMap = null;
+        counts = new StringIntHashMap();
+        sorted = true;
     }
 
     /**
@@ -163,56 +109,98 @@ public class CounterDistribution implements Map<String, Integer> {
      * @param count
      */
     public void putPresortedEntry(String uniqueId, int count) {
-        assert(postSortedMap == null);
-
-        Entry curr = new Entry(uniqueId, count);
-        presortedMap.put(curr, curr);
+        counts.put(uniqueId, count);
     }
 
     /**
-     * ensure that the distribution's storage has been updated to allow for
-     * new entries to be added, old entries to be updated, and keys to be
-     * queried
+     * ensure that the distribution's storage is in distribution order before
+     * iterating over it.  Sorting is done lazily, once after a batch of
+     * increments rather than on every increment.
      */
     private void ensureSorted() {
-        if (postSortedMap == null) {
-            postSortedMap = Maps.newTreeMap(presortedMap);
-            entryLocator = Maps.newHashMap();
+        if (sorted) {
+            return;
+        }
+
+        int[] order = new int[counts.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+
+        sortEntries(order, new int[order.length], 0, order.length);
+        counts.permute(order);
+        sorted = true;
+    }
 
-            for (Entry e : presortedMap.values()) {
-                entryLocator.put(e.getKey(), e);
+    /**
+     * Merge sort of the given entry positions in distribution order.  Done on
+     * primitive positions so that millions of entries don't mean millions of
+     * boxed values or comparator calls on objects
+     */
+    private void sortEntries(int[] order, int[] buffer, int from, int to) {
+        if (to - from < 2) {
+            return;
+        }
+
+        int middle = (from + to) >>> 1;
+        sortEntries(order, buffer, from, middle);
+        sortEntries(order, buffer, middle, to);
+
+        // Already in order, nothing to merge
+        if (compareEntries(order[middle - 1], order[middle]) <= 0) {
+            return;
+        }
+
+        System.arraycopy(order, from, buffer, from, to - from);
+
+        int left = from;
+        int right = middle;
+        for (int i = from; i < to; i++) {
+            if (right >= to || (left < middle
+                    && compareEntries(buffer[left], buffer[right]) <= 0)) {
+                order[i] = buffer[left++];
+            }
+            else {
+                order[i] = buffer[right++];
             }
         }
     }
 
+    private int compareEntries(int first, int second) {
+        int firstCount = counts.valueAt(first);
+        int secondCount = counts.valueAt(second);
+
+        if (firstCount != secondCount) {
+            return firstCount > secondCount ? -1 : 1;
+        }
+
+        return counts.keyAt(first).compareTo(counts.keyAt(second));
+    }
+
+    /**
+     * add to an entry of the distribution that might not by new or have the
+     * lowest count (IE not presorted).
+     * @param uniqueId
+     * @param count
+     * @return true if the unique id was absent from the distribution
+     */
+    public boolean incrementCount(String uniqueId, int count) {
+        sorted = false;
+        return counts.add(uniqueId, count);
+    }
+
     /**
      * add an entry to the distribution that might not by new or have the lowest
-     * count (IE not presorted).  If this is the first time this method is
-     * called, the internal structure used for maintaining a sorted map will be
-     * populated and the new distribution entry will be added
+     * count (IE not presorted).
      * @param uniqueId
      * @param count
      * @return the old count for the given unique id or null if absent before
      */
     public Integer increment(String uniqueId, int count) {
-        ensureSorted();
-
-        Entry curr;
-        Entry existing = entryLocator.get(uniqueId);
-        Integer result = null;
-
-        if (existing != null) {
-            postSortedMap.remove(existing);
-            int oldValue = existing.increment(count);
-            result = oldValue;
-            curr = existing;
-        }
-        else {
-            curr = new Entry(uniqueId, count);
-            entryLocator.put(uniqueId, curr);
-        }
+        int index = counts.indexOf(uniqueId);
+        Integer result = index < 0 ? null : counts.valueAt(index);
 
-        postSortedMap.put(curr, curr);
+        incrementCount(uniqueId, count);
 
         return result;
     }
@@ -225,26 +213,17 @@ public class CounterDistribution implements Map<String, Integer> {
 
     @Override
     public int size() {
-        if (postSortedMap != null) {
-            return postSortedMap.size();
-        }
-
-        return presortedMap.size();
+        return counts.size();
     }
 
     @Override
     public boolean isEmpty() {
-        if (postSortedMap != null) {
-            return postSortedMap.isEmpty();
-        }
-
-        return presortedMap.isEmpty();
+        return counts.isEmpty();
     }
 
     @Override
     public boolean containsKey(Object key) {
-        ensureSorted();
-        return entryLocator.containsKey(key);
+        return counts.containsKey(key);
     }
 
     @Override
@@ -254,9 +233,8 @@ public class CounterDistribution implements Map<String, Integer> {
 
     @Override
     public Integer get(Object key) {
-        ensureSorted();
-        Entry resultEntry = entryLocator.get(key);
-        return resultEntry == null ? null : resultEntry.getValue();
+        int index = counts.indexOf(key);
+        return index < 0 ? null : counts.valueAt(index);
     }
 
     @Override
@@ -271,11 +249,8 @@ public class CounterDistribution implements Map<String, Integer> {
 
     @Override
     public void clear() {
-        if (postSortedMap != null) {
-            postSortedMap.clear();
-        }
-
-        presortedMap.clear();
+        counts.clear();
+        sorted = true;
     }
 
     @Override
@@ -290,11 +265,8 @@ public class CounterDistribution implements Map<String, Integer> {
 
     @Override
     public Set<Map.Entry<String, Integer>> entrySet() {
-        if (postSortedMap != null) {
-            return new IterableToSetAdaptor(
-                    postSortedMap.values());
-        }
-        return (Set)presortedMap.getValueSet();
+        ensureSorted();
+        return counts.asMap().entrySet();
     }
 
 }
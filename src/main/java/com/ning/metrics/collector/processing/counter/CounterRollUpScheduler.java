@@ -0,0 +1,236 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ning.metrics.collector.processing.counter;
+
+import com.google.common.collect.Maps;
+import com.google.inject.Inject;
+import com.mogwee.executors.FailsafeScheduledExecutor;
+import com.ning.arecibo.jmx.Monitored;
+import com.ning.arecibo.jmx.MonitoringType;
+import com.ning.metrics.collector.binder.config.CollectorConfig;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import org.skife.config.TimeSpan;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.weakref.jmx.Managed;
+
+/**
+ * Runs the counter roll ups of several namespaces concurrently, on a bounded pool of threads.
+ * <p/>
+ * A namespace is waiting for, or being rolled up by, at most one task at a time (the roll up processor also makes
+ * sure no other node rolls it up at the same time). With the partitioned roll up, a task only rolls up the oldest
+ * buffered day of its namespace and then goes back to the end of the queue if there are more days left, so that a
+ * namespace with a large backlog doesn't hold the threads while the other namespaces wait.
+ */
+public class CounterRollUpScheduler
+{
+    private static final Logger log = LoggerFactory.getLogger(CounterRollUpScheduler.class);
+
+    // A roll up holds the connection of its MySQL lock, the one of the transaction rolling up a day, and the
+    // non-incremental roll up briefly takes a third one to load and compact the stored counter next to it
+    static final int CONNECTIONS_PER_ROLL_UP = 3;
+
+    private final RollUpCounterProcessor rollUpCounterProcessor;
+    private final boolean partitioned;
+    private final TimeSpan executorShutdownTimeOut;
+    private final ExecutorService rollUpExecutor;
+
+    // Namespaces waiting for or being rolled up, with the time they were submitted
+    private final ConcurrentMap<String, Long> pendingSince = new ConcurrentHashMap<String, Long>();
+    private final AtomicLong rollUpCount = new AtomicLong(0);
+    private final AtomicLong completedNamespaceCount = new AtomicLong(0);
+    private volatile long lastCompletedRollUpLag = 0;
+
+    @Inject
+    public CounterRollUpScheduler(final CollectorConfig config, final RollUpCounterProcessor rollUpCounterProcessor)
+    {
+        this.rollUpCounterProcessor = rollUpCounterProcessor;
+        this.partitioned = config.isCounterRollUpPartitioned();
+        this.executorShutdownTimeOut = config.getSpoolWriterExecutorShutdownTime();
+        this.rollUpExecutor = new FailsafeScheduledExecutor(getRollUpThreadCount(config), "CounterRollUp-Worker");
+    }
+
+    /**
+     * The number of namespaces rolled up concurrently, capped so that the roll ups leave the metrics buffer writers
+     * their connections: otherwise the roll ups would exhaust the database connection pool, and wait for each other
+     * until the checkout times out
+     */
+    static int getRollUpThreadCount(final CollectorConfig config)
+    {
+        final int requested = Math.max(1, config.getCounterRollUpThreadCount());
+        final int available = Math.max(1, (config.getMaxActive() - config.getCounterEventBufferWriterCount()) / CONNECTIONS_PER_ROLL_UP);
+
+        if (requested > available) {
+            log.warn(String.format("Rolling up %d namespaces concurrently instead of %d, for lack of database connections: "
+                    + "each roll up takes up to %d of them, raise collector.spoolWriter.jdbc.maxActive to roll up more",
+                    available, requested, CONNECTIONS_PER_ROLL_UP));
+            return available;
+        }
+
+        return requested;
+    }
+
+    /**
+     * Ask for the buffered counter events of the given namespace to be rolled up
+     *
+     * @param namespace namespace to roll up
+     * @return false if the namespace is already waiting for or being rolled up
+     */
+    public boolean submit(final String namespace)
+    {
+        if (pendingSince.putIfAbsent(namespace, System.currentTimeMillis()) != null) {
+            log.debug(String.format("Roll up of %s is already scheduled", namespace));
+            return false;
+        }
+
+        try {
+            rollUpExecutor.execute(new RollUpTask(namespace));
+            return true;
+        }
+        catch (RejectedExecutionException e) {
+            pendingSince.remove(namespace);
+            log.warn(String.format("Unable to schedule the roll up of %s", namespace), e);
+            return false;
+        }
+    }
+
+    public void cleanUp()
+    {
+        log.info("Shutting Down Executor Service for Counter Roll Ups");
+        rollUpExecutor.shutdown();
+
+        try {
+            rollUpExecutor.awaitTermination(executorShutdownTimeOut.getPeriod(), executorShutdownTimeOut.getUnit());
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        rollUpExecutor.shutdownNow();
+        pendingSince.clear();
+    }
+
+    private void complete(final String namespace)
+    {
+        final Long submitted = pendingSince.remove(namespace);
+
+        if (submitted != null) {
+            lastCompletedRollUpLag = System.currentTimeMillis() - submitted;
+            completedNamespaceCount.incrementAndGet();
+            log.info(String.format("Roll up of %s completed %d ms after it was scheduled", namespace, lastCompletedRollUpLag));
+        }
+    }
+
+    @Managed(description = "How long (in ms) each namespace waiting for or being rolled up has been waiting")
+    public Map<String, Long> getRollUpLagByNamespace()
+    {
+        final long now = System.currentTimeMillis();
+        final Map<String, Long> result = Maps.newTreeMap();
+
+        for (final Map.Entry<String, Long> entry : pendingSince.entrySet()) {
+            result.put(entry.getKey(), now - entry.getValue());
+        }
+
+        return result;
+    }
+
+    @Monitored(description = "Longest time (in ms) a namespace waiting for or being rolled up has been waiting", monitoringType = {MonitoringType.VALUE})
+    public long getMaxRollUpLag()
+    {
+        final long now = System.currentTimeMillis();
+        long result = 0;
+
+        for (final Long submitted : pendingSince.values()) {
+            result = Math.max(result, now - submitted);
+        }
+
+        return result;
+    }
+
+    @Monitored(description = "Time (in ms) between the scheduling and the completion of the last completed namespace roll up", monitoringType = {MonitoringType.VALUE})
+    public long getLastCompletedRollUpLag()
+    {
+        return lastCompletedRollUpLag;
+    }
+
+    @Monitored(description = "Number of namespaces waiting for or being rolled up", monitoringType = {MonitoringType.VALUE})
+    public long getPendingRollUpNamespaces()
+    {
+        return pendingSince.size();
+    }
+
+    @Monitored(description = "Number of roll up runs (one day of a namespace with the partitioned roll up)", monitoringType = {MonitoringType.VALUE, MonitoringType.RATE})
+    public long getRollUpCount()
+    {
+        return rollUpCount.get();
+    }
+
+    @Monitored(description = "Number of namespaces completely rolled up", monitoringType = {MonitoringType.VALUE, MonitoringType.RATE})
+    public long getCompletedNamespaceRollUps()
+    {
+        return completedNamespaceCount.get();
+    }
+
+    private final class RollUpTask implements Runnable
+    {
+        private final String namespace;
+
+        private RollUpTask(final String namespace)
+        {
+            this.namespace = namespace;
+        }
+
+        @Override
+        public void run()
+        {
+            boolean moreToRollUp = false;
+
+            try {
+                if (partitioned) {
+                    moreToRollUp = rollUpCounterProcessor.rollUpOldestBufferedDay(namespace) > 0;
+                }
+                else {
+                    rollUpCounterProcessor.rollUpStreamingDailyCounters(namespace);
+                }
+                rollUpCount.incrementAndGet();
+            }
+            finally {
+                if (moreToRollUp) {
+                    requeue();
+                }
+                else {
+                    complete(namespace);
+                }
+            }
+        }
+
+        private void requeue()
+        {
+            try {
+                // Back to the end of the queue: the other namespaces get their turn first
+                rollUpExecutor.execute(this);
+            }
+            catch (RejectedExecutionException e) {
+                log.info(String.format("Not rolling up the rest of %s, shutting down", namespace));
+                pendingSince.remove(namespace);
+            }
+        }
+    }
+}
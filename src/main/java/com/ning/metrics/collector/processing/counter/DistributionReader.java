@@ -0,0 +1,423 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ning.metrics.collector.processing.counter;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Sets;
+import com.ning.compress.lzf.LZFDecoder;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads a serialized distribution (see {@link DistributionWriter}) entry by
+ * entry, without inflating it as a whole: blocks are only decompressed once
+ * the reader gets to them.  Unique ids can also be looked up directly, see
+ * {@link #lookup(Collection)}.
+ * <p/>
+ * Distributions serialized before the binary format, as gzipped
+ * "uniqueId|count" lines, and in the first binary format (no head nor index)
+ * are read as well.
+ */
+public class DistributionReader implements Closeable
+{
+    private static final int GZIP_MAGIC_0 = 0x1f;
+    private static final int GZIP_MAGIC_1 = 0x8b;
+    private static final byte FIRST_BINARY_VERSION = 1;
+    private static final int[] NO_BLOCKS = new int[0];
+
+    // Legacy format
+    private final BufferedReader legacyReader;
+
+    // Binary format
+    private final byte[] serializedDistribution;
+    private final int entryCount;
+    private final int[] blockEntryCounts;
+    private final int[] blockOffsets;
+    private final int[] blockLengths;
+    private final int[] indexEntryCounts;
+    private final int[] indexOffsets;
+    private final int[] indexLengths;
+    private final byte[][] indexFirstIds;
+    private final Cursor cursor = new Cursor();
+    private int nextBlock = 0;
+    private int blockRemaining = 0;
+    private byte[] idBuffer = new byte[64];
+    private int idLength = 0;
+    private boolean onEntry = false;
+
+    private String uniqueId;
+    private int count;
+
+    public DistributionReader(final byte[] serializedDistribution) throws IOException
+    {
+        this.serializedDistribution = serializedDistribution;
+
+        if (serializedDistribution.length >= 2
+                && (serializedDistribution[0] & 0xFF) == GZIP_MAGIC_0
+                && (serializedDistribution[1] & 0xFF) == GZIP_MAGIC_1) {
+            this.legacyReader = new BufferedReader(new InputStreamReader(
+                    new GZIPInputStream(new ByteArrayInputStream(serializedDistribution)), Charsets.UTF_8));
+            this.entryCount = -1;
+            this.blockEntryCounts = this.blockOffsets = this.blockLengths = NO_BLOCKS;
+            this.indexEntryCounts = this.indexOffsets = this.indexLengths = NO_BLOCKS;
+            this.indexFirstIds = new byte[0][];
+            return;
+        }
+
+        this.legacyReader = null;
+
+        if (serializedDistribution.length == 0) {
+            this.entryCount = 0;
+            this.blockEntryCounts = this.blockOffsets = this.blockLengths = NO_BLOCKS;
+            this.indexEntryCounts = this.indexOffsets = this.indexLengths = NO_BLOCKS;
+            this.indexFirstIds = new byte[0][];
+            return;
+        }
+
+        final byte version = serializedDistribution[0];
+
+        if (version != FIRST_BINARY_VERSION && version != DistributionWriter.VERSION) {
+            throw new IOException(String.format("Unsupported distribution format version %d", version));
+        }
+
+        cursor.reset(serializedDistribution, 1);
+        entryCount = cursor.readVarint();
+
+        final int blockCount = cursor.readVarint();
+        blockEntryCounts = new int[blockCount];
+        blockOffsets = new int[blockCount];
+        blockLengths = new int[blockCount];
+
+        for (int i = 0; i < blockCount; i++) {
+            blockEntryCounts[i] = cursor.readVarint();
+            blockLengths[i] = cursor.readVarint();
+        }
+
+        final int indexBlockCount = version == FIRST_BINARY_VERSION ? 0 : cursor.readVarint();
+        indexEntryCounts = new int[indexBlockCount];
+        indexOffsets = new int[indexBlockCount];
+        indexLengths = new int[indexBlockCount];
+        indexFirstIds = new byte[indexBlockCount][];
+
+        for (int i = 0; i < indexBlockCount; i++) {
+            indexEntryCounts[i] = cursor.readVarint();
+            indexLengths[i] = cursor.readVarint();
+            indexFirstIds[i] = cursor.readBytes(cursor.readVarint());
+        }
+
+        int offset = cursor.position;
+        for (int i = 0; i < blockCount; i++) {
+            blockOffsets[i] = offset;
+            offset += blockLengths[i];
+        }
+        for (int i = 0; i < indexBlockCount; i++) {
+            indexOffsets[i] = offset;
+            offset += indexLengths[i];
+        }
+    }
+
+    /**
+     * @return the number of entries of the distribution, -1 if unknown
+     *         (legacy format)
+     */
+    public int getEntryCount()
+    {
+        return entryCount;
+    }
+
+    /**
+     * Move to the next entry
+     *
+     * @return false once all entries were read
+     * @throws IOException
+     */
+    public boolean next() throws IOException
+    {
+        if (legacyReader != null) {
+            return nextLegacy();
+        }
+
+        while (blockRemaining == 0) {
+            if (nextBlock >= blockEntryCounts.length) {
+                onEntry = false;
+                uniqueId = null;
+                count = 0;
+                return false;
+            }
+
+            cursor.reset(decompress(blockOffsets[nextBlock], blockLengths[nextBlock]), 0);
+            blockRemaining = blockEntryCounts[nextBlock];
+            idLength = 0;
+            nextBlock++;
+        }
+
+        final int shared = cursor.readVarint();
+        final int suffixLength = cursor.readVarint();
+
+        if (idBuffer.length < shared + suffixLength) {
+            idBuffer = Arrays.copyOf(idBuffer, Math.max(idBuffer.length * 2, shared + suffixLength));
+        }
+
+        cursor.readBytes(idBuffer, shared, suffixLength);
+        idLength = shared + suffixLength;
+
+        final int zigzag = cursor.readVarint();
+        count = (zigzag >>> 1) ^ -(zigzag & 1);
+        uniqueId = null;
+        onEntry = true;
+        blockRemaining--;
+
+        return true;
+    }
+
+    private boolean nextLegacy() throws IOException
+    {
+        String line;
+
+        while ((line = legacyReader.readLine()) != null) {
+            line = line.trim();
+
+            if (line.isEmpty()) {
+                continue;
+            }
+
+            final int split = line.lastIndexOf('|');
+            uniqueId = line.substring(0, split);
+            count = Integer.parseInt(line.substring(split + 1));
+            return true;
+        }
+
+        uniqueId = null;
+        count = 0;
+        return false;
+    }
+
+    public String getUniqueId()
+    {
+        // Only decoded when asked for
+        if (uniqueId == null && onEntry) {
+            uniqueId = new String(idBuffer, 0, idLength, Charsets.UTF_8);
+        }
+
+        return uniqueId;
+    }
+
+    public int getCount()
+    {
+        return count;
+    }
+
+    /**
+     * Find the entries of the given unique ids.  The head of the distribution
+     * is scanned, and the tail is searched through the index.  Distributions
+     * without index are scanned until all unique ids are found.  This is meant
+     * to be used instead of iterating with {@link #next()}, not along with it.
+     *
+     * @param uniqueIds unique ids to look up
+     * @return the entries found
+     * @throws IOException
+     */
+    public CounterDistribution lookup(final Collection<String> uniqueIds) throws IOException
+    {
+        final CounterDistribution result = new CounterDistribution();
+        final Set<String> remaining = Sets.newHashSet(uniqueIds);
+        final int scanned = indexFirstIds.length == 0 ? Integer.MAX_VALUE : blockEntryCounts[0];
+
+        for (int i = 0; i < scanned && !remaining.isEmpty() && next(); i++) {
+            if (remaining.remove(getUniqueId())) {
+                result.incrementCount(getUniqueId(), count);
+            }
+        }
+
+        if (remaining.isEmpty() || indexFirstIds.length == 0) {
+            return result;
+        }
+
+        final byte[][] ids = new byte[remaining.size()][];
+        int index = 0;
+        for (final String id : remaining) {
+            ids[index++] = id.getBytes(Charsets.UTF_8);
+        }
+        Arrays.sort(ids, new Comparator<byte[]>()
+        {
+            @Override
+            public int compare(final byte[] left, final byte[] right)
+            {
+                return DistributionWriter.compareIds(left, right);
+            }
+        });
+
+        final Cursor indexCursor = new Cursor();
+        int loadedBlock = -1;
+        byte[][] blockIds = null;
+        int[] blockCounts = null;
+
+        for (final byte[] id : ids) {
+            final int block = findIndexBlock(id);
+
+            if (block < 0) {
+                continue;
+            }
+
+            if (block != loadedBlock) {
+                indexCursor.reset(decompress(indexOffsets[block], indexLengths[block]), 0);
+                blockIds = new byte[indexEntryCounts[block]][];
+                blockCounts = new int[indexEntryCounts[block]];
+                byte[] previousId = new byte[0];
+
+                for (int i = 0; i < blockIds.length; i++) {
+                    final int shared = indexCursor.readVarint();
+                    final byte[] entryId = new byte[shared + indexCursor.readVarint()];
+                    System.arraycopy(previousId, 0, entryId, 0, shared);
+                    indexCursor.readBytes(entryId, shared, entryId.length - shared);
+
+                    final int zigzag = indexCursor.readVarint();
+                    blockIds[i] = entryId;
+                    blockCounts[i] = (zigzag >>> 1) ^ -(zigzag & 1);
+                    previousId = entryId;
+                }
+
+                loadedBlock = block;
+            }
+
+            final int position = binarySearch(blockIds, id);
+
+            if (position >= 0) {
+                result.incrementCount(new String(id, Charsets.UTF_8), blockCounts[position]);
+            }
+        }
+
+        return result;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        if (legacyReader != null) {
+            legacyReader.close();
+        }
+    }
+
+    /**
+     * @return the last index block whose first unique id is not after the
+     *         given one, -1 if the unique id comes before all of them
+     */
+    private int findIndexBlock(final byte[] id)
+    {
+        int low = 0;
+        int high = indexFirstIds.length - 1;
+        int result = -1;
+
+        while (low <= high) {
+            final int middle = (low + high) >>> 1;
+
+            if (DistributionWriter.compareIds(indexFirstIds[middle], id) <= 0) {
+                result = middle;
+                low = middle + 1;
+            }
+            else {
+                high = middle - 1;
+            }
+        }
+
+        return result;
+    }
+
+    private static int binarySearch(final byte[][] ids, final byte[] id)
+    {
+        int low = 0;
+        int high = ids.length - 1;
+
+        while (low <= high) {
+            final int middle = (low + high) >>> 1;
+            final int comparison = DistributionWriter.compareIds(ids[middle], id);
+
+            if (comparison < 0) {
+                low = middle + 1;
+            }
+            else if (comparison > 0) {
+                high = middle - 1;
+            }
+            else {
+                return middle;
+            }
+        }
+
+        return -1;
+    }
+
+    private byte[] decompress(final int offset, final int length) throws IOException
+    {
+        return LZFDecoder.decode(Arrays.copyOfRange(serializedDistribution, offset, offset + length));
+    }
+
+    private static final class Cursor
+    {
+        private byte[] buffer;
+        private int position;
+
+        private void reset(final byte[] buffer, final int position)
+        {
+            this.buffer = buffer;
+            this.position = position;
+        }
+
+        private int readVarint() throws IOException
+        {
+            int result = 0;
+
+            for (int shift = 0; shift < 35; shift += 7) {
+                if (position >= buffer.length) {
+                    throw new IOException("Truncated distribution");
+                }
+
+                final byte b = buffer[position++];
+                result |= (b & 0x7F) << shift;
+
+                if ((b & 0x80) == 0) {
+                    return result;
+                }
+            }
+
+            throw new IOException("Malformed distribution");
+        }
+
+        private void readBytes(final byte[] target, final int offset, final int length) throws IOException
+        {
+            if (position + length > buffer.length) {
+                throw new IOException("Truncated distribution");
+            }
+
+            System.arraycopy(buffer, position, target, offset, length);
+            position += length;
+        }
+
+        private byte[] readBytes(final int length) throws IOException
+        {
+            final byte[] result = new byte[length];
+            readBytes(result, 0, length);
+            return result;
+        }
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ning.metrics.collector.processing.counter;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.primitives.UnsignedBytes;
+import com.ning.compress.lzf.LZFEncoder;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Serializes a distribution, entry by entry, in the binary format stored in
+ * the distribution blobs:
+ * <pre>
+ * byte     format version
+ * varint   number of entries
+ * varint   number of entry blocks
+ * (varint  number of entries, varint compressed length) for each entry block
+ * varint   number of index blocks
+ * (varint  number of entries, varint compressed length,
+ *  varint  length of the first unique id, first unique id) for each index block
+ * LZF compressed entry blocks
+ * LZF compressed index blocks
+ * </pre>
+ * Each block holds consecutive entries, as (varint length of the prefix shared
+ * with the previous unique id of the block, varint length of the rest of the
+ * unique id, rest of the unique id in UTF-8, zigzag varint count).
+ * <p/>
+ * The first entry block is the head of the distribution: its top
+ * {@link #HEAD_SIZE} entries, all a distributionLimit query usually needs.
+ * The following entry blocks, the tail, get larger and larger.  The tail
+ * entries are written a second time in the index blocks, sorted by unique id
+ * (UTF-8 bytes), so that unique ids can be looked up by binary search rather
+ * than by reading the whole distribution.
+ * <p/>
+ * Entries are expected to be written in distribution order (highest count
+ * first, then by unique id).  Entries with a zero count are not written.
+ */
+public class DistributionWriter
+{
+    static final byte VERSION = 2;
+    static final int HEAD_SIZE = 128;
+    static final int MAX_BLOCK_SIZE = 4096;
+    static final int INDEX_BLOCK_SIZE = 1024;
+
+    private static final byte[] NO_ID = new byte[0];
+    private static final Comparator<byte[]> ID_ORDER = UnsignedBytes.lexicographicalComparator();
+    private static final Comparator<IndexEntry> INDEX_ORDER = new Comparator<IndexEntry>()
+    {
+        @Override
+        public int compare(final IndexEntry left, final IndexEntry right)
+        {
+            return ID_ORDER.compare(left.uniqueId, right.uniqueId);
+        }
+    };
+
+    private final List<Block> blocks = Lists.newArrayList();
+    private final List<IndexEntry> tail = Lists.newArrayList();
+    private final BlockBuilder block = new BlockBuilder();
+    private int entryCount = 0;
+
+    /**
+     * Compare two distribution entries in the order they are written in
+     *
+     * @return a negative number if the left entry comes first
+     */
+    public static int compareEntries(final String leftUniqueId, final int leftCount, final String rightUniqueId, final int rightCount)
+    {
+        if (leftCount != rightCount) {
+            return leftCount > rightCount ? -1 : 1;
+        }
+
+        return leftUniqueId.compareTo(rightUniqueId);
+    }
+
+    /**
+     * Compare two unique ids, as UTF-8 bytes, in the order of the index
+     */
+    static int compareIds(final byte[] left, final byte[] right)
+    {
+        return ID_ORDER.compare(left, right);
+    }
+
+    /**
+     * @return the number of entries the given entry block of a distribution
+     *         holds (but the last one)
+     */
+    static int blockSize(final int blockIndex)
+    {
+        return Math.min(MAX_BLOCK_SIZE, HEAD_SIZE << Math.min(blockIndex, 5));
+    }
+
+    public void write(final String uniqueId, final int count) throws IOException
+    {
+        if (count == 0) {
+            return;
+        }
+
+        final byte[] id = uniqueId.getBytes(Charsets.UTF_8);
+
+        block.add(id, count);
+
+        if (entryCount++ >= HEAD_SIZE) {
+            tail.add(new IndexEntry(id, count));
+        }
+
+        if (block.entryCount >= blockSize(blocks.size())) {
+            blocks.add(block.flush());
+        }
+    }
+
+    /**
+     * @return the number of entries written so far
+     */
+    public int getEntryCount()
+    {
+        return entryCount;
+    }
+
+    /**
+     * Complete the serialization. Nothing can be written afterwards.
+     *
+     * @return the serialized distribution
+     * @throws IOException
+     */
+    public byte[] finish() throws IOException
+    {
+        if (block.entryCount > 0) {
+            blocks.add(block.flush());
+        }
+
+        final List<Block> indexBlocks = Lists.newArrayList();
+        Collections.sort(tail, INDEX_ORDER);
+
+        for (final IndexEntry entry : tail) {
+            block.add(entry.uniqueId, entry.count);
+
+            if (block.entryCount >= INDEX_BLOCK_SIZE) {
+                indexBlocks.add(block.flush());
+            }
+        }
+
+        if (block.entryCount > 0) {
+            indexBlocks.add(block.flush());
+        }
+
+        tail.clear();
+
+        final ByteArrayOutputStream result = new ByteArrayOutputStream();
+        result.write(VERSION);
+        writeVarint(result, entryCount);
+        writeVarint(result, blocks.size());
+
+        for (final Block entryBlock : blocks) {
+            writeVarint(result, entryBlock.entryCount);
+            writeVarint(result, entryBlock.compressed.length);
+        }
+
+        writeVarint(result, indexBlocks.size());
+
+        for (final Block indexBlock : indexBlocks) {
+            writeVarint(result, indexBlock.entryCount);
+            writeVarint(result, indexBlock.compressed.length);
+            writeVarint(result, indexBlock.firstId.length);
+            result.write(indexBlock.firstId);
+        }
+
+        for (final Block entryBlock : blocks) {
+            result.write(entryBlock.compressed);
+        }
+
+        for (final Block indexBlock : indexBlocks) {
+            result.write(indexBlock.compressed);
+        }
+
+        return result.toByteArray();
+    }
+
+    private static void writeVarint(final ByteArrayOutputStream out, int value)
+    {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static final class IndexEntry
+    {
+        private final byte[] uniqueId;
+        private final int count;
+
+        private IndexEntry(final byte[] uniqueId, final int count)
+        {
+            this.uniqueId = uniqueId;
+            this.count = count;
+        }
+    }
+
+    private static final class Block
+    {
+        private final int entryCount;
+        private final byte[] firstId;
+        private final byte[] compressed;
+
+        private Block(final int entryCount, final byte[] firstId, final byte[] compressed)
+        {
+            this.entryCount = entryCount;
+            this.firstId = firstId;
+            this.compressed = compressed;
+        }
+    }
+
+    private static final class BlockBuilder
+    {
+        private final ByteArrayOutputStream entries = new ByteArrayOutputStream();
+        private byte[] firstId = NO_ID;
+        private byte[] previousId = NO_ID;
+        private int entryCount = 0;
+
+        private void add(final byte[] id, final int count)
+        {
+            final int maxShared = Math.min(id.length, previousId.length);
+            int shared = 0;
+
+            while (shared < maxShared && id[shared] == previousId[shared]) {
+                shared++;
+            }
+
+            writeVarint(entries, shared);
+            writeVarint(entries, id.length - shared);
+            entries.write(id, shared, id.length - shared);
+            writeVarint(entries, (count << 1) ^ (count >> 31));
+
+            if (entryCount++ == 0) {
+                firstId = id;
+            }
+            previousId = id;
+        }
+
+        private Block flush() throws IOException
+        {
+            final Block result = new Block(entryCount, firstId, LZFEncoder.encode(entries.toByteArray()));
+
+            // Unique ids only share prefixes within a block, blocks are decoded independently
+            entries.reset();
+            firstId = NO_ID;
+            previousId = NO_ID;
+            entryCount = 0;
+
+            return result;
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ning.metrics.collector.processing.counter;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Space-Saving summary of the top unique ids of a counter over several days,
+ * merged from the top entries of each day.  It keeps at most its capacity of
+ * unique ids, so merging a day costs the capacity, not the number of unique
+ * ids of the day.
+ * <p/>
+ * The count of a unique id which is not among the top entries of a day is at
+ * most the smallest count of these top entries: the summary counts it that
+ * much.  Counts are thus overestimated, by at most {@link #getMaxError()},
+ * and any unique id left out of the summary has a count of at most
+ * {@link #getMaxError()} too.
+ */
+public class HeavyHitterSketch
+{
+    private static final Comparator<Map.Entry<String, long[]>> ENTRY_ORDER = new Comparator<Map.Entry<String, long[]>>()
+    {
+        @Override
+        public int compare(final Map.Entry<String, long[]> left, final Map.Entry<String, long[]> right)
+        {
+            final long leftCount = left.getValue()[0];
+            final long rightCount = right.getValue()[0];
+
+            if (leftCount != rightCount) {
+                return leftCount > rightCount ? -1 : 1;
+            }
+
+            return left.getKey().compareTo(right.getKey());
+        }
+    };
+
+    private final int capacity;
+    private final Map<String, long[]> counts = Maps.newHashMap();
+    private long maxError = 0;
+
+    public HeavyHitterSketch(final int capacity)
+    {
+        this.capacity = Math.max(1, capacity);
+    }
+
+    /**
+     * Merge the top entries of a day into the summary
+     *
+     * @param topEntries top entries of the day, with their exact counts
+     * @param complete   whether these are all the entries of the day
+     */
+    public void mergeTopEntries(final Map<String, Integer> topEntries, final boolean complete)
+    {
+        long dayError = 0;
+
+        if (!complete) {
+            dayError = Long.MAX_VALUE;
+
+            for (final Integer count : topEntries.values()) {
+                dayError = Math.min(dayError, count);
+            }
+
+            dayError = Math.max(0, dayError == Long.MAX_VALUE ? 0 : dayError);
+        }
+
+        if (dayError > 0) {
+            for (final Map.Entry<String, long[]> entry : counts.entrySet()) {
+                if (!topEntries.containsKey(entry.getKey())) {
+                    entry.getValue()[0] += dayError;
+                }
+            }
+        }
+
+        for (final Map.Entry<String, Integer> entry : topEntries.entrySet()) {
+            final long[] count = counts.get(entry.getKey());
+
+            if (count == null) {
+                // Unique ids left out until now may have had up to maxError
+                counts.put(entry.getKey(), new long[]{maxError + entry.getValue()});
+            }
+            else {
+                count[0] += entry.getValue();
+            }
+        }
+
+        maxError += dayError;
+
+        if (counts.size() > capacity) {
+            final List<Map.Entry<String, long[]>> entries = sortedEntries();
+
+            for (final Map.Entry<String, long[]> evicted : entries.subList(capacity, entries.size())) {
+                maxError = Math.max(maxError, evicted.getValue()[0]);
+                counts.remove(evicted.getKey());
+            }
+        }
+    }
+
+    /**
+     * @param limit maximum number of entries
+     * @return the top entries of the summary, in distribution order
+     */
+    public CounterDistribution getTopEntries(final int limit)
+    {
+        final CounterDistribution result = new CounterDistribution();
+        final Iterator<Map.Entry<String, long[]>> entries = sortedEntries().iterator();
+
+        while (result.size() < limit && entries.hasNext()) {
+            final Map.Entry<String, long[]> entry = entries.next();
+            result.putPresortedEntry(entry.getKey(), (int) Math.min(Integer.MAX_VALUE, entry.getValue()[0]));
+        }
+
+        return result;
+    }
+
+    /**
+     * @return the most the counts of the summary are overestimated by, and the
+     *         highest count a unique id left out of the summary may have
+     */
+    public long getMaxError()
+    {
+        return maxError;
+    }
+
+    private List<Map.Entry<String, long[]>> sortedEntries()
+    {
+        final List<Map.Entry<String, long[]>> result = Lists.newArrayList(counts.entrySet());
+        Collections.sort(result, ENTRY_ORDER);
+        return result;
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ning.metrics.collector.processing.counter;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.ning.compress.lzf.LZFDecoder;
+import com.ning.compress.lzf.LZFEncoder;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * HyperLogLog sketch of the unique ids of a counter, to estimate the number of
+ * unique ids over several days without reading their distributions: the
+ * sketches of the days are merged, and the merged sketch is as accurate as the
+ * sketch of all the unique ids of the range would be.
+ * <p/>
+ * With the {@link #PRECISION} used, 2^12 registers, the standard error of the
+ * estimate is 1.04 / sqrt(2^12), about 1.6%: 95% of the estimates are within
+ * 3.2% of the actual unique count.  Small counts, up to a few thousands, are
+ * estimated by linear counting and are nearly exact.
+ * <p/>
+ * Serialized sketches are a format version byte, the precision byte, then the
+ * LZF compressed registers.
+ */
+public class HyperLogLog
+{
+    public static final int PRECISION = 12;
+
+    private static final byte VERSION = 1;
+    private static final HashFunction HASH = Hashing.murmur3_128();
+
+    private final int precision;
+    private final byte[] registers;
+
+    public HyperLogLog()
+    {
+        this(PRECISION);
+    }
+
+    private HyperLogLog(final int precision)
+    {
+        this.precision = precision;
+        this.registers = new byte[1 << precision];
+    }
+
+    /**
+     * Add a unique id to the sketch
+     *
+     * @param uniqueId
+     */
+    public void offer(final String uniqueId)
+    {
+        final long hash = HASH.hashString(uniqueId, Charsets.UTF_8).asLong();
+        final int register = (int) (hash >>> (64 - precision));
+
+        // Position of the first 1 bit after the register bits, the hash being
+        // padded with 1s so that it never goes past 64 - precision + 1
+        final byte rank = (byte) (Long.numberOfLeadingZeros((hash << precision) | (1L << (precision - 1))) + 1);
+
+        if (registers[register] < rank) {
+            registers[register] = rank;
+        }
+    }
+
+    /**
+     * Add the unique ids of another sketch to this one
+     *
+     * @param other sketch of the same precision
+     */
+    public void merge(final HyperLogLog other)
+    {
+        if (other.precision != precision) {
+            throw new IllegalArgumentException(String.format("Unable to merge sketches of precision %d and %d", precision, other.precision));
+        }
+
+        for (int i = 0; i < registers.length; i++) {
+            if (registers[i] < other.registers[i]) {
+                registers[i] = other.registers[i];
+            }
+        }
+    }
+
+    /**
+     * @return the estimated number of unique ids added to the sketch
+     */
+    public long cardinality()
+    {
+        final int m = registers.length;
+        double sum = 0;
+        int zeros = 0;
+
+        for (final byte register : registers) {
+            sum += 1.0 / (1L << register);
+
+            if (register == 0) {
+                zeros++;
+            }
+        }
+
+        final double estimate = (0.7213 / (1 + 1.079 / m)) * m * m / sum;
+
+        // Linear counting is more accurate while there are empty registers.
+        // The 64 bits hash does not need the large range correction
+        if (estimate <= 2.5 * m && zeros > 0) {
+            return Math.round(m * Math.log((double) m / zeros));
+        }
+
+        return Math.round(estimate);
+    }
+
+    public byte[] toBytes() throws IOException
+    {
+        final byte[] compressed = LZFEncoder.encode(registers);
+        final byte[] result = new byte[compressed.length + 2];
+
+        result[0] = VERSION;
+        result[1] = (byte) precision;
+        System.arraycopy(compressed, 0, result, 2, compressed.length);
+
+        return result;
+    }
+
+    public static HyperLogLog fromBytes(final byte[] serializedSketch) throws IOException
+    {
+        if (serializedSketch.length < 2 || serializedSketch[0] != VERSION
+                || serializedSketch[1] < 4 || serializedSketch[1] > 16) {
+            throw new IOException("Unsupported unique id sketch format");
+        }
+
+        final HyperLogLog result = new HyperLogLog(serializedSketch[1]);
+        final byte[] registers = LZFDecoder.decode(Arrays.copyOfRange(serializedSketch, 2, serializedSketch.length));
+
+        if (registers.length != result.registers.length) {
+            throw new IOException("Truncated unique id sketch");
+        }
+
+        System.arraycopy(registers, 0, result.registers, 0, registers.length);
+
+        return result;
+    }
+}
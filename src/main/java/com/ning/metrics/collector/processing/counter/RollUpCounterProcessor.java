@@ -18,31 +18,41 @@ package com.ning.metrics.collector.processing.counter;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.base.Objects;
 import com.google.common.base.Optional;
+import com.google.common.base.Predicate;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Ordering;
+import com.google.common.collect.Sets;
 import com.google.inject.Inject;
 import com.ning.metrics.collector.binder.config.CollectorConfig;
 import com.ning.metrics.collector.processing.db.DatabaseCounterStorage;
+import com.ning.metrics.collector.processing.db.BufferedMetricsPage;
+import com.ning.metrics.collector.processing.db.CounterEventDataCodec;
 import com.ning.metrics.collector.processing.db.DatabaseCounterStorage.CounterEventDataMapper;
 import com.ning.metrics.collector.processing.db.model.CounterEventData;
 import com.ning.metrics.collector.processing.db.model.RolledUpCounter;
 import com.ning.metrics.collector.processing.db.model.RolledUpCounterData;
+import com.ning.metrics.collector.processing.db.util.MySqlLock;
+import java.io.IOException;
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.util.Collection;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
 import org.skife.jdbi.v2.Handle;
 import org.skife.jdbi.v2.IDBI;
 import org.skife.jdbi.v2.Query;
 import org.skife.jdbi.v2.ResultIterator;
-import org.skife.jdbi.v2.tweak.HandleCallback;
+import org.skife.jdbi.v2.StatementContext;
+import org.skife.jdbi.v2.TransactionCallback;
+import org.skife.jdbi.v2.TransactionStatus;
+import org.skife.jdbi.v2.tweak.ResultSetMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -53,7 +63,9 @@ public class RollUpCounterProcessor
     private final CollectorConfig config;
     private final DatabaseCounterStorage counterStorage;
     private final ObjectMapper mapper;
-    private final AtomicBoolean isProcessing = new AtomicBoolean(false);
+    private static final String ROLL_UP_LOCK_PREFIX = "counter-rollup-";
+    private final Set<String> namespacesInProcess =
+            Sets.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
     private final static Ordering<RolledUpCounter> orderingRolledUpCounterByDate = new Ordering<RolledUpCounter>() {
 
         @Override
@@ -73,19 +85,20 @@ public class RollUpCounterProcessor
 
     public void rollUpStreamingDailyCounters(String namespace)
     {
-        try {
-            if (!isProcessing.compareAndSet(false, true)) {
-                log.info("Asked to do counter roll up, but we're already processing!");
-                return;
-            }
+        final Lock lock = startProcessing(namespace);
+        if (lock == null) {
+            return;
+        }
 
+        try {
             log.info(String.format("Running roll up process for Counter Subscription [%s]", namespace));
 
             final DateTime toDateTime = new DateTime(DateTimeZone.UTC);
+            final Long[] lastRecordId = {null};
             Map<String, RolledUpCounter> rolledUpCounterMap =
-                    streamAndProcessDailyCounterData(namespace, toDateTime);
+                    streamAndProcessDailyCounterData(namespace, toDateTime, lastRecordId);
 
-            postRollUpProcess(namespace, toDateTime, rolledUpCounterMap);
+            postRollUpProcess(namespace, toDateTime, lastRecordId[0], rolledUpCounterMap);
 
             log.info(String.format("Roll up process for Counter Subscription [%s] completed successfully!", namespace));
         }
@@ -93,21 +106,33 @@ public class RollUpCounterProcessor
             log.error(String.format("Exception occurred while performing counter roll up for [%s]", namespace),e);
         }
         finally{
-            isProcessing.set(false);
+            stopProcessing(namespace, lock);
         }
 
     }
 
+    /**
+     * Stream the counter events buffered for the given namespace up to the
+     * given time, in id order, setting lastRecordId[0] to the id of the last
+     * event rolled up
+     */
     private Map<String, RolledUpCounter> streamAndProcessDailyCounterData(
-            final String namespace, final DateTime toDateTime)
+            final String namespace, final DateTime toDateTime, final Long[] lastRecordId)
     {
-        return dbi.withHandle(new HandleCallback<Map<String,RolledUpCounter>>() {
+        // One transaction, so that the streamed rows only refer to counter
+        // names loaded beforehand: the streaming query leaves no way to look
+        // up the others
+        return dbi.inTransaction(new TransactionCallback<Map<String,RolledUpCounter>>() {
 
             @Override
-            public Map<String, RolledUpCounter> withHandle(Handle handle) throws Exception
+            public Map<String, RolledUpCounter> inTransaction(Handle handle, TransactionStatus status) throws Exception
             {
-                final String queryStr = "select metrics from metrics_buffer where `namespace` = :namespace"
-                        +" and `timestamp` <= :toDateTime";
+                final CounterEventDataCodec codec = counterStorage.getCounterEventDataCodec(handle, namespace);
+                codec.loadCounterNames();
+
+                final String queryStr = "select `id`, metrics from metrics_buffer"
+                        + " force index (metrics_buffer_namespace_idx) where `namespace` = :namespace"
+                        + " and `timestamp` <= :toDateTime order by `id`";
 
                 Query<Map<String, Object>> query = handle.createQuery(queryStr)
                         .bind("namespace", namespace)
@@ -120,7 +145,17 @@ public class RollUpCounterProcessor
                 ResultIterator<CounterEventData> streamingIterator = null;
 
                 try {
-                    streamingIterator = query.map(new CounterEventDataMapper(mapper)).iterator();
+                    final CounterEventDataMapper rowMapper = new CounterEventDataMapper(codec);
+                    final Long[] readRecordId = {null};
+
+                    streamingIterator = query.map(new ResultSetMapper<CounterEventData>() {
+
+                        @Override
+                        public CounterEventData map(int index, ResultSet r, StatementContext ctx) throws SQLException
+                        {
+                            readRecordId[0] = r.getLong("id");
+                            return rowMapper.map(index, r, ctx);
+                        }}).iterator();
 
                     if(Objects.equal(null, streamingIterator))
                     {
@@ -131,6 +166,7 @@ public class RollUpCounterProcessor
                     {
                         processCounterEventData(namespace, rolledUpCounterMap,
                                 streamingIterator.next());
+                        lastRecordId[0] = readRecordId[0];
                     }
                 }
                 catch (Exception e) {
@@ -146,47 +182,372 @@ public class RollUpCounterProcessor
             }});
     }
 
-    public void rollUpDailyCounters(String namespace){
+    /**
+     * Roll up the buffered counter events of the given namespace one day at a
+     * time, saving each day as soon as it is rolled up.  Days with more
+     * buffered events than the partition limit are split in partitions of
+     * unique ids (by hash), each rolled up by its own scan of the day and
+     * spilled to disk as a sorted run before the next one is started (or
+     * saved as a delta right away by the incremental roll up).  Memory
+     * is bounded by the partition size rather than by the namespace size.
+     * Each day is saved and deleted from the buffer in a single transaction.
+     * @param namespace
+     */
+    public void rollUpPartitionedDailyCounters(String namespace)
+    {
+        final Lock lock = startProcessing(namespace);
+        if (lock == null) {
+            return;
+        }
+
+        try {
+            log.info(String.format("Running partitioned roll up process for namespace [%s]", namespace));
+
+            final DateTime toDateTime = new DateTime(DateTimeZone.UTC);
+
+            for (Map.Entry<String, Integer> rowCount
+                    : counterStorage.countBufferedMetricsByDay(namespace, toDateTime).entrySet()) {
+                rollUpBufferedDay(namespace, rowCount.getKey(), rowCount.getValue(), toDateTime);
+            }
+
+            log.info(String.format("Partitioned roll up process for namespace [%s] completed successfully!", namespace));
+        }
+        catch (Exception e) {
+            log.error(String.format("Exception occurred while performing partitioned counter roll up for [%s]", namespace),e);
+        }
+        finally{
+            stopProcessing(namespace, lock);
+        }
+    }
+
+    /**
+     * Roll up the oldest day buffered for the given namespace, the same way
+     * {@link #rollUpPartitionedDailyCounters(String)} does.  This lets the
+     * caller interleave the roll up of several namespaces, one day at a time.
+     * @param namespace
+     * @return the number of days still buffered for the namespace, 0 if the
+     *          namespace could not be rolled up right now (already being
+     *          rolled up, here or on another node) or if the roll up failed
+     */
+    public int rollUpOldestBufferedDay(String namespace)
+    {
+        final Lock lock = startProcessing(namespace);
+        if (lock == null) {
+            return 0;
+        }
+
+        try {
+            final DateTime toDateTime = new DateTime(DateTimeZone.UTC);
+
+            Map<String, Integer> rowCountsByDay =
+                    counterStorage.countBufferedMetricsByDay(namespace, toDateTime);
+
+            if (rowCountsByDay.isEmpty()) {
+                return 0;
+            }
+
+            Map.Entry<String, Integer> oldest = rowCountsByDay.entrySet().iterator().next();
+            rollUpBufferedDay(namespace, oldest.getKey(), oldest.getValue(), toDateTime);
+
+            return rowCountsByDay.size() - 1;
+        }
+        catch (Exception e) {
+            log.error(String.format("Exception occurred while performing partitioned counter roll up for [%s]", namespace),e);
+            return 0;
+        }
+        finally{
+            stopProcessing(namespace, lock);
+        }
+    }
+
+    private void rollUpBufferedDay(final String namespace, final String formattedDay,
+            final int rowCount, final DateTime toDateTime)
+    {
+        // Buffered events have a timestamp to the second: anything up to
+        // toDateTime is strictly before the next second
+        final DateTime untilDateTime = toDateTime.withMillisOfSecond(0).plusSeconds(1);
+        final int maxPartitionSize = Math.max(1, config.getMaxCounterRollUpPartitionSize());
+
+        final DateTime day = RolledUpCounter.DATE_FORMATTER.parseDateTime(formattedDay);
+        final DateTime dayEnd = day.plusDays(1).isAfter(untilDateTime)
+                ? untilDateTime : day.plusDays(1);
+        final int partitionCount = Math.max(1,
+                (rowCount + maxPartitionSize - 1) / maxPartitionSize);
+
+        // The day is saved (all of its partitions) and deleted from the buffer
+        // at once: a failure half way leaves both untouched, to be rolled up
+        // again as a whole
+        dbi.inTransaction(new TransactionCallback<Void>() {
+
+            @Override
+            public Void inTransaction(Handle handle, TransactionStatus status)
+                    throws Exception
+            {
+                // Events buffered for the day while it is rolled up are left
+                // for the next roll up
+                Long maxId = counterStorage.getMaxBufferedMetricsIdInRange(
+                        handle, namespace, day, dayEnd);
+
+                if (maxId == null) {
+                    return null;
+                }
+
+                rollUpDay(handle, namespace, day, dayEnd, maxId, partitionCount);
+                counterStorage.deleteBufferedMetricsInRange(handle, namespace,
+                        day, dayEnd, maxId);
+
+                return null;
+            }});
+
+        log.info(String.format("Rolled up %d counter events of %s for %s in %d partition(s)",
+                rowCount, namespace, formattedDay, partitionCount));
+    }
+
+    /**
+     * Make sure nobody else rolls up the given namespace, neither in this
+     * process nor on another node
+     * @param namespace
+     * @return the cross-node lock to release once done, null if the namespace
+     *          is already being rolled up
+     */
+    private Lock startProcessing(String namespace)
+    {
+        if (!namespacesInProcess.add(namespace)) {
+            log.info(String.format("Asked to do counter roll up for [%s], but we're already processing it!", namespace));
+            return null;
+        }
+
+        final Lock lock = new MySqlLock(ROLL_UP_LOCK_PREFIX + namespace, dbi);
+        boolean locked = false;
+
+        try {
+            locked = lock.tryLock();
+        }
+        finally {
+            if (!locked) {
+                namespacesInProcess.remove(namespace);
+            }
+        }
+
+        if (!locked) {
+            log.info(String.format("Asked to do counter roll up for [%s], but another node is already processing it!", namespace));
+            return null;
+        }
+
+        return lock;
+    }
+
+    private void stopProcessing(String namespace, Lock lock)
+    {
+        try {
+            lock.unlock();
+        }
+        finally {
+            namespacesInProcess.remove(namespace);
+        }
+    }
+
+    private void rollUpDay(final Handle handle, final String namespace,
+            final DateTime day, final DateTime dayEnd, final long maxId,
+            final int partitionCount) throws IOException
+    {
+        if (config.isCounterRollUpIncremental()) {
+            // Partitions have disjoint unique ids: each one is a delta of its
+            // own, no need to merge them before saving
+            for (int partition = 0; partition < partitionCount; partition++) {
+                RolledUpCounter delta = new RolledUpCounter(namespace, day, day);
+
+                streamBufferedMetrics(handle, namespace, day, dayEnd, maxId, partition, partitionCount, delta);
+                counterStorage.insertDailyRolledUpCounterDeltas(handle, delta);
+            }
+            return;
+        }
+
+        // The stored counter is about to be rewritten: deltas left by earlier
+        // incremental roll ups must be merged into it first, since reads only
+        // merge them in memory
+        counterStorage.compactDailyRolledUpCounterDeltas(namespace, day, day);
+
+        if (partitionCount == 1) {
+            RolledUpCounter rolledUpCounter = counterStorage.loadDailyRolledUpCounter(namespace, day);
+
+            if (null == rolledUpCounter) {
+                rolledUpCounter = new RolledUpCounter(namespace, day, day);
+            }
+
+            streamBufferedMetrics(handle, namespace, day, dayEnd, maxId, 0, 1, rolledUpCounter);
+            counterStorage.insertOrUpdateDailyRolledUpCounter(handle, rolledUpCounter);
+            return;
+        }
+
+        SortedDistributionRuns runs = new SortedDistributionRuns(
+                "rollup-" + namespace.replaceAll("[^A-Za-z0-9_-]", "_") + "-");
+
+        try {
+            for (int partition = 0; partition < partitionCount; partition++) {
+                RolledUpCounter rolledUpCounter =
+                        loadDailyRolledUpCounterPartition(namespace, day, partition, partitionCount);
+
+                streamBufferedMetrics(handle, namespace, day, dayEnd, maxId, partition, partitionCount, rolledUpCounter);
+
+                // From here on the partition only lives on disk
+                runs.addRuns(rolledUpCounter);
+            }
+
+            for (String counterName : runs.getCounterNames()) {
+                counterStorage.insertOrUpdateDailyRolledUpCounterData(handle, namespace, day, counterName,
+                        runs.getTotalCount(counterName),
+                        runs.getUniqueCount(counterName),
+                        runs.mergeRuns(counterName));
+            }
+        }
+        finally {
+            runs.close();
+        }
+    }
+
+    /**
+     * Load the part of the stored daily rolled up counter which belongs to the
+     * given partition.  The stored total counts are accounted for by the first
+     * partition only, and the unique counts are the size of each partition's
+     * share of the distributions
+     */
+    private RolledUpCounter loadDailyRolledUpCounterPartition(final String namespace,
+            final DateTime day, final int partition, final int partitionCount)
+    {
+        RolledUpCounter result = new RolledUpCounter(namespace, day, day);
+
+        RolledUpCounter stored = counterStorage.loadDailyRolledUpCounter(namespace, day,
+                new Predicate<String>() {
+                    @Override
+                    public boolean apply(String uniqueId)
+                    {
+                        return partitionOf(uniqueId, partitionCount) == partition;
+                    }
+                });
+
+        if (stored != null) {
+            for (RolledUpCounterData counterData : stored.getCounterSummary().values()) {
+                result.getCounterSummary().put(counterData.getCounterName(),
+                        new RolledUpCounterData(counterData.getCounterName(),
+                                partition == 0 ? counterData.getTotalCount() : 0,
+                                counterData.getDistribution().size(),
+                                counterData.getDistribution()));
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Stream the counter events buffered for the given namespace between
+     * fromDateTime (inclusive) and untilDateTime (exclusive), up to the given
+     * id, into the given rolled up counter, skipping the events of other
+     * partitions
+     */
+    private void streamBufferedMetrics(final Handle handle, final String namespace,
+            final DateTime fromDateTime, final DateTime untilDateTime,
+            final long maxId, final int partition, final int partitionCount,
+            final RolledUpCounter rolledUpCounter)
+    {
+        Query<Map<String, Object>> query = handle.createQuery(
+                "select metrics from metrics_buffer where `namespace` = :namespace"
+                        + " and `timestamp` >= :fromDateTime and `timestamp` < :untilDateTime"
+                        + " and `id` <= :maxId")
+                .bind("namespace", namespace)
+                .bind("fromDateTime", DatabaseCounterStorage.DAILY_METRICS_DATE_FORMAT.print(fromDateTime))
+                .bind("untilDateTime", DatabaseCounterStorage.DAILY_METRICS_DATE_FORMAT.print(untilDateTime))
+                .bind("maxId", maxId)
+                .setFetchSize(Integer.MIN_VALUE);
+
+        // Within the transaction of the day, which read its max id first:
+        // the rows up to it only refer to counter names committed by then
+        final CounterEventDataCodec codec = counterStorage.getCounterEventDataCodec(handle, namespace);
+        codec.loadCounterNames();
+
+        ResultIterator<CounterEventData> streamingIterator = null;
+
+        // Unlike the full streaming roll up, errors are not swallowed
+        // here: a day which was not rolled up completely must neither
+        // be saved nor deleted from the buffer
         try {
-            if (!isProcessing.compareAndSet(false, true)) {
-                log.info("Asked to do counter roll up, but we're already processing!");
-                return;
+            streamingIterator = query.map(new CounterEventDataMapper(codec)).iterator();
+
+            while (streamingIterator.hasNext()) {
+                CounterEventData counterEventData = streamingIterator.next();
+
+                if (partitionOf(counterEventData.getUniqueIdentifier(), partitionCount) == partition) {
+                    rolledUpCounter.updateRolledUpCounterData(counterEventData);
+                }
+            }
+        }
+        finally {
+            if (streamingIterator != null) {
+                streamingIterator.close();
             }
+        }
+    }
+
+    /**
+     * @return the partition, between 0 and partitionCount - 1, of the given
+     *          unique id
+     */
+    static int partitionOf(String uniqueId, int partitionCount)
+    {
+        if (uniqueId == null || partitionCount <= 1) {
+            return 0;
+        }
+
+        // Spread the bits, similar ids would otherwise end up in a few partitions
+        int hash = uniqueId.hashCode() * 0x9E3779B9;
+        return ((hash ^ (hash >>> 16)) & Integer.MAX_VALUE) % partitionCount;
+    }
+
+    public void rollUpDailyCounters(String namespace){
+        final Lock lock = startProcessing(namespace);
+        if (lock == null) {
+            return;
+        }
+
+        try {
             final DateTime toDateTime = new DateTime(DateTimeZone.UTC);
             final Integer recordFetchLimit = config.getMaxCounterEventFetchCount();
-            Integer recordOffSetCounter = 0;
-            boolean fetchMoreRecords = true;
+            Long lastRecordId = null;
 
             Map<String, RolledUpCounter> rolledUpCounterMap = new ConcurrentHashMap<String, RolledUpCounter>();
 
             log.info(String.format("Running roll up process for namespace [%s]", namespace));
 
-            while(fetchMoreRecords)
+            while(true)
             {
-             // Load daily counters stored for the respective subscription limiting to now() and getMaxCounterEventFetchCount
-                Iterator<CounterEventData> dailyCounterList =
-                        counterStorage.loadBufferedMetricsPaged(namespace, toDateTime, recordFetchLimit, recordOffSetCounter).iterator();
-                if(Objects.equal(null, dailyCounterList) || !dailyCounterList.hasNext())
+                // Load daily counters stored for the respective subscription limiting to now() and getMaxCounterEventFetchCount,
+                // starting after the last one processed
+                BufferedMetricsPage page =
+                        counterStorage.loadBufferedMetricsPaged(namespace, toDateTime, recordFetchLimit, lastRecordId);
+                if(page.getCounterEventData().isEmpty())
                 {
-                    fetchMoreRecords = false;
                     break;
                 }
 
-                log.info(String.format("Processing counter events for %s on offset %d", namespace, recordOffSetCounter));
-
-                // increment recordOffset to fetch next getMaxCounterEventFetchCount
-                recordOffSetCounter += recordFetchLimit;
+                log.info(String.format("Processing counter events for %s after id %d", namespace, lastRecordId == null ? 0 : lastRecordId));
 
-                while(dailyCounterList.hasNext())
+                for(CounterEventData counterEventData : page.getCounterEventData())
                 {
-                    processCounterEventData(namespace, rolledUpCounterMap, dailyCounterList.next());
+                    processCounterEventData(namespace, rolledUpCounterMap, counterEventData);
                 }
 
-                log.info(String.format("Roll up completed %s on offset %d", namespace, recordOffSetCounter));
+                lastRecordId = page.getLastId();
 
+                log.info(String.format("Roll up completed %s up to id %d", namespace, lastRecordId));
+
+                // A short page is the last one
+                if(page.getCounterEventData().size() < recordFetchLimit)
+                {
+                    break;
+                }
             }
 
-            postRollUpProcess(namespace, toDateTime, rolledUpCounterMap);
+            postRollUpProcess(namespace, toDateTime, lastRecordId, rolledUpCounterMap);
 
             log.info(String.format("Roll up process for Counter Subscription [%s] completed successfully!", namespace));
         }
@@ -194,28 +555,47 @@ public class RollUpCounterProcessor
             log.error(String.format("Exception occurred while performing counter roll up for [%s]", namespace),e);
         }
         finally{
-            isProcessing.set(false);
+            stopProcessing(namespace, lock);
         }
 
     }
 
-    private void postRollUpProcess(String namespace, final DateTime toDateTime,
-            Map<String, RolledUpCounter> rolledUpCounterMap)
+    private void postRollUpProcess(final String namespace, final DateTime toDateTime,
+            final Long lastRecordId, final Map<String, RolledUpCounter> rolledUpCounterMap)
     {
-        if(!rolledUpCounterMap.isEmpty())
+        if(!rolledUpCounterMap.isEmpty() && lastRecordId != null)
         {
             log.info(String.format("Evaluating Uniques and updating roll up counter for %s", namespace));
-            for(RolledUpCounter rolledUpCounter : rolledUpCounterMap.values())
-            {
-                //Save
-                counterStorage.insertOrUpdateDailyRolledUpCounter(
-                        rolledUpCounter);
-            }
 
-            log.info(String.format("Deleting daily counters for %s which are <= %s", namespace, toDateTime));
-            // Delete daily metrics which have been accounted for the roll up.
-            // There may be more additions done since this process started which is why the evaluation time is passed on.
-            counterStorage.deleteBufferedMetrics(namespace, toDateTime);
+            // Saved and deleted from the buffer at once, so that a failure
+            // half way doesn't have the next roll up count the saved days again
+            dbi.inTransaction(new TransactionCallback<Void>() {
+
+                @Override
+                public Void inTransaction(Handle handle, TransactionStatus status)
+                        throws Exception
+                {
+                    for(RolledUpCounter rolledUpCounter : rolledUpCounterMap.values())
+                    {
+                        //Save
+                        if (config.isCounterRollUpIncremental()) {
+                            counterStorage.insertDailyRolledUpCounterDeltas(
+                                    handle, rolledUpCounter);
+                        }
+                        else {
+                            counterStorage.insertOrUpdateDailyRolledUpCounter(
+                                    handle, rolledUpCounter);
+                        }
+                    }
+
+                    log.info(String.format("Deleting daily counters for %s which are <= %s, up to id %d", namespace, toDateTime, lastRecordId));
+                    // Delete daily metrics which have been accounted for the roll up.
+                    // There may be more additions done since this process started, with
+                    // timestamps before the evaluation time as well: only the ids read are deleted.
+                    counterStorage.deleteBufferedMetrics(handle, namespace, toDateTime, lastRecordId);
+
+                    return null;
+                }});
         }
     }
 
@@ -229,8 +609,16 @@ public class RollUpCounterProcessor
         RolledUpCounter rolledUpCounter = rolledUpCounterMap.get(rolledUpCounterKey);
 
         if(Objects.equal(null, rolledUpCounter)) {
-            rolledUpCounter = counterStorage.loadDailyRolledUpCounter(
-                    namespace, counterEventData.getCreatedTime());
+            // The incremental roll up only saves what was buffered, the
+            // stored counter is left alone
+            if(!config.isCounterRollUpIncremental()) {
+                // Rewritten once rolled up, so its deltas are merged first
+                counterStorage.compactDailyRolledUpCounterDeltas(namespace,
+                        counterEventData.getCreatedTime(),
+                        counterEventData.getCreatedTime());
+                rolledUpCounter = counterStorage.loadDailyRolledUpCounter(
+                        namespace, counterEventData.getCreatedTime());
+            }
 
             if(null == rolledUpCounter) {
                 rolledUpCounter = new RolledUpCounter(namespace,
@@ -254,6 +642,33 @@ public class RollUpCounterProcessor
             final Optional<Set<String>> uniqueIdsOpt,
             final Optional<Integer> distributionLimit)
     {
+        return loadAggregatedRolledUpCounters(namespace, fromDateOpt,
+                toDateOpt, counterTypesOpt, compositeCountersOpt,
+                aggregateByMonth, aggregateEntireRange, false,
+                excludeDistribution, uniqueIdsOpt, distributionLimit);
+    }
+
+    /**
+     * Same as above, but when the entire range is aggregated, the unique
+     * counts can be estimated by merging the unique id sketches of each day
+     * (see {@link HyperLogLog} for the error bound) instead of merging the
+     * distributions of each day.  Likewise limited distributions are
+     * estimated from the top entries of each day (see
+     * {@link HeavyHitterSketch}).  Composite counters still need the
+     * distributions, and are always counted exactly
+     */
+    public List<RolledUpCounter> loadAggregatedRolledUpCounters(
+            final String namespace, final Optional<String> fromDateOpt,
+            final Optional<String> toDateOpt,
+            final Optional<Set<String>> counterTypesOpt,
+            final Optional<Set<CompositeCounter>> compositeCountersOpt,
+            final boolean aggregateByMonth,
+            final boolean aggregateEntireRange,
+            final boolean approximateUniqueCount,
+            final boolean excludeDistribution,
+            final Optional<Set<String>> uniqueIdsOpt,
+            final Optional<Integer> distributionLimit)
+    {
 
         DateTime fromDate = fromDateOpt.isPresent()
                 ? new DateTime(RolledUpCounter.DATE_FORMATTER.parseMillis(
@@ -292,12 +707,33 @@ public class RollUpCounterProcessor
                         && !compositeCountersOpt.get().isEmpty());
 
 
+        // Estimating the aggregate unique count from the unique id sketches
+        // does not need any distribution
+        boolean estimateUniqueCount = aggregateEntireRange
+                && approximateUniqueCount
+                && !overrideDistributionLimitInAggregator;
+
         // If we want to aggregate the entire range correctly we need to reteive
         // the distribution for each time slice regardless of whether the caller
         // requested it.  Without the distribution of each time slice, we cannot
         // accurately determine the aggregate unique count.  uniqueIds have no
         // bearing on this.
-        boolean overrideExcludeDistribution = aggregateEntireRange;
+        boolean overrideExcludeDistribution = aggregateEntireRange
+                && !estimateUniqueCount;
+
+        // The top entries of the range can be estimated from the top entries
+        // of each day, rather than from their whole distributions
+        boolean estimateTopEntries = estimateUniqueCount
+                && !excludeDistribution
+                && distributionLimit != null
+                && distributionLimit.isPresent()
+                && (uniqueIdsOpt == null
+                        || !uniqueIdsOpt.isPresent()
+                        || uniqueIdsOpt.get().isEmpty());
+        int topEntriesSketchSize = estimateTopEntries
+                ? Math.max(distributionLimit.get(),
+                        config.getCounterTopEntriesSketchSize())
+                : 0;
 
         List<RolledUpCounter> rolledUpCounterResult =
                 counterStorage.queryDailyRolledUpCounters(
@@ -305,7 +741,10 @@ public class RollUpCounterProcessor
                         counterTypesOpt,
                         (overrideExcludeDistribution
                                 ? false : excludeDistribution),
-                        (overrideDistributionLimit ? null : distributionLimit),
+                        (estimateTopEntries
+                                ? Optional.of(topEntriesSketchSize)
+                                : overrideDistributionLimit
+                                        ? null : distributionLimit),
                         uniqueIdsOpt);
 
         if(Objects.equal(null, rolledUpCounterResult)
@@ -322,10 +761,48 @@ public class RollUpCounterProcessor
         if (aggregateEntireRange) {
             RolledUpCounter aggregate =
                     aggregateEntireRange(rolledUpCounterResult,
-                            excludeDistribution,
+                            excludeDistribution || estimateTopEntries,
                             overrideDistributionLimitInAggregator
                                     ? null : distributionLimit);
 
+            if (estimateTopEntries && aggregate != null) {
+                Map<String, HeavyHitterSketch> sketches =
+                        sketchTopEntries(rolledUpCounterResult,
+                                topEntriesSketchSize);
+
+                for (RolledUpCounterData data
+                        : aggregate.getCounterSummary().values()) {
+                    HeavyHitterSketch sketch =
+                            sketches.get(data.getCounterName());
+
+                    if (sketch == null) {
+                        continue;
+                    }
+
+                    for (Map.Entry<String, Integer> entry : sketch
+                            .getTopEntries(distributionLimit.get())
+                            .entrySet()) {
+                        data.incrementDistributionCounter(entry.getKey(),
+                                entry.getValue());
+                    }
+                }
+            }
+
+            if (estimateUniqueCount && aggregate != null) {
+                Map<String, HyperLogLog> sketches =
+                        counterStorage.loadDailyUniqueIdSketches(namespace,
+                                fromDate, toDate, counterTypesOpt);
+
+                for (RolledUpCounterData data
+                        : aggregate.getCounterSummary().values()) {
+                    HyperLogLog sketch = sketches.get(data.getCounterName());
+
+                    data.overrideUniqueCount(sketch == null ? 0
+                            : (int) Math.min(Integer.MAX_VALUE,
+                                    sketch.cardinality()));
+                }
+            }
+
             rolledUpCounterResult = ImmutableList.of(aggregate);
         }
 
@@ -414,6 +891,40 @@ public class RollUpCounterProcessor
                 last.getToDateActual(), resultSummary);
     }
 
+    /**
+     * Merge the top entries of each time slice into a heavy hitter sketch per
+     * counter name
+     * @param timeSlicedCounters time slices, with the top entries of their
+     *          distributions
+     * @param sketchSize capacity of the sketches
+     * @return
+     */
+    protected Map<String, HeavyHitterSketch> sketchTopEntries(
+            List<RolledUpCounter> timeSlicedCounters, int sketchSize) {
+
+        Map<String, HeavyHitterSketch> result = Maps.newHashMap();
+
+        for (RolledUpCounter currCounter : timeSlicedCounters) {
+            for (RolledUpCounterData data
+                    : currCounter.getCounterSummary().values()) {
+                HeavyHitterSketch sketch = result.get(data.getCounterName());
+
+                if (sketch == null) {
+                    sketch = new HeavyHitterSketch(sketchSize);
+                    result.put(data.getCounterName(), sketch);
+                }
+
+                // The stored unique count tells whether the distribution was
+                // cut short
+                sketch.mergeTopEntries(data.getDistribution(),
+                        data.getDistribution().size()
+                                >= data.getUniqueCount());
+            }
+        }
+
+        return result;
+    }
+
     /**
      * Aggregate a single rolled-up counter data element into a running
      * aggregate table of row=categoryId, column=counterName
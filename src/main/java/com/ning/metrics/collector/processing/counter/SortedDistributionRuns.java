@@ -0,0 +1,261 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ning.metrics.collector.processing.counter;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.ning.metrics.collector.processing.db.model.RolledUpCounter;
+import com.ning.metrics.collector.processing.db.model.RolledUpCounterData;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sorted runs of the distributions of a daily rolled-up counter, spilled to
+ * temporary files.  When a day is rolled up in several partitions of disjoint
+ * unique ids, each partition is added here as soon as it is complete and can
+ * be dropped from memory.  The runs of each counter are then merged into the
+ * final serialized distribution without ever holding the whole distribution
+ * in memory.
+ * <p/>
+ * Not thread safe.
+ */
+class SortedDistributionRuns implements Closeable
+{
+    private static final Logger log = LoggerFactory.getLogger(SortedDistributionRuns.class);
+
+    // Same order as the CounterDistribution: highest count first, then unique id
+    private static final Comparator<RunCursor> RUN_ORDER = new Comparator<RunCursor>()
+    {
+        @Override
+        public int compare(final RunCursor left, final RunCursor right)
+        {
+            if (left.count != right.count) {
+                return left.count > right.count ? -1 : 1;
+            }
+            return left.uniqueId.compareTo(right.uniqueId);
+        }
+    };
+
+    private final String prefix;
+    private final Map<String, List<File>> runsByCounterName = Maps.newLinkedHashMap();
+    private final Map<String, int[]> countsByCounterName = Maps.newHashMap();
+
+    /**
+     * @param prefix prefix of the temporary files
+     */
+    SortedDistributionRuns(final String prefix)
+    {
+        this.prefix = prefix;
+    }
+
+    /**
+     * Spill the distributions of all counters of the given (partial) rolled-up counter, and add up its total and
+     * unique counts. The unique ids must not appear in any of the previously added runs.
+     *
+     * @param rolledUpCounter rolled-up counter of a single partition
+     * @throws IOException if a temporary file can't be written
+     */
+    void addRuns(final RolledUpCounter rolledUpCounter) throws IOException
+    {
+        for (final RolledUpCounterData counterData : rolledUpCounter.getCounterSummary().values()) {
+            addRun(counterData);
+        }
+    }
+
+    void addRun(final RolledUpCounterData counterData) throws IOException
+    {
+        final String counterName = counterData.getCounterName();
+
+        List<File> runs = runsByCounterName.get(counterName);
+        int[] counts = countsByCounterName.get(counterName);
+        if (runs == null) {
+            runs = Lists.newArrayList();
+            runsByCounterName.put(counterName, runs);
+            counts = new int[2];
+            countsByCounterName.put(counterName, counts);
+        }
+
+        counts[0] += counterData.getTotalCount();
+        counts[1] += counterData.getUniqueCount();
+
+        if (counterData.getDistribution().isEmpty()) {
+            return;
+        }
+
+        final File run = File.createTempFile(prefix, ".run");
+        // Keep track of it right away, so that close() deletes it even if writing fails
+        runs.add(run);
+
+        final Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(run), Charsets.UTF_8));
+        try {
+            // The distribution iterates in count order
+            for (final Map.Entry<String, Integer> entry : counterData.getDistribution().entrySet()) {
+                final int count = entry.getValue() == null ? 0 : entry.getValue();
+                if (count == 0) {
+                    continue;
+                }
+                writer.write(entry.getKey());
+                writer.write('|');
+                writer.write(Integer.toString(count));
+                writer.write('\n');
+            }
+        }
+        finally {
+            writer.close();
+        }
+    }
+
+    Set<String> getCounterNames()
+    {
+        return runsByCounterName.keySet();
+    }
+
+    int getTotalCount(final String counterName)
+    {
+        final int[] counts = countsByCounterName.get(counterName);
+        return counts == null ? 0 : counts[0];
+    }
+
+    int getUniqueCount(final String counterName)
+    {
+        final int[] counts = countsByCounterName.get(counterName);
+        return counts == null ? 0 : counts[1];
+    }
+
+    /**
+     * Merge the runs of the given counter into a single distribution, serialized by a {@link DistributionWriter}
+     *
+     * @param counterName name of the counter
+     * @return the gzipped distribution
+     * @throws IOException if a temporary file can't be read
+     */
+    byte[] mergeRuns(final String counterName) throws IOException
+    {
+        final List<File> runs = runsByCounterName.get(counterName);
+        final PriorityQueue<RunCursor> queue = new PriorityQueue<RunCursor>(Math.max(1, runs == null ? 0 : runs.size()), RUN_ORDER);
+
+        final DistributionWriter writer = new DistributionWriter();
+
+        try {
+            if (runs != null) {
+                for (final File run : runs) {
+                    final RunCursor cursor = new RunCursor(run);
+                    if (cursor.advance()) {
+                        queue.add(cursor);
+                    }
+                    else {
+                        cursor.close();
+                    }
+                }
+            }
+
+            while (!queue.isEmpty()) {
+                final RunCursor cursor = queue.poll();
+
+                writer.write(cursor.uniqueId, cursor.count);
+
+                if (cursor.advance()) {
+                    queue.add(cursor);
+                }
+                else {
+                    cursor.close();
+                }
+            }
+        }
+        finally {
+            for (final RunCursor cursor : queue) {
+                cursor.close();
+            }
+        }
+
+        return writer.finish();
+    }
+
+    /**
+     * Delete all temporary files
+     */
+    @Override
+    public void close()
+    {
+        for (final List<File> runs : runsByCounterName.values()) {
+            for (final File run : runs) {
+                if (!run.delete() && run.exists()) {
+                    log.warn(String.format("Unable to delete distribution run %s", run));
+                }
+            }
+        }
+        runsByCounterName.clear();
+        countsByCounterName.clear();
+    }
+
+    private static final class RunCursor implements Closeable
+    {
+        private final BufferedReader reader;
+        private String uniqueId;
+        private int count;
+
+        private RunCursor(final File run) throws IOException
+        {
+            this.reader = new BufferedReader(new InputStreamReader(new FileInputStream(run), Charsets.UTF_8));
+        }
+
+        /**
+         * @return false once the run is exhausted
+         */
+        private boolean advance() throws IOException
+        {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+
+                final int split = line.lastIndexOf('|');
+                uniqueId = line.substring(0, split);
+                count = Integer.parseInt(line.substring(split + 1));
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public void close()
+        {
+            try {
+                reader.close();
+            }
+            catch (IOException e) {
+                log.warn("Unable to close distribution run", e);
+            }
+        }
+    }
+}
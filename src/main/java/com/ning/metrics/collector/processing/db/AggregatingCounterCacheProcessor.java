@@ -0,0 +1,169 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ning.metrics.collector.processing.db;
+
+import com.google.inject.Inject;
+import com.mogwee.executors.FailsafeScheduledExecutor;
+import com.ning.arecibo.jmx.Monitored;
+import com.ning.arecibo.jmx.MonitoringType;
+import com.ning.metrics.collector.binder.config.CollectorConfig;
+import com.ning.metrics.collector.processing.CounterEventAggregator;
+import com.ning.metrics.collector.processing.db.model.CounterEvent;
+import com.ning.metrics.collector.processing.db.model.CounterEventData;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.skife.config.TimeSpan;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pre-aggregation stage in front of the counter cache: counter event data is
+ * summed up by namespace, day and unique id in a {@link CounterEventAggregator},
+ * and only the aggregated counter events are handed to the cache (and from
+ * there to the metrics buffer), either periodically or as soon as enough of
+ * them piled up.
+ */
+public class AggregatingCounterCacheProcessor implements CounterEventCacheProcessor
+{
+    private static final Logger log = LoggerFactory.getLogger(AggregatingCounterCacheProcessor.class);
+
+    private final CounterEventCacheProcessor delegate;
+    private final CounterEventAggregator aggregator;
+    private final int maxAggregatedCount;
+    private final TimeSpan executorShutdownTimeOut;
+    private final ScheduledExecutorService flushExecutor;
+    private final AtomicBoolean flushRequested = new AtomicBoolean(false);
+
+    private final AtomicLong receivedCounterEvents = new AtomicLong(0);
+    private final AtomicLong flushedCounterEvents = new AtomicLong(0);
+    private final AtomicLong flushCount = new AtomicLong(0);
+
+    @Inject
+    public AggregatingCounterCacheProcessor(final CollectorConfig config, final InMemoryCounterCacheProcessor delegate)
+    {
+        this(config, (CounterEventCacheProcessor) delegate);
+    }
+
+    AggregatingCounterCacheProcessor(final CollectorConfig config, final CounterEventCacheProcessor delegate)
+    {
+        this.delegate = delegate;
+        this.aggregator = new CounterEventAggregator();
+        this.maxAggregatedCount = config.getMaxCounterEventAggregationCount();
+        this.executorShutdownTimeOut = config.getSpoolWriterExecutorShutdownTime();
+        this.flushExecutor = new FailsafeScheduledExecutor(1, "CounterEvents-Aggregation-Flusher");
+
+        final TimeSpan flushTime = config.getCounterEventAggregationFlushTime();
+        flushExecutor.scheduleWithFixedDelay(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                flush();
+            }
+        }, flushTime.getPeriod(), flushTime.getPeriod(), flushTime.getUnit());
+    }
+
+    @Override
+    public void addCounterEventData(final String namespace, final CounterEventData counterEventData)
+    {
+        aggregator.addCounterEventData(namespace, counterEventData);
+        receivedCounterEvents.incrementAndGet();
+
+        // Don't wait for the timer if enough rows piled up, but don't block ingest on the flush either
+        if (aggregator.getAggregatedCount() >= maxAggregatedCount && flushRequested.compareAndSet(false, true)) {
+            flushExecutor.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    flushRequested.set(false);
+                    flush();
+                }
+            });
+        }
+    }
+
+    @Override
+    public void processRemainingCounters()
+    {
+        delegate.processRemainingCounters();
+    }
+
+    @Override
+    public void cleanUp()
+    {
+        log.info("Shutting Down Executor Service for Counter Event Aggregation");
+        flushExecutor.shutdown();
+
+        try {
+            flushExecutor.awaitTermination(executorShutdownTimeOut.getPeriod(), executorShutdownTimeOut.getUnit());
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        flushExecutor.shutdownNow();
+
+        // Hand over whatever was aggregated since the last flush before the cache goes away
+        flush();
+        delegate.cleanUp();
+    }
+
+    /**
+     * Hand the counter events aggregated since the last flush to the counter cache
+     */
+    void flush()
+    {
+        long flushed = 0;
+        for (final CounterEvent counterEvent : aggregator.flush()) {
+            for (final CounterEventData counterEventData : counterEvent.getCounterEvents()) {
+                delegate.addCounterEventData(counterEvent.getNamespace(), counterEventData);
+                flushed++;
+            }
+        }
+
+        if (flushed > 0) {
+            flushedCounterEvents.addAndGet(flushed);
+            flushCount.incrementAndGet();
+            delegate.processRemainingCounters();
+            log.debug(String.format("Flushed %d aggregated counter events", flushed));
+        }
+    }
+
+    @Monitored(description = "Number of aggregated Counter Events waiting for the next flush", monitoringType = {MonitoringType.VALUE})
+    public long getAggregatedCounterEvents()
+    {
+        return aggregator.getAggregatedCount();
+    }
+
+    @Monitored(description = "Number of Counter Events received by the aggregator", monitoringType = {MonitoringType.VALUE, MonitoringType.RATE})
+    public long getReceivedCounterEvents()
+    {
+        return receivedCounterEvents.get();
+    }
+
+    @Monitored(description = "Number of aggregated Counter Events handed to the counter cache", monitoringType = {MonitoringType.VALUE, MonitoringType.RATE})
+    public long getFlushedCounterEvents()
+    {
+        return flushedCounterEvents.get();
+    }
+
+    @Monitored(description = "Number of flushes of the Counter Events aggregator", monitoringType = {MonitoringType.VALUE, MonitoringType.RATE})
+    public long getCounterEventAggregationFlushes()
+    {
+        return flushCount.get();
+    }
+}
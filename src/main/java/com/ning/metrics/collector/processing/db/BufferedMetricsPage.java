@@ -0,0 +1,48 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ning.metrics.collector.processing.db;
+
+import com.ning.metrics.collector.processing.db.model.CounterEventData;
+import java.util.List;
+
+/**
+ * A page of metrics buffer rows, in id order, along with the id of its last
+ * row, from which the next page starts
+ */
+public class BufferedMetricsPage
+{
+    private final List<CounterEventData> counterEventData;
+    private final Long lastId;
+
+    public BufferedMetricsPage(final List<CounterEventData> counterEventData, final Long lastId)
+    {
+        this.counterEventData = counterEventData;
+        this.lastId = lastId;
+    }
+
+    public List<CounterEventData> getCounterEventData()
+    {
+        return counterEventData;
+    }
+
+    /**
+     * @return the id of the last row of the page, null if the page is empty
+     */
+    public Long getLastId()
+    {
+        return lastId;
+    }
+}
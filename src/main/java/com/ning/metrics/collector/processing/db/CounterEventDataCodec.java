@@ -0,0 +1,164 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ning.metrics.collector.processing.db;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Charsets;
+import com.ning.metrics.collector.processing.db.model.CounterEventData;
+import com.ning.metrics.collector.util.StringIntHashMap;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeConstants;
+import org.joda.time.DateTimeZone;
+import org.skife.jdbi.v2.Handle;
+
+/**
+ * Serializes counter event data in the binary format of the rows of the
+ * metrics buffer:
+ * <pre>
+ * byte     format version
+ * varint   day, as a number of days since the epoch (UTC)
+ * varint   length of the unique id, unique id in UTF-8
+ * varint   number of counters
+ * (varint  counter name id, varint count) for each counter
+ * </pre>
+ * Counter name ids come from the {@link CounterNameDictionary} of the
+ * namespace, queried through the handle the codec is given, so that the
+ * codec never takes a connection of its own.  Only the day of the counter
+ * event is kept, which is all the roll up needs.
+ * <p/>
+ * Rows buffered before this format hold the JSON serialization of the
+ * counter event data, recognized by its leading brace, and are still read.
+ */
+public class CounterEventDataCodec
+{
+    static final byte VERSION = 1;
+    private static final byte JSON_START = '{';
+
+    private final ObjectMapper mapper;
+    private final CounterNameDictionary dictionary;
+    private final Handle handle;
+
+    public CounterEventDataCodec(final ObjectMapper mapper, final CounterNameDictionary dictionary, final Handle handle)
+    {
+        this.mapper = mapper;
+        this.dictionary = dictionary;
+        this.handle = handle;
+    }
+
+    /**
+     * Load the counter names the rows to decode may refer to.  Must be called
+     * before opening the query which reads the rows, in the same transaction.
+     */
+    public void loadCounterNames()
+    {
+        dictionary.load(handle);
+    }
+
+    public byte[] encode(final CounterEventData counterEventData)
+    {
+        final byte[] uniqueId = counterEventData.getUniqueIdentifier().getBytes(Charsets.UTF_8);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(16 + uniqueId.length + 4 * counterEventData.getCounterCount());
+
+        out.write(VERSION);
+        writeVarint(out, (int) (counterEventData.getCreatedTime().getMillis() / DateTimeConstants.MILLIS_PER_DAY));
+        writeVarint(out, uniqueId.length);
+        out.write(uniqueId, 0, uniqueId.length);
+        writeVarint(out, counterEventData.getCounterCount());
+
+        for (int i = 0; i < counterEventData.getCounterCount(); i++) {
+            writeVarint(out, dictionary.getId(handle, counterEventData.getCounterName(i)));
+            writeVarint(out, counterEventData.getCounterValue(i));
+        }
+
+        return out.toByteArray();
+    }
+
+    public CounterEventData decode(final byte[] row) throws IOException
+    {
+        if (row.length == 0) {
+            throw new IOException("Empty metrics buffer row");
+        }
+
+        if (row[0] == JSON_START) {
+            return mapper.readValue(row, CounterEventData.class);
+        }
+
+        if (row[0] != VERSION) {
+            throw new IOException(String.format("Unknown metrics buffer row format %d", row[0]));
+        }
+
+        final int[] position = {1};
+        final long day = readVarint(row, position);
+        final int uniqueIdLength = readVarint(row, position);
+
+        if (position[0] + uniqueIdLength > row.length) {
+            throw new IOException("Truncated metrics buffer row");
+        }
+
+        final String uniqueId = new String(row, position[0], uniqueIdLength, Charsets.UTF_8);
+        position[0] += uniqueIdLength;
+
+        final int counterCount = readVarint(row, position);
+        final StringIntHashMap counters = new StringIntHashMap(counterCount);
+
+        for (int i = 0; i < counterCount; i++) {
+            final int id = readVarint(row, position);
+            final String counterName = dictionary.getName(id);
+
+            if (counterName == null) {
+                throw new IOException(String.format("Unknown counter name id %d", id));
+            }
+
+            counters.add(counterName, readVarint(row, position));
+        }
+
+        return new CounterEventData(uniqueId, new DateTime(day * DateTimeConstants.MILLIS_PER_DAY, DateTimeZone.UTC), counters.asMap());
+    }
+
+    private static void writeVarint(final ByteArrayOutputStream out, final int value)
+    {
+        int remaining = value;
+
+        while ((remaining & ~0x7F) != 0) {
+            out.write((remaining & 0x7F) | 0x80);
+            remaining >>>= 7;
+        }
+
+        out.write(remaining);
+    }
+
+    private static int readVarint(final byte[] row, final int[] position) throws IOException
+    {
+        int result = 0;
+
+        for (int shift = 0; shift < 35; shift += 7) {
+            if (position[0] >= row.length) {
+                throw new IOException("Truncated metrics buffer row");
+            }
+
+            final byte b = row[position[0]++];
+            result |= (b & 0x7F) << shift;
+
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+
+        throw new IOException("Malformed metrics buffer row");
+    }
+}
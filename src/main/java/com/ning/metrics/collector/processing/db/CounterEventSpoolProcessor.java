@@ -20,16 +20,16 @@ import com.google.common.base.Splitter;
 import com.google.common.base.Strings;
 import com.google.inject.Inject;
 import com.ning.metrics.collector.binder.config.CollectorConfig;
-import com.ning.metrics.collector.processing.EventSpoolProcessor;
 import com.ning.metrics.collector.processing.SerializationType;
+import com.ning.metrics.collector.processing.SpoolFile;
+import com.ning.metrics.collector.processing.SpoolFileProcessor;
+import com.ning.metrics.collector.processing.counter.CounterRollUpScheduler;
 import com.ning.metrics.collector.processing.db.model.CounterEvent;
 import com.ning.metrics.collector.processing.db.model.CounterEventData;
+import com.ning.metrics.collector.processing.quartz.CounterDeltaCompactionJob;
 import com.ning.metrics.collector.processing.quartz.CounterEventCleanUpJob;
 import com.ning.metrics.collector.processing.quartz.CounterEventScannerJob;
-import com.ning.metrics.serialization.event.Event;
-import com.ning.metrics.serialization.event.EventDeserializer;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -43,7 +43,7 @@ import static org.quartz.TriggerBuilder.newTrigger;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class CounterEventSpoolProcessor implements EventSpoolProcessor
+public class CounterEventSpoolProcessor implements SpoolFileProcessor
 {
     private static final Logger log = LoggerFactory.getLogger(CounterEventSpoolProcessor.class);
     private final CollectorConfig config;
@@ -52,15 +52,18 @@ public class CounterEventSpoolProcessor implements EventSpoolProcessor
     private static final String PROCESSOR_NAME = "CounterEventDBWriter";
     private final CounterEventCacheProcessor counterEventCacheProcessor;
     private final Scheduler quartzScheduler;
+    private final CounterRollUpScheduler rollUpScheduler;
     private final AtomicBoolean isCronJobScheduled = new AtomicBoolean(false);
     private final AtomicBoolean isCleanupCronJobScheduled = new AtomicBoolean(false);
+    private final AtomicBoolean isCompactionCronJobScheduled = new AtomicBoolean(false);
 
     @Inject
-    public CounterEventSpoolProcessor(final CollectorConfig config, final CounterStorage counterStorage, final Scheduler quartzScheduler, final CounterEventCacheProcessor counterEventCacheProcessor, final ObjectMapper mapper) throws SchedulerException
+    public CounterEventSpoolProcessor(final CollectorConfig config, final CounterStorage counterStorage, final Scheduler quartzScheduler, final CounterEventCacheProcessor counterEventCacheProcessor, final CounterRollUpScheduler rollUpScheduler, final ObjectMapper mapper) throws SchedulerException
     {
         this.config = config;
         this.counterStorage = counterStorage;
         this.counterEventCacheProcessor = counterEventCacheProcessor;
+        this.rollUpScheduler = rollUpScheduler;
         this.mapper = mapper;
 
         this.quartzScheduler = quartzScheduler;
@@ -73,6 +76,7 @@ public class CounterEventSpoolProcessor implements EventSpoolProcessor
                 quartzScheduler.start();
                 scheduleCounterEventRollUpCronJob();
                 scheduleRollupEventCleanupCronJob();
+                scheduleRollupDeltaCompactionCronJob();
             }
         }
 
@@ -91,40 +95,41 @@ public class CounterEventSpoolProcessor implements EventSpoolProcessor
     @Override
     public void processEventFile(final String eventName, final SerializationType serializationType, final File file, final String outputPath) throws IOException
     {
-        // File has Smile type of events
-        EventDeserializer eventDeserializer = serializationType.getDeSerializer(new FileInputStream(file));
+        final SpoolFile spoolFile = new SpoolFile(file, eventName, serializationType);
+        try {
+            processSpoolFile(spoolFile, outputPath);
+        }
+        finally {
+            spoolFile.close();
+        }
+    }
+
+    @Override
+    public void processSpoolFile(final SpoolFile spoolFile, final String outputPath) throws IOException
+    {
+        // File has Smile type of events, decoded once for all processors
+        final List<CounterEvent> counterEvents = spoolFile.getEventData(
+                DBStorageTypes.COUNTER_EVENT.getDbStorageType(), CounterEvent.class, mapper);
         boolean counterEventsProcessed = false;
 
         /*Add all eligible counter events to the buffer which would be drained periodically based on the size*/
-        while(eventDeserializer.hasNextEvent())
+        for(CounterEvent counterEvent : counterEvents)
         {
-            Event event = eventDeserializer.getNextEvent();
-            log.debug(String.format("Recieved DB Event to store with name as %s ",event.getName()));
+           log.debug(String.format("Recieved counter event to store for namespace %s", counterEvent.getNamespace()));
 
-            if(DBStorageTypes.COUNTER_EVENT.getDbStorageType().equalsIgnoreCase(event.getName()))
-            {
-               log.debug(String.format("DB Event body to store is %s",event.getData()));
-
-               CounterEvent counterEvent = mapper.readValue(
-                       event.getData().toString(), CounterEvent.class);
-
-               // counterEvent will not be null.  An exception will be thrown
-               // instead
-
-               if(Strings.isNullOrEmpty(counterEvent.getNamespace())
-                       || null == counterEvent.getCounterEvents()
-                       || counterEvent.getCounterEvents().isEmpty()) {
-                   continue;
-               }
+           if(Strings.isNullOrEmpty(counterEvent.getNamespace())
+                   || null == counterEvent.getCounterEvents()
+                   || counterEvent.getCounterEvents().isEmpty()) {
+               continue;
+           }
 
-               for(CounterEventData counterEventData
-                       : counterEvent.getCounterEvents()) {
-                   this.counterEventCacheProcessor.addCounterEventData(
-                           counterEvent.getNamespace(), counterEventData);
-               }
+           for(CounterEventData counterEventData
+                   : counterEvent.getCounterEvents()) {
+               this.counterEventCacheProcessor.addCounterEventData(
+                       counterEvent.getNamespace(), counterEventData);
+           }
 
-               counterEventsProcessed = true;
-            }
+           counterEventsProcessed = true;
         }
 
         if(counterEventsProcessed)
@@ -163,6 +168,9 @@ public class CounterEventSpoolProcessor implements EventSpoolProcessor
             log.error("Unexpected error while shutting down Quartz Scheduler!",e);
         }
         log.info("Quartz Scheduler shutdown success");
+
+        // No more roll ups can be scheduled from here on
+        rollUpScheduler.cleanUp();
     }
 
     private void scheduleCounterEventRollUpCronJob() throws SchedulerException
@@ -209,6 +217,28 @@ public class CounterEventSpoolProcessor implements EventSpoolProcessor
         }
     }
 
+    private void scheduleRollupDeltaCompactionCronJob() throws SchedulerException
+    {
+        if(this.quartzScheduler.isStarted() && !isCompactionCronJobScheduled.get())
+        {
+            final JobKey jobKey = new JobKey("rolledCountersCompactionCronJob", "rolledCountersCompactionCronJobGroup");
+
+            if(!this.quartzScheduler.checkExists(jobKey))
+            {
+                final CronTrigger cronTrigger = newTrigger()
+                        .withIdentity("rolledCountersCompactionCronTrigger", "rolledCountersCompactionCronTriggerGroup")
+                        .withSchedule(CronScheduleBuilder.cronSchedule(config.getCounterRollUpCompactionCronExpression()).withMisfireHandlingInstructionDoNothing())
+                        .build();
+
+                quartzScheduler.scheduleJob(newJob(CounterDeltaCompactionJob.class).withIdentity(jobKey).build()
+                    ,cronTrigger);
+            }
+
+            isCompactionCronJobScheduled.set(true);
+
+        }
+    }
+
     @Override
     public String getProcessorName()
     {
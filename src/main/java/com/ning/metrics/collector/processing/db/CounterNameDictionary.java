@@ -0,0 +1,116 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ning.metrics.collector.processing.db;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.util.IntegerMapper;
+
+/**
+ * Ids of the counter names of a namespace, as stored in the binary rows of
+ * the metrics buffer.  Ids are assigned by the database the first time a
+ * counter name is buffered and never change nor get reused, so they are
+ * cached for good.  The database is only ever queried through the handle of
+ * the caller, which already holds a connection: a counter name missing from
+ * the cache is registered by itself, and readers load the names of the
+ * namespace before they open their query, since a streaming query leaves its
+ * connection unusable until it is closed.
+ */
+public class CounterNameDictionary
+{
+    private final String namespace;
+    private final ConcurrentMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+    private final ConcurrentMap<Integer, String> names = new ConcurrentHashMap<Integer, String>();
+
+    public CounterNameDictionary(final String namespace)
+    {
+        this.namespace = namespace;
+    }
+
+    /**
+     * @return the id of the given counter name, registering it with the given
+     *         handle if needed
+     */
+    public int getId(final Handle handle, final String counterName)
+    {
+        final Integer id = ids.get(counterName);
+
+        if (id != null) {
+            return id;
+        }
+
+        return register(handle, counterName);
+    }
+
+    /**
+     * @return the counter name of the given id, null if it was not loaded
+     * @see #load(Handle)
+     */
+    public String getName(final int id)
+    {
+        return names.get(id);
+    }
+
+    /**
+     * Load the counter names of the namespace with the given handle.  Rows
+     * read later on in the same transaction only refer to loaded names: a
+     * name is registered before the rows which refer to it are written.
+     */
+    public void load(final Handle handle)
+    {
+        for (final Map<String, Object> row : handle.createQuery("select `id`, `counter_name` from metrics_buffer_counter_names where `namespace` = :namespace")
+                .bind("namespace", namespace)
+                .list()) {
+            cache((String) row.get("counter_name"), ((Number) row.get("id")).intValue());
+        }
+    }
+
+    private synchronized int register(final Handle handle, final String counterName)
+    {
+        final Integer cached = ids.get(counterName);
+
+        if (cached != null) {
+            return cached;
+        }
+
+        // Another collector may be registering it as well
+        handle.createStatement("insert ignore into metrics_buffer_counter_names (`namespace`, `counter_name`) values (:namespace, :counterName)")
+                .bind("namespace", namespace)
+                .bind("counterName", counterName)
+                .execute();
+
+        final Integer id = handle.createQuery("select `id` from metrics_buffer_counter_names where `namespace` = :namespace and `counter_name` = :counterName")
+                .bind("namespace", namespace)
+                .bind("counterName", counterName)
+                .map(IntegerMapper.FIRST)
+                .first();
+
+        if (id == null) {
+            throw new IllegalStateException(String.format("Unable to register counter name %s of namespace %s", counterName, namespace));
+        }
+
+        cache(counterName, id);
+        return id;
+    }
+
+    private void cache(final String counterName, final int id)
+    {
+        ids.put(counterName, id);
+        names.put(id, counterName);
+    }
+}
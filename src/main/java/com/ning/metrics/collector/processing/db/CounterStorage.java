@@ -16,10 +16,13 @@
 package com.ning.metrics.collector.processing.db;
 
 import com.google.common.base.Optional;
+import com.google.common.base.Predicate;
 import com.google.common.collect.Multimap;
+import com.ning.metrics.collector.processing.counter.HyperLogLog;
 import com.ning.metrics.collector.processing.db.model.CounterEventData;
 import com.ning.metrics.collector.processing.db.model.RolledUpCounter;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import org.joda.time.DateTime;
 
@@ -31,15 +34,29 @@ import org.joda.time.DateTime;
 public interface CounterStorage
 {
     public void bufferMetrics(Multimap<String, CounterEventData> dailyCounters);
-    public List<CounterEventData> loadBufferedMetricsPaged(String namespace,
-            DateTime toDateTime, Integer limit, Integer offset);
+    public BufferedMetricsPage loadBufferedMetricsPaged(String namespace,
+            DateTime toDateTime, Integer limit, Long afterId);
     public List<CounterEventData> loadBufferedMetrics(String namespace,
             DateTime toDateTime);
     public boolean deleteBufferedMetrics(String namespace, DateTime toDateTime);
+    public boolean deleteBufferedMetricsInRange(String namespace,
+            DateTime fromDateTime, DateTime untilDateTime);
+    public Map<String, Integer> countBufferedMetricsByDay(String namespace,
+            DateTime toDateTime);
     public List<String> getNamespacesFromMetricsBuffer();
 
     public String insertOrUpdateDailyRolledUpCounter(RolledUpCounter rolledCounter);
+    public void insertOrUpdateDailyRolledUpCounterData(String namespace,
+            DateTime date, String counterName, int totalCount, int uniqueCount,
+            byte[] serializedDistribution);
+    public void insertDailyRolledUpCounterDeltas(RolledUpCounter rolledCounter);
+    public int compactDailyRolledUpCounterDeltas(String namespace,
+            DateTime fromDate, DateTime toDate);
+    public int compactDailyRolledUpCounterDeltas(int minDeltaCount,
+            DateTime createdBefore);
     public RolledUpCounter loadDailyRolledUpCounter(String namespace, DateTime date);
+    public RolledUpCounter loadDailyRolledUpCounter(String namespace,
+            DateTime date, Predicate<String> uniqueIdFilter);
 
     public List<RolledUpCounter> queryDailyRolledUpCounters(
             String namespace,
@@ -48,6 +65,10 @@ public interface CounterStorage
             boolean excludeDistribution,
             Optional<Integer> distributionLimit,
             Optional<Set<String>> unqiueIds);
+    public Map<String, HyperLogLog> loadDailyUniqueIdSketches(
+            String namespace,
+            DateTime fromDate, DateTime toDate,
+            Optional<Set<String>> fetchCounterNames);
 
     public int cleanExpiredDailyRolledUpCounters(DateTime toDateTime);
 
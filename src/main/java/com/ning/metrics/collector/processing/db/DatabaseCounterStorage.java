@@ -18,6 +18,8 @@ package com.ning.metrics.collector.processing.db;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.base.Objects;
 import com.google.common.base.Optional;
+import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
@@ -25,25 +27,24 @@ import com.google.common.collect.Multimap;
 import com.google.inject.Inject;
 import com.ning.metrics.collector.binder.config.CollectorConfig;
 import com.ning.metrics.collector.processing.counter.CounterDistribution;
+import com.ning.metrics.collector.processing.counter.DistributionReader;
+import com.ning.metrics.collector.processing.counter.DistributionWriter;
+import com.ning.metrics.collector.processing.counter.HyperLogLog;
 import com.ning.metrics.collector.processing.db.model.CounterEventData;
 import com.ning.metrics.collector.processing.db.model.RolledUpCounter;
 import com.ning.metrics.collector.processing.db.model.RolledUpCounterData;
 import com.ning.metrics.collector.processing.db.util.MySqlLock;
-import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintStream;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.locks.Lock;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
 import org.joda.time.format.DateTimeFormat;
@@ -55,6 +56,8 @@ import org.skife.jdbi.v2.PreparedBatch;
 import org.skife.jdbi.v2.Query;
 import org.skife.jdbi.v2.ResultIterator;
 import org.skife.jdbi.v2.StatementContext;
+import org.skife.jdbi.v2.TransactionCallback;
+import org.skife.jdbi.v2.TransactionStatus;
 import org.skife.jdbi.v2.Update;
 import org.skife.jdbi.v2.sqlobject.Bind;
 import org.skife.jdbi.v2.sqlobject.SqlBatch;
@@ -88,21 +91,47 @@ public class DatabaseCounterStorage implements CounterStorage {
          * @param totalCounts list of total counts for each counter name
          * @param uniqueCounts list of unique counts for each counter name
          * @param distributions list of serialized distributions f.e. counter
+         * @param uniqueSketches list of serialized unique id sketches f.e.
+         *          counter name.  Databases created before the sketches need
+         *          the column of collector_counter_events_upgrade.sql
          */
         @SqlBatch("INSERT INTO `metrics_daily` (`namespace`, `datestamp`, "
-                + "counter_name, total_count, unique_count, distribution) "
+                + "counter_name, total_count, unique_count, distribution, "
+                + "unique_sketch) "
                 + "VALUES (:namespace, :datestamp, :counterName, :totalCount, "
-                + ":uniqueCount, :distribution) "
+                + ":uniqueCount, :distribution, :uniqueSketch) "
                 + "ON DUPLICATE KEY UPDATE "
                 + "`total_count` = :totalCount, "
                 + "`unique_count` = :uniqueCount, "
-                + "`distribution` = :distribution")
+                + "`distribution` = :distribution, "
+                + "`unique_sketch` = :uniqueSketch")
         void insertRolledUpCounter(
                 @Bind("namespace") String namespace,
                 @Bind("datestamp") String datestamp,
                 @Bind("counterName") List<String> counterNames,
                 @Bind("totalCount") List<Integer> totalCounts,
                 @Bind("uniqueCount") List<Integer> uniqueCounts,
+                @Bind("distribution") List<byte[]> distributions,
+                @Bind("uniqueSketch") List<byte[]> uniqueSketches);
+
+        /**
+         * Batch insert of the deltas of a single rolled-up counter.  Deltas are
+         * only appended, they are merged into metrics_daily by compaction
+         * @param namespace common namespace for this batch of inserts
+         * @param datestamp common datestamp for this batch of inserts
+         * @param counterNames list of names of counters in the roll up
+         * @param totalCounts list of total count increments f.e. counter name
+         * @param distributions list of serialized distribution increments
+         */
+        @SqlBatch("INSERT INTO `metrics_daily_delta` (`namespace`, "
+                + "`datestamp`, counter_name, total_count, distribution) "
+                + "VALUES (:namespace, :datestamp, :counterName, :totalCount, "
+                + ":distribution)")
+        void insertRolledUpCounterDelta(
+                @Bind("namespace") String namespace,
+                @Bind("datestamp") String datestamp,
+                @Bind("counterName") List<String> counterNames,
+                @Bind("totalCount") List<Integer> totalCounts,
                 @Bind("distribution") List<byte[]> distributions);
 
         /**
@@ -125,10 +154,17 @@ public class DatabaseCounterStorage implements CounterStorage {
     public static final DateTimeFormatter DAILY_METRICS_DATE_FORMAT =
             DateTimeFormat.forPattern("yyyy-MM-dd HH:mm:ss")
                     .withZone(DateTimeZone.UTC);
+    // Quotes, separators and parentheses around the values of a row
+    private static final int MULTI_ROW_INSERT_ROW_OVERHEAD_BYTES = 16;
+    // Keeps the placeholders of a multi-row insert below the limit of 65535
+    private static final int MAX_MULTI_ROW_INSERT_ROWS = 20000;
     private final IDBI dbi;
     private final CollectorConfig config;
     private final Lock dbLock;
     private final ObjectMapper mapper;
+    private final ConcurrentMap<String, CounterNameDictionary>
+            counterNameDictionaries =
+                    new ConcurrentHashMap<String, CounterNameDictionary>();
     final TimeSpan cacheExpiryTime;
 
     @Inject
@@ -141,6 +177,31 @@ public class DatabaseCounterStorage implements CounterStorage {
         this.mapper = mapper;
     }
 
+    /**
+     * @param handle handle through which the codec registers or loads the
+     *          counter names it needs
+     * @param namespace namespace of the metrics buffer rows
+     * @return the codec of the metrics buffer rows of the given namespace
+     */
+    public CounterEventDataCodec getCounterEventDataCodec(final Handle handle,
+            final String namespace) {
+        CounterNameDictionary dictionary =
+                counterNameDictionaries.get(namespace);
+
+        if (dictionary == null) {
+            final CounterNameDictionary newDictionary =
+                    new CounterNameDictionary(namespace);
+            dictionary = counterNameDictionaries.putIfAbsent(
+                    namespace, newDictionary);
+
+            if (dictionary == null) {
+                dictionary = newDictionary;
+            }
+        }
+
+        return new CounterEventDataCodec(mapper, dictionary, handle);
+    }
+
     /**
      * Insert the given counter data into the metrics buffer
      * @param dailyCounters Map of namespace to the set of counter events
@@ -149,6 +210,12 @@ public class DatabaseCounterStorage implements CounterStorage {
     @Override
     public void bufferMetrics(
             final Multimap<String, CounterEventData> dailyCounters) {
+        if (config.getCounterEventBufferInsertMode()
+                == MetricsBufferInsertMode.MULTI_ROW) {
+            bufferMetricsMultiRow(dailyCounters);
+            return;
+        }
+
        dbi.withHandle(new HandleCallback<Void>() {
 
         @Override
@@ -163,7 +230,8 @@ public class DatabaseCounterStorage implements CounterStorage {
                     : dailyCounters.entries()) {
 
                 batch.bind("namespace", entry.getKey())
-                        .bind("metrics", mapper.writeValueAsString(entry.getValue()))
+                        .bind("metrics", getCounterEventDataCodec(handle,
+                                entry.getKey()).encode(entry.getValue()))
                         .bind("timestamp", DAILY_METRICS_DATE_FORMAT.print(
                                 entry.getValue().getCreatedTime()))
                         .add();
@@ -175,26 +243,105 @@ public class DatabaseCounterStorage implements CounterStorage {
         }});
     }
 
+    /**
+     * Insert the given counter data into the metrics buffer with multi-row
+     * inserts, starting a new insert whenever the values of the current one
+     * reach the configured chunk size
+     * @param dailyCounters Map of namespace to the set of counter events
+     *      observed in that namespace
+     */
+    private void bufferMetricsMultiRow(
+            final Multimap<String, CounterEventData> dailyCounters) {
+        final int maxChunkBytes =
+                Math.max(1, config.getCounterEventBufferInsertChunkBytes());
+
+        dbi.withHandle(new HandleCallback<Void>() {
+
+            @Override
+            public Void withHandle(Handle handle) throws Exception {
+
+                // namespace, metrics and timestamp of each row in turn
+                final List<Object> values = Lists.newArrayList();
+                int chunkBytes = 0;
+
+                for (Entry<String, CounterEventData> entry
+                        : dailyCounters.entries()) {
+                    final byte[] metrics = getCounterEventDataCodec(handle,
+                            entry.getKey()).encode(entry.getValue());
+                    final String timestamp = DAILY_METRICS_DATE_FORMAT.print(
+                            entry.getValue().getCreatedTime());
+                    final int rowBytes = entry.getKey().length()
+                            + metrics.length + timestamp.length()
+                            + MULTI_ROW_INSERT_ROW_OVERHEAD_BYTES;
+
+                    if (!values.isEmpty()
+                            && (chunkBytes + rowBytes > maxChunkBytes
+                            || values.size() / 3 >= MAX_MULTI_ROW_INSERT_ROWS)) {
+                        insertMultiRow(handle, values);
+                        values.clear();
+                        chunkBytes = 0;
+                    }
+
+                    values.add(entry.getKey());
+                    values.add(metrics);
+                    values.add(timestamp);
+                    chunkBytes += rowBytes;
+                }
+
+                if (!values.isEmpty()) {
+                    insertMultiRow(handle, values);
+                }
+
+                return null;
+            }});
+    }
+
+    private static void insertMultiRow(final Handle handle,
+            final List<Object> values) {
+        final StringBuilder queryStr = new StringBuilder("insert into "
+                + "metrics_buffer (`namespace`,`metrics`,`timestamp`) values ");
+
+        for (int i = 0; i < values.size(); i += 3) {
+            if (i > 0) {
+                queryStr.append(',');
+            }
+            queryStr.append("(?, ?, ?)");
+        }
+
+        final Update update = handle.createStatement(queryStr.toString());
+
+        for (int i = 0; i < values.size(); i++) {
+            update.bind(i, values.get(i));
+        }
+
+        update.execute();
+    }
+
     /**
      * Pagenated method for loading metrics events for a given namespace and a
-     * given time range
+     * given time range.  Pages are keyed on the id of the rows rather than
+     * offset, so that each page is a range scan of the namespace index
+     * (which holds the ids) whatever the number of rows before it
      * @param namespace namespace of the metrics events to un buffer
      * @param toDateTime upper limit of timestamps of retrieved events
      *
-     * @param limit
-     * @param offset
+     * @param limit maximum number of rows of the page
+     * @param afterId id of the last row of the previous page, null for the
+     *      first page
      * @return
      */
     @Override
-    public List<CounterEventData> loadBufferedMetricsPaged(
+    public BufferedMetricsPage loadBufferedMetricsPaged(
             final String namespace, final DateTime toDateTime,
-            final Integer limit, final Integer offset) {
+            final Integer limit, final Long afterId) {
 
-        return dbi.withHandle(new HandleCallback<List<CounterEventData>>() {
+        // One transaction, so that the rows only refer to counter names
+        // loaded beforehand
+        return dbi.inTransaction(new TransactionCallback<BufferedMetricsPage>() {
 
         @Override
-        public List<CounterEventData> withHandle(Handle handle)
-                throws Exception {
+        public BufferedMetricsPage inTransaction(Handle handle,
+                TransactionStatus status) throws Exception {
 
             // Everything by the namespace in this method is optional.  These
             // wrapper objects make that fact explicit and easier to work with
@@ -203,45 +350,63 @@ public class DatabaseCounterStorage implements CounterStorage {
                     Optional.fromNullable(toDateTime);
             final Optional<Integer> limitOptional =
                     Optional.fromNullable(limit);
-            final Optional<Integer> offsetOptional =
-                    Optional.fromNullable(offset);
+            final Optional<Long> afterIdOptional =
+                    Optional.fromNullable(afterId);
 
             final StringBuilder queryStr = new StringBuilder();
 
             // Build the query based on the optionals
 
-            queryStr.append("select metrics from metrics_buffer "
+            queryStr.append("select `id`, metrics from metrics_buffer "
+                    + "force index (metrics_buffer_namespace_idx) "
                     + "where namespace = :namespace");
 
+            queryStr.append(afterIdOptional.isPresent()
+                    ? " and `id` > :afterId" : "");
+
             queryStr.append(toDateTimeOptional.isPresent()
                     ? " and `timestamp` <= :toDateTime" : "");
 
+            queryStr.append(" order by `id`");
+
             queryStr.append(limitOptional.isPresent()
                     ? " limit :limit" : "");
 
-            queryStr.append(
-                    limitOptional.isPresent() && offsetOptional.isPresent()
-                            ? " offset :offset" : "");
-
             Query<Map<String, Object>> query =
                     handle.createQuery(queryStr.toString())
                             .bind("namespace", namespace);
 
             // Bind present paramters into the query
+            if(afterIdOptional.isPresent()) {
+                query.bind("afterId", afterIdOptional.get());
+            }
             if(toDateTimeOptional.isPresent()) {
                 query.bind("toDateTime", DAILY_METRICS_DATE_FORMAT.print(
                         toDateTimeOptional.get()));
             }
             if(limitOptional.isPresent()) {
                 query.bind("limit", limitOptional.get());
-
-                if(offsetOptional.isPresent()) {
-                    query.bind("offset", offsetOptional.get());
-                }
             }
 
-            return ImmutableList.copyOf(query.map(
-                    new CounterEventDataMapper(mapper)).list());
+            final CounterEventDataCodec codec =
+                    getCounterEventDataCodec(handle, namespace);
+            codec.loadCounterNames();
+
+            final CounterEventDataMapper rowMapper =
+                    new CounterEventDataMapper(codec);
+            final Long[] lastId = {null};
+
+            final List<CounterEventData> counterEventData = ImmutableList.copyOf(
+                    query.map(new ResultSetMapper<CounterEventData>() {
+
+                @Override
+                public CounterEventData map(int index, ResultSet r,
+                        StatementContext ctx) throws SQLException {
+                    lastId[0] = r.getLong("id");
+                    return rowMapper.map(index, r, ctx);
+                }}).list());
+
+            return new BufferedMetricsPage(counterEventData, lastId[0]);
 
         }});
     }
@@ -258,11 +423,18 @@ public class DatabaseCounterStorage implements CounterStorage {
     public List<CounterEventData> loadBufferedMetrics(
             final String namespace, final DateTime toDateTime) {
 
-        return dbi.withHandle(new HandleCallback<List<CounterEventData>>() {
+        // One transaction, so that the rows only refer to counter names
+        // loaded beforehand
+        return dbi.inTransaction(
+                new TransactionCallback<List<CounterEventData>>() {
 
         @Override
-        public List<CounterEventData> withHandle(Handle handle)
-                throws Exception {
+        public List<CounterEventData> inTransaction(Handle handle,
+                TransactionStatus status) throws Exception {
+
+            final CounterEventDataCodec codec =
+                    getCounterEventDataCodec(handle, namespace);
+            codec.loadCounterNames();
 
             StringBuilder queryStr = new StringBuilder();
             queryStr.append("select metrics from metrics_buffer where "
@@ -284,7 +456,7 @@ public class DatabaseCounterStorage implements CounterStorage {
             Map<String,CounterEventData> groupMap = Maps.newHashMap();
 
             ResultIterator<CounterEventData> rs = query.map(
-                    new CounterEventDataMapper(mapper)).iterator();
+                    new CounterEventDataMapper(codec)).iterator();
 
             try {
                 while(rs.hasNext()) {
@@ -299,7 +471,7 @@ public class DatabaseCounterStorage implements CounterStorage {
                         continue;
                     }
 
-                    groupedData.mergeCounters(counterEventData.getCounters());
+                    groupedData.mergeCounters(counterEventData);
                     groupMap.put(counterKey, groupedData);
                 }
             }
@@ -351,6 +523,169 @@ public class DatabaseCounterStorage implements CounterStorage {
         return deleted > 0;
     }
 
+    /**
+     * Delete the metrics events for the given namespace up to the given time
+     * and id, i.e. the events read by a roll up which went through the buffer
+     * in id order.  Unlike {@link #deleteBufferedMetrics(String, DateTime)},
+     * events buffered after the roll up read the buffer are kept, even if
+     * their timestamp is before the given time
+     * @param handle
+     * @param namespace
+     * @param toDateTime upper limit (inclusive) of the deleted timestamps
+     * @param maxId highest deleted id
+     * @return the number of deleted events
+     */
+    public int deleteBufferedMetrics(final Handle handle,
+            final String namespace, final DateTime toDateTime,
+            final long maxId) {
+        return handle.createStatement("delete from metrics_buffer where "
+                + "`namespace` = :namespace"
+                + " and `timestamp` <= :toDateTime"
+                + " and `id` <= :maxId")
+                .bind("namespace", namespace)
+                .bind("toDateTime",
+                        DAILY_METRICS_DATE_FORMAT.print(toDateTime))
+                .bind("maxId", maxId)
+                .execute();
+    }
+
+    /**
+     * Delete the metrics events for the given namespace with a timestamp in
+     * the given range
+     * @param namespace
+     * @param fromDateTime lower limit (inclusive) of the deleted timestamps
+     * @param untilDateTime upper limit (exclusive) of the deleted timestamps
+     * @return
+     */
+    @Override
+    public boolean deleteBufferedMetricsInRange(final String namespace,
+            final DateTime fromDateTime, final DateTime untilDateTime){
+        int deleted = dbi.withHandle(new HandleCallback<Integer>() {
+
+        @Override
+        public Integer withHandle(Handle handle) throws Exception {
+
+            return handle.createStatement("delete from metrics_buffer where "
+                    + "`namespace` = :namespace"
+                    + " and `timestamp` >= :fromDateTime"
+                    + " and `timestamp` < :untilDateTime")
+                    .bind("namespace", namespace)
+                    .bind("fromDateTime",
+                            DAILY_METRICS_DATE_FORMAT.print(fromDateTime))
+                    .bind("untilDateTime",
+                            DAILY_METRICS_DATE_FORMAT.print(untilDateTime))
+                    .execute();
+        }});
+
+        return deleted > 0;
+    }
+
+    /**
+     * Highest id of the metrics events buffered for the given namespace with a
+     * timestamp in the given range.  Rows buffered later get higher ids, so
+     * this bounds what a roll up of the range reads and then deletes
+     * @param handle
+     * @param namespace
+     * @param fromDateTime lower limit (inclusive) of the timestamps
+     * @param untilDateTime upper limit (exclusive) of the timestamps
+     * @return the highest id, null if nothing is buffered in the range
+     */
+    public Long getMaxBufferedMetricsIdInRange(final Handle handle,
+            final String namespace, final DateTime fromDateTime,
+            final DateTime untilDateTime) {
+        Map<String, Object> row = handle.createQuery("select max(`id`) as "
+                + "`max_id` from metrics_buffer where "
+                + "`namespace` = :namespace"
+                + " and `timestamp` >= :fromDateTime"
+                + " and `timestamp` < :untilDateTime")
+                .bind("namespace", namespace)
+                .bind("fromDateTime",
+                        DAILY_METRICS_DATE_FORMAT.print(fromDateTime))
+                .bind("untilDateTime",
+                        DAILY_METRICS_DATE_FORMAT.print(untilDateTime))
+                .first();
+
+        Number maxId = row == null ? null : (Number) row.get("max_id");
+
+        return maxId == null ? null : maxId.longValue();
+    }
+
+    /**
+     * Delete the metrics events for the given namespace with a timestamp in
+     * the given range, up to the given id.  Unlike
+     * {@link #deleteBufferedMetricsInRange(String, DateTime, DateTime)},
+     * events buffered in the range after the roll up read it are kept
+     * @param handle
+     * @param namespace
+     * @param fromDateTime lower limit (inclusive) of the deleted timestamps
+     * @param untilDateTime upper limit (exclusive) of the deleted timestamps
+     * @param maxId highest deleted id
+     * @return the number of deleted events
+     */
+    public int deleteBufferedMetricsInRange(final Handle handle,
+            final String namespace, final DateTime fromDateTime,
+            final DateTime untilDateTime, final long maxId) {
+        return handle.createStatement("delete from metrics_buffer where "
+                + "`namespace` = :namespace"
+                + " and `timestamp` >= :fromDateTime"
+                + " and `timestamp` < :untilDateTime"
+                + " and `id` <= :maxId")
+                .bind("namespace", namespace)
+                .bind("fromDateTime",
+                        DAILY_METRICS_DATE_FORMAT.print(fromDateTime))
+                .bind("untilDateTime",
+                        DAILY_METRICS_DATE_FORMAT.print(untilDateTime))
+                .bind("maxId", maxId)
+                .execute();
+    }
+
+    /**
+     * Count the metrics events buffered for the given namespace up to the
+     * given time, day by day
+     * @param namespace
+     * @param toDateTime upper limit of timestamps of counted events
+     * @return map of day (formatted as yyyy-MM-dd) to the number of events
+     *          buffered for that day, in chronological order
+     */
+    @Override
+    public Map<String, Integer> countBufferedMetricsByDay(
+            final String namespace, final DateTime toDateTime){
+        return dbi.withHandle(new HandleCallback<Map<String, Integer>>() {
+
+        @Override
+        public Map<String, Integer> withHandle(Handle handle) throws Exception
+        {
+            List<Map.Entry<String, Integer>> rowCounts = handle.createQuery(
+                    "select date_format(`timestamp`, '%Y-%m-%d') as `day`, "
+                            + "count(*) as `row_count` from metrics_buffer "
+                            + "where `namespace` = :namespace "
+                            + "and `timestamp` <= :toDateTime "
+                            + "group by `day` order by `day`")
+                    .bind("namespace", namespace)
+                    .bind("toDateTime",
+                            DAILY_METRICS_DATE_FORMAT.print(toDateTime))
+                    .map(new ResultSetMapper<Map.Entry<String, Integer>>() {
+
+                        @Override
+                        public Map.Entry<String, Integer> map(int index,
+                                ResultSet r, StatementContext ctx)
+                                throws SQLException {
+                            return Maps.immutableEntry(r.getString("day"),
+                                    r.getInt("row_count"));
+                        }
+                    })
+                    .list();
+
+            Map<String, Integer> result = Maps.newLinkedHashMap();
+
+            for (Map.Entry<String, Integer> rowCount : rowCounts) {
+                result.put(rowCount.getKey(), rowCount.getValue());
+            }
+
+            return result;
+        }});
+    }
+
     /**
      * selects the unique namespaces currently found in the buffered metrics
      * @return
@@ -384,31 +719,374 @@ public class DatabaseCounterStorage implements CounterStorage {
             @Override
             public String withHandle(Handle handle) throws Exception
             {
-                List<String> counterNames = Lists.newArrayList();
-                List<Integer> totalCounts = Lists.newArrayList();
-                List<Integer> uniqueCounts = Lists.newArrayList();
-                List<byte[]> distributions = Lists.newArrayList();
-
-                String namespace = rolledUpCounter.getNamespace();
-                String counterDate = rolledUpCounter.getFromDate();
-
-                for (Map.Entry<String, RolledUpCounterData> e
-                        : rolledUpCounter.getCounterSummary().entrySet()) {
-                    counterNames.add(e.getKey());
-                    totalCounts.add(e.getValue().getTotalCount());
-                    uniqueCounts.add(e.getValue().getUniqueCount());
-                    distributions.add(serializeDistribution(e.getValue()));
+                return insertOrUpdateDailyRolledUpCounter(handle,
+                        rolledUpCounter);
+            }});
+    }
+
+    /**
+     * Same as {@link #insertOrUpdateDailyRolledUpCounter(RolledUpCounter)},
+     * with the given handle (e.g. in the transaction of a roll up)
+     * @param handle
+     * @param rolledUpCounter
+     * @return
+     * @throws IOException
+     */
+    public String insertOrUpdateDailyRolledUpCounter(final Handle handle,
+            final RolledUpCounter rolledUpCounter) throws IOException {
+        List<String> counterNames = Lists.newArrayList();
+        List<Integer> totalCounts = Lists.newArrayList();
+        List<Integer> uniqueCounts = Lists.newArrayList();
+        List<byte[]> distributions = Lists.newArrayList();
+        List<byte[]> uniqueSketches = Lists.newArrayList();
+
+        String namespace = rolledUpCounter.getNamespace();
+        String counterDate = rolledUpCounter.getFromDate();
+
+        for (Map.Entry<String, RolledUpCounterData> e
+                : rolledUpCounter.getCounterSummary().entrySet()) {
+            counterNames.add(e.getKey());
+            totalCounts.add(e.getValue().getTotalCount());
+            uniqueCounts.add(e.getValue().getUniqueCount());
+            distributions.add(serializeDistribution(e.getValue()));
+            uniqueSketches.add(sketchDistribution(
+                    e.getValue().getDistribution()).toBytes());
+        }
+
+        // Some jdbi magic happens here:
+        DailyRolledUpCounters operator =
+                handle.attach(DailyRolledUpCounters.class);
+
+        operator.insertRolledUpCounter(namespace, counterDate,
+                counterNames, totalCounts, uniqueCounts, distributions,
+                uniqueSketches);
+
+        return rolledUpCounter.getId();
+    }
+
+    /**
+     * Insert or update a single counter of a daily rolled up counter, with a
+     * distribution which was serialized beforehand (see
+     * {@link #serializeDistribution(RolledUpCounterData)} for the format).
+     * This allows distributions to be saved without ever being loaded in
+     * memory as a whole
+     * @param namespace
+     * @param date
+     * @param counterName
+     * @param totalCount
+     * @param uniqueCount
+     * @param serializedDistribution
+     */
+    @Override
+    public void insertOrUpdateDailyRolledUpCounterData(final String namespace,
+            final DateTime date, final String counterName,
+            final int totalCount, final int uniqueCount,
+            final byte[] serializedDistribution) {
+        dbi.withHandle(new HandleCallback<Void>() {
+
+            @Override
+            public Void withHandle(Handle handle) throws Exception
+            {
+                insertOrUpdateDailyRolledUpCounterData(handle, namespace, date,
+                        counterName, totalCount, uniqueCount,
+                        serializedDistribution);
+
+                return null;
+            }});
+    }
+
+    /**
+     * Same as
+     * {@link #insertOrUpdateDailyRolledUpCounterData(String, DateTime, String, int, int, byte[])},
+     * with the given handle (e.g. in the transaction of a roll up)
+     */
+    public void insertOrUpdateDailyRolledUpCounterData(final Handle handle,
+            final String namespace, final DateTime date,
+            final String counterName, final int totalCount,
+            final int uniqueCount, final byte[] serializedDistribution)
+            throws IOException {
+        handle.attach(DailyRolledUpCounters.class)
+                .insertRolledUpCounter(namespace,
+                        RolledUpCounter.DATE_FORMATTER.print(date),
+                        ImmutableList.of(counterName),
+                        ImmutableList.of(totalCount),
+                        ImmutableList.of(uniqueCount),
+                        ImmutableList.of(serializedDistribution),
+                        ImmutableList.of(sketchDistribution(
+                                serializedDistribution).toBytes()));
+    }
+
+    /**
+     * Append the given rolled up counter as a delta of the stored daily
+     * rolled-up counter.  Unlike
+     * {@link #insertOrUpdateDailyRolledUpCounter(RolledUpCounter)} the stored
+     * distributions are neither read nor rewritten: the deltas are merged into
+     * them later on, by {@link #compactDailyRolledUpCounterDeltas}
+     * @param rolledUpCounter
+     */
+    @Override
+    public void insertDailyRolledUpCounterDeltas(
+            final RolledUpCounter rolledUpCounter) {
+        if (rolledUpCounter.getCounterSummary().isEmpty()) {
+            return;
+        }
+
+        dbi.withHandle(new HandleCallback<Void>() {
+
+            @Override
+            public Void withHandle(Handle handle) throws Exception
+            {
+                insertDailyRolledUpCounterDeltas(handle, rolledUpCounter);
+
+                return null;
+            }});
+    }
+
+    /**
+     * Same as {@link #insertDailyRolledUpCounterDeltas(RolledUpCounter)}, with
+     * the given handle.  A roll up saving several deltas must save them in
+     * the transaction which deletes what they account for from the buffer:
+     * otherwise a failure half way would have the next roll up append the
+     * saved ones again
+     * @param handle
+     * @param rolledUpCounter
+     * @throws IOException
+     */
+    public void insertDailyRolledUpCounterDeltas(final Handle handle,
+            final RolledUpCounter rolledUpCounter) throws IOException {
+        if (rolledUpCounter.getCounterSummary().isEmpty()) {
+            return;
+        }
+
+        List<String> counterNames = Lists.newArrayList();
+        List<Integer> totalCounts = Lists.newArrayList();
+        List<byte[]> distributions = Lists.newArrayList();
+
+        for (Map.Entry<String, RolledUpCounterData> e
+                : rolledUpCounter.getCounterSummary().entrySet()) {
+            counterNames.add(e.getKey());
+            totalCounts.add(e.getValue().getTotalCount());
+            distributions.add(serializeDistribution(e.getValue()));
+        }
+
+        handle.attach(DailyRolledUpCounters.class)
+                .insertRolledUpCounterDelta(
+                        rolledUpCounter.getNamespace(),
+                        rolledUpCounter.getFromDate(),
+                        counterNames, totalCounts, distributions);
+    }
+
+    /**
+     * Merge the deltas of the daily rolled-up counters of the given namespace
+     * and date range into metrics_daily.  Readers do not need it, they merge
+     * the pending deltas in memory; this is for the roll ups which rewrite
+     * the stored counters
+     * @param namespace
+     * @param fromDate first date to compact, unbounded if null
+     * @param toDate last date to compact, unbounded if null
+     * @return the number of deltas merged
+     */
+    @Override
+    public int compactDailyRolledUpCounterDeltas(final String namespace,
+            final DateTime fromDate, final DateTime toDate) {
+        List<DeltaKey> keys = dbi.withHandle(
+                new HandleCallback<List<DeltaKey>>() {
+
+            @Override
+            public List<DeltaKey> withHandle(Handle handle) throws Exception
+            {
+                StringBuilder queryStr = new StringBuilder();
+                queryStr.append("select distinct `namespace`, "
+                        + "date_format(`datestamp`, '%Y-%m-%d') as `day`, "
+                        + "counter_name from metrics_daily_delta "
+                        + "where `namespace` = :namespace");
+
+                if (fromDate != null) {
+                    queryStr.append(" and `datestamp` >= :fromDate");
+                }
+                if (toDate != null) {
+                    queryStr.append(" and `datestamp` <= :toDate");
+                }
+
+                Query<Map<String, Object>> query = handle.createQuery(
+                        queryStr.toString()).bind("namespace", namespace);
+
+                if (fromDate != null) {
+                    query.bind("fromDate",
+                            RolledUpCounter.DATE_FORMATTER.print(fromDate));
+                }
+                if (toDate != null) {
+                    query.bind("toDate",
+                            RolledUpCounter.DATE_FORMATTER.print(toDate));
                 }
 
-                // Some jdbi magic happens here:
-                DailyRolledUpCounters operator =
-                        handle.attach(DailyRolledUpCounters.class);
+                return query.map(DeltaKey.MAPPER).list();
+            }});
+
+        return compactDeltas(keys);
+    }
 
-                operator.insertRolledUpCounter(namespace, counterDate,
-                        counterNames, totalCounts, uniqueCounts, distributions);
+    /**
+     * Merge into metrics_daily the deltas of the daily rolled-up counters
+     * which either have accumulated enough deltas or have been waiting for
+     * long enough
+     * @param minDeltaCount number of deltas which gets a counter compacted
+     * @param createdBefore counters with a delta older than this get compacted
+     * @return the number of deltas merged
+     */
+    @Override
+    public int compactDailyRolledUpCounterDeltas(final int minDeltaCount,
+            final DateTime createdBefore) {
+        List<DeltaKey> keys = dbi.withHandle(
+                new HandleCallback<List<DeltaKey>>() {
 
-                return rolledUpCounter.getId();
+            @Override
+            public List<DeltaKey> withHandle(Handle handle) throws Exception
+            {
+                return handle.createQuery("select `namespace`, "
+                        + "date_format(`datestamp`, '%Y-%m-%d') as `day`, "
+                        + "counter_name from metrics_daily_delta "
+                        + "group by `namespace`, `datestamp`, counter_name "
+                        + "having count(*) >= :minDeltaCount "
+                        + "or min(`created`) <= :createdBefore")
+                        .bind("minDeltaCount", minDeltaCount)
+                        .bind("createdBefore",
+                                DAILY_METRICS_DATE_FORMAT.print(createdBefore))
+                        .map(DeltaKey.MAPPER)
+                        .list();
             }});
+
+        return compactDeltas(keys);
+    }
+
+    private int compactDeltas(List<DeltaKey> keys) {
+        int compacted = 0;
+
+        for (final DeltaKey key : keys) {
+            // One transaction per counter: rows are locked for as short as
+            // possible, and a failure only delays the compaction of one
+            // counter
+            compacted += dbi.inTransaction(new TransactionCallback<Integer>() {
+
+                @Override
+                public Integer inTransaction(Handle handle,
+                        TransactionStatus status) throws Exception
+                {
+                    return compactDeltas(handle, key);
+                }});
+        }
+
+        return compacted;
+    }
+
+    /**
+     * Merge the deltas of a single daily rolled-up counter into its
+     * metrics_daily row.  The stored distribution is streamed rather than
+     * inflated, the deltas are merged a batch at a time, and the merged
+     * deltas are deleted by id: deltas appended meanwhile are left for the
+     * next compaction
+     */
+    private int compactDeltas(Handle handle, DeltaKey key) throws IOException {
+
+        // Deltas first: a concurrent compaction of the same counter waits
+        // here, and then finds nothing left to compact.  Their distributions
+        // come with the lock rather than one round trip per delta
+        List<Map<String, Object>> deltas = handle.createQuery(
+                "select id, total_count, distribution from metrics_daily_delta "
+                        + "where `namespace` = :namespace "
+                        + "and `datestamp` = :datestamp "
+                        + "and counter_name = :counterName "
+                        + "order by id for update")
+                .bind("namespace", key.namespace)
+                .bind("datestamp", key.datestamp)
+                .bind("counterName", key.counterName)
+                .list();
+
+        if (deltas.isEmpty()) {
+            return 0;
+        }
+
+        Map<String, Object> stored = handle.createQuery(
+                "select total_count, unique_count, distribution, "
+                        + "unique_sketch from metrics_daily "
+                        + "where `namespace` = :namespace "
+                        + "and `datestamp` = :datestamp "
+                        + "and counter_name = :counterName for update")
+                .bind("namespace", key.namespace)
+                .bind("datestamp", key.datestamp)
+                .bind("counterName", key.counterName)
+                .first();
+
+        long totalCount = stored == null
+                ? 0 : ((Number) stored.get("total_count")).longValue();
+        int uniqueCount = stored == null
+                ? 0 : ((Number) stored.get("unique_count")).intValue();
+        byte[] distribution = stored == null
+                ? null : (byte[]) stored.get("distribution");
+
+        // Rows written before the sketches existed get theirs from their
+        // distribution
+        HyperLogLog uniqueSketch;
+
+        if (stored != null && stored.get("unique_sketch") != null) {
+            uniqueSketch = HyperLogLog.fromBytes(
+                    (byte[]) stored.get("unique_sketch"));
+        }
+        else {
+            uniqueSketch = distribution == null
+                    ? new HyperLogLog() : sketchDistribution(distribution);
+        }
+
+        int maxBatchSize = Math.max(1, config.getMaxCounterRollUpPartitionSize());
+        CounterDistribution batch = new CounterDistribution();
+        PreparedBatch deleteBatch = handle.prepareBatch(
+                "delete from metrics_daily_delta where id = :id");
+
+        for (Map<String, Object> delta : deltas) {
+            long id = ((Number) delta.get("id")).longValue();
+            totalCount += ((Number) delta.get("total_count")).longValue();
+
+            DistributionReader reader = new DistributionReader(
+                    (byte[]) delta.get("distribution"));
+
+            try {
+                while (reader.next()) {
+                    batch.incrementCount(reader.getUniqueId(),
+                            reader.getCount());
+                    uniqueSketch.offer(reader.getUniqueId());
+                }
+            }
+            finally {
+                reader.close();
+            }
+
+            deleteBatch.bind("id", id).add();
+
+            if (batch.size() >= maxBatchSize) {
+                DistributionWriter writer = new DistributionWriter();
+                uniqueCount += mergeDistribution(distribution, batch, writer);
+                distribution = writer.finish();
+                batch.clear();
+            }
+        }
+
+        if (distribution == null || !batch.isEmpty()) {
+            DistributionWriter writer = new DistributionWriter();
+            uniqueCount += mergeDistribution(distribution, batch, writer);
+            distribution = writer.finish();
+        }
+
+        handle.attach(DailyRolledUpCounters.class).insertRolledUpCounter(
+                key.namespace, key.datestamp,
+                ImmutableList.of(key.counterName),
+                ImmutableList.of((int) totalCount),
+                ImmutableList.of(uniqueCount),
+                ImmutableList.of(distribution),
+                ImmutableList.of(uniqueSketch.toBytes()));
+
+        deleteBatch.execute();
+
+        return deltas.size();
     }
 
     /**
@@ -422,43 +1100,62 @@ public class DatabaseCounterStorage implements CounterStorage {
     public static byte[] serializeDistribution(RolledUpCounterData counter)
             throws IOException {
 
-        ByteArrayOutputStream result = new ByteArrayOutputStream();
-        GZIPOutputStream zipStream = new GZIPOutputStream(result);
-        PrintStream printer = new PrintStream(zipStream, true, "UTF-8");
+        DistributionWriter writer = new DistributionWriter();
 
-        int index = 0;
-
-        // iterate through all the entries in the distribution and generate a
-        // serialization of the form:
-        //
-        // uniqueId1|count1\n
-        // uniqueId2|count2\n
-        // ...
-        //
-        // and then gzip the result into a byte array
+        // iterate through all the entries in the distribution, in order, and
+        // let the writer encode them (see DistributionWriter for the format).
+        // Unique ids that have a zero count are not written
         for (Map.Entry<String, Integer> entry
                 : counter.getDistribution().entrySet()) {
-            String id = entry.getKey();
-            int value = entry.getValue() == null ? 0 : entry.getValue();
+            writer.write(entry.getKey(),
+                    entry.getValue() == null ? 0 : entry.getValue());
+        }
 
-            // Don't write unique ids that have a zero count
-            if (value == 0) {
-                continue;
-            }
+        return writer.finish();
+    }
 
-            if (index++ > 0) {
-                printer.println();
-            }
+    /**
+     * Build the unique id sketch of the given distribution
+     * @param distribution
+     * @return
+     */
+    public static HyperLogLog sketchDistribution(
+            Map<String, Integer> distribution) {
 
-            printer.print(id);
-            printer.print('|');
-            printer.print(Integer.toString(value));
+        HyperLogLog result = new HyperLogLog();
+
+        for (Map.Entry<String, Integer> entry : distribution.entrySet()) {
+            if (entry.getValue() != null && entry.getValue() != 0) {
+                result.offer(entry.getKey());
+            }
         }
 
-        zipStream.finish();
-        printer.close();
+        return result;
+    }
 
-        return result.toByteArray();
+    /**
+     * Build the unique id sketch of the given serialized distribution, which
+     * is streamed rather than inflated
+     * @param serialDist
+     * @return
+     * @throws IOException
+     */
+    public static HyperLogLog sketchDistribution(byte[] serialDist)
+            throws IOException {
+
+        HyperLogLog result = new HyperLogLog();
+        DistributionReader reader = new DistributionReader(serialDist);
+
+        try {
+            while (reader.next()) {
+                result.offer(reader.getUniqueId());
+            }
+        }
+        finally {
+            reader.close();
+        }
+
+        return result;
     }
 
     /**
@@ -474,49 +1171,169 @@ public class DatabaseCounterStorage implements CounterStorage {
             byte[] serialDist, Optional<Set<String>> uniqueIds,
                     Optional<Integer> distributionLimit) throws IOException {
 
-        CounterDistribution result = new CounterDistribution();
-        ByteArrayInputStream bis = new ByteArrayInputStream(serialDist);
-        GZIPInputStream zip = new GZIPInputStream(bis);
-        BufferedReader reader = new BufferedReader(new InputStreamReader(zip));
+        if (!uniqueIds.isPresent()) {
+            return deserializeDistribution(serialDist,
+                    Predicates.<String>alwaysTrue(), distributionLimit);
+        }
 
-        String line;
+        // The head of the distribution is scanned, its tail is searched
+        // through the unique id index
+        CounterDistribution found;
+        DistributionReader reader = new DistributionReader(serialDist);
 
+        try {
+            found = reader.lookup(uniqueIds.get());
+        }
+        finally {
+            reader.close();
+        }
 
-        while ((line = reader.readLine()) != null) {
+        if (!distributionLimit.isPresent()
+                || found.size() <= distributionLimit.get()) {
+            return found;
+        }
 
-            line = line.trim();
+        CounterDistribution result = new CounterDistribution();
 
-            if (line.isEmpty()) {
-                continue;
+        for (Map.Entry<String, Integer> entry : found.entrySet()) {
+            if (result.size() >= distributionLimit.get()) {
+                break;
             }
 
-            int split = line.indexOf('|');
-            String uniqueId = line.substring(0, split);
+            result.putPresortedEntry(entry.getKey(), entry.getValue());
+        }
 
-            if (uniqueIds.isPresent()) {
-                if (!uniqueIds.get().contains(uniqueId)) {
+        return result;
+    }
+
+    /**
+     * Read the serialized distribution from the given byte buffer and return
+     * the inflated and deserialized version as a map, keeping only the unique
+     * ids accepted by the given filter
+     * @param serialDist serialized version of the distribution
+     * @param uniqueIdFilter
+     * @param distributionLimit
+     * @return
+     * @throws java.io.IOException
+     */
+    public static CounterDistribution deserializeDistribution(
+            byte[] serialDist, Predicate<String> uniqueIdFilter,
+                    Optional<Integer> distributionLimit) throws IOException {
+
+        CounterDistribution result = new CounterDistribution();
+        DistributionReader reader = new DistributionReader(serialDist);
+
+        try {
+            while (reader.next()) {
+                if (!uniqueIdFilter.apply(reader.getUniqueId())) {
                     continue;
                 }
+
+                result.putPresortedEntry(reader.getUniqueId(),
+                        reader.getCount());
+
+                if (distributionLimit.isPresent()) {
+                    if (result.size() >= distributionLimit.get()) {
+                        break;
+                    }
+                }
             }
+        }
+        finally {
+            reader.close();
+        }
+
+        return result;
+    }
+
+    /**
+     * Merge the given increments into a serialized distribution, writing the
+     * result to the given writer.  The serialized distribution is read twice
+     * instead of being inflated: once to find the new counts of the unique
+     * ids it shares with the increments, and once to merge its other entries,
+     * which keep their order, with the updated entries
+     * @param serialDist serialized distribution, null if there is none yet
+     * @param increments counts to add to the distribution
+     * @param target writer of the merged distribution
+     * @return the number of unique ids of the increments which were not in
+     *          the serialized distribution
+     * @throws IOException
+     */
+    public static int mergeDistribution(byte[] serialDist,
+            CounterDistribution increments, DistributionWriter target)
+                    throws IOException {
 
-            int count = Integer.parseInt(line.substring(split + 1));
+        CounterDistribution updated = new CounterDistribution();
 
-            result.putPresortedEntry(uniqueId, count);
+        if (serialDist != null && !increments.isEmpty()) {
+            DistributionReader reader = new DistributionReader(serialDist);
+
+            try {
+                while (reader.next()) {
+                    Integer increment = increments.get(reader.getUniqueId());
 
-            if (distributionLimit.isPresent()) {
-                if (result.size() >= distributionLimit.get()) {
-                    break;
+                    if (increment != null) {
+                        updated.incrementCount(reader.getUniqueId(),
+                                reader.getCount() + increment);
+                    }
                 }
             }
+            finally {
+                reader.close();
+            }
         }
 
-        return result;
+        int newUniqueIds = 0;
+
+        for (Map.Entry<String, Integer> increment : increments.entrySet()) {
+            if (!updated.containsKey(increment.getKey())) {
+                updated.incrementCount(increment.getKey(), increment.getValue());
+                newUniqueIds++;
+            }
+        }
+
+        Iterator<Map.Entry<String, Integer>> updates =
+                updated.entrySet().iterator();
+        Map.Entry<String, Integer> update =
+                updates.hasNext() ? updates.next() : null;
+
+        if (serialDist != null) {
+            DistributionReader reader = new DistributionReader(serialDist);
+
+            try {
+                while (reader.next()) {
+                    if (increments.containsKey(reader.getUniqueId())) {
+                        continue;
+                    }
+
+                    while (update != null && DistributionWriter.compareEntries(
+                            update.getKey(), update.getValue(),
+                            reader.getUniqueId(), reader.getCount()) < 0) {
+                        target.write(update.getKey(), update.getValue());
+                        update = updates.hasNext() ? updates.next() : null;
+                    }
+
+                    target.write(reader.getUniqueId(), reader.getCount());
+                }
+            }
+            finally {
+                reader.close();
+            }
+        }
+
+        while (update != null) {
+            target.write(update.getKey(), update.getValue());
+            update = updates.hasNext() ? updates.next() : null;
+        }
+
+        return newUniqueIds;
     }
 
     /**
      * Load the daily rolled-up counter for the given id.  This is really a
      * composite object of all the daily rolled-up counter datas stored in the
-     * database with ids that start with "namespace|counterDate"
+     * database with ids that start with "namespace|counterDate", along with
+     * their pending deltas
      * @param namespace
      * @param counterDate
      * @return
@@ -525,17 +1342,62 @@ public class DatabaseCounterStorage implements CounterStorage {
     public RolledUpCounter loadDailyRolledUpCounter(final String namespace,
             final DateTime counterDate)
     {
-        return dbi.withHandle(new HandleCallback<RolledUpCounter>()
+        return loadDailyRolledUpCounter(namespace, counterDate,
+                Predicates.<String>alwaysTrue());
+    }
+
+    /**
+     * Load the daily rolled-up counter for the given id, with only the part of
+     * the distributions accepted by the given filter.  Total and unique counts
+     * are the stored ones, for the whole distributions
+     * @param namespace
+     * @param counterDate
+     * @param uniqueIdFilter
+     * @return
+     */
+    @Override
+    public RolledUpCounter loadDailyRolledUpCounter(final String namespace,
+            final DateTime counterDate,
+            final Predicate<String> uniqueIdFilter)
+    {
+        return dbi.inTransaction(new TransactionCallback<RolledUpCounter>()
         {
             @Override
-            public RolledUpCounter withHandle(Handle handle) throws Exception {
-                List<RolledUpCounter> rolledUpCounterList
-                        = handle.attach(DailyRolledUpCounters.class).getById(
-                                namespace, RolledUpCounter.DATE_FORMATTER.print(
-                                        counterDate));
-                return rolledUpCounterList.isEmpty()
-                        ? null
-                        : rolledUpCounterList.get(0);
+            public RolledUpCounter inTransaction(Handle handle,
+                    TransactionStatus status) throws Exception {
+                Map<DateTime, Map<String, PendingDeltas>> pendingDeltas =
+                        loadPendingDeltas(handle, namespace, counterDate,
+                                counterDate, Optional.<Set<String>>absent());
+                SingleCompleteRolledUpCounterMapper mapper =
+                        new SingleCompleteRolledUpCounterMapper(
+                                uniqueIdFilter, pendingDeltas);
+
+                RolledUpCounter result = handle.createQuery(
+                        "SELECT * FROM metrics_daily WHERE "
+                        + "`namespace` = :namespace AND `datestamp` = :datestamp")
+                        .bind("namespace", namespace)
+                        .bind("datestamp",
+                                RolledUpCounter.DATE_FORMATTER.print(counterDate))
+                        .map(mapper)
+                        .first();
+
+                // Counters which only have deltas so far
+                for (Map.Entry<DateTime, Map<String, PendingDeltas>> day
+                        : pendingDeltas.entrySet()) {
+                    if (result == null) {
+                        result = new RolledUpCounter(namespace,
+                                day.getKey(), day.getKey());
+                    }
+
+                    for (Map.Entry<String, PendingDeltas> e
+                            : day.getValue().entrySet()) {
+                        result.getCounterSummary().put(e.getKey(),
+                                mapper.mapCounterData(e.getKey(), 0, 0, null,
+                                        e.getValue()));
+                    }
+                }
+
+                return result;
             }
         });
     }
@@ -561,11 +1423,16 @@ public class DatabaseCounterStorage implements CounterStorage {
             final Optional<Integer> distributionLimit,
             final Optional<Set<String>> unqiueIds)
     {
-        return dbi.withHandle(
-                new HandleCallback<List<RolledUpCounter>>() {
+        return dbi.inTransaction(
+                new TransactionCallback<List<RolledUpCounter>>() {
 
         @Override
-        public List<RolledUpCounter> withHandle(Handle handle) throws Exception {
+        public List<RolledUpCounter> inTransaction(Handle handle,
+                TransactionStatus status) throws Exception {
+
+            Map<DateTime, Map<String, PendingDeltas>> pendingDeltas =
+                    loadPendingDeltas(handle, namespace, fromDate, toDate,
+                            fetchCounterNames);
 
             StringBuilder queryStr = new StringBuilder();
 
@@ -573,10 +1440,19 @@ public class DatabaseCounterStorage implements CounterStorage {
                     + "total_count, unique_count");
 
             // Add the distribution to the set of returned columns if not
-            // excluded
+            // excluded.  Otherwise it is still needed to count the unique ids
+            // of the pending deltas, but only for the counters which have some
             if (!excludeDistribution) {
                 queryStr.append(", distribution");
             }
+            else if (!pendingDeltas.isEmpty()) {
+                queryStr.append(", case when exists (select 1 "
+                        + "from metrics_daily_delta d "
+                        + "where d.`namespace` = metrics_daily.`namespace` "
+                        + "and d.`datestamp` = metrics_daily.`datestamp` "
+                        + "and d.counter_name = metrics_daily.counter_name) "
+                        + "then distribution end as distribution");
+            }
 
             queryStr.append(" from metrics_daily "
                     + "where namespace = :namespace");
@@ -628,11 +1504,14 @@ public class DatabaseCounterStorage implements CounterStorage {
                 }
             }
 
-            List<List<RolledUpCounter>> resultList = query.map(
+            QueriedRolledUpCounterMapper mapper =
                     new QueriedRolledUpCounterMapper(
                             excludeDistribution,
                             distributionLimit,
-                            unqiueIds)).list();
+                            unqiueIds,
+                            pendingDeltas);
+
+            List<List<RolledUpCounter>> resultList = query.map(mapper).list();
 
             List<RolledUpCounter> result;
 
@@ -643,10 +1522,288 @@ public class DatabaseCounterStorage implements CounterStorage {
                 result = resultList.get(0);
             }
 
+            if (pendingDeltas.isEmpty()) {
+                return result;
+            }
+
+            // Counters which only have deltas so far
+            Map<DateTime, RolledUpCounter> resultMap = Maps.newTreeMap();
+
+            for (RolledUpCounter rolledUpCounter : result) {
+                resultMap.put(rolledUpCounter.getFromDateActual(),
+                        rolledUpCounter);
+            }
+
+            for (Map.Entry<DateTime, Map<String, PendingDeltas>> day
+                    : pendingDeltas.entrySet()) {
+                RolledUpCounter rolledUpCounter = resultMap.get(day.getKey());
+
+                if (rolledUpCounter == null) {
+                    rolledUpCounter = new RolledUpCounter(namespace,
+                            day.getKey(), day.getKey());
+                    resultMap.put(day.getKey(), rolledUpCounter);
+                }
+
+                for (Map.Entry<String, PendingDeltas> e
+                        : day.getValue().entrySet()) {
+                    rolledUpCounter.getCounterSummary().put(e.getKey(),
+                            mapper.mapCounterData(e.getKey(), 0, 0, null,
+                                    e.getValue()));
+                }
+            }
+
+            return ImmutableList.copyOf(resultMap.values());
+        }});
+    }
+
+    /**
+     * Merge the unique id sketches of the daily rolled-up counters of the
+     * given namespace and date range, by counter name.  Distributions are only
+     * read for the rows stored before the sketches existed
+     * @param namespace
+     * @param fromDate
+     * @param toDate
+     * @param fetchCounterNames
+     * @return the merged sketch of each counter name
+     */
+    @Override
+    public Map<String, HyperLogLog> loadDailyUniqueIdSketches(
+            final String namespace,
+            final DateTime fromDate, final DateTime toDate,
+            final Optional<Set<String>> fetchCounterNames)
+    {
+        return dbi.inTransaction(
+                new TransactionCallback<Map<String, HyperLogLog>>() {
+
+        @Override
+        public Map<String, HyperLogLog> inTransaction(Handle handle,
+                TransactionStatus status) throws Exception {
+
+            StringBuilder queryStr = new StringBuilder();
+
+            queryStr.append("select counter_name, unique_sketch, "
+                    + "case when unique_sketch is null then distribution end "
+                    + "as distribution from metrics_daily "
+                    + "where namespace = :namespace");
+
+            if (fromDate != null) {
+                queryStr.append(" and datestamp >= :fromDate");
+            }
+            if (toDate != null) {
+                queryStr.append(" and datestamp <= :toDate");
+            }
+            if (fetchCounterNames != null
+                    && fetchCounterNames.isPresent()
+                    && !fetchCounterNames.get().isEmpty()) {
+                queryStr.append(" and counter_name in (");
+
+                for (int i = 0; i < fetchCounterNames.get().size(); i++) {
+
+                    if (i > 0) {
+                        queryStr.append(", ");
+                    }
+
+                    queryStr.append(":counterName_");
+                    queryStr.append(i);
+                }
+
+                queryStr.append(")");
+            }
+
+            Query<Map<String, Object>> query =  handle.createQuery(
+                    queryStr.toString()).bind("namespace", namespace);
+
+            if(null != fromDate) {
+                query.bind("fromDate",
+                        RolledUpCounter.DATE_FORMATTER.print(fromDate));
+            }
+            if(null != toDate) {
+                query.bind("toDate",
+                        RolledUpCounter.DATE_FORMATTER.print(toDate));
+            }
+            if (fetchCounterNames != null
+                    && fetchCounterNames.isPresent()
+                    && !fetchCounterNames.get().isEmpty()) {
+
+                int index = 0;
+
+                for (String counterName : fetchCounterNames.get()) {
+                    query.bind("counterName_" + (index++), counterName);
+                }
+            }
+
+            Map<String, HyperLogLog> result = Maps.newHashMap();
+            ResultIterator<Map<String, Object>> rs = query.iterator();
+
+            try {
+                while (rs.hasNext()) {
+                    Map<String, Object> row = rs.next();
+                    String counterName = (String) row.get("counter_name");
+                    byte[] serialSketch = (byte[]) row.get("unique_sketch");
+
+                    HyperLogLog sketch = serialSketch == null
+                            ? sketchDistribution(
+                                    (byte[]) row.get("distribution"))
+                            : HyperLogLog.fromBytes(serialSketch);
+
+                    HyperLogLog merged = result.get(counterName);
+
+                    if (merged == null) {
+                        result.put(counterName, sketch);
+                    }
+                    else {
+                        merged.merge(sketch);
+                    }
+                }
+            }
+            finally {
+                rs.close();
+            }
+
+            // The unique ids of the pending deltas
+            for (Map<String, PendingDeltas> day : loadPendingDeltas(handle,
+                    namespace, fromDate, toDate, fetchCounterNames).values()) {
+                for (Map.Entry<String, PendingDeltas> e : day.entrySet()) {
+                    HyperLogLog merged = result.get(e.getKey());
+
+                    if (merged == null) {
+                        merged = new HyperLogLog();
+                        result.put(e.getKey(), merged);
+                    }
+
+                    for (String uniqueId
+                            : e.getValue().distribution.keySet()) {
+                        merged.offer(uniqueId);
+                    }
+                }
+            }
+
             return result;
         }});
     }
 
+    /**
+     * Load the deltas of the daily rolled-up counters of the given namespace,
+     * date range and counter names, summed up by day and counter name.  These
+     * are plain reads: the deltas are neither locked nor compacted, which is
+     * left to the compaction job.  Readers merge them in memory, in the
+     * transaction which reads metrics_daily, so that both come from the same
+     * snapshot and a compaction committing meanwhile is seen either entirely
+     * or not at all
+     * @param handle
+     * @param namespace
+     * @param fromDate first date to load, unbounded if null
+     * @param toDate last date to load, unbounded if null
+     * @param fetchCounterNames
+     * @return the pending deltas by date, then by counter name
+     * @throws IOException
+     */
+    private static Map<DateTime, Map<String, PendingDeltas>> loadPendingDeltas(
+            Handle handle, String namespace,
+            DateTime fromDate, DateTime toDate,
+            Optional<Set<String>> fetchCounterNames) throws IOException {
+
+        StringBuilder queryStr = new StringBuilder();
+
+        queryStr.append("select `datestamp`, counter_name, total_count, "
+                + "distribution from metrics_daily_delta "
+                + "where `namespace` = :namespace");
+
+        if (fromDate != null) {
+            queryStr.append(" and datestamp >= :fromDate");
+        }
+        if (toDate != null) {
+            queryStr.append(" and datestamp <= :toDate");
+        }
+        if (fetchCounterNames != null
+                && fetchCounterNames.isPresent()
+                && !fetchCounterNames.get().isEmpty()) {
+            queryStr.append(" and counter_name in (");
+
+            for (int i = 0; i < fetchCounterNames.get().size(); i++) {
+
+                if (i > 0) {
+                    queryStr.append(", ");
+                }
+
+                queryStr.append(":counterName_");
+                queryStr.append(i);
+            }
+
+            queryStr.append(")");
+        }
+
+        Query<Map<String, Object>> query =  handle.createQuery(
+                queryStr.toString()).bind("namespace", namespace);
+
+        if(null != fromDate) {
+            query.bind("fromDate",
+                    RolledUpCounter.DATE_FORMATTER.print(fromDate));
+        }
+        if(null != toDate) {
+            query.bind("toDate",
+                    RolledUpCounter.DATE_FORMATTER.print(toDate));
+        }
+        if (fetchCounterNames != null
+                && fetchCounterNames.isPresent()
+                && !fetchCounterNames.get().isEmpty()) {
+
+            int index = 0;
+
+            for (String counterName : fetchCounterNames.get()) {
+                query.bind("counterName_" + (index++), counterName);
+            }
+        }
+
+        Map<DateTime, Map<String, PendingDeltas>> result = Maps.newTreeMap();
+        ResultIterator<Map<String, Object>> rs = query.iterator();
+
+        try {
+            while (rs.hasNext()) {
+                Map<String, Object> row = rs.next();
+
+                // Same dates as the ones mapped from metrics_daily
+                DateTime date = new DateTime(row.get("datestamp"));
+                String counterName = (String) row.get("counter_name");
+
+                Map<String, PendingDeltas> day = result.get(date);
+
+                if (day == null) {
+                    day = Maps.newHashMap();
+                    result.put(date, day);
+                }
+
+                PendingDeltas pending = day.get(counterName);
+
+                if (pending == null) {
+                    pending = new PendingDeltas();
+                    day.put(counterName, pending);
+                }
+
+                pending.totalCount +=
+                        ((Number) row.get("total_count")).longValue();
+
+                DistributionReader reader = new DistributionReader(
+                        (byte[]) row.get("distribution"));
+
+                try {
+                    while (reader.next()) {
+                        pending.distribution.incrementCount(
+                                reader.getUniqueId(), reader.getCount());
+                    }
+                }
+                finally {
+                    reader.close();
+                }
+            }
+        }
+        finally {
+            rs.close();
+        }
+
+        return result;
+    }
+
     @Override
     public int cleanExpiredDailyRolledUpCounters(final DateTime toDateTime)
     {
@@ -662,25 +1819,96 @@ public class DatabaseCounterStorage implements CounterStorage {
                         "toDateTime",
                         RolledUpCounter.DATE_FORMATTER.print(toDateTime));
 
-                return query.execute();
+                int result = query.execute();
+
+                // Deltas of expired days will never be read
+                handle.createStatement("delete from metrics_daily_delta "
+                        + "where `datestamp` <= :toDateTime")
+                        .bind("toDateTime",
+                                RolledUpCounter.DATE_FORMATTER.print(toDateTime))
+                        .execute();
+
+                return result;
             }});
 
         return deleted;
     }
 
+    /**
+     * (namespace, datestamp, counter name) of rolled-up counter deltas
+     */
+    private static final class DeltaKey {
+
+        private static final ResultSetMapper<DeltaKey> MAPPER =
+                new ResultSetMapper<DeltaKey>() {
+
+            @Override
+            public DeltaKey map(int index, ResultSet r, StatementContext ctx)
+                    throws SQLException {
+                return new DeltaKey(r.getString("namespace"),
+                        r.getString("day"), r.getString("counter_name"));
+            }
+        };
+
+        private final String namespace;
+        private final String datestamp;
+        private final String counterName;
+
+        private DeltaKey(String namespace, String datestamp,
+                String counterName) {
+            this.namespace = namespace;
+            this.datestamp = datestamp;
+            this.counterName = counterName;
+        }
+    }
+
+    /**
+     * The deltas of a daily rolled-up counter which were not compacted yet,
+     * summed up
+     */
+    private static final class PendingDeltas {
+
+        private long totalCount = 0;
+        private final CounterDistribution distribution =
+                new CounterDistribution();
+    }
+
+    /**
+     * Remove from the given pending deltas the ones of the given date and
+     * counter name
+     * @return the removed pending deltas, null if there are none
+     */
+    private static PendingDeltas removePendingDeltas(
+            Map<DateTime, Map<String, PendingDeltas>> pendingDeltas,
+            DateTime date, String counterName) {
+        Map<String, PendingDeltas> day = pendingDeltas.get(date);
+
+        if (day == null) {
+            return null;
+        }
+
+        PendingDeltas result = day.remove(counterName);
+
+        if (day.isEmpty()) {
+            pendingDeltas.remove(date);
+        }
+
+        return result;
+    }
+
     public static class CounterEventDataMapper implements ResultSetMapper<CounterEventData>
     {
-        private final ObjectMapper mapper;
+        private final CounterEventDataCodec codec;
 
-        public CounterEventDataMapper(final ObjectMapper mapper){
-            this.mapper = mapper;
+        public CounterEventDataMapper(final CounterEventDataCodec codec){
+            this.codec = codec;
         }
 
         @Override
         public CounterEventData map(int index, ResultSet r, StatementContext ctx) throws SQLException
         {
             try {
-                return mapper.readValue(r.getString("metrics"), CounterEventData.class);
+                return codec.decode(r.getBytes("metrics"));
             }
             catch (IOException e) {
                 throw new UnsupportedOperationException("Error handling not implemented!", e);
@@ -693,6 +1921,31 @@ public class DatabaseCounterStorage implements CounterStorage {
     public static class SingleCompleteRolledUpCounterMapper
             implements ResultSetMapper<RolledUpCounter> {
 
+        private final Predicate<String> uniqueIdFilter;
+        private final Map<DateTime, Map<String, PendingDeltas>> pendingDeltas;
+
+        public SingleCompleteRolledUpCounterMapper() {
+            this(Predicates.<String>alwaysTrue());
+        }
+
+        public SingleCompleteRolledUpCounterMapper(
+                Predicate<String> uniqueIdFilter) {
+            this(uniqueIdFilter,
+                    Maps.<DateTime, Map<String, PendingDeltas>>newHashMap());
+        }
+
+        /**
+         * @param uniqueIdFilter
+         * @param pendingDeltas deltas to merge into the mapped rows, removed
+         *          from the map as they are merged
+         */
+        private SingleCompleteRolledUpCounterMapper(
+                Predicate<String> uniqueIdFilter,
+                Map<DateTime, Map<String, PendingDeltas>> pendingDeltas) {
+            this.uniqueIdFilter = uniqueIdFilter;
+            this.pendingDeltas = pendingDeltas;
+        }
+
         /**
          * This is a one to many mapping, so the given result set will be read
          * completely in the first call
@@ -716,7 +1969,7 @@ public class DatabaseCounterStorage implements CounterStorage {
                         = Maps.newHashMap();
 
                 do {
-                    RolledUpCounterData single = mapSingle(r);
+                    RolledUpCounterData single = mapSingle(r, date);
                     counterSummary.put(single.getCounterName(), single);
 
                 } while(r.next());
@@ -733,16 +1986,43 @@ public class DatabaseCounterStorage implements CounterStorage {
         /**
          * Map a single row in the result set to a
          * @param r
+         * @param date
          * @return
          */
-        private RolledUpCounterData mapSingle(ResultSet r)
+        private RolledUpCounterData mapSingle(ResultSet r, DateTime date)
                 throws SQLException, IOException {
             String counterName = r.getString("counter_name");
-            int totalCount = r.getInt("total_count");
-            int uniqueCount = r.getInt("unique_count");
+
+            return mapCounterData(counterName,
+                    r.getInt("total_count"), r.getInt("unique_count"),
+                    r.getBytes("distribution"),
+                    removePendingDeltas(pendingDeltas, date, counterName));
+        }
+
+        /**
+         * Map the given stored counts and serialized distribution, merged
+         * with the given pending deltas
+         * @param counterName
+         * @param totalCount
+         * @param uniqueCount
+         * @param serialDist null if nothing was stored yet
+         * @param pending null if there are none
+         * @return
+         */
+        private RolledUpCounterData mapCounterData(String counterName,
+                int totalCount, int uniqueCount, byte[] serialDist,
+                PendingDeltas pending) throws IOException {
+            if (pending != null) {
+                DistributionWriter writer = new DistributionWriter();
+                uniqueCount += mergeDistribution(serialDist,
+                        pending.distribution, writer);
+                totalCount += (int) pending.totalCount;
+                serialDist = writer.finish();
+            }
+
             CounterDistribution distriution =
-                    deserializeDistribution(r.getBytes("distribution"),
-                            Optional.<Set<String>>absent(),
+                    deserializeDistribution(serialDist,
+                            uniqueIdFilter,
                             Optional.<Integer>absent());
 
             RolledUpCounterData result = new RolledUpCounterData(
@@ -764,11 +2044,29 @@ public class DatabaseCounterStorage implements CounterStorage {
         private final boolean excludeDistribution;
         private final Optional<Integer> distributionLimit;
         private final Optional<Set<String>> uniqueIds;
+        private final Map<DateTime, Map<String, PendingDeltas>> pendingDeltas;
 
         public QueriedRolledUpCounterMapper(
                 boolean excludeDistribution,
                 Optional<Integer> distributionLimit,
                 Optional<Set<String>> uniqueIds) {
+            this(excludeDistribution, distributionLimit, uniqueIds,
+                    Maps.<DateTime, Map<String, PendingDeltas>>newHashMap());
+        }
+
+        /**
+         * @param excludeDistribution
+         * @param distributionLimit
+         * @param uniqueIds
+         * @param pendingDeltas deltas to merge into the mapped rows, removed
+         *          from the map as they are merged.  Even if the distribution
+         *          is excluded, the rows with pending deltas must have it
+         */
+        private QueriedRolledUpCounterMapper(
+                boolean excludeDistribution,
+                Optional<Integer> distributionLimit,
+                Optional<Set<String>> uniqueIds,
+                Map<DateTime, Map<String, PendingDeltas>> pendingDeltas) {
             this.excludeDistribution = excludeDistribution;
             this.distributionLimit
                     = distributionLimit == null
@@ -778,6 +2076,7 @@ public class DatabaseCounterStorage implements CounterStorage {
                     = uniqueIds == null
                     ? Optional.<Set<String>>absent()
                     : uniqueIds;
+            this.pendingDeltas = pendingDeltas;
         }
 
         /**
@@ -823,7 +2122,7 @@ public class DatabaseCounterStorage implements CounterStorage {
 
                     lastDate = date;
 
-                    RolledUpCounterData single = mapSingle(r);
+                    RolledUpCounterData single = mapSingle(r, date);
                     currSummary.put(single.getCounterName(), single);
 
                 } while(r.next());
@@ -849,18 +2148,49 @@ public class DatabaseCounterStorage implements CounterStorage {
          * Map a single row in the result set to and take into account the
          * member query parameters like distribution limit and exclusion
          * @param r
+         * @param date
          * @return
          */
-        private RolledUpCounterData mapSingle(ResultSet r)
+        private RolledUpCounterData mapSingle(ResultSet r, DateTime date)
                 throws SQLException, IOException {
             String counterName = r.getString("counter_name");
-            int totalCount = r.getInt("total_count");
-            int uniqueCount = r.getInt("unique_count");
+            PendingDeltas pending =
+                    removePendingDeltas(pendingDeltas, date, counterName);
+
+            return mapCounterData(counterName,
+                    r.getInt("total_count"), r.getInt("unique_count"),
+                    excludeDistribution && pending == null
+                            ? null : r.getBytes("distribution"),
+                    pending);
+        }
+
+        /**
+         * Map the given stored counts and serialized distribution, merged
+         * with the given pending deltas
+         * @param counterName
+         * @param totalCount
+         * @param uniqueCount
+         * @param serialDist null if nothing was stored yet, or if the
+         *          distribution is excluded and there are no pending deltas
+         * @param pending null if there are none
+         * @return
+         */
+        private RolledUpCounterData mapCounterData(String counterName,
+                int totalCount, int uniqueCount, byte[] serialDist,
+                PendingDeltas pending) throws IOException {
+            if (pending != null) {
+                DistributionWriter writer = new DistributionWriter();
+                uniqueCount += mergeDistribution(serialDist,
+                        pending.distribution, writer);
+                totalCount += (int) pending.totalCount;
+                serialDist = writer.finish();
+            }
+
             CounterDistribution distribution =
                     excludeDistribution
                     ? null
                     : deserializeDistribution(
-                            r.getBytes("distribution"),
+                            serialDist,
                             uniqueIds,
                             distributionLimit);
 
@@ -23,15 +23,14 @@ import static org.quartz.TriggerBuilder.newTrigger;
 import com.ning.arecibo.jmx.Monitored;
 import com.ning.arecibo.jmx.MonitoringType;
 import com.ning.metrics.collector.binder.config.CollectorConfig;
-import com.ning.metrics.collector.processing.EventSpoolProcessor;
 import com.ning.metrics.collector.processing.SerializationType;
+import com.ning.metrics.collector.processing.SpoolFile;
+import com.ning.metrics.collector.processing.SpoolFileProcessor;
 import com.ning.metrics.collector.processing.db.model.FeedEvent;
 import com.ning.metrics.collector.processing.db.model.FeedEventData;
 import com.ning.metrics.collector.processing.db.model.Subscription;
 import com.ning.metrics.collector.processing.quartz.FeedEventCleanUpJob;
 import com.ning.metrics.collector.processing.quartz.FeedUpdateQuartzJob;
-import com.ning.metrics.serialization.event.Event;
-import com.ning.metrics.serialization.event.EventDeserializer;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.base.Objects;
@@ -53,7 +52,6 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.HashSet;
 import java.util.List;
@@ -66,7 +64,7 @@ import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
-public class FeedEventSpoolProcessor implements EventSpoolProcessor
+public class FeedEventSpoolProcessor implements SpoolFileProcessor
 {
     private static final Logger log = LoggerFactory.getLogger(FeedEventSpoolProcessor.class);
     private final CollectorConfig config;
@@ -112,42 +110,46 @@ public class FeedEventSpoolProcessor implements EventSpoolProcessor
     @Override
     public void processEventFile(final String eventName, final SerializationType serializationType, final File file, final String outputPath) throws IOException
     {
-        // File has Smile type of events
-        EventDeserializer eventDeserializer = serializationType.getDeSerializer(new FileInputStream(file));
+        final SpoolFile spoolFile = new SpoolFile(file, eventName, serializationType);
+        try {
+            processSpoolFile(spoolFile, outputPath);
+        }
+        finally {
+            spoolFile.close();
+        }
+    }
+
+    @Override
+    public void processSpoolFile(final SpoolFile spoolFile, final String outputPath) throws IOException
+    {
+        // File has Smile type of events, decoded once for all processors
+        final String eventName = DBStorageTypes.FEED_EVENT.getDbStorageType();
+        final List<FeedEventData> feedEvents = spoolFile.getEventData(eventName, FeedEventData.class, mapper);
         
         /*This would handle insertion of Subscriptions and Feed Events. 
          * The subscriptions  would be stored as they come by, however for feed events
          * the storage would be done in bulk after the complete file is read, 
          * since feed events depend upon the subscriptions*/
-        while(eventDeserializer.hasNextEvent())
+        for(FeedEventData feedEventData : feedEvents)
         {
-            Event event = eventDeserializer.getNextEvent();
-            log.debug(String.format("Recieved DB Event to store with name as %s ",event.getName()));
-            
-            if(event.getName().equalsIgnoreCase(DBStorageTypes.FEED_EVENT.getDbStorageType()))
-            {
-               log.debug(String.format("DB Event body to store is %s",event.getData()));
-                 
-               FeedEventData feedEventData = mapper.readValue(event.getData().toString(), FeedEventData.class);
-               //Check is event type is to suppress other events
-               boolean isSuppressTypeEvent = Objects.equal(FeedEventData.EVENT_TYPE_SUPPRESS, feedEventData.getEventType());
-               
-               Set<Subscription> subscriptions = new HashSet<Subscription>();
-               for(String topic : feedEventData.getTopics()){
-                   // If suppress type event then load all subsciptions which start with the topic else load it by exploding the topic
-                   subscriptions.addAll(isSuppressTypeEvent?subscriptionStorage.loadByStartsWithTopic(topic):subscriptionStorage.loadByTopic(topic));
-               }
-               if(!subscriptions.isEmpty())
+           //Check is event type is to suppress other events
+           boolean isSuppressTypeEvent = Objects.equal(FeedEventData.EVENT_TYPE_SUPPRESS, feedEventData.getEventType());
+           
+           Set<Subscription> subscriptions = new HashSet<Subscription>();
+           for(String topic : feedEventData.getTopics()){
+               // If suppress type event then load all subsciptions which start with the topic else load it by exploding the topic
+               subscriptions.addAll(isSuppressTypeEvent?subscriptionStorage.loadByStartsWithTopic(topic):subscriptionStorage.loadByTopic(topic));
+           }
+           if(!subscriptions.isEmpty())
+           {
+               for(Subscription subscription : subscriptions)
                {
-                   for(Subscription subscription : subscriptions)
-                   {
-                       addToBuffer(event.getName(),new FeedEvent(feedEventData, 
-                                                           subscription.getChannel(), 
-                                                           subscription.getId(), 
-                                                           subscription.getMetadata()));
-                   }
-               }                  
-            }            
+                   addToBuffer(eventName,new FeedEvent(feedEventData, 
+                                                       subscription.getChannel(), 
+                                                       subscription.getId(), 
+                                                       subscription.getMetadata()));
+               }
+           }                  
         }
         
     }
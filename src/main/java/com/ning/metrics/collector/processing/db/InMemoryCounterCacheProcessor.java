@@ -15,173 +15,286 @@
  */
 package com.ning.metrics.collector.processing.db;
 
-import com.google.common.base.Objects;
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.RemovalCause;
-import com.google.common.cache.RemovalListener;
-import com.google.common.cache.RemovalListeners;
-import com.google.common.cache.RemovalNotification;
-import com.google.common.cache.Weigher;
-import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Multimap;
-import com.google.common.collect.Queues;
 import com.google.inject.Inject;
-import com.mogwee.executors.LoggingExecutor;
-import com.mogwee.executors.NamedThreadFactory;
+import com.mogwee.executors.FailsafeScheduledExecutor;
 import com.ning.arecibo.jmx.Monitored;
 import com.ning.arecibo.jmx.MonitoringType;
 import com.ning.metrics.collector.binder.config.CollectorConfig;
 import com.ning.metrics.collector.processing.db.model.CounterEventData;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
-import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import org.skife.config.TimeSpan;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Write-behind buffer of counter event data in front of the metrics buffer
+ * table.  Counter event data is accumulated per namespace, each namespace
+ * having its own locks, and a namespace is flushed to the database writers as
+ * soon as it holds enough counter event data, or by the sweeper once its
+ * oldest counter event data has waited for the flush time.  A namespace is
+ * drained under its locks, so counter event data is either in the buffer or
+ * handed to the writers, never lost in between.
+ */
 public class InMemoryCounterCacheProcessor implements CounterEventCacheProcessor
 {
     private static final Logger log = LoggerFactory.getLogger(InMemoryCounterCacheProcessor.class);
 
-    final Cache<String, Queue<CounterEventData>> counterEventsBySubscriptionId;
-    private final ExecutorService executorService;
+    private static final long MIN_SWEEP_PERIOD_MILLIS = 100L;
+    private static final long MAX_SWEEP_PERIOD_MILLIS = 60000L;
+    private static final int MAX_STRIPE_COUNT = 16;
+
+    private final MetricsBufferWriter writer;
+    private final ConcurrentMap<String, NamespaceBuffer> buffers = new ConcurrentHashMap<String, NamespaceBuffer>();
+    private final ScheduledExecutorService sweepExecutor;
     private final TimeSpan executorShutdownTimeOut;
-    final TimeSpan counterEventDBFlushTime;
+    private final long flushTimeNanos;
+    private final long maxBufferedCount;
+
+    private final AtomicLong bufferedCounterEvents = new AtomicLong(0);
 
-    @Inject
     public InMemoryCounterCacheProcessor(final CollectorConfig config, final CounterStorage counterStorage)
     {
+        this(config, new MetricsBufferWriter(config, counterStorage));
+    }
 
+    @Inject
+    public InMemoryCounterCacheProcessor(final CollectorConfig config, final MetricsBufferWriter writer)
+    {
+        this.writer = writer;
         this.executorShutdownTimeOut = config.getSpoolWriterExecutorShutdownTime();
-        this.counterEventDBFlushTime = config.getCounterEventMemoryFlushTime();
-
-
-
-        this.executorService = new LoggingExecutor(1, 1 , Long.MAX_VALUE, TimeUnit.DAYS, new ArrayBlockingQueue<Runnable>(2), new NamedThreadFactory("CounterEvents-Storage-Threads"),new ThreadPoolExecutor.CallerRunsPolicy());
-
-
-        this.counterEventsBySubscriptionId = CacheBuilder.newBuilder()
-                .expireAfterAccess(counterEventDBFlushTime.getPeriod(),counterEventDBFlushTime.getUnit())
-                .maximumWeight(config.getMaxCounterEventFlushCacheCount())
-                .weigher(new Weigher<String, Queue<CounterEventData>>()
-                    {
-                        @Override
-                        public int weigh(String key, Queue<CounterEventData> value)
-                        {
-                           return value.size();
-                        }
-                    })
-                .removalListener(RemovalListeners.asynchronous(new RemovalListener<String, Queue<CounterEventData>>() {
-
-                    @Override
-                    public void onRemoval(RemovalNotification<String, Queue<CounterEventData>> removalNotification)
-                    {
-                        if(!Objects.equal(removalNotification.getCause(), RemovalCause.REPLACED) && !Objects.equal(null, removalNotification.getValue()) && !removalNotification.getValue().isEmpty())
-                        {
-                            Multimap<String, CounterEventData> multimap = ArrayListMultimap.create();
-                            List<CounterEventData> counterEventDataList = Lists.newArrayList(removalNotification.getValue());
-                            removalNotification.getValue().clear();
-                            Map<String,CounterEventData> groupMap = new ConcurrentHashMap<String, CounterEventData>();
-
-                            for(CounterEventData counterEventData : counterEventDataList)
-                            {
-                                CounterEventData groupedData = groupMap.get(counterEventData.getUniqueIdentifier()+counterEventData.getFormattedDate());
-
-                                if(Objects.equal(null, groupedData))
-                                {
-                                    groupMap.put(counterEventData.getUniqueIdentifier()+counterEventData.getFormattedDate(), counterEventData);
-                                    continue;
-                                }
-
-                                groupedData.mergeCounters(counterEventData.getCounters());
-                                groupMap.put(counterEventData.getUniqueIdentifier()+counterEventData.getFormattedDate(), groupedData);
-                            }
-
-                            multimap.putAll(removalNotification.getKey(), groupMap.values());
-                            counterStorage.bufferMetrics(multimap);
-                        }
-                    }},  this.executorService))
-                .recordStats()
-                .build();
+        this.maxBufferedCount = Math.max(1, config.getMaxCounterEventFlushCacheCount());
 
+        final TimeSpan flushTime = config.getCounterEventMemoryFlushTime();
+        this.flushTimeNanos = flushTime.getUnit().toNanos(flushTime.getPeriod());
+
+        // Namespaces which stopped receiving counter events are flushed by the sweeper
+        final long sweepPeriodMillis = Math.min(MAX_SWEEP_PERIOD_MILLIS, Math.max(MIN_SWEEP_PERIOD_MILLIS, flushTime.getMillis() / 2));
+        this.sweepExecutor = new FailsafeScheduledExecutor(1, "CounterEvents-Buffer-Sweeper");
+        sweepExecutor.scheduleWithFixedDelay(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                processRemainingCounters();
+            }
+        }, sweepPeriodMillis, sweepPeriodMillis, TimeUnit.MILLISECONDS);
     }
 
     @Override
     public void addCounterEventData(final String namespace, final CounterEventData counterEventData)
     {
-        Queue<CounterEventData> counterEventDataQueue = this.counterEventsBySubscriptionId.getIfPresent(namespace);
-        if(Objects.equal(null, counterEventDataQueue))
-        {
-            counterEventDataQueue = Queues.newConcurrentLinkedQueue();
-        }
+        while (true) {
+            NamespaceBuffer buffer = buffers.get(namespace);
+
+            if (buffer == null) {
+                final NamespaceBuffer newBuffer = new NamespaceBuffer();
+                buffer = buffers.putIfAbsent(namespace, newBuffer);
+
+                if (buffer == null) {
+                    buffer = newBuffer;
+                }
+            }
 
-        counterEventDataQueue.offer(counterEventData);
-        this.counterEventsBySubscriptionId.put(namespace, counterEventDataQueue);
+            // A buffer drained meanwhile is retired, retry with a new one
+            final int bufferedCount = buffer.add(counterEventData);
+
+            if (bufferedCount > 0) {
+                bufferedCounterEvents.incrementAndGet();
+
+                if (bufferedCount >= maxBufferedCount) {
+                    flush(namespace, buffer);
+                }
+                return;
+            }
+        }
     }
 
+    /**
+     * Flush the namespaces which are due, by size or by time
+     */
     @Override
-    public void processRemainingCounters(){
-        this.counterEventsBySubscriptionId.cleanUp();
+    public void processRemainingCounters()
+    {
+        for (final Map.Entry<String, NamespaceBuffer> entry : buffers.entrySet()) {
+            flushIfDue(entry.getKey(), entry.getValue());
+        }
     }
 
     @Override
     public void cleanUp()
     {
-        this.counterEventsBySubscriptionId.cleanUp();
-        this.counterEventsBySubscriptionId.invalidateAll();
-
         log.info("Shutting Down Executor Service for Counter Event Cache Storage");
-        executorService.shutdown();
+        sweepExecutor.shutdown();
 
         try {
-            executorService.awaitTermination(executorShutdownTimeOut.getPeriod(), executorShutdownTimeOut.getUnit());
+            sweepExecutor.awaitTermination(executorShutdownTimeOut.getPeriod(), executorShutdownTimeOut.getUnit());
         }
         catch (InterruptedException ex) {
             Thread.currentThread().interrupt();
         }
-        executorService.shutdownNow();
+        sweepExecutor.shutdownNow();
+
+        // Hand over everything still buffered before the writers go away
+        for (final Map.Entry<String, NamespaceBuffer> entry : buffers.entrySet()) {
+            flush(entry.getKey(), entry.getValue());
+        }
+
+        writer.cleanUp();
     }
 
-    @Monitored(description = "Number of Counter Events in buffer", monitoringType = {MonitoringType.VALUE})
-    public long getCounterEventsInCache(){
-        return counterEventsBySubscriptionId.size();
+    private void flushIfDue(final String namespace, final NamespaceBuffer buffer)
+    {
+        if (buffer.isDue(maxBufferedCount, flushTimeNanos)) {
+            flush(namespace, buffer);
+        }
     }
 
-    @Monitored(description = "The number of times Counter Events lookup methods have returned a cached value", monitoringType = {MonitoringType.VALUE})
-    public long getCounterEventsCacheHitCount(){
-        return counterEventsBySubscriptionId.stats().hitCount();
+    private void flush(final String namespace, final NamespaceBuffer buffer)
+    {
+        final List<CounterEventData> counterEventDataList = buffer.drain();
+
+        // Whoever retired the buffer removes it, later counter events go to a new one
+        buffers.remove(namespace, buffer);
+
+        if (counterEventDataList.isEmpty()) {
+            return;
+        }
+
+        bufferedCounterEvents.addAndGet(-counterEventDataList.size());
+        writer.write(namespace, counterEventDataList);
     }
 
-    @Monitored(description = "The ratio of Counter Events requests which were hits", monitoringType = {MonitoringType.VALUE})
-    public double getCounterEventsCacheHitRate(){
-        return counterEventsBySubscriptionId.stats().hitRate();
+    @Monitored(description = "Number of Counter Events in buffer", monitoringType = {MonitoringType.VALUE})
+    public long getCounterEventsInCache()
+    {
+        return bufferedCounterEvents.get();
     }
 
-    @Monitored(description = "The total number of times that Counter Events lookup methods attempted to load new values", monitoringType = {MonitoringType.VALUE})
-    public long getCounterEventsCacheLoadCount(){
-        return counterEventsBySubscriptionId.stats().loadCount();
+    @Monitored(description = "Number of namespaces with buffered Counter Events", monitoringType = {MonitoringType.VALUE})
+    public long getBufferedNamespaces()
+    {
+        return buffers.size();
     }
 
-    @Monitored(description = "The number of times Counter Events lookup methods have returned an uncached (newly loaded) value, or null", monitoringType = {MonitoringType.VALUE})
-    public long getCounterEventsCacheMissCount(){
-        return counterEventsBySubscriptionId.stats().missCount();
+    public long getFlushedCounterEvents()
+    {
+        return writer.getFlushedCounterEvents();
     }
 
-    @Monitored(description = "The ratio of Counter Events requests which were misses", monitoringType = {MonitoringType.VALUE})
-    public double getCounterEventsCacheMissRate(){
-        return counterEventsBySubscriptionId.stats().missRate();
+    public long getCounterEventFlushes()
+    {
+        return writer.getCounterEventFlushes();
     }
 
-    @Monitored(description = "The number of times Counter Events lookup methods have returned either a cached or uncached value", monitoringType = {MonitoringType.VALUE})
-    public long getCounterEventsCacheRequestCount(){
-        return counterEventsBySubscriptionId.stats().requestCount();
+    /**
+     * Counter event data buffered for a single namespace.  The buffer is
+     * striped by thread, so that the threads adding counter events of a busy
+     * namespace do not all wait on the same lock; draining it drains every
+     * stripe.
+     */
+    private static final class NamespaceBuffer
+    {
+        private static final int STRIPE_COUNT = Math.max(1, Math.min(MAX_STRIPE_COUNT, Runtime.getRuntime().availableProcessors()));
+
+        private final Stripe[] stripes = new Stripe[STRIPE_COUNT];
+        private final AtomicInteger bufferedCount = new AtomicInteger(0);
+
+        private NamespaceBuffer()
+        {
+            for (int i = 0; i < stripes.length; i++) {
+                stripes[i] = new Stripe();
+            }
+        }
+
+        /**
+         * @return the number of counter event data in the buffer, 0 if the
+         *         buffer was retired and the counter event data was not added
+         */
+        private int add(final CounterEventData counterEventData)
+        {
+            final Stripe stripe = stripes[(int) (Thread.currentThread().getId() % stripes.length)];
+
+            if (!stripe.add(counterEventData)) {
+                return 0;
+            }
+
+            return bufferedCount.incrementAndGet();
+        }
+
+        private boolean isDue(final long maxBufferedCount, final long flushTimeNanos)
+        {
+            // A retired buffer found due is drained again, which yields nothing
+            if (bufferedCount.get() >= maxBufferedCount) {
+                return true;
+            }
+
+            for (final Stripe stripe : stripes) {
+                if (stripe.isDue(flushTimeNanos)) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        /**
+         * Retire the buffer and take its counter event data.  Every stripe is
+         * retired under its own lock, so counter event data added concurrently
+         * is either drained or refused.
+         */
+        private List<CounterEventData> drain()
+        {
+            final List<CounterEventData> result = Lists.newArrayList();
+
+            for (final Stripe stripe : stripes) {
+                stripe.drainTo(result);
+            }
+
+            return result;
+        }
     }
 
+    /**
+     * Counter event data buffered for a namespace by some of the threads
+     */
+    private static final class Stripe
+    {
+        private List<CounterEventData> counterEventDataList = Lists.newArrayList();
+        private long firstAddedNanos = 0;
+        private boolean retired = false;
+
+        private synchronized boolean add(final CounterEventData counterEventData)
+        {
+            if (retired) {
+                return false;
+            }
+
+            if (counterEventDataList.isEmpty()) {
+                firstAddedNanos = System.nanoTime();
+            }
+
+            counterEventDataList.add(counterEventData);
+            return true;
+        }
+
+        private synchronized boolean isDue(final long flushTimeNanos)
+        {
+            return !retired && !counterEventDataList.isEmpty() && System.nanoTime() - firstAddedNanos >= flushTimeNanos;
+        }
+
+        private synchronized void drainTo(final List<CounterEventData> target)
+        {
+            target.addAll(counterEventDataList);
+            counterEventDataList = Lists.newArrayList();
+            retired = true;
+        }
+    }
 }
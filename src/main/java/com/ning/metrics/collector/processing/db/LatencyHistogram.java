@@ -0,0 +1,80 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ning.metrics.collector.processing.db;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free histogram of latencies, in milliseconds, over fixed exponential
+ * buckets.  Percentiles are reported as the upper bound of the bucket they
+ * fall in, so they are overestimated by at most the width of that bucket.
+ */
+public class LatencyHistogram
+{
+    private static final long[] BUCKET_BOUNDS_MILLIS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000, 60000};
+
+    // One more bucket for the latencies above the last bound
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_BOUNDS_MILLIS.length + 1);
+
+    public void record(final long latencyMillis)
+    {
+        int bucket = 0;
+
+        while (bucket < BUCKET_BOUNDS_MILLIS.length && latencyMillis > BUCKET_BOUNDS_MILLIS[bucket]) {
+            bucket++;
+        }
+
+        counts.incrementAndGet(bucket);
+    }
+
+    public long getCount()
+    {
+        long result = 0;
+
+        for (int i = 0; i < counts.length(); i++) {
+            result += counts.get(i);
+        }
+
+        return result;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the upper bound of the bucket of the given percentile, 0 if
+     *         nothing was recorded, Long.MAX_VALUE if it is above the last bucket
+     */
+    public long getPercentileMillis(final double percentile)
+    {
+        final long count = getCount();
+
+        if (count == 0) {
+            return 0;
+        }
+
+        final long rank = Math.max(1, (long) Math.ceil(count * percentile / 100.0));
+        long seen = 0;
+
+        for (int i = 0; i < BUCKET_BOUNDS_MILLIS.length; i++) {
+            seen += counts.get(i);
+
+            if (seen >= rank) {
+                return BUCKET_BOUNDS_MILLIS[i];
+            }
+        }
+
+        return Long.MAX_VALUE;
+    }
+}
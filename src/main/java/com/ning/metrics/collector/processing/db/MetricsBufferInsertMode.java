@@ -0,0 +1,27 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ning.metrics.collector.processing.db;
+
+/**
+ * How counter events are inserted into the metrics buffer table
+ */
+public enum MetricsBufferInsertMode
+{
+    // One JDBC batch of single row inserts, one round trip per row unless the driver rewrites batches
+    BATCH,
+    // Multi-row inserts, one round trip per chunk of rows
+    MULTI_ROW
+}
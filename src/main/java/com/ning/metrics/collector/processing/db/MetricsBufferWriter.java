@@ -0,0 +1,298 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ning.metrics.collector.processing.db;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multimap;
+import com.google.inject.Inject;
+import com.mogwee.executors.LoggingExecutor;
+import com.mogwee.executors.NamedThreadFactory;
+import com.ning.arecibo.jmx.Monitored;
+import com.ning.arecibo.jmx.MonitoringType;
+import com.ning.metrics.collector.binder.config.CollectorConfig;
+import com.ning.metrics.collector.processing.db.model.CounterEventData;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.skife.config.TimeSpan;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pipeline of writers of counter event data to the metrics buffer table.
+ * Each writer is a single thread with its own bounded queue of batches, and
+ * all the batches of a namespace go to the same writer, so that the batches
+ * of a namespace are written in the order they were handed over while
+ * different namespaces are written concurrently, up to one connection per
+ * writer.  When the queue of a writer is full, handing over a batch blocks
+ * until the writer catches up.
+ */
+public class MetricsBufferWriter
+{
+    private static final Logger log = LoggerFactory.getLogger(MetricsBufferWriter.class);
+
+    private final CounterStorage counterStorage;
+    private final ThreadPoolExecutor[] writers;
+    private final TimeSpan executorShutdownTimeOut;
+
+    private final AtomicLong inFlightBatches = new AtomicLong(0);
+    private final AtomicLong flushedCounterEvents = new AtomicLong(0);
+    private final AtomicLong failedCounterEvents = new AtomicLong(0);
+    private final AtomicLong flushCount = new AtomicLong(0);
+    private final AtomicLong flushTimeMillis = new AtomicLong(0);
+    private final AtomicLong lastFlushBatchSize = new AtomicLong(0);
+    private final AtomicLong lastFlushLatencyMillis = new AtomicLong(0);
+    private final LatencyHistogram writeLatency = new LatencyHistogram();
+    private final LatencyHistogram batchLatency = new LatencyHistogram();
+
+    @Inject
+    public MetricsBufferWriter(final CollectorConfig config, final CounterStorage counterStorage)
+    {
+        this.counterStorage = counterStorage;
+        this.executorShutdownTimeOut = config.getSpoolWriterExecutorShutdownTime();
+
+        final int writerCount = Math.max(1, config.getCounterEventBufferWriterCount());
+        final int queueLimit = Math.max(1, config.getCounterEventBufferWriterQueueLimit());
+        final RejectedExecutionHandler blockingPolicy = new BlockingPolicy();
+
+        this.writers = new ThreadPoolExecutor[writerCount];
+
+        for (int i = 0; i < writerCount; i++) {
+            writers[i] = new LoggingExecutor(1, 1, Long.MAX_VALUE, TimeUnit.DAYS, new ArrayBlockingQueue<Runnable>(queueLimit), new NamedThreadFactory("CounterEvents-Storage-Threads-" + i), blockingPolicy);
+        }
+    }
+
+    /**
+     * Hand a batch of counter event data of a namespace over to its writer,
+     * blocking while that writer has too many batches waiting
+     */
+    public void write(final String namespace, final List<CounterEventData> counterEventDataList)
+    {
+        if (counterEventDataList.isEmpty()) {
+            return;
+        }
+
+        final long enqueuedNanos = System.nanoTime();
+
+        final Runnable batch = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try {
+                    bufferMetrics(namespace, counterEventDataList);
+                }
+                finally {
+                    inFlightBatches.decrementAndGet();
+                    batchLatency.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - enqueuedNanos));
+                }
+            }
+        };
+
+        inFlightBatches.incrementAndGet();
+
+        try {
+            writers[(namespace.hashCode() & Integer.MAX_VALUE) % writers.length].execute(batch);
+        }
+        catch (RejectedExecutionException e) {
+            inFlightBatches.decrementAndGet();
+            failedCounterEvents.addAndGet(counterEventDataList.size());
+            throw e;
+        }
+    }
+
+    /**
+     * Write the batches already handed over, then stop the writers
+     */
+    public void cleanUp()
+    {
+        log.info("Shutting Down Writers for Counter Event Cache Storage");
+
+        for (final ThreadPoolExecutor writer : writers) {
+            writer.shutdown();
+        }
+
+        try {
+            for (final ThreadPoolExecutor writer : writers) {
+                writer.awaitTermination(executorShutdownTimeOut.getPeriod(), executorShutdownTimeOut.getUnit());
+            }
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+
+        for (final ThreadPoolExecutor writer : writers) {
+            writer.shutdownNow();
+        }
+    }
+
+    private void bufferMetrics(final String namespace, final List<CounterEventData> counterEventDataList)
+    {
+        final long startTime = System.nanoTime();
+        final Map<String, CounterEventData> groupMap = Maps.newHashMap();
+
+        for (final CounterEventData counterEventData : counterEventDataList) {
+            final String counterKey = counterEventData.getUniqueIdentifier() + counterEventData.getFormattedDate();
+            final CounterEventData groupedData = groupMap.get(counterKey);
+
+            if (Objects.equal(null, groupedData)) {
+                groupMap.put(counterKey, counterEventData);
+            }
+            else {
+                groupedData.mergeCounters(counterEventData);
+            }
+        }
+
+        final Multimap<String, CounterEventData> multimap = ArrayListMultimap.create();
+        multimap.putAll(namespace, groupMap.values());
+
+        try {
+            counterStorage.bufferMetrics(multimap);
+        }
+        catch (RuntimeException e) {
+            failedCounterEvents.addAndGet(counterEventDataList.size());
+            log.error(String.format("Unable to buffer %d counter events of namespace %s", counterEventDataList.size(), namespace), e);
+            return;
+        }
+
+        final long latencyMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+        flushedCounterEvents.addAndGet(counterEventDataList.size());
+        flushCount.incrementAndGet();
+        flushTimeMillis.addAndGet(latencyMillis);
+        lastFlushBatchSize.set(counterEventDataList.size());
+        lastFlushLatencyMillis.set(latencyMillis);
+        writeLatency.record(latencyMillis);
+    }
+
+    @Monitored(description = "Number of metrics buffer writers", monitoringType = {MonitoringType.VALUE})
+    public int getWriterCount()
+    {
+        return writers.length;
+    }
+
+    @Monitored(description = "Number of Counter Event batches handed to the writers and not written yet", monitoringType = {MonitoringType.VALUE})
+    public long getInFlightBatches()
+    {
+        return inFlightBatches.get();
+    }
+
+    @Monitored(description = "Number of Counter Events written to the metrics buffer", monitoringType = {MonitoringType.VALUE, MonitoringType.RATE})
+    public long getFlushedCounterEvents()
+    {
+        return flushedCounterEvents.get();
+    }
+
+    @Monitored(description = "Number of Counter Events which could not be written to the metrics buffer", monitoringType = {MonitoringType.VALUE, MonitoringType.RATE})
+    public long getFailedCounterEvents()
+    {
+        return failedCounterEvents.get();
+    }
+
+    @Monitored(description = "Number of batches written to the metrics buffer", monitoringType = {MonitoringType.VALUE, MonitoringType.RATE})
+    public long getCounterEventFlushes()
+    {
+        return flushCount.get();
+    }
+
+    @Monitored(description = "Number of Counter Events of the last batch", monitoringType = {MonitoringType.VALUE})
+    public long getLastFlushBatchSize()
+    {
+        return lastFlushBatchSize.get();
+    }
+
+    @Monitored(description = "Average number of Counter Events per batch", monitoringType = {MonitoringType.VALUE})
+    public double getAverageFlushBatchSize()
+    {
+        final long flushes = flushCount.get();
+        return flushes == 0 ? 0 : (double) flushedCounterEvents.get() / flushes;
+    }
+
+    @Monitored(description = "Time taken by the last write to the metrics buffer, in milliseconds", monitoringType = {MonitoringType.VALUE})
+    public long getLastFlushLatencyMillis()
+    {
+        return lastFlushLatencyMillis.get();
+    }
+
+    @Monitored(description = "Average time taken by a write to the metrics buffer, in milliseconds", monitoringType = {MonitoringType.VALUE})
+    public double getAverageFlushLatencyMillis()
+    {
+        final long flushes = flushCount.get();
+        return flushes == 0 ? 0 : (double) flushTimeMillis.get() / flushes;
+    }
+
+    @Monitored(description = "Median time taken by a write to the metrics buffer, in milliseconds", monitoringType = {MonitoringType.VALUE})
+    public long getWriteLatencyMedianMillis()
+    {
+        return writeLatency.getPercentileMillis(50);
+    }
+
+    @Monitored(description = "99th percentile of the time taken by a write to the metrics buffer, in milliseconds", monitoringType = {MonitoringType.VALUE})
+    public long getWriteLatency99thPercentileMillis()
+    {
+        return writeLatency.getPercentileMillis(99);
+    }
+
+    @Monitored(description = "Median time from handing a batch to a writer until it is written, queueing included, in milliseconds", monitoringType = {MonitoringType.VALUE})
+    public long getBatchLatencyMedianMillis()
+    {
+        return batchLatency.getPercentileMillis(50);
+    }
+
+    @Monitored(description = "99th percentile of the time from handing a batch to a writer until it is written, queueing included, in milliseconds", monitoringType = {MonitoringType.VALUE})
+    public long getBatchLatency99thPercentileMillis()
+    {
+        return batchLatency.getPercentileMillis(99);
+    }
+
+    /**
+     * Wait for room in the queue of the writer instead of dropping the batch,
+     * or write it from the calling thread once the writer is shut down,
+     * including when that happens while waiting
+     */
+    private static final class BlockingPolicy implements RejectedExecutionHandler
+    {
+        @Override
+        public void rejectedExecution(final Runnable runnable, final ThreadPoolExecutor executor)
+        {
+            if (executor.isShutdown()) {
+                runnable.run();
+                return;
+            }
+
+            try {
+                executor.getQueue().put(runnable);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException("Interrupted while waiting for a metrics buffer writer", e);
+            }
+
+            // The writer may have been shut down while we waited, and its
+            // thread may be gone already: take the batch back unless it
+            // was picked up meanwhile
+            if (executor.isShutdown() && executor.getQueue().remove(runnable)) {
+                runnable.run();
+            }
+        }
+    }
+}
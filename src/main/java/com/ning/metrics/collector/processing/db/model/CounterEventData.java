@@ -20,8 +20,7 @@ import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
-import com.google.common.base.Objects;
-import com.google.common.collect.Maps;
+import com.ning.metrics.collector.util.StringIntHashMap;
 import java.util.Map;
 import java.util.Map.Entry;
 import org.joda.time.DateTime;
@@ -39,6 +38,8 @@ public class CounterEventData
 {
     private final String uniqueIdentifier;
     private final DateTime createdTime;
+    // Counts are stored unboxed, counters is a Map view over them
+    private final StringIntHashMap counts;
     private final Map<String, Integer> counters;
     public static final DateTimeFormatter DAILY_COUNTER_DATE_FORMATTER = DateTimeFormat.forPattern("yyyy-MM-dd").withZone(DateTimeZone.UTC);
 
@@ -49,7 +50,14 @@ public class CounterEventData
     {
         this.uniqueIdentifier = uniqueIdentifier;
 
-        this.counters = Maps.newHashMap(counters);
+        this.counts = new StringIntHashMap(counters.size());
+        for (Entry<String, Integer> counter : counters.entrySet()) {
+            // A null count counts for nothing, e.g. {"pageView": null}
+            if (counter.getValue() != null) {
+                this.counts.put(counter.getKey(), counter.getValue());
+            }
+        }
+        this.counters = this.counts.asMap();
 
         if(createdTime != null)
         {
@@ -80,10 +88,47 @@ public class CounterEventData
     {
         for(Entry<String, Integer> mapEntry : mergeFrom.entrySet())
         {
-            incrementCounter(mapEntry.getKey(), mapEntry.getValue());
+            if (mapEntry.getValue() != null) {
+                incrementCounter(mapEntry.getKey(), mapEntry.getValue());
+            }
         }
     }
 
+    /**
+     * Merge the counters of the given counter event data into this object's
+     * local counters, without boxing
+     * @param mergeFrom
+     */
+    @JsonIgnore
+    public void mergeCounters(CounterEventData mergeFrom)
+    {
+        for (int i = 0; i < mergeFrom.counts.size(); i++) {
+            counts.add(mergeFrom.counts.keyAt(i), mergeFrom.counts.valueAt(i));
+        }
+    }
+
+    /**
+     * @return the number of counters, to walk them by index with
+     * getCounterName(int) and getCounterValue(int) without boxing
+     */
+    @JsonIgnore
+    public int getCounterCount()
+    {
+        return counts.size();
+    }
+
+    @JsonIgnore
+    public String getCounterName(int index)
+    {
+        return counts.keyAt(index);
+    }
+
+    @JsonIgnore
+    public int getCounterValue(int index)
+    {
+        return counts.valueAt(index);
+    }
+
     public String getUniqueIdentifier() {
         return uniqueIdentifier;
     }
@@ -101,15 +146,9 @@ public class CounterEventData
      * @param increment
      */
     @JsonIgnore
-    public void incrementCounter(String counterName, Integer increment)
+    public void incrementCounter(String counterName, int increment)
     {
-        Integer counterValue = getCounters().get(counterName);
-        if(Objects.equal(null, counterValue)) {
-            counterValue = 0;
-        }
-
-        counterValue += increment;
-        counters.put(counterName, counterValue);
+        counts.add(counterName, increment);
     }
 
     @Override
@@ -22,7 +22,6 @@ import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.google.common.collect.Maps;
 import java.util.Map;
-import java.util.Map.Entry;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
 import org.joda.time.format.DateTimeFormat;
@@ -123,10 +122,10 @@ public class RolledUpCounter
      */
     public void updateRolledUpCounterData(CounterEventData counterEventData) {
 
-        for(Entry<String, Integer> counterEntry
-                : counterEventData.getCounters().entrySet()) {
-            String counterName = counterEntry.getKey();
-            Integer counter = counterEntry.getValue();
+        // Walk the counters by index, no need to box every count
+        for(int i = 0; i < counterEventData.getCounterCount(); i++) {
+            String counterName = counterEventData.getCounterName(i);
+            int counter = counterEventData.getCounterValue(i);
 
             RolledUpCounterData rolledUpCounterData =
                     counterSummary.get(counterName);
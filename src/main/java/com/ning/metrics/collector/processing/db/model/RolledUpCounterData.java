@@ -110,7 +110,7 @@ public class RolledUpCounterData
      * @param incrementValue
      */
     @JsonIgnore
-    public void incrementCounter(Integer incrementValue) {
+    public void incrementCounter(int incrementValue) {
         totalCount += incrementValue;
     }
 
@@ -123,13 +123,21 @@ public class RolledUpCounterData
     @JsonIgnore
     public void incrementDistributionCounter(String uniqueIdentifier,
             int increment) {
-        Integer prevCount = distribution.increment(uniqueIdentifier, increment);
-
-        if (prevCount == null) {
+        if (distribution.incrementCount(uniqueIdentifier, increment)) {
             uniqueCount++;
         }
     }
 
+    /**
+     * replace the unique count, f.e. with an estimate when the distribution
+     * was not merged
+     * @param uniqueCount
+     */
+    @JsonIgnore
+    public void overrideUniqueCount(int uniqueCount) {
+        this.uniqueCount = uniqueCount;
+    }
+
     @JsonIgnore
     public void truncateDistribution()
     {
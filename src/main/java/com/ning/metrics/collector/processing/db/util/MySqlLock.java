@@ -26,6 +26,11 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 
+/**
+ * Lock shared by all the nodes using the database, through MySQL's GET_LOCK.  The lock belongs to a connection, so
+ * one is taken from the pool of the given DBI and held for as long as the lock is: callers holding several locks at
+ * once must leave room for them in the pool.
+ */
 public class MySqlLock implements Lock
 {
     private static final Logger log = LoggerFactory.getLogger(MySqlLock.class);
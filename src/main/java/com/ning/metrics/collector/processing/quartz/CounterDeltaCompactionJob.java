@@ -0,0 +1,67 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ning.metrics.collector.processing.quartz;
+
+import com.google.inject.Inject;
+import com.ning.metrics.collector.binder.config.CollectorConfig;
+import com.ning.metrics.collector.processing.db.CounterStorage;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.quartz.DisallowConcurrentExecution;
+import org.quartz.Job;
+import org.quartz.JobExecutionContext;
+import org.quartz.JobExecutionException;
+import org.quartz.PersistJobDataAfterExecution;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Merges the deltas appended by the incremental roll up into the daily rolled up counters, for the counters which
+ * have accumulated enough deltas or have been waiting for long enough. Reads compact whatever they need on their own,
+ * this job keeps the number of deltas down for the counters nobody reads.
+ */
+@PersistJobDataAfterExecution
+@DisallowConcurrentExecution
+public class CounterDeltaCompactionJob implements Job
+{
+    private static final Logger log = LoggerFactory.getLogger(CounterDeltaCompactionJob.class);
+    private final CounterStorage counterStorage;
+    private final CollectorConfig config;
+
+    @Inject
+    public CounterDeltaCompactionJob(final CounterStorage counterStorage, final CollectorConfig config)
+    {
+        this.counterStorage = counterStorage;
+        this.config = config;
+    }
+
+    @Override
+    public void execute(JobExecutionContext context) throws JobExecutionException
+    {
+        log.info("Starting compaction of rolled up counter deltas");
+        DateTime createdBefore = new DateTime(DateTimeZone.UTC).minus(config.getCounterRollUpCompactionDelay().getMillis());
+
+        try {
+            int compacted = counterStorage.compactDailyRolledUpCounterDeltas(config.getMaxCounterRollUpDeltaCount(), createdBefore);
+            log.info(String.format("Compacted %d rolled up counter deltas", compacted));
+        }
+        catch (RuntimeException e) {
+            log.error("Exception occurred while compacting rolled up counter deltas", e);
+        }
+    }
+
+}
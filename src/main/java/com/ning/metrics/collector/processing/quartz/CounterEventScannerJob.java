@@ -17,21 +17,16 @@ package com.ning.metrics.collector.processing.quartz;
 
 import com.google.common.base.Objects;
 import com.google.inject.Inject;
+import com.ning.metrics.collector.processing.counter.CounterRollUpScheduler;
 import com.ning.metrics.collector.processing.db.CounterStorage;
 import java.util.List;
 import org.quartz.DisallowConcurrentExecution;
 import org.quartz.Job;
-import static org.quartz.JobBuilder.newJob;
-import org.quartz.JobDataMap;
 import org.quartz.JobExecutionContext;
 import org.quartz.JobExecutionException;
-import org.quartz.JobKey;
 import org.quartz.PersistJobDataAfterExecution;
 import org.quartz.Scheduler;
 import org.quartz.SchedulerException;
-import static org.quartz.SimpleScheduleBuilder.simpleSchedule;
-import org.quartz.SimpleTrigger;
-import static org.quartz.TriggerBuilder.newTrigger;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -43,12 +38,14 @@ public class CounterEventScannerJob implements Job
 
     private final CounterStorage counterStorage;
     private final Scheduler quartzScheduler;
+    private final CounterRollUpScheduler rollUpScheduler;
 
     @Inject
-    public CounterEventScannerJob(final CounterStorage counterStorage, final Scheduler quartzScheduler)  throws SchedulerException
+    public CounterEventScannerJob(final CounterStorage counterStorage, final Scheduler quartzScheduler, final CounterRollUpScheduler rollUpScheduler)  throws SchedulerException
     {
         this.counterStorage = counterStorage;
         this.quartzScheduler = quartzScheduler;
+        this.rollUpScheduler = rollUpScheduler;
         if(!quartzScheduler.isStarted())
         {
             quartzScheduler.start();
@@ -56,9 +53,9 @@ public class CounterEventScannerJob implements Job
     }
 
     /**
-     * On execution this method unbuffers the counters in buffered storage and
-     * creates separate, independently-executable jobs to roll up the the
-     * individual events into a queriable form
+     * On execution this method finds the namespaces with counters in buffered
+     * storage and hands them to the roll up scheduler, which rolls up their
+     * individual events into a queriable form concurrently
      * @param context
      * @throws JobExecutionException
      */
@@ -79,22 +76,7 @@ public class CounterEventScannerJob implements Job
 
                 for(String namespace : bufferedNamespaces)
                 {
-                    final JobKey jobKey = new JobKey("counterProcessorJob_"+namespace, "counterProcessorJobGroup");
-
-                    final SimpleTrigger trigger = (SimpleTrigger)newTrigger()
-                            .withIdentity("counterProcessorJobTrigger_"+namespace, "counterProcessorTriggerGroup")
-                            .withSchedule(simpleSchedule().withMisfireHandlingInstructionFireNow())
-                            .build();
-
-                    if(!quartzScheduler.checkExists(jobKey))
-                    {
-                        JobDataMap jobMap = new JobDataMap();
-                        jobMap.put("namespace", namespace);
-
-                        quartzScheduler.scheduleJob(
-                            newJob(CounterProcessorRollUpJob.class).withIdentity(jobKey).usingJobData(jobMap).build()
-                            ,trigger);
-                    }
+                    rollUpScheduler.submit(namespace);
                 }
             }
 
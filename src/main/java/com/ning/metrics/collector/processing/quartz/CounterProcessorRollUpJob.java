@@ -17,7 +17,7 @@ package com.ning.metrics.collector.processing.quartz;
 
 import com.google.common.base.Objects;
 import com.google.inject.Inject;
-import com.ning.metrics.collector.processing.counter.RollUpCounterProcessor;
+import com.ning.metrics.collector.processing.counter.CounterRollUpScheduler;
 import com.ning.metrics.collector.processing.db.CounterStorage;
 import org.quartz.DisallowConcurrentExecution;
 import org.quartz.Job;
@@ -33,13 +33,13 @@ import org.slf4j.LoggerFactory;
 public class CounterProcessorRollUpJob implements Job
 {
     private static final Logger log = LoggerFactory.getLogger(CounterProcessorRollUpJob.class);
-    private final RollUpCounterProcessor rollUpCounterProcessor;
+    private final CounterRollUpScheduler rollUpScheduler;
     private final CounterStorage counterStorage;
 
     @Inject
-    public CounterProcessorRollUpJob(final RollUpCounterProcessor rollUpCounterProcessor, final CounterStorage counterStorage)
+    public CounterProcessorRollUpJob(final CounterRollUpScheduler rollUpScheduler, final CounterStorage counterStorage)
     {
-        this.rollUpCounterProcessor = rollUpCounterProcessor;
+        this.rollUpScheduler = rollUpScheduler;
         this.counterStorage = counterStorage;
     }
 
@@ -76,7 +76,7 @@ public class CounterProcessorRollUpJob implements Job
                 return;
             }
 
-            rollUpCounterProcessor.rollUpStreamingDailyCounters(namespace);
+            rollUpScheduler.submit(namespace);
 
 
         }
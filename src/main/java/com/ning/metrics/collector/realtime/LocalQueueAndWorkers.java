@@ -26,7 +26,6 @@ import org.weakref.jmx.MBeanExporter;
 import java.lang.management.ManagementFactory;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 
 class LocalQueueAndWorkers
@@ -50,7 +49,7 @@ class LocalQueueAndWorkers
         final CollectorConfig config = processor.getConfig();
         final int queueLength = config.getActiveMQBufferLength();
 
-        this.queue = new LinkedBlockingQueue<Object>(queueLength);
+        this.queue = config.getActiveMQBufferType().createQueue(queueLength);
 
         // Gather per-queue stats and expose them via JMX
         stats = globalEventQueueStats.createLocalStats(type, queue, queueLength);
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2010-2013 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.collector.util;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Implementations of the in-memory queues buffering events (disk spool and realtime queues)
+ */
+public enum EventQueueType
+{
+    /**
+     * Linked nodes, two locks (one for producers, one for consumers)
+     */
+    LINKED
+        {
+            @Override
+            public <T> BlockingQueue<T> createQueue(final int capacity)
+            {
+                return new LinkedBlockingQueue<T>(capacity);
+            }
+        },
+    /**
+     * Preallocated ring buffer, lock-free offer and poll
+     */
+    RING_BUFFER
+        {
+            @Override
+            public <T> BlockingQueue<T> createQueue(final int capacity)
+            {
+                return new RingBufferBlockingQueue<T>(capacity);
+            }
+        };
+
+    public abstract <T> BlockingQueue<T> createQueue(final int capacity);
+}
@@ -0,0 +1,386 @@
+/*
+ * Copyright 2010-2013 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.collector.util;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded, multi-producer multi-consumer queue backed by a preallocated ring buffer.
+ * <p/>
+ * Unlike LinkedBlockingQueue, offer() and poll() don't allocate and don't take any lock: producers and consumers
+ * claim slots by CAS on two sequence counters, and each slot carries its own sequence number to tell whether it
+ * has been published (see Dmitry Vyukov's bounded MPMC queue). Blocking consumers (take, timed poll) wait on a
+ * condition which producers only signal when somebody is actually waiting. Blocking producers (put, timed offer)
+ * are expected to be rare, they simply back off.
+ * <p/>
+ * The ring is allocated lazily, in chunks of {@link #CHUNK_SIZE} slots, the first time a producer reaches them: an
+ * idle queue costs a few hundred bytes whatever its capacity, and a queue only grows up to the backlog it actually
+ * held (about 12 bytes per slot with compressed references, e.g. 3 MB for a backlog of 262144 events).
+ * <p/>
+ * The iterator is a weakly consistent snapshot and doesn't support removal.
+ */
+public class RingBufferBlockingQueue<E> extends AbstractQueue<E> implements BlockingQueue<E>
+{
+    private static final int SPINS_BEFORE_WAITING = 64;
+    private static final long PRODUCER_BACKOFF_NANOS = 1000L;
+    static final int CHUNK_SIZE = 1024;
+
+    private final int capacity;
+    private final int mask;
+    private final int chunkShift;
+    private final int chunkMask;
+    private final AtomicReferenceArray<Chunk<E>> chunks;
+    private final AtomicLong head = new AtomicLong(0);
+    private final AtomicLong tail = new AtomicLong(0);
+
+    private final AtomicInteger waitingConsumers = new AtomicInteger(0);
+    private final ReentrantLock waitLock = new ReentrantLock();
+    private final Condition notEmpty = waitLock.newCondition();
+
+    public RingBufferBlockingQueue(final int capacity)
+    {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+
+        this.capacity = capacity;
+        int ringSize = 1;
+        while (ringSize < capacity) {
+            ringSize <<= 1;
+        }
+        this.mask = ringSize - 1;
+
+        final int chunkSize = Math.min(ringSize, CHUNK_SIZE);
+        this.chunkShift = Integer.numberOfTrailingZeros(chunkSize);
+        this.chunkMask = chunkSize - 1;
+        this.chunks = new AtomicReferenceArray<Chunk<E>>(ringSize / chunkSize);
+    }
+
+    @Override
+    public boolean offer(final E e)
+    {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+
+        long position;
+        int index;
+        Chunk<E> chunk;
+        while (true) {
+            position = tail.get();
+            // The ring may be larger than the requested capacity (power of two)
+            if (position - head.get() >= capacity) {
+                return false;
+            }
+
+            index = (int) position & mask;
+            chunk = getOrCreateChunk(index);
+            final long difference = chunk.sequences.get(index & chunkMask) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+            }
+            else if (difference < 0) {
+                // Slot not consumed yet: full
+                return false;
+            }
+        }
+
+        chunk.elements.lazySet(index & chunkMask, e);
+        chunk.sequences.set(index & chunkMask, position + 1);
+
+        if (waitingConsumers.get() > 0) {
+            waitLock.lock();
+            try {
+                notEmpty.signal();
+            }
+            finally {
+                waitLock.unlock();
+            }
+        }
+
+        return true;
+    }
+
+    @Override
+    public E poll()
+    {
+        long position;
+        int index;
+        Chunk<E> chunk;
+        while (true) {
+            position = head.get();
+            index = (int) position & mask;
+            chunk = chunks.get(index >>> chunkShift);
+            if (chunk == null) {
+                // No producer reached this slot yet: empty
+                return null;
+            }
+
+            final long difference = chunk.sequences.get(index & chunkMask) - (position + 1);
+            if (difference == 0) {
+                if (head.compareAndSet(position, position + 1)) {
+                    break;
+                }
+            }
+            else if (difference < 0) {
+                // Slot not published yet: empty
+                return null;
+            }
+        }
+
+        final E e = chunk.elements.get(index & chunkMask);
+        chunk.elements.lazySet(index & chunkMask, null);
+        chunk.sequences.set(index & chunkMask, position + mask + 1);
+        return e;
+    }
+
+    @Override
+    public E peek()
+    {
+        while (true) {
+            final long position = head.get();
+            final int index = (int) position & mask;
+            final Chunk<E> chunk = chunks.get(index >>> chunkShift);
+            if (chunk == null || chunk.sequences.get(index & chunkMask) - (position + 1) < 0) {
+                return null;
+            }
+
+            final E e = chunk.elements.get(index & chunkMask);
+            // Make sure the slot wasn't consumed (and maybe reused) while we were reading it
+            if (e != null && head.get() == position) {
+                return e;
+            }
+        }
+    }
+
+    @Override
+    public void put(final E e) throws InterruptedException
+    {
+        while (!offer(e)) {
+            backOff();
+        }
+    }
+
+    @Override
+    public boolean offer(final E e, final long timeout, final TimeUnit unit) throws InterruptedException
+    {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!offer(e)) {
+            if (deadline - System.nanoTime() <= 0) {
+                return false;
+            }
+            backOff();
+        }
+        return true;
+    }
+
+    @Override
+    public E take() throws InterruptedException
+    {
+        E e = spinPoll();
+        if (e != null) {
+            return e;
+        }
+
+        waitingConsumers.incrementAndGet();
+        waitLock.lockInterruptibly();
+        try {
+            while ((e = poll()) == null) {
+                notEmpty.await();
+            }
+            return e;
+        }
+        finally {
+            waitLock.unlock();
+            waitingConsumers.decrementAndGet();
+        }
+    }
+
+    @Override
+    public E poll(final long timeout, final TimeUnit unit) throws InterruptedException
+    {
+        E e = spinPoll();
+        if (e != null) {
+            return e;
+        }
+
+        long nanos = unit.toNanos(timeout);
+        waitingConsumers.incrementAndGet();
+        waitLock.lockInterruptibly();
+        try {
+            while ((e = poll()) == null) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return e;
+        }
+        finally {
+            waitLock.unlock();
+            waitingConsumers.decrementAndGet();
+        }
+    }
+
+    @Override
+    public int remainingCapacity()
+    {
+        return capacity - size();
+    }
+
+    @Override
+    public int drainTo(final Collection<? super E> c)
+    {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(final Collection<? super E> c, final int maxElements)
+    {
+        if (c == null) {
+            throw new NullPointerException();
+        }
+        if (c == this) {
+            throw new IllegalArgumentException();
+        }
+
+        int drained = 0;
+        E e;
+        while (drained < maxElements && (e = poll()) != null) {
+            c.add(e);
+            drained++;
+        }
+        return drained;
+    }
+
+    @Override
+    public int size()
+    {
+        // Read head first: tail only grows, so we never under-estimate by more than the in-flight operations
+        final long currentHead = head.get();
+        final long size = tail.get() - currentHead;
+        return (int) Math.max(0, Math.min(size, capacity));
+    }
+
+    @Override
+    public boolean isEmpty()
+    {
+        return size() == 0;
+    }
+
+    @Override
+    public Iterator<E> iterator()
+    {
+        final List<E> snapshot = new ArrayList<E>();
+        final long end = tail.get();
+        for (long position = head.get(); position < end; position++) {
+            final int index = (int) position & mask;
+            final Chunk<E> chunk = chunks.get(index >>> chunkShift);
+            final E e = chunk == null ? null : chunk.elements.get(index & chunkMask);
+            if (e != null) {
+                snapshot.add(e);
+            }
+        }
+
+        final Iterator<E> delegate = snapshot.iterator();
+        return new Iterator<E>()
+        {
+            @Override
+            public boolean hasNext()
+            {
+                return delegate.hasNext();
+            }
+
+            @Override
+            public E next()
+            {
+                return delegate.next();
+            }
+
+            @Override
+            public void remove()
+            {
+                throw new UnsupportedOperationException("Removal is not supported");
+            }
+        };
+    }
+
+    private Chunk<E> getOrCreateChunk(final int index)
+    {
+        final int chunkIndex = index >>> chunkShift;
+        final Chunk<E> chunk = chunks.get(chunkIndex);
+        if (chunk != null) {
+            return chunk;
+        }
+
+        final Chunk<E> newChunk = new Chunk<E>(chunkIndex << chunkShift, chunkMask + 1);
+        if (chunks.compareAndSet(chunkIndex, null, newChunk)) {
+            return newChunk;
+        }
+        return chunks.get(chunkIndex);
+    }
+
+    private E spinPoll()
+    {
+        for (int i = 0; i < SPINS_BEFORE_WAITING; i++) {
+            final E e = poll();
+            if (e != null) {
+                return e;
+            }
+        }
+        return null;
+    }
+
+    private void backOff() throws InterruptedException
+    {
+        LockSupport.parkNanos(PRODUCER_BACKOFF_NANOS);
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+    }
+
+    private static final class Chunk<E>
+    {
+        private final AtomicReferenceArray<E> elements;
+        private final AtomicLongArray sequences;
+
+        private Chunk(final int firstIndex, final int size)
+        {
+            elements = new AtomicReferenceArray<E>(size);
+            sequences = new AtomicLongArray(size);
+            // A slot which was never used expects the producer of its first lap
+            for (int i = 0; i < size; i++) {
+                sequences.set(i, firstIndex + i);
+            }
+        }
+    }
+}
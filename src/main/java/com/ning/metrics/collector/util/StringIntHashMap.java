@@ -0,0 +1,394 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.collector.util;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Map of String to primitive int, without boxing nor per-entry objects.
+ * <p/>
+ * Keys and values are stored densely, in insertion order, in two parallel arrays. An open addressing (linear probing)
+ * table of indexes into these arrays is used for lookups. Entries can't be removed one by one, but the whole map can
+ * be reordered (see {@link #permute(int[])}) which makes it cheap to keep sorted. Null keys are not supported.
+ * <p/>
+ * Not thread safe.
+ */
+public class StringIntHashMap
+{
+    private static final int MIN_CAPACITY = 4;
+
+    private String[] keys;
+    private int[] values;
+    private int size = 0;
+
+    // Index + 1 of the entry in keys/values, 0 for a free slot. At most half full.
+    private int[] slots;
+    private int mask;
+
+    public StringIntHashMap()
+    {
+        this(MIN_CAPACITY);
+    }
+
+    public StringIntHashMap(final int expectedSize)
+    {
+        final int capacity = Math.max(expectedSize, MIN_CAPACITY);
+        keys = new String[capacity];
+        values = new int[capacity];
+        allocateSlots(capacity);
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    /**
+     * @param key key to look for
+     * @return the position of the key (between 0 and size() - 1), -1 if absent
+     */
+    public int indexOf(final Object key)
+    {
+        if (!(key instanceof String)) {
+            return -1;
+        }
+
+        int slot = hash(key) & mask;
+        while (true) {
+            final int entry = slots[slot];
+            if (entry == 0) {
+                return -1;
+            }
+            if (key.equals(keys[entry - 1])) {
+                return entry - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    public boolean containsKey(final Object key)
+    {
+        return indexOf(key) >= 0;
+    }
+
+    public int get(final Object key, final int defaultValue)
+    {
+        final int index = indexOf(key);
+        return index < 0 ? defaultValue : values[index];
+    }
+
+    public String keyAt(final int index)
+    {
+        checkIndex(index);
+        return keys[index];
+    }
+
+    public int valueAt(final int index)
+    {
+        checkIndex(index);
+        return values[index];
+    }
+
+    public void setValueAt(final int index, final int value)
+    {
+        checkIndex(index);
+        values[index] = value;
+    }
+
+    /**
+     * @param key   key to set
+     * @param value new value
+     * @return the position of the key
+     */
+    public int put(final String key, final int value)
+    {
+        final int slot = findSlot(key);
+        final int entry = slots[slot];
+        if (entry != 0) {
+            values[entry - 1] = value;
+            return entry - 1;
+        }
+        return insert(key, value, slot);
+    }
+
+    /**
+     * Add the given increment to the value of the given key, adding the key (with the increment as value) if absent
+     *
+     * @param key       key to update
+     * @param increment increment to add
+     * @return true if the key was absent
+     */
+    public boolean add(final String key, final int increment)
+    {
+        final int slot = findSlot(key);
+        final int entry = slots[slot];
+        if (entry != 0) {
+            values[entry - 1] += increment;
+            return false;
+        }
+        insert(key, increment, slot);
+        return true;
+    }
+
+    public void clear()
+    {
+        Arrays.fill(keys, 0, size, null);
+        Arrays.fill(slots, 0);
+        size = 0;
+    }
+
+    /**
+     * Reorder the entries
+     *
+     * @param order for each new position, the current position of the entry to move there. Must be a permutation of
+     *              0..size()-1
+     */
+    public void permute(final int[] order)
+    {
+        if (order.length != size) {
+            throw new IllegalArgumentException(String.format("Expected a permutation of %d entries, got %d", size, order.length));
+        }
+
+        final String[] newKeys = new String[keys.length];
+        final int[] newValues = new int[values.length];
+        for (int i = 0; i < size; i++) {
+            newKeys[i] = keys[order[i]];
+            newValues[i] = values[order[i]];
+        }
+        keys = newKeys;
+        values = newValues;
+
+        Arrays.fill(slots, 0);
+        for (int i = 0; i < size; i++) {
+            slots[findSlot(keys[i])] = i + 1;
+        }
+    }
+
+    /**
+     * @return a live Map view of this map, in entries order. Entries can be added and updated through the view, not
+     *         removed.
+     */
+    public Map<String, Integer> asMap()
+    {
+        return new MapView();
+    }
+
+    private int findSlot(final String key)
+    {
+        if (key == null) {
+            throw new NullPointerException("Null keys are not supported");
+        }
+
+        int slot = hash(key) & mask;
+        while (true) {
+            final int entry = slots[slot];
+            if (entry == 0 || key.equals(keys[entry - 1])) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private int insert(final String key, final int value, final int freeSlot)
+    {
+        int slot = freeSlot;
+        if (size == keys.length) {
+            final int capacity = keys.length * 2;
+            keys = Arrays.copyOf(keys, capacity);
+            values = Arrays.copyOf(values, capacity);
+            allocateSlots(capacity);
+            for (int i = 0; i < size; i++) {
+                slots[findSlot(keys[i])] = i + 1;
+            }
+            slot = findSlot(key);
+        }
+
+        keys[size] = key;
+        values[size] = value;
+        slots[slot] = size + 1;
+        return size++;
+    }
+
+    private void allocateSlots(final int capacity)
+    {
+        int slotCount = MIN_CAPACITY;
+        while (slotCount < capacity * 2) {
+            slotCount <<= 1;
+        }
+        slots = new int[slotCount];
+        mask = slotCount - 1;
+    }
+
+    private void checkIndex(final int index)
+    {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException(String.format("Index %d, size %d", index, size));
+        }
+    }
+
+    private static int hash(final Object key)
+    {
+        // Spread the bits, String hash codes are poor in their low bits for similar keys
+        final int h = key.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private final class MapView extends AbstractMap<String, Integer>
+    {
+        @Override
+        public int size()
+        {
+            return size;
+        }
+
+        @Override
+        public boolean containsKey(final Object key)
+        {
+            return indexOf(key) >= 0;
+        }
+
+        @Override
+        public Integer get(final Object key)
+        {
+            final int index = indexOf(key);
+            return index < 0 ? null : values[index];
+        }
+
+        @Override
+        public Integer put(final String key, final Integer value)
+        {
+            final int index = indexOf(key);
+            final Integer oldValue = index < 0 ? null : values[index];
+            StringIntHashMap.this.put(key, value);
+            return oldValue;
+        }
+
+        @Override
+        public void clear()
+        {
+            StringIntHashMap.this.clear();
+        }
+
+        @Override
+        public Set<Map.Entry<String, Integer>> entrySet()
+        {
+            return new AbstractSet<Map.Entry<String, Integer>>()
+            {
+                @Override
+                public Iterator<Map.Entry<String, Integer>> iterator()
+                {
+                    return new EntryIterator();
+                }
+
+                @Override
+                public int size()
+                {
+                    return size;
+                }
+            };
+        }
+    }
+
+    private final class EntryIterator implements Iterator<Map.Entry<String, Integer>>
+    {
+        private int next = 0;
+
+        @Override
+        public boolean hasNext()
+        {
+            return next < size;
+        }
+
+        @Override
+        public Map.Entry<String, Integer> next()
+        {
+            if (next >= size) {
+                throw new NoSuchElementException();
+            }
+            return new IndexedEntry(next++);
+        }
+
+        @Override
+        public void remove()
+        {
+            throw new UnsupportedOperationException("Entries can't be removed");
+        }
+    }
+
+    private final class IndexedEntry implements Map.Entry<String, Integer>
+    {
+        private final int index;
+
+        private IndexedEntry(final int index)
+        {
+            this.index = index;
+        }
+
+        @Override
+        public String getKey()
+        {
+            return keys[index];
+        }
+
+        @Override
+        public Integer getValue()
+        {
+            return values[index];
+        }
+
+        @Override
+        public Integer setValue(final Integer value)
+        {
+            final int oldValue = values[index];
+            values[index] = value;
+            return oldValue;
+        }
+
+        @Override
+        public boolean equals(final Object o)
+        {
+            if (!(o instanceof Map.Entry)) {
+                return false;
+            }
+            final Map.Entry<?, ?> other = (Map.Entry<?, ?>) o;
+            return getKey().equals(other.getKey()) && getValue().equals(other.getValue());
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return getKey().hashCode() ^ values[index];
+        }
+
+        @Override
+        public String toString()
+        {
+            return getKey() + "=" + values[index];
+        }
+    }
+}
@@ -1,13 +1,21 @@
 CREATE TABLE `metrics_buffer` (
   `id` BIGINT NOT NULL AUTO_INCREMENT,
   `namespace` VARCHAR(32) NOT NULL,
-  `metrics` VARCHAR(1024) NOT NULL,
+  `metrics` VARBINARY(4096) NOT NULL,
   `timestamp` TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP,
   PRIMARY KEY (`id`),
   INDEX `metrics_buffer_namespace_idx` (`namespace`),
   INDEX `metrics_buffer_name_and_time_idx` (`namespace`, `timestamp`))
   ENGINE = INNODB;
 
+CREATE TABLE `metrics_buffer_counter_names` (
+  `id` INT NOT NULL AUTO_INCREMENT,
+  `namespace` VARCHAR(32) NOT NULL,
+  `counter_name` VARCHAR(128) CHARACTER SET utf8 COLLATE utf8_bin NOT NULL,
+  PRIMARY KEY (`id`),
+  UNIQUE INDEX `metrics_buffer_counter_names_idx` (`namespace`, `counter_name`))
+  ENGINE = INNODB;
+
 CREATE TABLE `metrics_daily` (
   `namespace` VARCHAR(32) NOT NULL,
   `datestamp` DATE NOT NULL,
@@ -15,7 +23,20 @@ CREATE TABLE `metrics_daily` (
   `total_count` BIGINT NOT NULL,
   `unique_count` INT NOT NULL,
   `distribution` MEDIUMBLOB NOT NULL,
+  `unique_sketch` BLOB NULL,
   PRIMARY KEY (`namespace`, `datestamp`, `counter_name`),
   INDEX `metrics_daily_namespace_idx` (`namespace`),
   INDEX `metrics_daily_name_and_date_idx` (`namespace`, `datestamp`))
   ENGINE = INNODB;
+
+CREATE TABLE `metrics_daily_delta` (
+  `id` BIGINT NOT NULL AUTO_INCREMENT,
+  `namespace` VARCHAR(32) NOT NULL,
+  `datestamp` DATE NOT NULL,
+  `counter_name` varchar(64) NOT NULL,
+  `total_count` BIGINT NOT NULL,
+  `distribution` MEDIUMBLOB NOT NULL,
+  `created` TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP,
+  PRIMARY KEY (`id`),
+  INDEX `metrics_daily_delta_counter_idx` (`namespace`, `datestamp`, `counter_name`))
+  ENGINE = INNODB;
@@ -0,0 +1,37 @@
+-- Upgrade of a database created by an earlier collector_counter_events.sql.
+-- New databases only need collector_counter_events.sql. Run each section
+-- which was not applied yet before deploying the collectors relying on it.
+
+-- Unique id sketches of the daily rolled-up counters, written by every roll
+-- up and compaction. Rows stored before get their sketch from their
+-- distribution when read.
+ALTER TABLE `metrics_daily` ADD `unique_sketch` BLOB NULL;
+
+-- Deltas of the daily rolled-up counters, appended by the incremental roll
+-- up and merged into metrics_daily by compaction. Readers merge the pending
+-- deltas and the compaction job runs whether the incremental roll up is on
+-- or not, so the table is needed either way.
+CREATE TABLE `metrics_daily_delta` (
+  `id` BIGINT NOT NULL AUTO_INCREMENT,
+  `namespace` VARCHAR(32) NOT NULL,
+  `datestamp` DATE NOT NULL,
+  `counter_name` varchar(64) NOT NULL,
+  `total_count` BIGINT NOT NULL,
+  `distribution` MEDIUMBLOB NOT NULL,
+  `created` TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP,
+  PRIMARY KEY (`id`),
+  INDEX `metrics_daily_delta_counter_idx` (`namespace`, `datestamp`, `counter_name`))
+  ENGINE = INNODB;
+
+-- Binary metrics buffer rows, referring to counter names by their id in
+-- metrics_buffer_counter_names. The collectors rolling up must be upgraded
+-- before any collector buffers binary rows.
+ALTER TABLE `metrics_buffer` MODIFY `metrics` VARBINARY(4096) NOT NULL;
+
+CREATE TABLE `metrics_buffer_counter_names` (
+  `id` INT NOT NULL AUTO_INCREMENT,
+  `namespace` VARCHAR(32) NOT NULL,
+  `counter_name` VARCHAR(128) CHARACTER SET utf8 COLLATE utf8_bin NOT NULL,
+  PRIMARY KEY (`id`),
+  UNIQUE INDEX `metrics_buffer_counter_names_idx` (`namespace`, `counter_name`))
+  ENGINE = INNODB;
@@ -24,6 +24,7 @@ import com.ning.metrics.collector.guice.module.FiltersModule;
 import com.ning.metrics.collector.guice.module.RequestHandlersModule;
 import com.ning.metrics.collector.jaxrs.EventDeserializerRequestHandler;
 import com.ning.metrics.collector.jaxrs.EventFilterRequestHandler;
+import com.ning.metrics.collector.processing.AdmissionController;
 import com.ning.metrics.collector.processing.EventCollector;
 
 import com.google.inject.AbstractModule;
@@ -52,6 +53,7 @@ public class TestRequestHandlersModule
                 {
                     bind(CollectorConfig.class).toInstance(config);
                     bind(EventCollector.class).toInstance(Mockito.mock(EventCollector.class));
+                    bind(AdmissionController.class).toInstance(Mockito.mock(AdmissionController.class));
                 }
             }, new RequestHandlersModule(), new FiltersModule(config));
 
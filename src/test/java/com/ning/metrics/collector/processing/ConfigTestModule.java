@@ -34,6 +34,9 @@ public class ConfigTestModule extends AbstractModule
         final String hadoopPath = System.getProperty("java.io.tmpdir") + "/collector-tests-hdfs-" + System.currentTimeMillis();
         System.setProperty("collector.event-output-directory", hadoopPath);
 
+        // Tests trigger the recovery of left below files explicitly
+        System.setProperty("collector.spoolWriter.recovery.startup.enabled", "false");
+
         ConfigurationObjectFactory configFactory = new CollectorConfigurationObjectFactory(System.getProperties());
         final CollectorConfig collectorConfig
                 = configFactory.build(FastCollectorConfig.class);
@@ -176,6 +176,64 @@ public class CounterEventAggregatorTest {
     }
 
 
+    /**
+     * Throughput on a single hot counter for 1, 2, 4... threads, all sharing
+     * the same aggregator, to show how increments of the same counter scale
+     * with the number of ingest threads
+     */
+    public void testHotCounterScaling() throws Exception {
+
+        final int incrementsPerThread = 1024 * 64;
+        final int maxThreads = Runtime.getRuntime().availableProcessors() * 2;
+
+        for (int numberOfThreads = 1; numberOfThreads <= maxThreads;
+                numberOfThreads *= 2) {
+
+            final CounterEventAggregator hotAggregator
+                    = new CounterEventAggregator();
+            Thread[] workers = new Thread[numberOfThreads];
+
+            for (int i = 0; i < workers.length; i++) {
+                workers[i] = new Thread(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        for (int i = 0; i < incrementsPerThread; i++) {
+                            hotAggregator.addEvent(event1);
+                        }
+                    }
+                });
+            }
+
+            long start = System.currentTimeMillis();
+
+            for (Thread t : workers) {
+                t.start();
+            }
+
+            for (Thread t : workers) {
+                t.join();
+            }
+
+            long stop = System.currentTimeMillis();
+
+            long ratePerSecond = (1000L * (long) (incrementsPerThread)
+                    * ((long) numberOfThreads)) / (stop - start + 1);
+
+            System.out.println(numberOfThreads + " threads: " + ratePerSecond
+                    + " incr/s on the same counter");
+
+            for (CounterEvent event : hotAggregator.flush()) {
+                for (CounterEventData data : event.getCounterEvents()) {
+                    Assert.assertEquals(
+                            count11 * incrementsPerThread * numberOfThreads,
+                            (int) data.getCounters().get(counter11));
+                }
+            }
+        }
+    }
+
+
     public void testMultithreadingOnMultipleEvents() throws Exception {
 
         final int incrementsPerCounter = 1024 * 4;
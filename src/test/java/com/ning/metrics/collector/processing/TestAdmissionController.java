@@ -0,0 +1,121 @@
+/*
+ * Copyright 2010-2013 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.collector.processing;
+
+import com.ning.metrics.collector.binder.config.CollectorConfig;
+import com.ning.metrics.serialization.event.Event;
+
+import org.mockito.Mockito;
+import org.skife.config.TimeSpan;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class TestAdmissionController
+{
+    private CollectorConfig config;
+    private EventCollector collector;
+    private WriterStats stats;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() throws Exception
+    {
+        config = Mockito.mock(CollectorConfig.class);
+        Mockito.when(config.isAdmissionControlEnabled()).thenReturn(true);
+        Mockito.when(config.getAdmissionQueueHighWatermark()).thenReturn(100);
+        Mockito.when(config.getAdmissionQueueLowWatermark()).thenReturn(50);
+        Mockito.when(config.getMaxQueueSize()).thenReturn(40);
+        Mockito.when(config.getAdmissionQueueFullPercent()).thenReturn(90);
+        Mockito.when(config.getAdmissionWriteLatencyHighWatermark()).thenReturn(new TimeSpan(10, TimeUnit.MILLISECONDS));
+        Mockito.when(config.getAdmissionRetryAfter()).thenReturn(new TimeSpan(30, TimeUnit.SECONDS));
+
+        collector = Mockito.mock(EventCollector.class);
+        stats = new WriterStats();
+    }
+
+    @Test(groups = "fast")
+    public void testQueueDepthWatermarks() throws Exception
+    {
+        final AdmissionController controller = new AdmissionController(config, collector, stats);
+        Assert.assertEquals(controller.getRetryAfterSeconds(), 30);
+
+        Mockito.when(collector.getQueueSizes()).thenReturn(10);
+        Assert.assertTrue(controller.isAdmitting());
+
+        Mockito.when(collector.getQueueSizes()).thenReturn(100);
+        Thread.sleep(150);
+        Assert.assertFalse(controller.isAdmitting());
+
+        // Hysteresis: still rejecting between the two watermarks
+        Mockito.when(collector.getQueueSizes()).thenReturn(75);
+        Thread.sleep(150);
+        Assert.assertFalse(controller.isAdmitting());
+
+        Mockito.when(collector.getQueueSizes()).thenReturn(49);
+        Thread.sleep(150);
+        Assert.assertTrue(controller.isAdmitting());
+    }
+
+    @Test(groups = "fast")
+    public void testWriteLatency() throws Exception
+    {
+        final AdmissionController controller = new AdmissionController(config, collector, stats);
+        stats.registerWriteLatency(TimeUnit.MILLISECONDS.toNanos(20));
+
+        // Slow writes alone are not enough, events need to be piling up
+        Mockito.when(collector.getQueueSizes()).thenReturn(10);
+        Assert.assertTrue(controller.isAdmitting());
+
+        Mockito.when(collector.getQueueSizes()).thenReturn(60);
+        Thread.sleep(150);
+        Assert.assertFalse(controller.isAdmitting());
+    }
+
+    @Test(groups = "fast")
+    public void testPathQueueNearlyFull() throws Exception
+    {
+        final AdmissionController controller = new AdmissionController(config, collector, stats);
+        final Event hotEvent = Mockito.mock(Event.class);
+        final Event coldEvent = Mockito.mock(Event.class);
+
+        // The total depth is well below the watermarks, but the hot path's queue is 90% full
+        Mockito.when(collector.getQueueSizes()).thenReturn(37);
+        Mockito.when(collector.getQueueSize(hotEvent)).thenReturn(36);
+        Mockito.when(collector.getQueueSize(coldEvent)).thenReturn(1);
+
+        Assert.assertTrue(controller.isAdmitting());
+        Assert.assertFalse(controller.isAdmitting(hotEvent));
+        Assert.assertTrue(controller.isAdmitting(coldEvent));
+
+        Mockito.when(collector.getQueueSize(hotEvent)).thenReturn(35);
+        Assert.assertTrue(controller.isAdmitting(hotEvent));
+    }
+
+    @Test(groups = "fast")
+    public void testDisabled() throws Exception
+    {
+        Mockito.when(config.isAdmissionControlEnabled()).thenReturn(false);
+        final AdmissionController controller = new AdmissionController(config, collector, stats);
+
+        Mockito.when(collector.getQueueSizes()).thenReturn(1000);
+        Assert.assertTrue(controller.isAdmitting());
+        Assert.assertTrue(controller.isAdmitting(Mockito.mock(Event.class)));
+        Mockito.verify(collector, Mockito.never()).getQueueSizes();
+    }
+}
@@ -17,6 +17,7 @@ package com.ning.metrics.collector.processing;
 
 import com.ning.metrics.collector.processing.counter.CounterDistribution;
 import java.util.Map;
+import java.util.Random;
 import org.testng.Assert;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
@@ -126,4 +127,28 @@ public class TestCounterDistribution {
         }
     }
 
+    @Test
+    public void testSortingAfterManyIncrements() {
+        Random random = new Random(42);
+
+        for (int i = 0; i < 10000; i++) {
+            distribution.increment("id" + random.nextInt(1000), 1 + random.nextInt(5));
+        }
+
+        Map.Entry<String, Integer> previous = null;
+        int size = 0;
+        for (Map.Entry<String, Integer> e : distribution.entrySet()) {
+            if (previous != null) {
+                Assert.assertTrue(previous.getValue() > e.getValue()
+                        || (previous.getValue().equals(e.getValue())
+                                && previous.getKey().compareTo(e.getKey()) < 0));
+            }
+            Assert.assertEquals(distribution.get(e.getKey()), e.getValue());
+            previous = e;
+            size++;
+        }
+
+        Assert.assertEquals(size, distribution.size());
+    }
+
 }
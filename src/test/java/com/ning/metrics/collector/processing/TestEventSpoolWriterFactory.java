@@ -35,9 +35,9 @@ import org.testng.annotations.Test;
 import java.io.File;
 import java.io.IOException;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 @Guice(modules = ConfigTestModule.class)
 public class TestEventSpoolWriterFactory
@@ -53,7 +53,7 @@ public class TestEventSpoolWriterFactory
     File lockDirectory;
     File quarantineDirectory;
 
-    private final Map<String, File> hdfs = new HashMap<String, File>();
+    private final Map<String, File> hdfs = new ConcurrentHashMap<String, File>();
     
     private static final long CUTOFF_TIME = 1000;
     
@@ -86,6 +86,10 @@ public class TestEventSpoolWriterFactory
         createSpoolHierarchy();
         testProcessLeftBelowFilesWithFilesRemaining();
         tearDown();
+
+        createSpoolHierarchy();
+        testProcessLeftBelowFilesWithManifest();
+        tearDown();
     }
 
     private void testProcessLeftBelowFilesAllClean() throws Exception
@@ -181,6 +185,34 @@ public class TestEventSpoolWriterFactory
 
     }
 
+    private void testProcessLeftBelowFilesWithManifest() throws Exception
+    {
+        final EventSpoolWriterFactory factory = new EventSpoolWriterFactory(new HashSet<EventSpoolProcessor>(Arrays.asList(new NoWriteHadoopWriterFactory(null, config))), config, configFactory);
+        factory.setCutoffTime(CUTOFF_TIME);
+
+        final File alreadySent = new File(lockDirectory.getPath() + "/some_file_already_sent");
+        FileUtils.touch(alreadySent);
+        FileUtils.touch(new File(lockDirectory.getPath() + "/some_file_which_should_be_sent_1"));
+        FileUtils.touch(new File(quarantineDirectory.getPath() + "/some_other_file_which_should_be_sent"));
+
+        // Simulate a crash right after the file was sent, before it was deleted
+        SpoolFileManifest.forFile(alreadySent).markCompleted(new NoWriteHadoopWriterFactory(null, config));
+        Assert.assertEquals(LocalSpoolManager.findFilesInSpoolDirectory(spoolDirectory).size(), 3);
+
+        Thread.sleep(2 * CUTOFF_TIME);
+
+        factory.processLeftBelowFiles();
+
+        // The file should have been deleted without being sent again
+        Assert.assertFalse(spoolDirectory.exists());
+        Assert.assertEquals(hdfs.values().size(), 2);
+        Assert.assertFalse(hdfs.values().contains(alreadySent));
+        Assert.assertEquals(factory.getRecoveredFiles(), 2);
+        Assert.assertEquals(factory.getRecoverySkippedFiles(), 1);
+        Assert.assertEquals(factory.getRecoveryFailedFiles(), 0);
+        Assert.assertEquals(factory.getRecoveryPendingFiles(), 0);
+    }
+
     private void createSpoolHierarchy()
     {
         final LocalSpoolManager spoolManager = new LocalSpoolManager(config, "FuuEvent", SerializationType.DEFAULT, null);
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2010-2013 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.collector.processing;
+
+import com.google.inject.Inject;
+import com.mogwee.executors.FailsafeScheduledExecutor;
+import com.ning.metrics.collector.MockEvent;
+import com.ning.metrics.collector.binder.config.CollectorConfig;
+import com.ning.metrics.collector.util.EventQueueType;
+import com.ning.metrics.serialization.event.Event;
+import com.ning.metrics.serialization.writer.MockEventWriter;
+
+import org.mockito.Mockito;
+import org.skife.config.TimeSpan;
+import org.testng.Assert;
+import org.testng.annotations.Guice;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+@Guice(modules = ConfigTestModule.class)
+public class TestLocalQueueAndWriter
+{
+    @Inject
+    private CollectorConfig collectorConfig;
+
+    @Test(groups = "slow")
+    public void testQueuesShareDequeuerPool() throws Exception
+    {
+        final ScheduledExecutorService dequeuerPool = new FailsafeScheduledExecutor(2, "TestLocalQueueAndWriter");
+        final WriterStats stats = new WriterStats();
+
+        final List<MockEventWriter> eventWriters = new ArrayList<MockEventWriter>();
+        final List<LocalQueueAndWriter> queues = new ArrayList<LocalQueueAndWriter>();
+        for (int i = 0; i < 20; i++) {
+            final MockEventWriter eventWriter = new MockEventWriter(false, false, false);
+            eventWriters.add(eventWriter);
+            queues.add(new LocalQueueAndWriter(collectorConfig, eventWriter, stats, dequeuerPool));
+        }
+
+        final List<List<Event>> sentEvents = new ArrayList<List<Event>>();
+        for (final LocalQueueAndWriter queue : queues) {
+            final List<Event> events = new ArrayList<Event>();
+            for (int j = 0; j < 100; j++) {
+                final Event event = new MockEvent();
+                events.add(event);
+                Assert.assertTrue(queue.offer(event));
+            }
+            sentEvents.add(events);
+        }
+
+        Thread.sleep(1000);
+
+        Assert.assertEquals(stats.getEnqueuedEvents(), 2000);
+        Assert.assertEquals(stats.getWrittenEvents(), 2000);
+        for (int i = 0; i < queues.size(); i++) {
+            Assert.assertTrue(queues.get(i).isEmpty());
+            // Ordering is preserved per queue
+            Assert.assertEquals(eventWriters.get(i).getWrittenEventList(), sentEvents.get(i));
+        }
+
+        for (final LocalQueueAndWriter queue : queues) {
+            queue.close();
+        }
+        dequeuerPool.shutdown();
+        Assert.assertTrue(dequeuerPool.awaitTermination(5, TimeUnit.SECONDS));
+    }
+
+    @Test(groups = "slow")
+    public void testFullBatchDoesNotWaitForTheDelayedDrain() throws Exception
+    {
+        final CollectorConfig config = Mockito.mock(CollectorConfig.class);
+        Mockito.when(config.getEventQueueType()).thenReturn(EventQueueType.LINKED);
+        Mockito.when(config.getMaxQueueSize()).thenReturn(100);
+        Mockito.when(config.getDequeueBatchSize()).thenReturn(10);
+        Mockito.when(config.getDequeueBatchMaxWait()).thenReturn(new TimeSpan("1h"));
+
+        final ScheduledExecutorService dequeuerPool = new FailsafeScheduledExecutor(1, "TestLocalQueueAndWriter");
+        final WriterStats stats = new WriterStats();
+        final LocalQueueAndWriter queue = new LocalQueueAndWriter(config, new MockEventWriter(false, false, false), stats, dequeuerPool);
+
+        // The first event schedules a drain in an hour
+        Assert.assertTrue(queue.offer(new MockEvent()));
+        Thread.sleep(100);
+        Assert.assertEquals(stats.getWrittenEvents(), 0);
+
+        // Filling the batch drains it right away
+        for (int i = 1; i < 10; i++) {
+            Assert.assertTrue(queue.offer(new MockEvent()));
+        }
+
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (stats.getWrittenEvents() < 10 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        Assert.assertEquals(stats.getWrittenEvents(), 10);
+        Assert.assertTrue(queue.isEmpty());
+
+        queue.close();
+        dequeuerPool.shutdownNow();
+    }
+}
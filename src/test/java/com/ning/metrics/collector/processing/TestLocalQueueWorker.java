@@ -0,0 +1,58 @@
+/*
+ * Copyright 2010-2013 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.collector.processing;
+
+import com.ning.metrics.collector.MockEvent;
+import com.ning.metrics.serialization.event.Event;
+import com.ning.metrics.serialization.writer.MockEventWriter;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+public class TestLocalQueueWorker
+{
+    @Test(groups = "fast")
+    public void testBatchedDrain() throws Exception
+    {
+        final BlockingQueue<Event> queue = new LinkedBlockingQueue<Event>();
+        final MockEventWriter eventWriter = new MockEventWriter(false, false, false);
+        final WriterStats stats = new WriterStats();
+        final LocalQueueWorker worker = new LocalQueueWorker(queue, eventWriter, stats, 3);
+
+        for (int i = 0; i < 5; i++) {
+            queue.offer(new MockEvent());
+        }
+
+        // Bounded drain
+        Assert.assertEquals(worker.drain(4), 4);
+        Assert.assertEquals(eventWriter.getWrittenEventList().size(), 4);
+        Assert.assertEquals(stats.getWrittenEvents(), 4);
+        Assert.assertEquals(queue.size(), 1);
+
+        // Partial batch
+        Assert.assertEquals(worker.drain(100), 1);
+        Assert.assertEquals(eventWriter.getWrittenEventList().size(), 5);
+        Assert.assertEquals(stats.getWrittenEvents(), 5);
+
+        // Nothing left
+        Assert.assertEquals(worker.drain(100), 0);
+        Assert.assertEquals(stats.getWrittenEvents(), 5);
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2010-2013 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.collector.processing;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import com.ning.metrics.serialization.event.Event;
+import com.ning.metrics.serialization.event.EventDeserializer;
+import org.apache.commons.io.FileUtils;
+import org.mockito.Mockito;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+
+public class TestSpoolFile
+{
+    private static final String CONTENT = "some events, serialized";
+
+    private File directory;
+    private File file;
+
+    @BeforeMethod(alwaysRun = true)
+    public void setUp() throws Exception
+    {
+        directory = Files.createTempDir();
+        file = new File(directory, "spool_file");
+        Files.write(CONTENT, file, Charsets.UTF_8);
+    }
+
+    @AfterMethod(alwaysRun = true)
+    public void tearDown() throws Exception
+    {
+        FileUtils.deleteQuietly(directory);
+    }
+
+    @Test(groups = "fast")
+    public void testStreamsAreIndependent() throws Exception
+    {
+        final SpoolFile spoolFile = new SpoolFile(file, "FuuEvent", SerializationType.SMILE);
+
+        final InputStream first = spoolFile.openStream();
+        final InputStream second = spoolFile.openStream();
+
+        // Reading one stream doesn't move the other one
+        Assert.assertEquals((char) first.read(), 's');
+        Assert.assertEquals(first.skip(5), 5);
+        Assert.assertEquals(new String(ByteStreams.toByteArray(second), Charsets.UTF_8), CONTENT);
+        Assert.assertEquals(new String(ByteStreams.toByteArray(first), Charsets.UTF_8), CONTENT.substring(6));
+        Assert.assertEquals(first.read(), -1);
+
+        spoolFile.close();
+    }
+
+    @Test(groups = "fast")
+    public void testMappingOutlivesTheFile() throws Exception
+    {
+        final SpoolFile spoolFile = new SpoolFile(file, "FuuEvent", SerializationType.SMILE);
+        Assert.assertEquals(spoolFile.openStream().available(), CONTENT.length());
+
+        // Processors still working on the file can read it after it's been moved away
+        Assert.assertTrue(file.delete());
+        Assert.assertEquals(new String(ByteStreams.toByteArray(spoolFile.openStream()), Charsets.UTF_8), CONTENT);
+
+        spoolFile.close();
+    }
+
+    @Test(groups = "fast")
+    public void testEmptyFile() throws Exception
+    {
+        final File emptyFile = new File(directory, "empty_spool_file");
+        Files.touch(emptyFile);
+
+        final SpoolFile spoolFile = new SpoolFile(emptyFile, "FuuEvent", SerializationType.SMILE);
+        Assert.assertEquals(spoolFile.openStream().read(), -1);
+    }
+
+    @Test(groups = "fast")
+    @SuppressWarnings("unchecked")
+    public void testEventsAreDecodedOnce() throws Exception
+    {
+        final SerializationType serializationType = Mockito.mock(SerializationType.class);
+        final EventDeserializer eventDeserializer = Mockito.mock(EventDeserializer.class);
+        final Event fuuEvent = Mockito.mock(Event.class);
+        final Event barEvent = Mockito.mock(Event.class);
+        Mockito.when(serializationType.getDeSerializer(Mockito.<InputStream>any())).thenReturn(eventDeserializer);
+        Mockito.when(eventDeserializer.hasNextEvent()).thenReturn(true, true, false);
+        Mockito.when(eventDeserializer.getNextEvent()).thenReturn(fuuEvent, barEvent);
+        Mockito.when(fuuEvent.getName()).thenReturn("FuuEvent");
+        Mockito.when(fuuEvent.getData()).thenReturn("{\"fuu\": 1}");
+        Mockito.when(barEvent.getName()).thenReturn("BarEvent");
+
+        final SpoolFile spoolFile = new SpoolFile(file, "FuuEvent", serializationType);
+        final ObjectMapper mapper = new ObjectMapper();
+
+        final List<Map> first = spoolFile.getEventData("fuuevent", Map.class, mapper);
+        Assert.assertEquals(first.size(), 1);
+        Assert.assertEquals(first.get(0).get("fuu"), 1);
+        // Other processors get the same view, and the file isn't deserialized again
+        Assert.assertSame(spoolFile.getEventData("FuuEvent", Map.class, mapper), first);
+        Assert.assertEquals(spoolFile.getEvents().size(), 2);
+
+        Mockito.verify(serializationType, Mockito.times(1)).getDeSerializer(Mockito.<InputStream>any());
+        Mockito.verify(eventDeserializer, Mockito.times(2)).getNextEvent();
+        Mockito.verify(fuuEvent, Mockito.times(1)).getData();
+        Mockito.verify(barEvent, Mockito.never()).getData();
+
+        spoolFile.close();
+    }
+}
@@ -0,0 +1,412 @@
+/*
+ * Copyright 2010-2013 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.collector.processing;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.mogwee.executors.NamedThreadFactory;
+import org.apache.commons.io.FileUtils;
+import org.mockito.Mockito;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TestSpoolProcessorFanOut
+{
+    private File spoolDirectory;
+    private File file;
+    private LocalSpoolManager spoolManager;
+    private SpoolProcessorFanOut fanOut;
+
+    @BeforeMethod(alwaysRun = true)
+    public void setUp() throws Exception
+    {
+        spoolDirectory = Files.createTempDir();
+        file = new File(spoolDirectory, "_lock/some_spool_file");
+        spoolManager = Mockito.mock(LocalSpoolManager.class);
+        Mockito.when(spoolManager.getEventName()).thenReturn("FuuEvent");
+        Mockito.when(spoolManager.getSerializationType()).thenReturn(SerializationType.SMILE);
+        fanOut = new SpoolProcessorFanOut("test", new NamedThreadFactory("test-fanout"), 1, 10, 4, 0, 1, 10);
+    }
+
+    @AfterMethod(alwaysRun = true)
+    public void tearDown() throws Exception
+    {
+        fanOut.shutdown(1, TimeUnit.SECONDS);
+        FileUtils.deleteQuietly(spoolDirectory);
+    }
+
+    @Test(groups = "fast")
+    public void testSlowProcessorOnlyDelaysItself() throws Exception
+    {
+        final CountDownLatch slowRelease = new CountDownLatch(1);
+        final BlockingProcessor slow = new BlockingProcessor("slow", slowRelease);
+        final CountingProcessor fast = new CountingProcessor("fast", 0);
+
+        final ListenableFuture<Boolean> first = fanOut.process(ImmutableSet.<EventSpoolProcessor>of(slow, fast), spoolManager, file, "path1", SpoolFileManifest.forFile(file));
+        final ListenableFuture<Boolean> second = fanOut.process(ImmutableSet.<EventSpoolProcessor>of(slow, fast), spoolManager, file, "path2", SpoolFileManifest.forFile(new File(spoolDirectory, "other_spool_file")));
+
+        // The fast processor goes through both files while the slow one is stuck on the first one
+        final long deadline = System.currentTimeMillis() + 2000;
+        while (fast.getCalls() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(fast.getCalls(), 2);
+        Assert.assertFalse(first.isDone());
+        Assert.assertFalse(second.isDone());
+
+        slowRelease.countDown();
+        Assert.assertTrue(first.get(2, TimeUnit.SECONDS));
+        Assert.assertTrue(second.get(2, TimeUnit.SECONDS));
+    }
+
+    @Test(groups = "fast")
+    public void testRetry() throws Exception
+    {
+        final CountingProcessor flaky = new CountingProcessor("flaky", 1);
+        final CountingProcessor fast = new CountingProcessor("fast", 0);
+
+        Assert.assertTrue(fanOut.process(ImmutableSet.<EventSpoolProcessor>of(flaky, fast), spoolManager, file, "path", SpoolFileManifest.forFile(file)).get(2, TimeUnit.SECONDS));
+        Assert.assertEquals(flaky.getCalls(), 2);
+        // Only the failed processor is retried
+        Assert.assertEquals(fast.getCalls(), 1);
+        Assert.assertEquals(fanOut.getRetriedAttempts(), 1);
+    }
+
+    @Test(groups = "fast")
+    public void testFailureAfterRetries() throws Exception
+    {
+        final CountingProcessor broken = new CountingProcessor("broken", Integer.MAX_VALUE);
+
+        Assert.assertFalse(fanOut.process(ImmutableSet.<EventSpoolProcessor>of(broken), spoolManager, file, "path", SpoolFileManifest.forFile(file)).get(2, TimeUnit.SECONDS));
+        Assert.assertEquals(broken.getCalls(), 2);
+    }
+
+    @Test(groups = "fast")
+    public void testTimeout() throws Exception
+    {
+        final SpoolProcessorFanOut fanOutWithTimeout = new SpoolProcessorFanOut("test", new NamedThreadFactory("test-fanout-timeout"), 1, 10, 4, 200, 1, 10);
+        final BlockingProcessor stuck = new BlockingProcessor("stuck", new CountDownLatch(1));
+
+        try {
+            Assert.assertFalse(fanOutWithTimeout.process(ImmutableSet.<EventSpoolProcessor>of(stuck), spoolManager, file, "path", SpoolFileManifest.forFile(file)).get(5, TimeUnit.SECONDS));
+            Assert.assertEquals(fanOutWithTimeout.getTimedOutAttempts(), 2);
+        }
+        finally {
+            fanOutWithTimeout.shutdown(1, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testTimedOutAttemptIsRetriedOnceDone() throws Exception
+    {
+        // Two threads on the lane, so that a retry could overlap with the attempt which timed out
+        final SpoolProcessorFanOut fanOutWithTimeout = new SpoolProcessorFanOut("test", new NamedThreadFactory("test-fanout-zombie"), 2, 10, 4, 100, 1, 10);
+        final StubbornProcessor stubborn = new StubbornProcessor("stubborn", 300);
+
+        try {
+            Assert.assertFalse(fanOutWithTimeout.process(ImmutableSet.<EventSpoolProcessor>of(stubborn), spoolManager, file, "path", SpoolFileManifest.forFile(file)).get(5, TimeUnit.SECONDS));
+            Assert.assertEquals(stubborn.getCalls(), 2);
+            Assert.assertEquals(stubborn.getMaxConcurrentCalls(), 1);
+            Assert.assertEquals(fanOutWithTimeout.getTimedOutAttempts(), 2);
+        }
+        finally {
+            fanOutWithTimeout.shutdown(1, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testFilesInFlightAreBounded() throws Exception
+    {
+        final SpoolProcessorFanOut boundedFanOut = new SpoolProcessorFanOut("test", new NamedThreadFactory("test-fanout-bounded"), 1, 1, 4, 0, 0, 10);
+        final CountDownLatch slowRelease = new CountDownLatch(1);
+        final BlockingProcessor slow = new BlockingProcessor("slow", slowRelease);
+        final CountDownLatch secondSubmitted = new CountDownLatch(1);
+
+        try {
+            final ListenableFuture<Boolean> first = boundedFanOut.process(ImmutableSet.<EventSpoolProcessor>of(slow), spoolManager, file, "path1", SpoolFileManifest.forFile(file));
+
+            // The lane is full: submitting another file blocks until the first one is done
+            final Thread flusher = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    boundedFanOut.process(ImmutableSet.<EventSpoolProcessor>of(slow), spoolManager, file, "path2", SpoolFileManifest.forFile(new File(spoolDirectory, "other_spool_file")));
+                    secondSubmitted.countDown();
+                }
+            });
+            flusher.start();
+            Assert.assertFalse(secondSubmitted.await(200, TimeUnit.MILLISECONDS));
+
+            slowRelease.countDown();
+            Assert.assertTrue(first.get(2, TimeUnit.SECONDS));
+            Assert.assertTrue(secondSubmitted.await(2, TimeUnit.SECONDS));
+        }
+        finally {
+            boundedFanOut.shutdown(1, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testDecodedFilesAreReleasedByTheirReaders() throws Exception
+    {
+        // A single file can be read by spool file processors at a time
+        final SpoolProcessorFanOut boundedFanOut = new SpoolProcessorFanOut("test", new NamedThreadFactory("test-fanout-decoded"), 1, 10, 1, 0, 0, 10);
+        final CountDownLatch slowRelease = new CountDownLatch(1);
+        final BlockingProcessor slow = new BlockingProcessor("slow", slowRelease);
+        final CountingSpoolFileProcessor reader = new CountingSpoolFileProcessor("reader");
+
+        try {
+            final ListenableFuture<Boolean> first = boundedFanOut.process(ImmutableSet.<EventSpoolProcessor>of(slow, reader), spoolManager, file, "path1", SpoolFileManifest.forFile(file));
+
+            // The reader is done with the first file: the second one goes through while the slow processor is still stuck
+            final ListenableFuture<Boolean> second = boundedFanOut.process(ImmutableSet.<EventSpoolProcessor>of(slow, reader), spoolManager, file, "path2", SpoolFileManifest.forFile(new File(spoolDirectory, "other_spool_file")));
+            Assert.assertFalse(first.isDone());
+            Assert.assertFalse(second.isDone());
+
+            final long deadline = System.currentTimeMillis() + 2000;
+            while (reader.getSpoolFiles().size() < 2 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals(reader.getSpoolFiles().size(), 2);
+            Assert.assertNotSame(reader.getSpoolFiles().get(0), reader.getSpoolFiles().get(1));
+
+            slowRelease.countDown();
+            Assert.assertTrue(first.get(2, TimeUnit.SECONDS));
+            Assert.assertTrue(second.get(2, TimeUnit.SECONDS));
+        }
+        finally {
+            boundedFanOut.shutdown(1, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testManifest() throws Exception
+    {
+        final CountingProcessor broken = new CountingProcessor("broken", 1);
+        final CountingProcessor fast = new CountingProcessor("fast", 0);
+        final SpoolProcessorFanOut fanOutWithoutRetries = new SpoolProcessorFanOut("test", new NamedThreadFactory("test-fanout-manifest"), 1, 10, 4, 0, 0, 10);
+
+        try {
+            Assert.assertFalse(fanOutWithoutRetries.process(ImmutableSet.<EventSpoolProcessor>of(broken, fast), spoolManager, file, "path", SpoolFileManifest.forFile(file)).get(2, TimeUnit.SECONDS));
+            Assert.assertTrue(new File(spoolDirectory, "_manifest/some_spool_file").isFile());
+
+            // The file comes back (e.g. from quarantine): only the processor which failed should see it again
+            final File retriedFile = new File(spoolDirectory, "some_spool_file");
+            final SpoolFileManifest manifest = SpoolFileManifest.forFile(retriedFile);
+            Assert.assertTrue(manifest.isCompleted(fast));
+            Assert.assertFalse(manifest.isCompleted(broken));
+
+            Assert.assertTrue(fanOutWithoutRetries.process(ImmutableSet.<EventSpoolProcessor>of(broken, fast), spoolManager, retriedFile, "path", manifest).get(2, TimeUnit.SECONDS));
+            Assert.assertEquals(broken.getCalls(), 2);
+            Assert.assertEquals(fast.getCalls(), 1);
+            Assert.assertEquals(fanOutWithoutRetries.getSkippedAttempts(), 1);
+            Assert.assertTrue(SpoolFileManifest.forFile(retriedFile).isCompleted(ImmutableSet.<EventSpoolProcessor>of(broken, fast)));
+
+            manifest.delete();
+            Assert.assertFalse(new File(spoolDirectory, "_manifest/some_spool_file").exists());
+        }
+        finally {
+            fanOutWithoutRetries.shutdown(1, TimeUnit.SECONDS);
+        }
+    }
+
+    private static class CountingProcessor implements EventSpoolProcessor
+    {
+        private final String name;
+        private final int failures;
+        private final AtomicInteger calls = new AtomicInteger(0);
+
+        private CountingProcessor(final String name, final int failures)
+        {
+            this.name = name;
+            this.failures = failures;
+        }
+
+        @Override
+        public void processEventFile(final String eventName, final SerializationType serializationType, final File file, final String outputPath) throws IOException
+        {
+            if (calls.incrementAndGet() <= failures) {
+                throw new IOException("Failure " + calls.get());
+            }
+        }
+
+        public int getCalls()
+        {
+            return calls.get();
+        }
+
+        @Override
+        public void close()
+        {
+        }
+
+        @Override
+        public String getProcessorName()
+        {
+            return name;
+        }
+    }
+
+    private static class CountingSpoolFileProcessor implements SpoolFileProcessor
+    {
+        private final String name;
+        private final List<SpoolFile> spoolFiles = new CopyOnWriteArrayList<SpoolFile>();
+
+        private CountingSpoolFileProcessor(final String name)
+        {
+            this.name = name;
+        }
+
+        @Override
+        public void processSpoolFile(final SpoolFile spoolFile, final String outputPath) throws IOException
+        {
+            spoolFiles.add(spoolFile);
+        }
+
+        @Override
+        public void processEventFile(final String eventName, final SerializationType serializationType, final File file, final String outputPath) throws IOException
+        {
+            throw new IOException("Expected a SpoolFile");
+        }
+
+        public List<SpoolFile> getSpoolFiles()
+        {
+            return spoolFiles;
+        }
+
+        @Override
+        public void close()
+        {
+        }
+
+        @Override
+        public String getProcessorName()
+        {
+            return name;
+        }
+    }
+
+    // Ignores interrupts, and fails once done
+    private static class StubbornProcessor implements EventSpoolProcessor
+    {
+        private final String name;
+        private final long durationMillis;
+        private final AtomicInteger calls = new AtomicInteger(0);
+        private final AtomicInteger concurrentCalls = new AtomicInteger(0);
+        private final AtomicInteger maxConcurrentCalls = new AtomicInteger(0);
+
+        private StubbornProcessor(final String name, final long durationMillis)
+        {
+            this.name = name;
+            this.durationMillis = durationMillis;
+        }
+
+        @Override
+        public void processEventFile(final String eventName, final SerializationType serializationType, final File file, final String outputPath) throws IOException
+        {
+            calls.incrementAndGet();
+            final int concurrent = concurrentCalls.incrementAndGet();
+            if (concurrent > maxConcurrentCalls.get()) {
+                maxConcurrentCalls.set(concurrent);
+            }
+
+            try {
+                final long deadline = System.currentTimeMillis() + durationMillis;
+                while (System.currentTimeMillis() < deadline) {
+                    try {
+                        Thread.sleep(10);
+                    }
+                    catch (InterruptedException ignored) {
+                        // Keep going
+                    }
+                }
+            }
+            finally {
+                concurrentCalls.decrementAndGet();
+            }
+
+            throw new IOException("Done, too late");
+        }
+
+        public int getCalls()
+        {
+            return calls.get();
+        }
+
+        public int getMaxConcurrentCalls()
+        {
+            return maxConcurrentCalls.get();
+        }
+
+        @Override
+        public void close()
+        {
+        }
+
+        @Override
+        public String getProcessorName()
+        {
+            return name;
+        }
+    }
+
+    private static class BlockingProcessor implements EventSpoolProcessor
+    {
+        private final String name;
+        private final CountDownLatch release;
+
+        private BlockingProcessor(final String name, final CountDownLatch release)
+        {
+            this.name = name;
+            this.release = release;
+        }
+
+        @Override
+        public void processEventFile(final String eventName, final SerializationType serializationType, final File file, final String outputPath) throws IOException
+        {
+            try {
+                release.await();
+            }
+            catch (InterruptedException e) {
+                throw new IOException("Interrupted");
+            }
+        }
+
+        @Override
+        public void close()
+        {
+        }
+
+        @Override
+        public String getProcessorName()
+        {
+            return name;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2010-2013 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.collector.processing;
+
+import com.ning.metrics.collector.MockEvent;
+import com.ning.metrics.serialization.event.Event;
+import com.ning.metrics.serialization.event.ThriftEnvelopeEvent;
+import com.ning.metrics.serialization.thrift.ThriftEnvelope;
+import com.ning.metrics.serialization.thrift.ThriftField;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class TestSpoolQueueKeyCache
+{
+    private static final String PREFIX = "/events";
+
+    @Test(groups = "fast")
+    public void testSameMinuteReusesKey() throws Exception
+    {
+        final SpoolQueueKeyCache cache = new SpoolQueueKeyCache(PREFIX);
+        final DateTime now = new DateTime(2013, 5, 2, 10, 31, 12, 0, DateTimeZone.UTC);
+
+        final Event eventA = createThriftEvent("MyEvent", now);
+        final Event eventB = createThriftEvent("MyEvent", now.plusSeconds(30));
+
+        final SpoolQueueKey keyA = cache.getKey(eventA, SerializationType.THRIFT);
+        final SpoolQueueKey keyB = cache.getKey(eventB, SerializationType.THRIFT);
+
+        Assert.assertSame(keyA, keyB);
+        Assert.assertEquals(keyA.getOutputDir(), eventA.getOutputDir(PREFIX));
+        Assert.assertEquals(keyA.toString(), eventA.getOutputDir(PREFIX) + "|thrift");
+        Assert.assertEquals(cache.size(), 1);
+    }
+
+    @Test(groups = "fast")
+    public void testKeysAreResolvedPerEventTypeAndTime() throws Exception
+    {
+        final SpoolQueueKeyCache cache = new SpoolQueueKeyCache(PREFIX);
+        final DateTime now = new DateTime(2013, 5, 2, 10, 31, 12, 0, DateTimeZone.UTC);
+
+        final Event eventA = createThriftEvent("MyEvent", now);
+        final Event otherHour = createThriftEvent("MyEvent", now.plusHours(1));
+        final Event otherName = createThriftEvent("MyOtherEvent", now);
+
+        final SpoolQueueKey keyA = cache.getKey(eventA, SerializationType.THRIFT);
+        final SpoolQueueKey keyOtherHour = cache.getKey(otherHour, SerializationType.THRIFT);
+        final SpoolQueueKey keyOtherName = cache.getKey(otherName, SerializationType.THRIFT);
+
+        Assert.assertEquals(keyOtherHour.getOutputDir(), otherHour.getOutputDir(PREFIX));
+        Assert.assertEquals(keyOtherName.getOutputDir(), otherName.getOutputDir(PREFIX));
+        Assert.assertFalse(keyA.equals(keyOtherHour));
+        Assert.assertFalse(keyA.equals(keyOtherName));
+
+        // Going back in time is a cache miss, but still yields an equal key
+        final SpoolQueueKey keyAgain = cache.getKey(createThriftEvent("MyEvent", now), SerializationType.THRIFT);
+        Assert.assertEquals(keyAgain, keyA);
+        Assert.assertEquals(keyAgain.hashCode(), keyA.hashCode());
+    }
+
+    @Test(groups = "fast")
+    public void testCustomEventsAreNotCached() throws Exception
+    {
+        final SpoolQueueKeyCache cache = new SpoolQueueKeyCache(PREFIX);
+
+        final MockEvent eventA = new MockEvent();
+        eventA.setOutputPath("/a");
+        final MockEvent eventB = new MockEvent();
+        eventB.setOutputPath("/b");
+
+        Assert.assertEquals(cache.getKey(eventA, SerializationType.DEFAULT).toString(), "/a|bin");
+        Assert.assertEquals(cache.getKey(eventB, SerializationType.DEFAULT).toString(), "/b|bin");
+        Assert.assertEquals(cache.size(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testEventNamesAreBounded() throws Exception
+    {
+        final SpoolQueueKeyCache cache = new SpoolQueueKeyCache(PREFIX);
+        final DateTime now = new DateTime(2013, 5, 2, 10, 31, 12, 0, DateTimeZone.UTC);
+
+        for (int i = 0; i < SpoolQueueKeyCache.MAX_EVENT_NAMES * 2; i++) {
+            final Event event = createThriftEvent("MyEvent" + i, now);
+            Assert.assertEquals(cache.getKey(event, SerializationType.THRIFT).getOutputDir(), event.getOutputDir(PREFIX));
+        }
+
+        Assert.assertTrue(cache.size() <= SpoolQueueKeyCache.MAX_EVENT_NAMES);
+    }
+
+    private Event createThriftEvent(final String eventName, final DateTime eventDateTime)
+    {
+        final List<ThriftField> fields = new ArrayList<ThriftField>();
+        fields.add(ThriftField.createThriftField("hello", (short) 1));
+        return new ThriftEnvelopeEvent(eventDateTime, new ThriftEnvelope(eventName, fields));
+    }
+}
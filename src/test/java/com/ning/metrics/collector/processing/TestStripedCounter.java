@@ -0,0 +1,79 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ning.metrics.collector.processing;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+public class TestStripedCounter
+{
+    @Test(groups = "fast")
+    public void testSingleThread() throws Exception
+    {
+        final StripedCounter counter = new StripedCounter();
+        Assert.assertEquals(counter.sum(), 0);
+
+        counter.add(3);
+        counter.add(-1);
+        counter.add(Integer.MAX_VALUE);
+        Assert.assertEquals(counter.sum(), 2L + Integer.MAX_VALUE);
+        // Never contended, no cells
+        Assert.assertEquals(counter.getCellCount(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testConcurrentIncrements() throws Exception
+    {
+        final StripedCounter counter = new StripedCounter();
+        final int numberOfThreads = 16;
+        final int incrementsPerThread = 100000;
+        final CountDownLatch start = new CountDownLatch(1);
+
+        final Thread[] workers = new Thread[numberOfThreads];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try {
+                        start.await();
+                    }
+                    catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int j = 0; j < incrementsPerThread; j++) {
+                        counter.add(1);
+                    }
+                }
+            });
+            workers[i].start();
+        }
+
+        start.countDown();
+        for (final Thread worker : workers) {
+            worker.join();
+        }
+
+        Assert.assertEquals(counter.sum(), (long) numberOfThreads * incrementsPerThread);
+        // Cells grow by doubling, up to one per CPU or so
+        final int cellCount = counter.getCellCount();
+        Assert.assertTrue(cellCount <= Math.max(2, Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1)), "Too many cells: " + cellCount);
+        Assert.assertEquals(cellCount & (cellCount - 1), 0, "Not a power of two: " + cellCount);
+    }
+}
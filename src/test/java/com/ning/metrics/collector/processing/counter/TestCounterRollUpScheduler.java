@@ -0,0 +1,131 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ning.metrics.collector.processing.counter;
+
+import com.google.common.collect.ImmutableList;
+import com.ning.metrics.collector.binder.config.CollectorConfig;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.skife.config.TimeSpan;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class TestCounterRollUpScheduler
+{
+    private RollUpCounterProcessor rollUpCounterProcessor;
+    private CounterRollUpScheduler scheduler;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp()
+    {
+        final CollectorConfig config = Mockito.mock(CollectorConfig.class);
+        Mockito.when(config.isCounterRollUpPartitioned()).thenReturn(true);
+        Mockito.when(config.getCounterRollUpThreadCount()).thenReturn(1);
+        Mockito.when(config.getSpoolWriterExecutorShutdownTime()).thenReturn(new TimeSpan("1s"));
+
+        rollUpCounterProcessor = Mockito.mock(RollUpCounterProcessor.class);
+        scheduler = new CounterRollUpScheduler(config, rollUpCounterProcessor);
+    }
+
+    @AfterMethod(groups = "fast")
+    public void tearDown()
+    {
+        scheduler.cleanUp();
+    }
+
+    @Test(groups = "fast")
+    public void testNamespacesTakeTurns() throws Exception
+    {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(5);
+        final List<String> rolledUp = new CopyOnWriteArrayList<String>();
+
+        Mockito.when(rollUpCounterProcessor.rollUpOldestBufferedDay(Mockito.anyString())).thenAnswer(new Answer<Integer>()
+        {
+            private int bigDaysLeft = 3;
+
+            @Override
+            public Integer answer(final InvocationOnMock invocation) throws Throwable
+            {
+                final String namespace = (String) invocation.getArguments()[0];
+                rolledUp.add(namespace);
+
+                if (rolledUp.size() == 1) {
+                    // Hold the only thread until everybody is in line
+                    started.countDown();
+                    release.await(10, TimeUnit.SECONDS);
+                }
+
+                done.countDown();
+                return "big".equals(namespace) ? --bigDaysLeft : 0;
+            }
+        });
+
+        Assert.assertTrue(scheduler.submit("big"));
+        Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+
+        // Already scheduled
+        Assert.assertFalse(scheduler.submit("big"));
+        Assert.assertTrue(scheduler.submit("small1"));
+        Assert.assertTrue(scheduler.submit("small2"));
+        Assert.assertEquals(scheduler.getPendingRollUpNamespaces(), 3);
+        Assert.assertEquals(scheduler.getRollUpLagByNamespace().keySet().size(), 3);
+
+        release.countDown();
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+
+        // The big namespace goes back to the end of the line after each day
+        Assert.assertEquals(rolledUp, ImmutableList.of("big", "small1", "small2", "big", "big"));
+
+        // Wait for the last task to complete
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (scheduler.getPendingRollUpNamespaces() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(scheduler.getPendingRollUpNamespaces(), 0);
+        Assert.assertEquals(scheduler.getCompletedNamespaceRollUps(), 3);
+        Assert.assertEquals(scheduler.getRollUpCount(), 5);
+
+        // Can be scheduled again once done
+        Assert.assertTrue(scheduler.submit("big"));
+    }
+
+    @Test(groups = "fast")
+    public void testRollUpThreadsFitInTheConnectionPool()
+    {
+        final CollectorConfig config = Mockito.mock(CollectorConfig.class);
+        Mockito.when(config.getCounterRollUpThreadCount()).thenReturn(8);
+        Mockito.when(config.getCounterEventBufferWriterCount()).thenReturn(4);
+
+        Mockito.when(config.getMaxActive()).thenReturn(10);
+        Assert.assertEquals(CounterRollUpScheduler.getRollUpThreadCount(config), 2);
+
+        Mockito.when(config.getMaxActive()).thenReturn(100);
+        Assert.assertEquals(CounterRollUpScheduler.getRollUpThreadCount(config), 8);
+
+        // Always at least one
+        Mockito.when(config.getMaxActive()).thenReturn(4);
+        Assert.assertEquals(CounterRollUpScheduler.getRollUpThreadCount(config), 1);
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ning.metrics.collector.processing.counter;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.ning.compress.lzf.LZFEncoder;
+import com.ning.metrics.collector.processing.db.DatabaseCounterStorage;
+import com.ning.metrics.collector.processing.db.model.RolledUpCounterData;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestDistributionCodec
+{
+    @Test(groups = "fast")
+    public void testRoundTrip() throws Exception
+    {
+        final List<String> uniqueIds = Lists.newArrayList();
+        final List<Integer> counts = Lists.newArrayList();
+        final DistributionWriter writer = new DistributionWriter();
+
+        // Enough entries for several blocks, negative counts, unicode and an empty id
+        for (int i = 0; i < 10000; i++) {
+            final String uniqueId = i == 3 ? "" : "mémber" + (10000 - i);
+            final int count = 5000 - i;
+
+            writer.write(uniqueId, count);
+
+            if (count != 0) {
+                uniqueIds.add(uniqueId);
+                counts.add(count);
+            }
+        }
+
+        Assert.assertEquals(writer.getEntryCount(), uniqueIds.size());
+
+        final DistributionReader reader = new DistributionReader(writer.finish());
+        try {
+            Assert.assertEquals(reader.getEntryCount(), uniqueIds.size());
+
+            for (int i = 0; i < uniqueIds.size(); i++) {
+                Assert.assertTrue(reader.next());
+                Assert.assertEquals(reader.getUniqueId(), uniqueIds.get(i));
+                Assert.assertEquals(reader.getCount(), counts.get(i).intValue());
+            }
+
+            Assert.assertFalse(reader.next());
+            Assert.assertNull(reader.getUniqueId());
+        }
+        finally {
+            reader.close();
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testEmptyDistribution() throws Exception
+    {
+        final DistributionReader reader = new DistributionReader(new DistributionWriter().finish());
+
+        Assert.assertEquals(reader.getEntryCount(), 0);
+        Assert.assertFalse(reader.next());
+    }
+
+    @Test(groups = "fast")
+    public void testLegacyFormat() throws Exception
+    {
+        final ByteArrayOutputStream legacy = new ByteArrayOutputStream();
+        final GZIPOutputStream zipStream = new GZIPOutputStream(legacy);
+        zipStream.write("member2|10\nmember|1|3\n\nmember3|-2".getBytes(Charsets.UTF_8));
+        zipStream.close();
+
+        final CounterDistribution distribution = DatabaseCounterStorage.deserializeDistribution(legacy.toByteArray(),
+                                                                                                Optional.<Set<String>>absent(),
+                                                                                                Optional.<Integer>absent());
+
+        Assert.assertEquals(Lists.newArrayList(distribution.entrySet()).toString(), "[member2=10, member|1=3, member3=-2]");
+    }
+
+    @Test(groups = "fast")
+    public void testTopEntriesAndUniqueIds() throws Exception
+    {
+        final CounterDistribution distribution = new CounterDistribution();
+
+        for (int i = 0; i < 5000; i++) {
+            distribution.incrementCount("member" + i, i % 100 + 1);
+        }
+
+        final byte[] serialized = DatabaseCounterStorage.serializeDistribution(
+                new RolledUpCounterData("pageView", 0, 5000, distribution));
+
+        final CounterDistribution top = DatabaseCounterStorage.deserializeDistribution(serialized,
+                                                                                       Optional.<Set<String>>absent(),
+                                                                                       Optional.of(3));
+        Assert.assertEquals(Lists.newArrayList(top.entrySet()).toString(), "[member1099=100, member1199=100, member1299=100]");
+
+        final CounterDistribution some = DatabaseCounterStorage.deserializeDistribution(serialized,
+                                                                                        Optional.<Set<String>>of(ImmutableSet.of("member5", "member4999", "unknown")),
+                                                                                        Optional.<Integer>absent());
+        Assert.assertEquals(some.size(), 2);
+        Assert.assertEquals(some.get("member5"), (Integer) 6);
+        Assert.assertEquals(some.get("member4999"), (Integer) 100);
+    }
+
+    @Test(groups = "fast")
+    public void testUniqueIdLookup() throws Exception
+    {
+        final DistributionWriter writer = new DistributionWriter();
+
+        for (int i = 0; i < 10000; i++) {
+            writer.write("member" + i, 10000 - i);
+        }
+
+        final byte[] serialized = writer.finish();
+
+        // Head, tail (first and last of the index), and unknown unique ids, before and after all the others
+        final DistributionReader reader = new DistributionReader(serialized);
+        final CounterDistribution found = reader.lookup(Arrays.asList("member0", "member127", "member128", "member9999",
+                                                                      "member5000", "a", "member", "zzz", "member50000"));
+        reader.close();
+
+        Assert.assertEquals(Lists.newArrayList(found.entrySet()).toString(),
+                            "[member0=10000, member127=9873, member128=9872, member5000=5000, member9999=1]");
+
+        final CounterDistribution limited = DatabaseCounterStorage.deserializeDistribution(serialized,
+                                                                                           Optional.<Set<String>>of(ImmutableSet.of("member9999", "member42", "member7000")),
+                                                                                           Optional.of(2));
+        Assert.assertEquals(Lists.newArrayList(limited.entrySet()).toString(), "[member42=9958, member7000=3000]");
+    }
+
+    @Test(groups = "fast")
+    public void testFirstBinaryFormat() throws Exception
+    {
+        // Version 1: no head nor index, a single block holding "a" -> 5
+        final byte[] block = LZFEncoder.encode(new byte[]{0, 1, 'a', 10});
+        final ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+        serialized.write(new byte[]{1, 1, 1, 1, (byte) block.length});
+        serialized.write(block);
+
+        final DistributionReader reader = new DistributionReader(serialized.toByteArray());
+        Assert.assertEquals(reader.getEntryCount(), 1);
+        Assert.assertTrue(reader.next());
+        Assert.assertEquals(reader.getUniqueId(), "a");
+        Assert.assertEquals(reader.getCount(), 5);
+        Assert.assertFalse(reader.next());
+
+        final CounterDistribution found = new DistributionReader(serialized.toByteArray()).lookup(ImmutableSet.of("a", "b"));
+        Assert.assertEquals(found.size(), 1);
+        Assert.assertEquals(found.get("a"), (Integer) 5);
+    }
+}
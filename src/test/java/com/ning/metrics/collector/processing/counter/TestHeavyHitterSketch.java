@@ -0,0 +1,88 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ning.metrics.collector.processing.counter;
+
+import com.google.common.collect.Lists;
+import java.util.Map;
+import java.util.Random;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestHeavyHitterSketch
+{
+    @Test(groups = "fast")
+    public void testCompleteDays() throws Exception
+    {
+        final HeavyHitterSketch sketch = new HeavyHitterSketch(10);
+
+        final CounterDistribution first = new CounterDistribution();
+        first.incrementCount("a", 3);
+        first.incrementCount("b", 2);
+        sketch.mergeTopEntries(first, true);
+
+        final CounterDistribution second = new CounterDistribution();
+        second.incrementCount("b", 4);
+        second.incrementCount("c", 1);
+        sketch.mergeTopEntries(second, true);
+
+        Assert.assertEquals(sketch.getMaxError(), 0);
+        Assert.assertEquals(Lists.newArrayList(sketch.getTopEntries(2).entrySet()).toString(), "[b=6, a=3]");
+    }
+
+    @Test(groups = "fast")
+    public void testTopEntriesOverRange() throws Exception
+    {
+        final Random random = new Random(42);
+        final CounterDistribution total = new CounterDistribution();
+        final HeavyHitterSketch sketch = new HeavyHitterSketch(50);
+
+        for (int day = 0; day < 30; day++) {
+            final CounterDistribution daily = new CounterDistribution();
+
+            // A few heavy hitters over a long tail
+            for (int i = 0; i < 10; i++) {
+                daily.incrementCount("heavy" + i, 1000 - i * 50 + random.nextInt(20));
+            }
+            for (int i = 0; i < 5000; i++) {
+                daily.incrementCount("member" + random.nextInt(20000), 1 + random.nextInt(10));
+            }
+
+            final CounterDistribution top = new CounterDistribution();
+            for (final Map.Entry<String, Integer> entry : daily.entrySet()) {
+                total.incrementCount(entry.getKey(), entry.getValue());
+
+                if (top.size() < 50) {
+                    top.putPresortedEntry(entry.getKey(), entry.getValue());
+                }
+            }
+
+            sketch.mergeTopEntries(top, false);
+        }
+
+        Assert.assertTrue(sketch.getMaxError() > 0);
+
+        final CounterDistribution estimated = sketch.getTopEntries(10);
+        Assert.assertEquals(estimated.size(), 10);
+
+        for (final Map.Entry<String, Integer> entry : estimated.entrySet()) {
+            final int actual = total.get(entry.getKey());
+
+            Assert.assertTrue(entry.getKey().startsWith("heavy"), entry.getKey());
+            Assert.assertTrue(entry.getValue() >= actual);
+            Assert.assertTrue(entry.getValue() - actual <= sketch.getMaxError());
+        }
+    }
+}
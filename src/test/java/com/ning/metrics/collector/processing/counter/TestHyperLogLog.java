@@ -0,0 +1,86 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ning.metrics.collector.processing.counter;
+
+import java.io.IOException;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestHyperLogLog
+{
+    @Test(groups = "fast")
+    public void testSmallCardinality() throws Exception
+    {
+        final HyperLogLog sketch = new HyperLogLog();
+
+        Assert.assertEquals(sketch.cardinality(), 0);
+
+        for (int i = 0; i < 50; i++) {
+            sketch.offer("member" + (i % 25));
+        }
+
+        Assert.assertEquals(sketch.cardinality(), 25);
+    }
+
+    @Test(groups = "fast")
+    public void testLargeCardinality() throws Exception
+    {
+        final HyperLogLog sketch = new HyperLogLog();
+
+        for (int i = 0; i < 200000; i++) {
+            sketch.offer("member" + i);
+        }
+
+        // Three times the standard error
+        Assert.assertEquals(sketch.cardinality(), 200000, 200000 * 0.05);
+    }
+
+    @Test(groups = "fast")
+    public void testMergeAndSerialization() throws Exception
+    {
+        final HyperLogLog union = new HyperLogLog();
+        HyperLogLog merged = null;
+
+        // Overlapping days
+        for (int day = 0; day < 10; day++) {
+            final HyperLogLog daily = new HyperLogLog();
+
+            for (int i = day * 5000; i < day * 5000 + 20000; i++) {
+                daily.offer("member" + i);
+                union.offer("member" + i);
+            }
+
+            final HyperLogLog stored = HyperLogLog.fromBytes(daily.toBytes());
+            Assert.assertEquals(stored.cardinality(), daily.cardinality());
+
+            if (merged == null) {
+                merged = stored;
+            }
+            else {
+                merged.merge(stored);
+            }
+        }
+
+        Assert.assertEquals(merged.cardinality(), union.cardinality());
+        Assert.assertEquals(merged.cardinality(), 65000, 65000 * 0.05);
+    }
+
+    @Test(groups = "fast", expectedExceptions = IOException.class)
+    public void testUnknownFormat() throws Exception
+    {
+        HyperLogLog.fromBytes(new byte[]{42, 12, 0});
+    }
+}
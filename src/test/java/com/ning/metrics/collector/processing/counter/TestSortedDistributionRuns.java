@@ -0,0 +1,93 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ning.metrics.collector.processing.counter;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.ning.metrics.collector.processing.db.DatabaseCounterStorage;
+import com.ning.metrics.collector.processing.db.model.RolledUpCounterData;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestSortedDistributionRuns
+{
+    @Test(groups = "fast")
+    public void testMergeDisjointRuns() throws Exception
+    {
+        final RolledUpCounterData reference = new RolledUpCounterData("pageView");
+        final List<RolledUpCounterData> partitions = Lists.newArrayList();
+        final int partitionCount = 4;
+
+        for (int i = 0; i < partitionCount; i++) {
+            partitions.add(new RolledUpCounterData("pageView"));
+        }
+
+        for (int i = 0; i < 500; i++) {
+            final String uniqueId = "member" + i;
+            final int count = 1 + (i * 7) % 13;
+
+            reference.incrementCounter(count);
+            reference.incrementDistributionCounter(uniqueId, count);
+
+            final RolledUpCounterData partition = partitions.get(RollUpCounterProcessor.partitionOf(uniqueId, partitionCount));
+            partition.incrementCounter(count);
+            partition.incrementDistributionCounter(uniqueId, count);
+        }
+
+        final SortedDistributionRuns runs = new SortedDistributionRuns("test-runs-");
+        try {
+            for (final RolledUpCounterData partition : partitions) {
+                runs.addRun(partition);
+            }
+
+            Assert.assertEquals(runs.getCounterNames(), ImmutableSet.of("pageView"));
+            Assert.assertEquals(runs.getTotalCount("pageView"), reference.getTotalCount());
+            Assert.assertEquals(runs.getUniqueCount("pageView"), reference.getUniqueCount());
+
+            // Same content, in the same order, as the distribution rolled up in a single partition
+            final CounterDistribution merged = DatabaseCounterStorage.deserializeDistribution(runs.mergeRuns("pageView"),
+                                                                                            Optional.<Set<String>>absent(),
+                                                                                            Optional.<Integer>absent());
+            Assert.assertEquals(Lists.newArrayList(merged.entrySet()), Lists.<Map.Entry<String, Integer>>newArrayList(reference.getDistribution().entrySet()));
+        }
+        finally {
+            runs.close();
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testCountersWithoutDistribution() throws Exception
+    {
+        final SortedDistributionRuns runs = new SortedDistributionRuns("test-runs-");
+        try {
+            runs.addRun(new RolledUpCounterData("contribution", 12, 0, null));
+            runs.addRun(new RolledUpCounterData("contribution", 3, 0, null));
+
+            Assert.assertEquals(runs.getTotalCount("contribution"), 15);
+            Assert.assertEquals(runs.getUniqueCount("contribution"), 0);
+            Assert.assertTrue(DatabaseCounterStorage.deserializeDistribution(runs.mergeRuns("contribution"),
+                                                                             Optional.<Set<String>>absent(),
+                                                                             Optional.<Integer>absent()).isEmpty());
+        }
+        finally {
+            runs.close();
+        }
+    }
+}
@@ -89,6 +89,7 @@ public class CollectorMysqlTestingHelper {
                 handle.execute("delete from feeds");
                 handle.execute("delete from metrics_buffer");
                 handle.execute("delete from metrics_daily");
+                handle.execute("delete from metrics_daily_delta");
                 return null;
             }
 
@@ -19,6 +19,8 @@ import com.google.inject.AbstractModule;
 import com.ning.metrics.collector.binder.config.CollectorConfig;
 import com.ning.metrics.collector.binder.config.CollectorConfigurationObjectFactory;
 import com.ning.metrics.collector.guice.providers.CollectorDBIProvider;
+import com.ning.metrics.collector.processing.counter.CounterRollUpScheduler;
+import com.ning.metrics.collector.processing.counter.RollUpCounterProcessor;
 
 import org.skife.config.ConfigurationObjectFactory;
 import org.skife.jdbi.v2.DBI;
@@ -52,6 +54,11 @@ public class DBConfigModule extends AbstractModule
         bind(FeedEventProcessor.class).asEagerSingleton();
         
         bind(CounterStorage.class).to(DatabaseCounterStorage.class).asEagerSingleton();
-        bind(CounterEventCacheProcessor.class).to(InMemoryCounterCacheProcessor.class).asEagerSingleton(); 
+        bind(MetricsBufferWriter.class).asEagerSingleton();
+        bind(InMemoryCounterCacheProcessor.class).asEagerSingleton();
+        bind(CounterEventCacheProcessor.class).to(AggregatingCounterCacheProcessor.class).asEagerSingleton(); 
+
+        bind(RollUpCounterProcessor.class).asEagerSingleton();
+        bind(CounterRollUpScheduler.class).asEagerSingleton();
     }
 }
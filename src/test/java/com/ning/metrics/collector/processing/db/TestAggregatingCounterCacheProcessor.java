@@ -0,0 +1,139 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ning.metrics.collector.processing.db;
+
+import com.ning.metrics.collector.binder.config.CollectorConfig;
+import com.ning.metrics.collector.processing.db.model.CounterEventData;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import org.mockito.Mockito;
+import org.skife.config.TimeSpan;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+public class TestAggregatingCounterCacheProcessor
+{
+    private CounterEventCacheProcessor counterCacheProcessor;
+    private AggregatingCounterCacheProcessor aggregatingProcessor;
+
+    private void setup(final TimeSpan flushTime, final int maxAggregatedCount)
+    {
+        final CollectorConfig config = Mockito.mock(CollectorConfig.class);
+        Mockito.when(config.getSpoolWriterExecutorShutdownTime()).thenReturn(new TimeSpan(1, TimeUnit.SECONDS));
+        Mockito.when(config.getCounterEventAggregationFlushTime()).thenReturn(flushTime);
+        Mockito.when(config.getMaxCounterEventAggregationCount()).thenReturn(maxAggregatedCount);
+
+        counterCacheProcessor = Mockito.mock(CounterEventCacheProcessor.class);
+        aggregatingProcessor = new AggregatingCounterCacheProcessor(config, counterCacheProcessor);
+    }
+
+    @AfterMethod(alwaysRun = true)
+    public void cleanUp() throws Exception
+    {
+        aggregatingProcessor.cleanUp();
+    }
+
+    private static CounterEventData prepareCounterEventData(final String id, final DateTime createdDateTime)
+    {
+        final Map<String, Integer> counterMap = new HashMap<String, Integer>();
+        counterMap.put("pageView", 1);
+        counterMap.put("contribution", 2);
+
+        return new CounterEventData(id, createdDateTime, counterMap);
+    }
+
+    @Test(groups = "fast")
+    public void testEventsAreAggregatedPerNamespaceDayAndUniqueId() throws Exception
+    {
+        setup(new TimeSpan(1, TimeUnit.HOURS), 1000);
+        final DateTime today = new DateTime(2014, 1, 24, 10, 0, DateTimeZone.UTC);
+
+        aggregatingProcessor.addCounterEventData("1", prepareCounterEventData("member123", today));
+        aggregatingProcessor.addCounterEventData("1", prepareCounterEventData("member123", today.plusHours(2)));
+        aggregatingProcessor.addCounterEventData("1", prepareCounterEventData("member123", today.plusDays(1)));
+        aggregatingProcessor.addCounterEventData("2", prepareCounterEventData("member123", today));
+        aggregatingProcessor.addCounterEventData("1", prepareCounterEventData("member456", today));
+        Assert.assertEquals(aggregatingProcessor.getAggregatedCounterEvents(), 4);
+
+        // Nothing reaches the cache before the flush
+        Mockito.verifyZeroInteractions(counterCacheProcessor);
+
+        aggregatingProcessor.flush();
+
+        final ArgumentCaptor<CounterEventData> captor = ArgumentCaptor.forClass(CounterEventData.class);
+        Mockito.verify(counterCacheProcessor, Mockito.times(3)).addCounterEventData(Mockito.eq("1"), captor.capture());
+        Mockito.verify(counterCacheProcessor, Mockito.times(1)).addCounterEventData(Mockito.eq("2"), Mockito.<CounterEventData>any());
+        Mockito.verify(counterCacheProcessor, Mockito.times(1)).processRemainingCounters();
+
+        for (final CounterEventData counterEventData : captor.getAllValues()) {
+            if ("member123".equals(counterEventData.getUniqueIdentifier()) && today.toLocalDate().equals(counterEventData.getCreatedTime().toLocalDate())) {
+                Assert.assertEquals((int) counterEventData.getCounters().get("pageView"), 2);
+                Assert.assertEquals((int) counterEventData.getCounters().get("contribution"), 4);
+            }
+            else {
+                Assert.assertEquals((int) counterEventData.getCounters().get("pageView"), 1);
+                Assert.assertEquals((int) counterEventData.getCounters().get("contribution"), 2);
+            }
+        }
+
+        Assert.assertEquals(aggregatingProcessor.getAggregatedCounterEvents(), 0);
+        Assert.assertEquals(aggregatingProcessor.getReceivedCounterEvents(), 5);
+        Assert.assertEquals(aggregatingProcessor.getFlushedCounterEvents(), 4);
+    }
+
+    @Test(groups = "slow")
+    public void testFlushOnSizeThreshold() throws Exception
+    {
+        setup(new TimeSpan(1, TimeUnit.HOURS), 2);
+        final DateTime now = new DateTime(DateTimeZone.UTC);
+
+        aggregatingProcessor.addCounterEventData("1", prepareCounterEventData("member123", now));
+        aggregatingProcessor.addCounterEventData("1", prepareCounterEventData("member123", now));
+        Thread.sleep(200);
+        Mockito.verify(counterCacheProcessor, Mockito.never()).addCounterEventData(Mockito.anyString(), Mockito.<CounterEventData>any());
+
+        aggregatingProcessor.addCounterEventData("1", prepareCounterEventData("member456", now));
+        Mockito.verify(counterCacheProcessor, Mockito.timeout(1000).times(2)).addCounterEventData(Mockito.eq("1"), Mockito.<CounterEventData>any());
+    }
+
+    @Test(groups = "slow")
+    public void testFlushOnTimer() throws Exception
+    {
+        setup(new TimeSpan(100, TimeUnit.MILLISECONDS), 1000);
+
+        aggregatingProcessor.addCounterEventData("1", prepareCounterEventData("member123", new DateTime(DateTimeZone.UTC)));
+        Mockito.verify(counterCacheProcessor, Mockito.timeout(1000).times(1)).addCounterEventData(Mockito.eq("1"), Mockito.<CounterEventData>any());
+    }
+
+    @Test(groups = "fast")
+    public void testCleanUpFlushesRemainingEvents() throws Exception
+    {
+        setup(new TimeSpan(1, TimeUnit.HOURS), 1000);
+
+        aggregatingProcessor.addCounterEventData("1", prepareCounterEventData("member123", new DateTime(DateTimeZone.UTC)));
+        aggregatingProcessor.cleanUp();
+
+        final InOrder inOrder = Mockito.inOrder(counterCacheProcessor);
+        inOrder.verify(counterCacheProcessor).addCounterEventData(Mockito.eq("1"), Mockito.<CounterEventData>any());
+        inOrder.verify(counterCacheProcessor).cleanUp();
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ning.metrics.collector.processing.db;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import com.google.inject.Inject;
+import com.ning.metrics.collector.guice.module.CollectorObjectMapperModule;
+import com.ning.metrics.collector.processing.db.model.CounterEventData;
+import java.io.IOException;
+import java.util.Map;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.mockito.Mockito;
+import org.skife.jdbi.v2.Handle;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Guice;
+import org.testng.annotations.Test;
+
+@Test(groups = "fast")
+@Guice(modules = CollectorObjectMapperModule.class)
+public class TestCounterEventDataCodec
+{
+    @Inject
+    private ObjectMapper mapper;
+
+    private CounterEventDataCodec codec;
+
+    @BeforeMethod(alwaysRun = true)
+    public void setup()
+    {
+        final Handle handle = Mockito.mock(Handle.class);
+        final CounterNameDictionary dictionary = Mockito.mock(CounterNameDictionary.class);
+        Mockito.when(dictionary.getId(handle, "pageView")).thenReturn(1);
+        Mockito.when(dictionary.getId(handle, "trafficTablet")).thenReturn(200);
+        Mockito.when(dictionary.getName(1)).thenReturn("pageView");
+        Mockito.when(dictionary.getName(200)).thenReturn("trafficTablet");
+
+        codec = new CounterEventDataCodec(mapper, dictionary, handle);
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception
+    {
+        final Map<String, Integer> counters = ImmutableMap.of("pageView", 3, "trafficTablet", 100000);
+        final CounterEventData data = new CounterEventData("member:123", new DateTime(2014, 3, 14, 15, 9, 26, DateTimeZone.UTC), counters);
+
+        final byte[] row = codec.encode(data);
+        final byte[] json = mapper.writeValueAsBytes(data);
+        Assert.assertTrue(row.length < json.length / 3);
+
+        final CounterEventData decoded = codec.decode(row);
+        Assert.assertEquals(decoded.getUniqueIdentifier(), "member:123");
+        Assert.assertEquals(decoded.getFormattedDate(), "2014-03-14");
+        Assert.assertEquals(decoded.getCounters(), counters);
+    }
+
+    @Test
+    public void testLegacyJsonRow() throws Exception
+    {
+        final byte[] row = ("{\"uniqueIdentifier\":\"member:321\",\"createdDate\":\"2013-01-10\","
+                + "\"counters\":{\"pageView\":1,\"contribution\":2}}").getBytes(Charsets.UTF_8);
+
+        final CounterEventData decoded = codec.decode(row);
+        Assert.assertEquals(decoded.getUniqueIdentifier(), "member:321");
+        Assert.assertEquals(decoded.getFormattedDate(), "2013-01-10");
+        Assert.assertEquals(decoded.getCounters(), ImmutableMap.of("pageView", 1, "contribution", 2));
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testUnknownCounterNameId() throws Exception
+    {
+        final byte[] row = codec.encode(new CounterEventData("member:123", new DateTime(DateTimeZone.UTC), ImmutableMap.of("pageView", 1)));
+
+        // Point the counter at an id missing from the dictionary
+        row[row.length - 2] = 42;
+        codec.decode(row);
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testUnknownFormat() throws Exception
+    {
+        codec.decode(new byte[]{42, 0});
+    }
+}
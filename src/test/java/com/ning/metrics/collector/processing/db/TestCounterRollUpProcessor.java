@@ -18,10 +18,12 @@ package com.ning.metrics.collector.processing.db;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.base.Optional;
 import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.Sets;
 import com.google.inject.Guice;
 import com.google.inject.Inject;
+import com.ning.metrics.collector.binder.config.CollectorConfig;
 import com.ning.metrics.collector.guice.module.CollectorObjectMapperModule;
 import com.ning.metrics.collector.processing.counter.CompositeCounter;
 import com.ning.metrics.collector.processing.counter.RollUpCounterProcessor;
@@ -35,6 +37,13 @@ import java.util.Map;
 import java.util.Set;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.IDBI;
+import org.skife.jdbi.v2.tweak.HandleCallback;
+import org.skife.jdbi.v2.util.IntegerMapper;
 import org.testng.Assert;
 import org.testng.annotations.AfterClass;
 import org.testng.annotations.BeforeClass;
@@ -59,6 +68,12 @@ public class TestCounterRollUpProcessor
     @Inject
     RollUpCounterProcessor counterProcessor;
 
+    @Inject
+    IDBI dbi;
+
+    @Inject
+    DatabaseCounterStorage databaseCounterStorage;
+
     @BeforeClass(groups = {"slow", "database"})
     public void startDB() throws Exception{
         helper = new CollectorMysqlTestingHelper();
@@ -204,6 +219,309 @@ public class TestCounterRollUpProcessor
 
     }
 
+    @Test(groups = {"slow", "database"})
+    public void testPartitionedCounterRollUpProcessor() throws Exception
+    {
+        String namespace = "namespace_" + (++lastNamespaceNumber);
+
+        DateTime dateTime = new DateTime(2014,2,2,1,0,DateTimeZone.UTC);
+        RolledUpCounter expected = new RolledUpCounter(namespace, dateTime, dateTime);
+
+        // Already rolled up, must be merged with what is rolled up next
+        Multimap<String, CounterEventData> multimap = ArrayListMultimap.create();
+
+        multimap.put(namespace, prepareCounterEventData("member111", Arrays.asList("pageView","contribution"),dateTime));
+        multimap.put(namespace, prepareCounterEventData("member112", Arrays.asList("pageView"),dateTime));
+
+        for (CounterEventData counterEventData : multimap.values()) {
+            expected.updateRolledUpCounterData(counterEventData);
+        }
+
+        counterStorage.bufferMetrics(multimap);
+        counterProcessor.rollUpDailyCounters(namespace);
+
+        // More events than the partition limit for the first day, only one for the next day
+        multimap = ArrayListMultimap.create();
+
+        for (int i = 0; i < 20; i++) {
+            CounterEventData counterEventData = prepareCounterEventData("member" + (110 + i % 7),
+                    Arrays.asList("pageView","trafficMobile"), dateTime.plusMinutes(i), i % 3 + 1);
+            multimap.put(namespace, counterEventData);
+            expected.updateRolledUpCounterData(counterEventData);
+        }
+
+        multimap.put(namespace, prepareCounterEventData("member111", Arrays.asList("pageView"),dateTime.plusDays(1)));
+
+        counterStorage.bufferMetrics(multimap);
+
+        CollectorConfig config = Mockito.mock(CollectorConfig.class);
+        Mockito.when(config.getMaxCounterRollUpPartitionSize()).thenReturn(3);
+
+        new RollUpCounterProcessor(dbi, databaseCounterStorage, config, mapper)
+                .rollUpPartitionedDailyCounters(namespace);
+
+        Assert.assertTrue(counterStorage.loadBufferedMetrics(namespace, null).isEmpty());
+
+        List<RolledUpCounter> rolledUpCounterList
+                = counterStorage.queryDailyRolledUpCounters(
+                        namespace, dateTime, dateTime, null, false, null, null);
+
+        Assert.assertEquals(rolledUpCounterList.size(), 1);
+
+        Map<String, RolledUpCounterData> summary = rolledUpCounterList.get(0).getCounterSummary();
+
+        Assert.assertEquals(summary.keySet(), expected.getCounterSummary().keySet());
+
+        for (RolledUpCounterData expectedData : expected.getCounterSummary().values()) {
+            RolledUpCounterData actualData = summary.get(expectedData.getCounterName());
+
+            Assert.assertEquals(actualData.getTotalCount(), expectedData.getTotalCount());
+            Assert.assertEquals(actualData.getUniqueCount(), expectedData.getUniqueCount());
+            Assert.assertEquals(Lists.newArrayList(actualData.getDistribution().entrySet()),
+                    Lists.newArrayList(expectedData.getDistribution().entrySet()));
+        }
+
+        rolledUpCounterList = counterStorage.queryDailyRolledUpCounters(
+                namespace, dateTime.plusDays(1), dateTime.plusDays(1), null, false, null, null);
+
+        Assert.assertEquals(rolledUpCounterList.size(), 1);
+        Assert.assertEquals(rolledUpCounterList.get(0).getCounterSummary()
+                .get("pageView").getTotalCount(), 1);
+    }
+
+    @Test(groups = {"slow", "database"})
+    public void testIncrementalCounterRollUpProcessor() throws Exception
+    {
+        final String namespace = "namespace_" + (++lastNamespaceNumber);
+
+        DateTime dateTime = new DateTime(2014,2,3,1,0,DateTimeZone.UTC);
+        RolledUpCounter expected = new RolledUpCounter(namespace, dateTime, dateTime);
+
+        CollectorConfig config = Mockito.mock(CollectorConfig.class);
+        Mockito.when(config.isCounterRollUpIncremental()).thenReturn(true);
+        Mockito.when(config.getMaxCounterRollUpPartitionSize()).thenReturn(3);
+        Mockito.when(config.getMaxCounterEventFetchCount()).thenReturn(1000);
+
+        RollUpCounterProcessor incrementalProcessor =
+                new RollUpCounterProcessor(dbi, databaseCounterStorage, config, mapper);
+
+        // Rolled up three times, with unique ids in common: the paged, the
+        // streaming and the partitioned roll ups all save deltas
+        for (int rollUp = 0; rollUp < 3; rollUp++) {
+            Multimap<String, CounterEventData> multimap = ArrayListMultimap.create();
+
+            for (int i = 0; i < 10; i++) {
+                CounterEventData counterEventData = prepareCounterEventData("member" + (110 + (i + rollUp) % 6),
+                        Arrays.asList("pageView","trafficMobile"), dateTime.plusMinutes(i), i % 3 + 1);
+                multimap.put(namespace, counterEventData);
+                expected.updateRolledUpCounterData(counterEventData);
+            }
+
+            counterStorage.bufferMetrics(multimap);
+
+            if (rollUp == 0) {
+                incrementalProcessor.rollUpDailyCounters(namespace);
+            }
+            else if (rollUp == 1) {
+                incrementalProcessor.rollUpStreamingDailyCounters(namespace);
+            }
+            else {
+                incrementalProcessor.rollUpPartitionedDailyCounters(namespace);
+            }
+        }
+
+        Assert.assertTrue(counterStorage.loadBufferedMetrics(namespace, null).isEmpty());
+
+        // Nothing was merged into metrics_daily yet
+        Assert.assertEquals(dbi.withHandle(new HandleCallback<Integer>() {
+            @Override
+            public Integer withHandle(Handle handle) throws Exception
+            {
+                return handle.createQuery("select count(*) from metrics_daily where namespace = :namespace")
+                        .bind("namespace", namespace)
+                        .map(IntegerMapper.FIRST)
+                        .first();
+            }
+        }).intValue(), 0);
+
+        List<RolledUpCounter> rolledUpCounterList
+                = counterStorage.queryDailyRolledUpCounters(
+                        namespace, dateTime, dateTime, null, false, null, null);
+
+        Assert.assertEquals(rolledUpCounterList.size(), 1);
+
+        Map<String, RolledUpCounterData> summary = rolledUpCounterList.get(0).getCounterSummary();
+
+        Assert.assertEquals(summary.keySet(), expected.getCounterSummary().keySet());
+
+        for (RolledUpCounterData expectedData : expected.getCounterSummary().values()) {
+            RolledUpCounterData actualData = summary.get(expectedData.getCounterName());
+
+            Assert.assertEquals(actualData.getTotalCount(), expectedData.getTotalCount());
+            Assert.assertEquals(actualData.getUniqueCount(), expectedData.getUniqueCount());
+            Assert.assertEquals(Lists.newArrayList(actualData.getDistribution().entrySet()),
+                    Lists.newArrayList(expectedData.getDistribution().entrySet()));
+        }
+
+        // The query merged the deltas in memory only, they are left for compaction
+        Assert.assertTrue(counterStorage.compactDailyRolledUpCounterDeltas(namespace, null, null) > 0);
+
+        rolledUpCounterList = counterStorage.queryDailyRolledUpCounters(
+                namespace, dateTime, dateTime, null, false, null, null);
+        summary = rolledUpCounterList.get(0).getCounterSummary();
+
+        for (RolledUpCounterData expectedData : expected.getCounterSummary().values()) {
+            RolledUpCounterData actualData = summary.get(expectedData.getCounterName());
+
+            Assert.assertEquals(actualData.getTotalCount(), expectedData.getTotalCount());
+            Assert.assertEquals(actualData.getUniqueCount(), expectedData.getUniqueCount());
+        }
+    }
+
+    @Test(groups = {"slow", "database"})
+    public void testEventsBufferedDuringPartitionedRollUpAreKept() throws Exception
+    {
+        final String namespace = "namespace_" + (++lastNamespaceNumber);
+
+        DateTime dateTime = new DateTime(2014,2,4,1,0,DateTimeZone.UTC);
+
+        Multimap<String, CounterEventData> multimap = ArrayListMultimap.create();
+        multimap.put(namespace, prepareCounterEventData("member111", Arrays.asList("pageView"),dateTime));
+        multimap.put(namespace, prepareCounterEventData("member112", Arrays.asList("pageView"),dateTime));
+        counterStorage.bufferMetrics(multimap);
+
+        // Another event of the same day is buffered once the roll up started
+        final Multimap<String, CounterEventData> lateMultimap = ArrayListMultimap.create();
+        lateMultimap.put(namespace, prepareCounterEventData("member113", Arrays.asList("pageView"),dateTime));
+
+        DatabaseCounterStorage storage = Mockito.spy(databaseCounterStorage);
+        Mockito.doAnswer(new Answer<Long>()
+        {
+            @Override
+            public Long answer(InvocationOnMock invocation) throws Throwable
+            {
+                Long maxId = (Long) invocation.callRealMethod();
+                counterStorage.bufferMetrics(lateMultimap);
+                return maxId;
+            }
+        }).when(storage).getMaxBufferedMetricsIdInRange(Mockito.<Handle>any(), Mockito.anyString(), Mockito.<DateTime>any(), Mockito.<DateTime>any());
+
+        CollectorConfig config = Mockito.mock(CollectorConfig.class);
+        Mockito.when(config.getMaxCounterRollUpPartitionSize()).thenReturn(1000);
+
+        new RollUpCounterProcessor(dbi, storage, config, mapper)
+                .rollUpPartitionedDailyCounters(namespace);
+
+        List<CounterEventData> buffered = counterStorage.loadBufferedMetrics(namespace, null);
+        Assert.assertEquals(buffered.size(), 1);
+        Assert.assertEquals(buffered.get(0).getUniqueIdentifier(), "member113");
+
+        List<RolledUpCounter> rolledUpCounterList
+                = counterStorage.queryDailyRolledUpCounters(
+                        namespace, dateTime, dateTime, null, false, null, null);
+
+        Assert.assertEquals(rolledUpCounterList.size(), 1);
+        Assert.assertEquals(rolledUpCounterList.get(0).getCounterSummary()
+                .get("pageView").getTotalCount(), 2);
+    }
+
+    @Test(groups = {"slow", "database"})
+    public void testEventsBufferedDuringPagedRollUpAreKept() throws Exception
+    {
+        final String namespace = "namespace_" + (++lastNamespaceNumber);
+
+        DateTime dateTime = new DateTime(2014,2,6,1,0,DateTimeZone.UTC);
+
+        Multimap<String, CounterEventData> multimap = ArrayListMultimap.create();
+        multimap.put(namespace, prepareCounterEventData("member111", Arrays.asList("pageView"),dateTime));
+        multimap.put(namespace, prepareCounterEventData("member112", Arrays.asList("pageView"),dateTime));
+        counterStorage.bufferMetrics(multimap);
+
+        // Another event, older than the roll up, is buffered once the buffer was read
+        final Multimap<String, CounterEventData> lateMultimap = ArrayListMultimap.create();
+        lateMultimap.put(namespace, prepareCounterEventData("member113", Arrays.asList("pageView"),dateTime));
+
+        DatabaseCounterStorage storage = Mockito.spy(databaseCounterStorage);
+        Mockito.doAnswer(new Answer<BufferedMetricsPage>()
+        {
+            @Override
+            public BufferedMetricsPage answer(InvocationOnMock invocation) throws Throwable
+            {
+                BufferedMetricsPage page = (BufferedMetricsPage) invocation.callRealMethod();
+                counterStorage.bufferMetrics(lateMultimap);
+                return page;
+            }
+        }).when(storage).loadBufferedMetricsPaged(Mockito.anyString(), Mockito.<DateTime>any(), Mockito.<Integer>any(), Mockito.<Long>any());
+
+        CollectorConfig config = Mockito.mock(CollectorConfig.class);
+        Mockito.when(config.getMaxCounterEventFetchCount()).thenReturn(1000);
+
+        new RollUpCounterProcessor(dbi, storage, config, mapper)
+                .rollUpDailyCounters(namespace);
+
+        List<CounterEventData> buffered = counterStorage.loadBufferedMetrics(namespace, null);
+        Assert.assertEquals(buffered.size(), 1);
+        Assert.assertEquals(buffered.get(0).getUniqueIdentifier(), "member113");
+
+        List<RolledUpCounter> rolledUpCounterList
+                = counterStorage.queryDailyRolledUpCounters(
+                        namespace, dateTime, dateTime, null, false, null, null);
+
+        Assert.assertEquals(rolledUpCounterList.size(), 1);
+        Assert.assertEquals(rolledUpCounterList.get(0).getCounterSummary()
+                .get("pageView").getTotalCount(), 2);
+    }
+
+    @Test(groups = {"slow", "database"})
+    public void testFailedIncrementalRollUpIsNotCountedTwice() throws Exception
+    {
+        final String namespace = "namespace_" + (++lastNamespaceNumber);
+
+        DateTime dateTime = new DateTime(2014,2,5,1,0,DateTimeZone.UTC);
+
+        Multimap<String, CounterEventData> multimap = ArrayListMultimap.create();
+
+        for (int i = 0; i < 10; i++) {
+            multimap.put(namespace, prepareCounterEventData("member" + (110 + i),
+                    Arrays.asList("pageView"), dateTime.plusMinutes(i)));
+        }
+
+        counterStorage.bufferMetrics(multimap);
+
+        CollectorConfig config = Mockito.mock(CollectorConfig.class);
+        Mockito.when(config.isCounterRollUpIncremental()).thenReturn(true);
+        Mockito.when(config.getMaxCounterRollUpPartitionSize()).thenReturn(3);
+
+        // Saving the delta of the second partition fails
+        DatabaseCounterStorage failingStorage = Mockito.spy(databaseCounterStorage);
+        Mockito.doCallRealMethod()
+                .doThrow(new IllegalStateException("Simulated failure"))
+                .when(failingStorage).insertDailyRolledUpCounterDeltas(Mockito.<Handle>any(), Mockito.<RolledUpCounter>any());
+
+        new RollUpCounterProcessor(dbi, failingStorage, config, mapper)
+                .rollUpPartitionedDailyCounters(namespace);
+
+        // Nothing was saved, nothing was deleted
+        Assert.assertEquals(counterStorage.loadBufferedMetrics(namespace, null).size(), 10);
+        Assert.assertTrue(counterStorage.queryDailyRolledUpCounters(
+                namespace, dateTime, dateTime, null, false, null, null).isEmpty());
+
+        new RollUpCounterProcessor(dbi, databaseCounterStorage, config, mapper)
+                .rollUpPartitionedDailyCounters(namespace);
+
+        Assert.assertTrue(counterStorage.loadBufferedMetrics(namespace, null).isEmpty());
+
+        List<RolledUpCounter> rolledUpCounterList
+                = counterStorage.queryDailyRolledUpCounters(
+                        namespace, dateTime, dateTime, null, false, null, null);
+
+        Assert.assertEquals(rolledUpCounterList.size(), 1);
+        Assert.assertEquals(rolledUpCounterList.get(0).getCounterSummary()
+                .get("pageView").getTotalCount(), 10);
+        Assert.assertEquals(rolledUpCounterList.get(0).getCounterSummary()
+                .get("pageView").getUniqueCount(), 10);
+    }
+
     @Test(groups = {"slow", "database"})
     public void testLoadAggregatedRolledUpCounters() throws Exception
     {
@@ -321,6 +639,76 @@ public class TestCounterRollUpProcessor
     }
 
 
+    @Test(groups = {"slow", "database"})
+    public void testLoadRolledUpCountersAggregatedOverAll_approximateUniqueCount() throws Exception
+    {
+        String namespace = "namespace_" + (++lastNamespaceNumber);
+
+        Multimap<String, CounterEventData> multimap = ArrayListMultimap.create();
+
+        DateTime dateTime = new DateTime(2014,2,2,1,0,DateTimeZone.UTC);
+
+        multimap.put(namespace, prepareCounterEventData("member111", Arrays.asList("pageView","trafficTablet"),dateTime));
+        multimap.put(namespace, prepareCounterEventData("member112", Arrays.asList("pageView","trafficTablet"),dateTime));
+        multimap.put(namespace, prepareCounterEventData("member112", Arrays.asList("pageView","trafficTablet"),dateTime.plusDays(1)));
+        multimap.put(namespace, prepareCounterEventData("member113", Arrays.asList("pageView"),dateTime.plusHours(1)));
+        multimap.put(namespace, prepareCounterEventData("member114", Arrays.asList("pageView"),dateTime.plusHours(1)));
+        multimap.put(namespace, prepareCounterEventData("member115", Arrays.asList("pageView"),dateTime.plusDays(1)));
+        multimap.put(namespace, prepareCounterEventData("member116", Arrays.asList("pageView"),dateTime.plusDays(1)));
+        multimap.put(namespace, prepareCounterEventData("member117", Arrays.asList("pageView"),dateTime.plusDays(2)));
+        multimap.put(namespace, prepareCounterEventData("member111", Arrays.asList("pageView"),dateTime.plusDays(3)));
+
+        counterStorage.bufferMetrics(multimap);
+        counterProcessor.rollUpDailyCounters(namespace);
+
+        Optional<String> fromDateOpt = Optional.of("2014-02-02");
+        Optional<String> toDateOpt = Optional.absent();
+        Optional<Set<String>> counterNames = Optional.absent();
+
+        List<RolledUpCounter> rolledUpCounterList = counterProcessor.loadAggregatedRolledUpCounters(namespace, fromDateOpt,toDateOpt,counterNames, null, false, true, true, true, (Optional)Optional.absent(), null);
+
+        // Small counts are estimated by linear counting, which is exact here
+        Assert.assertNotNull(rolledUpCounterList);
+        Assert.assertEquals(rolledUpCounterList.size(),1);
+        Assert.assertTrue(rolledUpCounterList.get(0).getCounterSummary().get("pageView").getDistribution().isEmpty());
+        Assert.assertEquals(rolledUpCounterList.get(0).getCounterSummary().get("pageView").getTotalCount(), 9);
+        Assert.assertEquals(rolledUpCounterList.get(0).getCounterSummary().get("pageView").getUniqueCount(), 7);
+        Assert.assertEquals(rolledUpCounterList.get(0).getCounterSummary().get("trafficTablet").getUniqueCount(), 2);
+    }
+
+
+    @Test(groups = {"slow", "database"})
+    public void testLoadRolledUpCountersAggregatedOverAll_approximateTopEntries() throws Exception
+    {
+        String namespace = "namespace_" + (++lastNamespaceNumber);
+
+        Multimap<String, CounterEventData> multimap = ArrayListMultimap.create();
+
+        DateTime dateTime = new DateTime(2014,2,2,1,0,DateTimeZone.UTC);
+
+        for (int day = 0; day < 3; day++) {
+            multimap.put(namespace, prepareCounterEventData("member111", Arrays.asList("pageView"),dateTime.plusDays(day),5));
+            multimap.put(namespace, prepareCounterEventData("member112", Arrays.asList("pageView"),dateTime.plusDays(day),3));
+            multimap.put(namespace, prepareCounterEventData("member" + (113 + day), Arrays.asList("pageView"),dateTime.plusDays(day),1));
+        }
+
+        counterStorage.bufferMetrics(multimap);
+        counterProcessor.rollUpDailyCounters(namespace);
+
+        Optional<String> fromDateOpt = Optional.of("2014-02-02");
+        Optional<String> toDateOpt = Optional.absent();
+        Optional<Set<String>> counterNames = Optional.absent();
+
+        List<RolledUpCounter> rolledUpCounterList = counterProcessor.loadAggregatedRolledUpCounters(namespace, fromDateOpt,toDateOpt,counterNames, null, false, true, true, false, (Optional)Optional.absent(), Optional.of(2));
+
+        Assert.assertNotNull(rolledUpCounterList);
+        Assert.assertEquals(rolledUpCounterList.size(),1);
+        Assert.assertEquals(Lists.newArrayList(rolledUpCounterList.get(0).getCounterSummary().get("pageView").getDistribution().entrySet()).toString(), "[member111=15, member112=9]");
+        Assert.assertEquals(rolledUpCounterList.get(0).getCounterSummary().get("pageView").getTotalCount(), 27);
+        Assert.assertEquals(rolledUpCounterList.get(0).getCounterSummary().get("pageView").getUniqueCount(), 5);
+    }
+
+
     @Test(groups = {"slow", "database"})
     public void testLoadRolledUpCountersAggregatedOverAll_limitDistribution() throws Exception
     {
@@ -16,12 +16,12 @@
 package com.ning.metrics.collector.processing.db;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.google.common.base.Objects;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Multimap;
 import com.google.inject.Guice;
 import com.google.inject.Inject;
+import com.ning.metrics.collector.binder.config.CollectorConfig;
 import com.ning.metrics.collector.guice.module.CollectorObjectMapperModule;
 import com.ning.metrics.collector.processing.db.model.CounterEventData;
 import java.util.Arrays;
@@ -30,6 +30,13 @@ import java.util.List;
 import java.util.Map;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
+import org.mockito.Mockito;
+import org.skife.config.TimeSpan;
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.IDBI;
+import org.skife.jdbi.v2.tweak.HandleCallback;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.testng.Assert;
 import org.testng.annotations.AfterClass;
 import org.testng.annotations.BeforeClass;
@@ -39,6 +46,8 @@ import org.testng.annotations.Test;
 @Test(groups = {"slow", "database"})
 public class TestCounterStorage
 {
+    private static final Logger log = LoggerFactory.getLogger(TestCounterStorage.class);
+
     private CollectorMysqlTestingHelper helper;
 
     @Inject
@@ -47,6 +56,9 @@ public class TestCounterStorage
     @Inject
     CounterStorage counterStorage;
 
+    @Inject
+    IDBI dbi;
+
     @BeforeClass(groups = {"slow", "database"})
     public void startDB() throws Exception{
         helper = new CollectorMysqlTestingHelper();
@@ -85,13 +97,23 @@ public class TestCounterStorage
 
         counterStorage.bufferMetrics(multimap);
 
-        List<CounterEventData> dailyList =
-                counterStorage.loadBufferedMetricsPaged("1", null, 1, 1);
+        BufferedMetricsPage page =
+                counterStorage.loadBufferedMetricsPaged("1", null, 1, null);
 
-        Assert.assertNotNull(dailyList);
-        Assert.assertFalse(dailyList.isEmpty());
-        Assert.assertEquals(1, dailyList.size());
-        Assert.assertTrue(Objects.equal("member123", dailyList.get(0).getUniqueIdentifier()) || Objects.equal("member321", dailyList.get(0).getUniqueIdentifier()));
+        Assert.assertNotNull(page.getCounterEventData());
+        Assert.assertEquals(1, page.getCounterEventData().size());
+        Assert.assertEquals("member123", page.getCounterEventData().get(0).getUniqueIdentifier());
+
+        // The next page starts after the last row of the previous one
+        page = counterStorage.loadBufferedMetricsPaged("1", null, 1, page.getLastId());
+
+        Assert.assertEquals(1, page.getCounterEventData().size());
+        Assert.assertEquals("member321", page.getCounterEventData().get(0).getUniqueIdentifier());
+
+        page = counterStorage.loadBufferedMetricsPaged("1", null, 1, page.getLastId());
+
+        Assert.assertTrue(page.getCounterEventData().isEmpty());
+        Assert.assertNull(page.getLastId());
     }
 
     @Test(groups = {"slow", "database"})
@@ -121,6 +143,87 @@ public class TestCounterStorage
                 dailyList.get(0).getCounters().get("pageView"));
     }
 
+    @Test(groups = {"slow", "database"})
+    public void testMultiRowInsertMatchesBatchInsert() throws Exception
+    {
+        final CollectorConfig multiRowConfig = Mockito.mock(CollectorConfig.class);
+        Mockito.when(multiRowConfig.getSubscriptionCacheTimeout()).thenReturn(new TimeSpan("30s"));
+        Mockito.when(multiRowConfig.getCounterEventBufferInsertMode()).thenReturn(MetricsBufferInsertMode.MULTI_ROW);
+        // Small chunks, so that the rows span many inserts
+        Mockito.when(multiRowConfig.getCounterEventBufferInsertChunkBytes()).thenReturn(4096);
+        final CounterStorage multiRowStorage = new DatabaseCounterStorage(dbi, multiRowConfig, mapper);
+
+        final DateTime dateTime = new DateTime(DateTimeZone.UTC);
+        final Multimap<String, CounterEventData> batchEvents = ArrayListMultimap.create();
+        final Multimap<String, CounterEventData> multiRowEvents = ArrayListMultimap.create();
+
+        for (int i = 0; i < 5000; i++) {
+            batchEvents.put("1", prepareCounterEventData("member" + i,
+                    Arrays.asList("pageView", "trafficTablet"), dateTime));
+            multiRowEvents.put("2", prepareCounterEventData("member" + i,
+                    Arrays.asList("pageView", "trafficTablet"), dateTime));
+        }
+
+        long startTime = System.nanoTime();
+        counterStorage.bufferMetrics(batchEvents);
+        final long batchNanos = System.nanoTime() - startTime;
+
+        startTime = System.nanoTime();
+        multiRowStorage.bufferMetrics(multiRowEvents);
+        final long multiRowNanos = System.nanoTime() - startTime;
+
+        log.info(String.format("Buffered 5000 counter events in %d ms with a batch, %d ms with multi-row inserts",
+                batchNanos / 1000000, multiRowNanos / 1000000));
+
+        final List<CounterEventData> batchList = counterStorage.loadBufferedMetrics("1", dateTime);
+        final List<CounterEventData> multiRowList = multiRowStorage.loadBufferedMetrics("2", dateTime);
+
+        Assert.assertEquals(batchList.size(), 5000);
+        Assert.assertEquals(multiRowList.size(), 5000);
+
+        final Map<String, Map<String, Integer>> batchCounters = new HashMap<String, Map<String, Integer>>();
+        for (final CounterEventData data : batchList) {
+            batchCounters.put(data.getUniqueIdentifier(), data.getCounters());
+        }
+        for (final CounterEventData data : multiRowList) {
+            Assert.assertEquals(data.getCounters(), batchCounters.get(data.getUniqueIdentifier()));
+        }
+    }
+
+    @Test(groups = {"slow", "database"})
+    public void testLoadLegacyJsonAndBinaryRows() throws Exception
+    {
+        final DateTime dateTime = new DateTime(DateTimeZone.UTC);
+
+        // A row buffered before the binary format
+        dbi.withHandle(new HandleCallback<Void>()
+        {
+            @Override
+            public Void withHandle(Handle handle) throws Exception
+            {
+                handle.createStatement("insert into metrics_buffer (`namespace`,`metrics`,`timestamp`) values (:namespace, :metrics, :timestamp)")
+                        .bind("namespace", "1")
+                        .bind("metrics", mapper.writeValueAsString(prepareCounterEventData("member123",
+                                Arrays.asList("pageView", "contribution"), dateTime)))
+                        .bind("timestamp", DatabaseCounterStorage.DAILY_METRICS_DATE_FORMAT.print(dateTime))
+                        .execute();
+                return null;
+            }
+        });
+
+        final Multimap<String, CounterEventData> multimap = ArrayListMultimap.create();
+        multimap.put("1", prepareCounterEventData("member123",
+                Arrays.asList("pageView", "trafficTablet"), dateTime));
+        counterStorage.bufferMetrics(multimap);
+
+        final List<CounterEventData> dailyList = counterStorage.loadBufferedMetrics("1", dateTime);
+
+        Assert.assertEquals(dailyList.size(), 1);
+        Assert.assertEquals(dailyList.get(0).getCounters().get("pageView"), Integer.valueOf(2));
+        Assert.assertEquals(dailyList.get(0).getCounters().get("contribution"), Integer.valueOf(1));
+        Assert.assertEquals(dailyList.get(0).getCounters().get("trafficTablet"), Integer.valueOf(1));
+    }
+
     /**
      * Convenience method for generating a counter event with the basic info
      * @param id unique identifier of the entity performing the counted action
@@ -90,7 +90,7 @@ public class TestMockFeedEventSpoolProcessor
         Mockito.verify(serializationType,Mockito.times(1)).getDeSerializer(Mockito.<InputStream>any());
         Mockito.verify(eventDeserializer, Mockito.times(2)).hasNextEvent();
         Mockito.verify(eventDeserializer, Mockito.times(1)).getNextEvent();
-        Mockito.verify(event, Mockito.times(2)).getName();
+        Mockito.verify(event, Mockito.times(1)).getName();
         Mockito.verifyNoMoreInteractions(eventDeserializer,serializationType);
         Mockito.verifyZeroInteractions(subscriptionStorage,feedEventStorage);
     }
@@ -138,7 +138,7 @@ public class TestMockFeedEventSpoolProcessor
         Mockito.verify(serializationType,Mockito.times(1)).getDeSerializer(Mockito.<InputStream>any());
         Mockito.verify(eventDeserializer, Mockito.times(2)).hasNextEvent();
         Mockito.verify(eventDeserializer, Mockito.times(1)).getNextEvent();
-        Mockito.verify(event, Mockito.times(3)).getName();
+        Mockito.verify(event, Mockito.times(1)).getName();
         if(isSuppressType)
         {
             Mockito.verify(subscriptionStorage,Mockito.times(1)).loadByStartsWithTopic(Mockito.anyString());
@@ -22,11 +22,16 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
 import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.skife.config.TimeSpan;
+import org.testng.Assert;
 import org.testng.annotations.AfterMethod;
 import org.testng.annotations.Test;
 
@@ -131,4 +136,57 @@ public class TestMockInMemoryCounterCacheProcessor
 
     }
 
+    @Test(groups = "slow")
+    public void testConcurrentAddsAreNotLost() throws Exception{
+        config = Mockito.mock(CollectorConfig.class);
+        counterStorage = Mockito.mock(CounterStorage.class);
+        Mockito.when(config.getSpoolWriterExecutorShutdownTime()).thenReturn(new TimeSpan(10, TimeUnit.SECONDS));
+        Mockito.when(config.getCounterEventMemoryFlushTime()).thenReturn(new TimeSpan(1, TimeUnit.MILLISECONDS));
+        Mockito.when(config.getMaxCounterEventFlushCacheCount()).thenReturn(7L);
+
+        final AtomicInteger bufferedRows = new AtomicInteger(0);
+        Mockito.doAnswer(new Answer<Void>()
+        {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable
+            {
+                bufferedRows.addAndGet(((Multimap<?, ?>) invocation.getArguments()[0]).size());
+                return null;
+            }
+        }).when(counterStorage).bufferMetrics(Mockito.<Multimap<String, CounterEventData>>any());
+
+        counterCacheProcessor = new InMemoryCounterCacheProcessor(config, counterStorage);
+
+        final int threadCount = 8;
+        final int eventsPerThread = 1000;
+        final CountDownLatch done = new CountDownLatch(threadCount);
+
+        for (int i = 0; i < threadCount; i++) {
+            final int thread = i;
+            new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    // Distinct unique ids, so that no counter event gets merged with another
+                    for (int j = 0; j < eventsPerThread; j++) {
+                        counterCacheProcessor.addCounterEventData(String.valueOf(j % 3), prepareCounterEventData(
+                                "member" + thread + "_" + j,
+                                Arrays.asList("pageView"),
+                                new DateTime(DateTimeZone.UTC)));
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+
+        done.await();
+        counterCacheProcessor.cleanUp();
+
+        Assert.assertEquals(bufferedRows.get(), threadCount * eventsPerThread);
+        Assert.assertEquals(counterCacheProcessor.getCounterEventsInCache(), 0);
+        Assert.assertEquals(counterCacheProcessor.getFlushedCounterEvents(), threadCount * eventsPerThread);
+        Assert.assertTrue(counterCacheProcessor.getCounterEventFlushes() > 0);
+    }
+
 }
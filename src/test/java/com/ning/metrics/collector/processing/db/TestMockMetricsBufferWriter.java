@@ -0,0 +1,126 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ning.metrics.collector.processing.db;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multimap;
+import com.ning.metrics.collector.binder.config.CollectorConfig;
+import com.ning.metrics.collector.processing.db.model.CounterEventData;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.skife.config.TimeSpan;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestMockMetricsBufferWriter
+{
+    @Test(groups = "slow")
+    public void testNamespaceOrderAndConcurrency() throws Exception
+    {
+        final CollectorConfig config = Mockito.mock(CollectorConfig.class);
+        final CounterStorage counterStorage = Mockito.mock(CounterStorage.class);
+        Mockito.when(config.getSpoolWriterExecutorShutdownTime()).thenReturn(new TimeSpan(10, TimeUnit.SECONDS));
+        Mockito.when(config.getCounterEventBufferWriterCount()).thenReturn(4);
+        Mockito.when(config.getCounterEventBufferWriterQueueLimit()).thenReturn(1);
+
+        final ListMultimap<String, String> written = ArrayListMultimap.create();
+        final AtomicInteger concurrentWrites = new AtomicInteger(0);
+        final AtomicInteger maxConcurrentWrites = new AtomicInteger(0);
+
+        Mockito.doAnswer(new Answer<Void>()
+        {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable
+            {
+                final int concurrent = concurrentWrites.incrementAndGet();
+                synchronized (maxConcurrentWrites) {
+                    maxConcurrentWrites.set(Math.max(maxConcurrentWrites.get(), concurrent));
+                }
+
+                Thread.sleep(5);
+
+                @SuppressWarnings("unchecked")
+                final Multimap<String, CounterEventData> batch = (Multimap<String, CounterEventData>) invocation.getArguments()[0];
+                synchronized (written) {
+                    for (final Map.Entry<String, CounterEventData> entry : batch.entries()) {
+                        written.put(entry.getKey(), entry.getValue().getUniqueIdentifier());
+                    }
+                }
+
+                concurrentWrites.decrementAndGet();
+                return null;
+            }
+        }).when(counterStorage).bufferMetrics(Mockito.<Multimap<String, CounterEventData>>any());
+
+        final MetricsBufferWriter writer = new MetricsBufferWriter(config, counterStorage);
+        Assert.assertEquals(writer.getWriterCount(), 4);
+
+        final int batchesPerNamespace = 20;
+        for (int i = 0; i < batchesPerNamespace; i++) {
+            for (int namespace = 0; namespace < 8; namespace++) {
+                final List<CounterEventData> batch = Lists.newArrayList(new CounterEventData(String.format("member%03d", i), new DateTime(DateTimeZone.UTC), ImmutableMap.of("pageView", 1)));
+                writer.write(String.valueOf(namespace), batch);
+            }
+        }
+
+        writer.cleanUp();
+
+        Assert.assertEquals(writer.getInFlightBatches(), 0);
+        Assert.assertEquals(writer.getFlushedCounterEvents(), 8 * batchesPerNamespace);
+        Assert.assertEquals(writer.getCounterEventFlushes(), 8 * batchesPerNamespace);
+        Assert.assertTrue(maxConcurrentWrites.get() <= 4);
+        Assert.assertTrue(writer.getWriteLatencyMedianMillis() >= 5);
+        Assert.assertTrue(writer.getBatchLatency99thPercentileMillis() >= writer.getWriteLatencyMedianMillis());
+
+        // Batches of a namespace are written in the order they were handed over
+        for (int namespace = 0; namespace < 8; namespace++) {
+            final List<String> uniqueIds = written.get(String.valueOf(namespace));
+            Assert.assertEquals(uniqueIds.size(), batchesPerNamespace);
+
+            for (int i = 0; i < batchesPerNamespace; i++) {
+                Assert.assertEquals(uniqueIds.get(i), String.format("member%03d", i));
+            }
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testLatencyHistogram() throws Exception
+    {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        Assert.assertEquals(histogram.getPercentileMillis(99), 0);
+
+        for (int i = 0; i < 98; i++) {
+            histogram.record(3);
+        }
+        histogram.record(150);
+        histogram.record(100000);
+
+        Assert.assertEquals(histogram.getCount(), 100);
+        Assert.assertEquals(histogram.getPercentileMillis(50), 5);
+        Assert.assertEquals(histogram.getPercentileMillis(99), 200);
+        Assert.assertEquals(histogram.getPercentileMillis(100), Long.MAX_VALUE);
+    }
+}
@@ -21,11 +21,13 @@ import com.google.inject.Guice;
 import com.google.inject.Inject;
 import com.ning.metrics.collector.guice.module.CollectorObjectMapperModule;
 import com.ning.metrics.collector.processing.counter.CounterDistribution;
+import com.ning.metrics.collector.processing.counter.DistributionWriter;
 import com.ning.metrics.collector.processing.db.model.CounterEventData;
 import com.ning.metrics.collector.processing.db.model.RolledUpCounter;
 import com.ning.metrics.collector.processing.db.model.RolledUpCounterData;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -154,6 +156,63 @@ public class TestRolledUpCounterStorage
     }
 
 
+    @Test(groups = {"fast"})
+    public void testDistributionMerge() throws Exception {
+
+        CounterDistribution stored = new CounterDistribution();
+        stored.increment("a", 5);
+        stored.increment("b", 3);
+        stored.increment("c", 3);
+        stored.increment("d", 1);
+
+        CounterDistribution increments = new CounterDistribution();
+        increments.increment("a", -2);
+        increments.increment("c", 4);
+        increments.increment("e", 2);
+        increments.increment("f", 3);
+
+        byte[] serDist = DatabaseCounterStorage.serializeDistribution(
+                new RolledUpCounterData("tester", 12, 4, stored));
+
+        DistributionWriter writer = new DistributionWriter();
+        int newUniqueIds = DatabaseCounterStorage.mergeDistribution(
+                serDist, increments, writer);
+
+        Assert.assertEquals(newUniqueIds, 2);
+
+        Map<String, Integer> testDist
+                = DatabaseCounterStorage.deserializeDistribution(
+                        writer.finish(),
+                        Optional.<Set<String>>absent(),
+                        Optional.<Integer>absent());
+
+        String[] keyAnswers = new String[] {
+            "c", "a", "b", "f", "e", "d"
+        };
+
+        int[] valueAnswers = new int[] {
+            7, 3, 3, 3, 2, 1
+        };
+
+        Assert.assertEquals(testDist.size(), keyAnswers.length);
+
+        int index = 0;
+
+        for (Map.Entry<String, Integer> e : testDist.entrySet()) {
+
+            Assert.assertEquals(e.getKey(), keyAnswers[index]);
+            Assert.assertEquals(e.getValue().intValue(), valueAnswers[index]);
+
+            index++;
+        }
+
+        // Nothing stored yet
+        writer = new DistributionWriter();
+        Assert.assertEquals(DatabaseCounterStorage.mergeDistribution(
+                null, increments, writer), 4);
+        Assert.assertEquals(writer.getEntryCount(), 4);
+    }
+
     @Test(groups = {"slow", "database"})
     public void testInsertRolledUpCounter() throws Exception{
         DateTime dateTime = new DateTime(
@@ -333,4 +392,77 @@ public class TestRolledUpCounterStorage
         Assert.assertTrue(rolledUpCounters == null || rolledUpCounters.isEmpty());
     }
 
+    @Test(groups = {"slow", "database"})
+    public void testCompactRolledUpCounterDeltas() throws Exception{
+        DateTime dateTime = new DateTime(
+                RolledUpCounter.DATE_FORMATTER.parseMillis("2014-01-24"),
+                DateTimeZone.UTC);
+
+        counterStorage.insertOrUpdateDailyRolledUpCounter(
+                prepareRolledUpCounterData(dateTime, dateTime));
+
+        RolledUpCounterData stored = counterStorage.loadDailyRolledUpCounter(
+                "network_111", dateTime).getCounterSummary().get("pageView");
+
+        // Two deltas: member321 twice, and a new member
+        RolledUpCounter delta = new RolledUpCounter("network_111",
+                dateTime, dateTime);
+        delta.updateRolledUpCounterData(new CounterEventData("member321",
+                dateTime, Collections.singletonMap("pageView", 1)));
+        delta.updateRolledUpCounterData(new CounterEventData("member999",
+                dateTime, Collections.singletonMap("pageView", 1)));
+        counterStorage.insertDailyRolledUpCounterDeltas(delta);
+
+        delta = new RolledUpCounter("network_111", dateTime, dateTime);
+        delta.updateRolledUpCounterData(new CounterEventData("member321",
+                dateTime, Collections.singletonMap("pageView", 1)));
+        counterStorage.insertDailyRolledUpCounterDeltas(delta);
+
+        // Neither enough deltas nor old enough
+        Assert.assertEquals(counterStorage.compactDailyRolledUpCounterDeltas(
+                3, dateTime), 0);
+        Assert.assertEquals(counterStorage.compactDailyRolledUpCounterDeltas(
+                2, dateTime), 2);
+
+        // One more, merged in memory when read
+        delta = new RolledUpCounter("network_111", dateTime, dateTime);
+        delta.updateRolledUpCounterData(new CounterEventData("member123",
+                dateTime, Collections.singletonMap("pageView", 5)));
+        counterStorage.insertDailyRolledUpCounterDeltas(delta);
+
+        List<RolledUpCounter> rolledUpCounters
+                = counterStorage.queryDailyRolledUpCounters(
+                        "network_111", dateTime, dateTime,
+                        null, false, null, null);
+
+        Assert.assertEquals(rolledUpCounters.size(), 1);
+
+        RolledUpCounterData pageView
+                = rolledUpCounters.get(0).getCounterSummary().get("pageView");
+
+        Assert.assertEquals(pageView.getTotalCount(),
+                stored.getTotalCount() + 8);
+        Assert.assertEquals(pageView.getUniqueCount(),
+                stored.getUniqueCount() + 1);
+        Assert.assertEquals(new ArrayList<Map.Entry<String, Integer>>(
+                pageView.getDistribution().entrySet()).toString(),
+                "[member123=7, member321=3, member999=1]");
+
+        // Other counters are left alone
+        Assert.assertEquals(rolledUpCounters.get(0).getCounterSummary()
+                .get("contribution").getTotalCount(), 2);
+
+        // The read left it for compaction, which does not change the counts
+        Assert.assertEquals(counterStorage.compactDailyRolledUpCounterDeltas(
+                1, dateTime), 1);
+
+        pageView = counterStorage.loadDailyRolledUpCounter("network_111",
+                dateTime).getCounterSummary().get("pageView");
+
+        Assert.assertEquals(pageView.getTotalCount(),
+                stored.getTotalCount() + 8);
+        Assert.assertEquals(pageView.getUniqueCount(),
+                stored.getUniqueCount() + 1);
+    }
+
 }
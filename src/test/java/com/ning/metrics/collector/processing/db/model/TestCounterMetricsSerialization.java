@@ -57,6 +57,23 @@ public class TestCounterMetricsSerialization
 //        System.out.println(mapper.writeValueAsString(counterEvent));
     }
 
+    @Test
+    public void testCounterEventDeserializationWithNullCount() throws Exception
+    {
+        String jsonData = "{\"uniqueIdentifier\": \"member:123\","
+                + "\"createdDate\":\"2013-01-10\","
+                + "\"counters\":{\"pageView\":2,\"someCounter\":null}}";
+
+        CounterEventData counterEventData = mapper.readValue(jsonData,
+                CounterEventData.class);
+
+        Assert.assertEquals(counterEventData.getCounterCount(), 1);
+        Assert.assertEquals(counterEventData.getCounters().get("pageView"),
+                Integer.valueOf(2));
+        Assert.assertFalse(counterEventData.getCounters()
+                .containsKey("someCounter"));
+    }
+
     @Test
     public void testRolledUpCounterSerialization() throws Exception
     {
@@ -0,0 +1,237 @@
+/*
+ * Copyright 2010-2013 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.collector.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class TestRingBufferBlockingQueue
+{
+    private static final Logger log = LoggerFactory.getLogger(TestRingBufferBlockingQueue.class);
+
+    @Test(groups = "fast")
+    public void testCapacityAndOrdering() throws Exception
+    {
+        // Not a power of two: the capacity is still enforced
+        final BlockingQueue<Integer> queue = new RingBufferBlockingQueue<Integer>(3);
+        Assert.assertTrue(queue.isEmpty());
+        Assert.assertNull(queue.poll());
+        Assert.assertNull(queue.peek());
+
+        Assert.assertTrue(queue.offer(1));
+        Assert.assertTrue(queue.offer(2));
+        Assert.assertTrue(queue.offer(3));
+        Assert.assertFalse(queue.offer(4));
+        Assert.assertEquals(queue.size(), 3);
+        Assert.assertEquals(queue.remainingCapacity(), 0);
+        Assert.assertEquals(queue.peek(), (Integer) 1);
+
+        Assert.assertEquals(queue.poll(), (Integer) 1);
+        Assert.assertTrue(queue.offer(4));
+
+        final List<Integer> drained = new ArrayList<Integer>();
+        Assert.assertEquals(queue.drainTo(drained, 2), 2);
+        Assert.assertEquals(drained.size(), 2);
+        Assert.assertEquals(drained.get(0), (Integer) 2);
+        Assert.assertEquals(drained.get(1), (Integer) 3);
+        Assert.assertEquals(queue.take(), (Integer) 4);
+        Assert.assertNull(queue.poll(10, TimeUnit.MILLISECONDS));
+
+        queue.offer(5);
+        queue.clear();
+        Assert.assertTrue(queue.isEmpty());
+    }
+
+    @Test(groups = "fast")
+    public void testTakeWaitsForProducer() throws Exception
+    {
+        final BlockingQueue<String> queue = new RingBufferBlockingQueue<String>(16);
+        final CountDownLatch taken = new CountDownLatch(1);
+        final Thread consumer = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try {
+                    if ("hello".equals(queue.take())) {
+                        taken.countDown();
+                    }
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        consumer.start();
+
+        Thread.sleep(100);
+        Assert.assertTrue(queue.offer("hello"));
+        Assert.assertTrue(taken.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test(groups = "slow")
+    public void testConcurrentProducersAndConsumers() throws Exception
+    {
+        final int nbProducers = 8;
+        final int nbConsumers = 4;
+        final int eventsPerProducer = 100000;
+        final BlockingQueue<Long> queue = new RingBufferBlockingQueue<Long>(1024);
+
+        final AtomicInteger dropped = new AtomicInteger(0);
+        final AtomicLong consumedSum = new AtomicLong(0);
+        final AtomicInteger consumed = new AtomicInteger(0);
+        final CountDownLatch producersDone = new CountDownLatch(nbProducers);
+
+        for (int i = 0; i < nbProducers; i++) {
+            new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    for (long j = 1; j <= eventsPerProducer; j++) {
+                        if (!queue.offer(j)) {
+                            dropped.incrementAndGet();
+                            consumedSum.addAndGet(j);
+                        }
+                    }
+                    producersDone.countDown();
+                }
+            }).start();
+        }
+
+        final List<Thread> consumers = new ArrayList<Thread>();
+        for (int i = 0; i < nbConsumers; i++) {
+            final Thread consumer = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try {
+                        while (true) {
+                            final Long value = queue.take();
+                            consumedSum.addAndGet(value);
+                            consumed.incrementAndGet();
+                        }
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+            consumers.add(consumer);
+            consumer.start();
+        }
+
+        Assert.assertTrue(producersDone.await(30, TimeUnit.SECONDS));
+        while (!queue.isEmpty()) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(100);
+        for (final Thread consumer : consumers) {
+            consumer.interrupt();
+            consumer.join();
+        }
+
+        // Every event was either consumed exactly once or dropped
+        final long expectedSum = (long) nbProducers * eventsPerProducer * (eventsPerProducer + 1) / 2;
+        Assert.assertEquals(consumed.get() + dropped.get(), nbProducers * eventsPerProducer);
+        Assert.assertEquals(consumedSum.get(), expectedSum);
+    }
+
+    @Test(groups = "fast")
+    public void testChunksAcrossLaps() throws Exception
+    {
+        // Large capacity: chunks are only allocated when reached
+        final BlockingQueue<Integer> queue = new RingBufferBlockingQueue<Integer>(1 << 24);
+        Assert.assertNull(queue.poll());
+
+        // Several laps of a ring spanning several chunks
+        final BlockingQueue<Integer> small = new RingBufferBlockingQueue<Integer>(3 * RingBufferBlockingQueue.CHUNK_SIZE);
+        int next = 0;
+        for (int lap = 0; lap < 5; lap++) {
+            for (int i = 0; i < 2 * RingBufferBlockingQueue.CHUNK_SIZE + 7; i++) {
+                Assert.assertTrue(small.offer(next + i));
+            }
+            Assert.assertEquals(small.peek(), (Integer) next);
+            for (int i = 0; i < 2 * RingBufferBlockingQueue.CHUNK_SIZE + 7; i++) {
+                Assert.assertEquals(small.poll(), (Integer) (next + i));
+            }
+            Assert.assertNull(small.poll());
+            next += 2 * RingBufferBlockingQueue.CHUNK_SIZE + 7;
+        }
+    }
+
+    @Test(groups = "slow")
+    public void testThroughputAgainstLinkedBlockingQueue() throws Exception
+    {
+        // Warm up both, then measure
+        for (int i = 0; i < 2; i++) {
+            final long linkedNanos = transfer(new LinkedBlockingQueue<Long>(200000));
+            final long ringNanos = transfer(new RingBufferBlockingQueue<Long>(200000));
+
+            log.info(String.format("8 producers, 1 consumer, 4000000 events: LinkedBlockingQueue %d ms, RingBufferBlockingQueue %d ms",
+                                   TimeUnit.NANOSECONDS.toMillis(linkedNanos), TimeUnit.NANOSECONDS.toMillis(ringNanos)));
+        }
+    }
+
+    /**
+     * @return the time taken for all the events to be consumed, in nanoseconds
+     */
+    private long transfer(final BlockingQueue<Long> queue) throws Exception
+    {
+        final int nbProducers = 8;
+        final int eventsPerProducer = 500000;
+        final CountDownLatch start = new CountDownLatch(1);
+
+        for (int i = 0; i < nbProducers; i++) {
+            new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try {
+                        start.await();
+                        for (long j = 0; j < eventsPerProducer; j++) {
+                            queue.put(j);
+                        }
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }).start();
+        }
+
+        final long startTime = System.nanoTime();
+        start.countDown();
+        for (int i = 0; i < nbProducers * eventsPerProducer; i++) {
+            Assert.assertNotNull(queue.take());
+        }
+        return System.nanoTime() - startTime;
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.collector.util;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
+public class TestStringIntHashMap
+{
+    @Test(groups = "fast")
+    public void testPutAddAndGet() throws Exception
+    {
+        final StringIntHashMap map = new StringIntHashMap();
+        Assert.assertTrue(map.isEmpty());
+        Assert.assertEquals(map.get("missing", -1), -1);
+        Assert.assertEquals(map.indexOf(null), -1);
+
+        Assert.assertEquals(map.put("a", 1), 0);
+        Assert.assertTrue(map.add("b", 2));
+        Assert.assertFalse(map.add("a", 5));
+        Assert.assertEquals(map.put("b", 7), 1);
+
+        Assert.assertEquals(map.size(), 2);
+        Assert.assertEquals(map.get("a", 0), 6);
+        Assert.assertEquals(map.get("b", 0), 7);
+        Assert.assertEquals(map.keyAt(0), "a");
+        Assert.assertEquals(map.valueAt(1), 7);
+
+        map.clear();
+        Assert.assertTrue(map.isEmpty());
+        Assert.assertFalse(map.containsKey("a"));
+    }
+
+    @Test(groups = "fast")
+    public void testAgainstHashMap() throws Exception
+    {
+        final StringIntHashMap map = new StringIntHashMap();
+        final Map<String, Integer> expected = new HashMap<String, Integer>();
+        final Random random = new Random(42);
+
+        for (int i = 0; i < 100000; i++) {
+            final String key = "member" + random.nextInt(20000);
+            final int increment = random.nextInt(10);
+            final Integer previous = expected.get(key);
+            expected.put(key, previous == null ? increment : previous + increment);
+            Assert.assertEquals(map.add(key, increment), previous == null);
+        }
+
+        Assert.assertEquals(map.size(), expected.size());
+        Assert.assertEquals(map.asMap(), expected);
+    }
+
+    @Test(groups = "fast")
+    public void testPermute() throws Exception
+    {
+        final StringIntHashMap map = new StringIntHashMap();
+        map.put("a", 1);
+        map.put("b", 2);
+        map.put("c", 3);
+
+        map.permute(new int[]{2, 0, 1});
+
+        final Iterator<Map.Entry<String, Integer>> entries = map.asMap().entrySet().iterator();
+        Assert.assertEquals(entries.next().getKey(), "c");
+        Assert.assertEquals(entries.next().getKey(), "a");
+        Assert.assertEquals(entries.next().getKey(), "b");
+        Assert.assertFalse(entries.hasNext());
+
+        // Lookups still work after the move
+        Assert.assertEquals(map.get("a", 0), 1);
+        Assert.assertEquals(map.get("b", 0), 2);
+        Assert.assertEquals(map.get("c", 0), 3);
+        Assert.assertEquals(map.indexOf("c"), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testMapView() throws Exception
+    {
+        final StringIntHashMap map = new StringIntHashMap();
+        final Map<String, Integer> view = map.asMap();
+
+        Assert.assertNull(view.put("a", 1));
+        Assert.assertEquals(view.put("a", 3), (Integer) 1);
+        Assert.assertEquals(map.get("a", 0), 3);
+
+        view.entrySet().iterator().next().setValue(4);
+        Assert.assertEquals(view.get("a"), (Integer) 4);
+        Assert.assertNull(view.get("b"));
+    }
+}